@@ -12,18 +12,25 @@
 
 
 import java.sql.DriverManager;
+import java.sql.BatchUpdateException;
 import java.sql.Connection;
 import java.sql.Statement;
+import java.sql.PreparedStatement;
+import java.sql.Types;
 import java.sql.ResultSet;
 import java.sql.ResultSetMetaData;
 import java.sql.SQLException;
+import java.sql.Savepoint;
 import java.io.File;
 import java.io.FileReader;
 import java.io.BufferedReader;
 import java.io.InputStreamReader;
+import java.io.IOException;
 import java.util.List;
 import java.util.ArrayList;
-import java.util.Random;
+import java.util.Arrays;
+import java.util.Map;
+import java.util.concurrent.CountDownLatch;
 
 /**
  * This class defines a simple embedded SQL utility class that is designed to
@@ -32,19 +39,116 @@ import java.util.Random;
  */
 
 public class AirBooking{
-	//reference to physical database connection
-	private Connection _connection = null;
+	//pool of physical database connections shared by all sessions
+	private ConnectionPool _pool = null;
+	//transaction opened by beginTransaction() on the current thread, if any
+	private final ThreadLocal<Transaction> _transaction = new ThreadLocal<Transaction>();
+	//read replicas for the read-only operations; null when none are configured
+	private ReplicaRouter _replicas = null;
+	//where the reads of the current thread go
+	private final ThreadLocal<Routing> _routing = ThreadLocal.withInitial(Routing::new);
+	//how long a thread that wrote keeps reading from the primary, so it sees its own writes
+	private final long _pinAfterWriteNanos =
+			Long.getLong("airbooking.replica.pinAfterWriteMillis", 1000L) * 1000000L;
+	//rows fetched per round trip by queries read through a cursor
+	private volatile int _fetchSize = Integer.getInteger("airbooking.fetchSize", 500);
+	//places and confirms seat holds
+	private BookingEngine _bookingEngine = null;
+	//the menu operations, as run by the batch and HTTP front ends
+	private final BookingRepository _repository = new JdbcBookingRepository(this);
+	//block allocated keys for new passengers, ratings and booking references
+	private IdAllocator _passengerIds = null;
+	private IdAllocator _ratingIds = null;
+	private IdAllocator _bookingIds = null;
+	//flights by origin city, for connection searches
+	private volatile RouteGraph _routes = null;
+	//flights per destination, ranked
+	private volatile DestinationPopularity _popularity = null;
+	//distinct origins and destinations, for matching and suggesting typed city names
+	private volatile CityIndex _origins = null;
+	private volatile CityIndex _destinations = null;
+	//airline and flight lookups used to validate input and list routes
+	private final ReferenceCache _referenceCache = new ReferenceCache(this,
+			Integer.getInteger("airbooking.referenceCache.size", 10000),
+			Long.getLong("airbooking.referenceCache.ttlMillis", 600000L));
+	//call counts and latencies per statement shape and operation, published over JMX
+	private final QueryMetrics _metrics = new QueryMetrics(Integer.getInteger("airbooking.metrics.maxStatements", 500));
+	//statements slower than a threshold, with sampled plans; null when disabled
+	private SlowQueryLog _slowQueries = null;
+
+	//sequences behind the allocators, with the table and key column they must stay ahead of
+	static final String PASSENGER_SEQUENCE = "Passenger_pID_seq";
+	static final String RATINGS_SEQUENCE = "Ratings_rID_seq";
+	static final String BOOKING_SEQUENCE = "Booking_ref_seq";
 	static BufferedReader in = new BufferedReader(new InputStreamReader(System.in));
+	//names the menu operations are counted under, by menu choice
+	static final String[] MENU_OPERATIONS = {
+			"AddPassenger", "BookFlight", "TakeCustomerReview", "InsertOrUpdateRouteForAirline",
+			"ListAvailableFlightsBetweenOriginAndDestination", "ListMostPopularDestinations",
+			"ListHighestRatedRoutes", "ListFlightFromOriginToDestinationInOrderOfDuration",
+			"FindNumberOfAvailableSeatsForFlight", "FindConnectingFlights"};
 
 	public AirBooking(String dbname, String dbport, String user, String passwd) throws SQLException {
 		System.out.print("Connecting to database...");
 		try{
+			// lets the driver send a batch of single-row INSERTs as multi-row INSERTs
+			String options = "?reWriteBatchedInserts="
+					+ Boolean.parseBoolean(System.getProperty("airbooking.reWriteBatchedInserts", "true"));
+			String prepareThreshold = System.getProperty("airbooking.prepareThreshold");
+			if (prepareThreshold != null) {
+				// executions of a cached statement before the driver switches to a server-side plan
+				options += "&prepareThreshold=" + prepareThreshold;
+			}
 			// constructs the connection URL
-			String url = "jdbc:postgresql://localhost:" + dbport + "/" + dbname;
+			String url = "jdbc:postgresql://localhost:" + dbport + "/" + dbname + options;
 			System.out.println ("Connection URL: " + url + "\n");
 
-			// obtain a physical connection
-	        this._connection = DriverManager.getConnection(url, user, passwd);
+			// opens the connection pool, sized through -Dairbooking.pool.* properties
+			this._pool = new ConnectionPool(url, user, passwd,
+					Integer.getInteger("airbooking.pool.min", 1),
+					Integer.getInteger("airbooking.pool.max", 8),
+					Long.getLong("airbooking.pool.idleTimeoutMillis", 300000L),
+					Long.getLong("airbooking.pool.borrowTimeoutMillis", 30000L),
+					Long.getLong("airbooking.pool.validationIntervalMillis", 5000L),
+					Long.getLong("airbooking.pool.leakThresholdMillis", 60000L),
+					Boolean.getBoolean("airbooking.pool.leakStackTraces"),
+					Integer.getInteger("airbooking.statementCacheSize", 64));
+			int idBlockSize = Integer.getInteger("airbooking.idBlockSize", 50);
+			this._passengerIds = new IdAllocator(this, PASSENGER_SEQUENCE, idBlockSize);
+			this._ratingIds = new IdAllocator(this, RATINGS_SEQUENCE, idBlockSize);
+			this._bookingIds = new IdAllocator(this, BOOKING_SEQUENCE, idBlockSize);
+			String replicas = System.getProperty("airbooking.replicas", "").trim();
+			if (!replicas.isEmpty()) {
+				// read-only operations are spread over the replicas, given as host:port or port on this machine
+				List<String> urls = new ArrayList<String>();
+				for (String replica : replicas.split("\\s*,\\s*")) {
+					urls.add("jdbc:postgresql://" + (replica.contains(":") ? replica : "localhost:" + replica)
+							+ "/" + dbname + options);
+				}
+				System.out.println ("Read replicas: " + urls + "\n");
+				this._replicas = new ReplicaRouter(urls, user, passwd,
+						Integer.getInteger("airbooking.replica.pool.max", this._pool.getMaxSize()),
+						Long.getLong("airbooking.pool.idleTimeoutMillis", 300000L),
+						Long.getLong("airbooking.replica.borrowTimeoutMillis", 1000L),
+						Long.getLong("airbooking.pool.validationIntervalMillis", 5000L),
+						Integer.getInteger("airbooking.statementCacheSize", 64),
+						Long.getLong("airbooking.replica.checkIntervalMillis", 5000L),
+						Long.getLong("airbooking.replica.maxLagMillis", 10000L));
+			}
+			this._bookingEngine = new BookingEngine(this,
+					Long.getLong("airbooking.holdTtlMillis", 120000L),
+					Integer.getInteger("airbooking.bookingRetries", 5));
+			long slowQueryMillis = Long.getLong("airbooking.slowQuery.thresholdMillis", 1000L);
+			if (slowQueryMillis >= 0) {
+				// statements slower than the threshold are logged, reads with a sample of their plans
+				this._slowQueries = new SlowQueryLog(this, slowQueryMillis,
+						System.getProperty("airbooking.slowQuery.file", "slow-queries.log"),
+						Integer.getInteger("airbooking.slowQuery.maxBytes", 10 * 1024 * 1024),
+						Integer.getInteger("airbooking.slowQuery.files", 5),
+						Double.parseDouble(System.getProperty("airbooking.slowQuery.explainSampleRate", "1")),
+						Integer.getInteger("airbooking.slowQuery.explainPerMinute", 6));
+			}
+			reloadIndexes();
 	        System.out.println("Done");
 		}catch(Exception e){
 			System.err.println("Error - Unable to Connect to Database: " + e.getMessage());
@@ -53,6 +157,329 @@ public class AirBooking{
 		}
 	}
 
+	/**
+	 * Method to rebuild the in-memory indexes over Flight from the tables,
+	 * e.g. after the tables were reloaded in bulk.
+	 *
+	 * @throws java.sql.SQLException when the flights could not be read
+	 */
+	public void reloadIndexes() throws SQLException {
+		this._routes = RouteGraph.load(this);
+		this._popularity = DestinationPopularity.load(this);
+		this._origins = CityIndex.load(this, CityIndex.COUNT_ORIGINS);
+		this._destinations = CityIndex.load(this, CityIndex.COUNT_DESTINATIONS);
+		this._referenceCache.invalidateAll();
+	}
+
+	/**
+	 * @return the engine that books seats for this session
+	 */
+	public BookingEngine getBookingEngine() {
+		return this._bookingEngine;
+	}
+
+	/**
+	 * @return the menu operations of this session as a BookingRepository
+	 */
+	public BookingRepository getRepository() {
+		return this._repository;
+	}
+
+	/**
+	 * @return the in-memory graph of all flights
+	 */
+	public RouteGraph getRouteGraph() {
+		return this._routes;
+	}
+
+	/**
+	 * @return the number of flights per destination, ranked
+	 */
+	public DestinationPopularity getDestinationPopularity() {
+		return this._popularity;
+	}
+
+	/**
+	 * @return the distinct origins of all flights
+	 */
+	public CityIndex getOrigins() {
+		return this._origins;
+	}
+
+	/**
+	 * @return the distinct destinations of all flights
+	 */
+	public CityIndex getDestinations() {
+		return this._destinations;
+	}
+
+	/**
+	 * @return the cache of airline and flight lookups
+	 */
+	public ReferenceCache getReferenceCache() {
+		return this._referenceCache;
+	}
+
+	/**
+	 * @return the read replicas, null when none are configured
+	 */
+	public ReplicaRouter getReplicaRouter() {
+		return this._replicas;
+	}
+
+	/**
+	 * @return the statement and operation statistics of this session
+	 */
+	public QueryMetrics getMetrics() {
+		return this._metrics;
+	}
+
+	/**
+	 * @return the allocator of new Passenger.pID values
+	 */
+	public IdAllocator getPassengerIds() {
+		return this._passengerIds;
+	}
+
+	/**
+	 * @return the allocator of new Ratings.rID values
+	 */
+	public IdAllocator getRatingIds() {
+		return this._ratingIds;
+	}
+
+	/**
+	 * @return the allocator booking references are derived from
+	 */
+	public IdAllocator getBookingIds() {
+		return this._bookingIds;
+	}
+
+	/**
+	 * Method to borrow a connection for the duration of one statement.
+	 * Every borrowed connection must be handed back with release().
+	 *
+	 * @return a connection from the pool
+	 * @throws java.sql.SQLException when no connection is available
+	 */
+	Connection acquire() throws SQLException {
+		Transaction tx = this._transaction.get();
+		if (tx != null) {
+			return tx.conn;
+		}
+		if (this._replicas != null && readsFromReplica()) {
+			Connection conn = this._replicas.borrow();
+			if (conn != null) {
+				return conn;
+			}
+		}
+		return this._pool.borrow();
+	}
+
+	/**
+	 * @return true when the current thread is inside beginTransaction()
+	 */
+	boolean inTransaction() {
+		return this._transaction.get() != null;
+	}
+
+	/**
+	 * Method to hand a connection obtained from acquire() back to the pool.
+	 *
+	 * @param conn the connection to release
+	 */
+	void release(Connection conn) {
+		Transaction tx = this._transaction.get();
+		if (tx != null && tx.conn == conn) {
+			return;
+		}
+		if (this._replicas != null && this._replicas.release(conn)) {
+			return;
+		}
+		this._pool.release(conn);
+	}
+
+	/**
+	 * Where the reads of one thread go.
+	 */
+	private static class Routing {
+		//depth of beginReplicaReads() scopes
+		int replicaReads = 0;
+		//depth of pinToPrimary() scopes
+		int primaryPins = 0;
+		//System.nanoTime() until which the thread reads from the primary because it wrote
+		long pinnedUntil = System.nanoTime();
+	}
+
+	/**
+	 * Method to let the statements of the current thread read from a
+	 * replica, until the matching endReplicaReads().  Only read-only
+	 * statements may run in between.  Statements of a transaction, of a
+	 * pinToPrimary() scope, or of a thread that wrote in the last
+	 * airbooking.replica.pinAfterWriteMillis still go to the primary.
+	 * Scopes nest.
+	 */
+	public void beginReplicaReads() {
+		this._routing.get().replicaReads++;
+	}
+
+	/**
+	 * Method to end the innermost beginReplicaReads() scope.
+	 */
+	public void endReplicaReads() {
+		this._routing.get().replicaReads--;
+	}
+
+	/**
+	 * Method to send every statement of the current thread to the primary
+	 * until the matching unpinFromPrimary(), for operations that must read
+	 * their own writes.  Pins nest.
+	 */
+	public void pinToPrimary() {
+		this._routing.get().primaryPins++;
+	}
+
+	/**
+	 * Method to end the innermost pinToPrimary() scope.
+	 */
+	public void unpinFromPrimary() {
+		this._routing.get().primaryPins--;
+	}
+
+	private boolean readsFromReplica() {
+		Routing routing = this._routing.get();
+		return routing.replicaReads > 0 && routing.primaryPins == 0 && System.nanoTime() - routing.pinnedUntil >= 0;
+	}
+
+	/**
+	 * Keeps the current thread on the primary for a while after it wrote.
+	 */
+	private void pinAfterWrite() {
+		this._routing.get().pinnedUntil = System.nanoTime() + this._pinAfterWriteNanos;
+	}
+
+	/**
+	 * A connection pinned to the current thread between beginTransaction()
+	 * and the matching commitTransaction() or rollbackTransaction().  Nested
+	 * transactions are mapped to savepoints.
+	 */
+	private static class Transaction {
+		final Connection conn;
+		final List<Savepoint> savepoints = new ArrayList<Savepoint>();
+		//actions to run once the outermost transaction commits
+		final List<Runnable> afterCommit = new ArrayList<Runnable>();
+		//size of afterCommit when each savepoint was set
+		final List<Integer> afterCommitMarks = new ArrayList<Integer>();
+
+		Transaction(Connection conn) {
+			this.conn = conn;
+		}
+	}
+
+	/**
+	 * Method to start a transaction on the current thread.  Every statement
+	 * issued by this thread runs on the same connection until the
+	 * transaction is committed or rolled back.  Calling it again inside a
+	 * transaction starts a nested transaction backed by a savepoint.
+	 *
+	 * @throws java.sql.SQLException when the transaction could not be started
+	 */
+	public void beginTransaction() throws SQLException {
+		Transaction tx = this._transaction.get();
+		if (tx != null) {
+			tx.savepoints.add(tx.conn.setSavepoint());
+			tx.afterCommitMarks.add(tx.afterCommit.size());
+			return;
+		}
+		Connection conn = this._pool.borrow();
+		try {
+			conn.setAutoCommit(false);
+		} catch (SQLException e) {
+			this._pool.release(conn);
+			throw e;
+		}
+		this._transaction.set(new Transaction(conn));
+	}//end beginTransaction
+
+	/**
+	 * Method to commit the innermost transaction of the current thread.
+	 * Committing a nested transaction only releases its savepoint; the work
+	 * becomes durable when the outermost transaction commits.
+	 *
+	 * @throws java.sql.SQLException when the commit failed, in which case the transaction is rolled back
+	 */
+	public void commitTransaction() throws SQLException {
+		Transaction tx = this._transaction.get();
+		if (tx == null) {
+			throw new IllegalStateException("no transaction in progress");
+		}
+		if (!tx.savepoints.isEmpty()) {
+			tx.conn.releaseSavepoint(tx.savepoints.remove(tx.savepoints.size() - 1));
+			tx.afterCommitMarks.remove(tx.afterCommitMarks.size() - 1);
+			return;
+		}
+		this._transaction.remove();
+		try {
+			tx.conn.commit();
+		} finally {
+			//release() rolls back whatever a failed commit left behind
+			this._pool.release(tx.conn);
+		}
+		if (this._replicas != null)
+			pinAfterWrite();
+		for (Runnable action : tx.afterCommit) {
+			action.run();
+		}
+	}//end commitTransaction
+
+	/**
+	 * Method to run an action once the work of the current thread is
+	 * durable: right away outside a transaction, or after the outermost
+	 * transaction commits.  Actions of transactions that are rolled back
+	 * are dropped.  Used to keep in-memory indexes in step with the tables.
+	 *
+	 * @param action the action to run
+	 */
+	public void afterCommit(Runnable action) {
+		Transaction tx = this._transaction.get();
+		if (tx == null) {
+			action.run();
+		}
+		else {
+			tx.afterCommit.add(action);
+		}
+	}
+
+	/**
+	 * Method to roll back the innermost transaction of the current thread.
+	 * Does nothing when no transaction is in progress, so it can be called
+	 * unconditionally from error handlers.
+	 */
+	public void rollbackTransaction() {
+		Transaction tx = this._transaction.get();
+		if (tx == null) {
+			return;
+		}
+		if (!tx.savepoints.isEmpty()) {
+			int mark = tx.afterCommitMarks.remove(tx.afterCommitMarks.size() - 1);
+			tx.afterCommit.subList(mark, tx.afterCommit.size()).clear();
+			try {
+				tx.conn.rollback(tx.savepoints.remove(tx.savepoints.size() - 1));
+			} catch (SQLException e) {
+				// the outer transaction is aborted and will fail on its own.
+			}
+			return;
+		}
+		this._transaction.remove();
+		try {
+			tx.conn.rollback();
+		} catch (SQLException e) {
+			// ignored, release() discards connections that cannot be reset.
+		} finally {
+			this._pool.release(tx.conn);
+		}
+	}//end rollbackTransaction
+
 	/**
 	 * Method to execute an update SQL statement.  Update SQL instructions
 	 * includes CREATE, INSERT, UPDATE, DELETE, and DROP.
@@ -61,16 +488,45 @@ public class AirBooking{
 	 * @throws java.sql.SQLException when update failed
 	 * */
 	public void executeUpdate (String sql) throws SQLException {
-		// creates a statement object
-		Statement stmt = this._connection.createStatement ();
-
-		// issues the update instruction
-		stmt.executeUpdate (sql);
-
-		// close the instruction
-	    stmt.close ();
+		long start = System.nanoTime();
+		int rows = -1;
+		Connection conn = acquire();
+		try{
+			// creates a statement object
+			Statement stmt = conn.createStatement ();
+			try{
+				// issues the update instruction
+				rows = stmt.executeUpdate (sql);
+			}finally{
+				// close the instruction
+				stmt.close ();
+			}
+		}finally{
+			release(conn);
+			record(sql, null, start, rows);
+		}
 	}//end executeUpdate
 
+	/**
+	 * Method to charge one statement to the metrics of this session.
+	 *
+	 * Statements slower than the threshold also go to the slow query log.
+	 *
+	 * @param sql the statement text
+	 * @param params the bind values, or null for a plain statement
+	 * @param start System.nanoTime() when the statement was issued
+	 * @param rows rows returned or affected, or -1 when the statement failed
+	 */
+	private void record (String sql, Object[] params, long start, long rows) {
+		long nanos = System.nanoTime() - start;
+		this._metrics.recordStatement(sql, nanos, rows);
+		if (this._replicas != null && rows >= 0 && !SlowQueryLog.isRead(sql))
+			pinAfterWrite();
+		SlowQueryLog slowQueries = this._slowQueries;
+		if (slowQueries != null)
+			slowQueries.record(sql, params, nanos, rows);
+	}
+
 	/**
 	 * Method to execute an input query SQL instruction (i.e. SELECT).  This
 	 * method issues the query to the DBMS and outputs the results to
@@ -81,12 +537,19 @@ public class AirBooking{
 	 * @throws java.sql.SQLException when failed to execute the query
 	 */
 	public int executeQueryAndPrintResult (String query) throws SQLException {
-		//creates a statement object
-		Statement stmt = this._connection.createStatement ();
-
-		//issues the query instruction
-		ResultSet rs = stmt.executeQuery (query);
+		//rows are printed as they arrive from a server-side cursor
+		return countedRead(query, null, AirBooking::printResultSet);
+	}
 
+	/**
+	 * Method to print a result set to standard out, preceded by a header
+	 * with the column names.
+	 *
+	 * @param rs the result set to print
+	 * @return the number of rows printed
+	 * @throws java.sql.SQLException when reading the result set failed
+	 */
+	private static int printResultSet (ResultSet rs) throws SQLException {
 		/*
 		 *  obtains the metadata object for the returned result set.  The metadata
 		 *  contains row and column info.
@@ -98,25 +561,9 @@ public class AirBooking{
 		//iterates through the result set and output them to standard out.
 		boolean outputHeader = true;
 		while (rs.next()){
-			String space = "";
 			if(outputHeader){
 				for(int i = 1; i <= numCol; i++){
-					if (i == 3) {
-						space = "               ";
-					}
-					else if (i == 4){
-						space = "          ";
-					}
-					else if (i == 5) {
-						space = "               ";
-					}
-					else if (i == 6) {
-						space = "";
-					}
-					else {
-						space = "";
-					}
-					System.out.print(rsmd.getColumnName(i) + "\t" + space);
+					System.out.print(rsmd.getColumnName(i) + "\t" + headerSpace(i));
 			    }
 			    System.out.println();
 			    outputHeader = false;
@@ -126,101 +573,867 @@ public class AirBooking{
 			System.out.println ();
 			++rowCount;
 		}//end while
-		stmt.close ();
 		return rowCount;
 	}
 
+	//padding after the name of column i (1-based) in the header of a printed result
+	private static String headerSpace (int i) {
+		if (i == 3 || i == 5) {
+			return "               ";
+		}
+		else if (i == 4){
+			return "          ";
+		}
+		return "";
+	}
+
+	/**
+	 * Method to print a query result to standard out in the same layout as
+	 * executeQueryAndPrintResult(), e.g. an answer of the reference cache.
+	 *
+	 * @param rows the result to print
+	 * @return the number of rows printed
+	 */
+	static int printQueryResult (QueryResult rows) {
+		if (rows.size() > 0){
+			for (int c = 0; c < rows.columnCount(); ++c)
+				System.out.print(rows.getColumnName(c) + "\t" + headerSpace(c + 1));
+			System.out.println();
+		}
+		for (int r = 0; r < rows.size(); ++r){
+			for (int c = 0; c < rows.columnCount(); ++c)
+				System.out.print(rows.getString(r, c) + "\t");
+			System.out.println();
+		}
+		return rows.size();
+	}
+
+	/**
+	 * Method to make a callback that prints streamed rows to standard out
+	 * in the same layout as executeQueryAndPrintResult(), as they arrive.
+	 *
+	 * @return the callback
+	 */
+	static BookingRepository.RowCallback printRows () {
+		return new BookingRepository.RowCallback() {
+			boolean outputHeader = true;
+
+			public void row(String[] columns, String[] values) {
+				if (outputHeader){
+					for (int c = 0; c < columns.length; ++c)
+						System.out.print(columns[c] + "\t" + headerSpace(c + 1));
+					System.out.println();
+					outputHeader = false;
+				}
+				for (String value : values)
+					System.out.print(value + "\t");
+				System.out.println();
+			}
+		};
+	}
+
+	/**
+	 * Method to execute an input query SQL instruction (i.e. SELECT).  This
+	 * method issues the query to the DBMS and returns the results as
+	 * a list of records. Each record in turn is a list of attribute values
+	 *
+	 * @param query the input query string
+	 * @return the query result as a list of records
+	 * @throws java.sql.SQLException when failed to execute the query
+	 */
+	public List<List<String>> executeQueryAndReturnResult (String query) throws SQLException {
+		long start = System.nanoTime();
+		List<List<String>> result = null;
+		Connection conn = acquire();
+		try{
+			//creates a statement object
+			Statement stmt = conn.createStatement ();
+			try{
+				//issues the query instruction
+				ResultSet rs = stmt.executeQuery (query);
+				result = readResultSet(rs);
+				return result;
+			}finally{
+				stmt.close ();
+			}
+		}finally{
+			release(conn);
+			record(query, null, start, result == null ? -1 : result.size());
+		}
+	}//end executeQueryAndReturnResult
+
+	/**
+	 * Method to copy a result set into a list of records. Each record in turn
+	 * is a list of attribute values
+	 *
+	 * @param rs the result set to read
+	 * @return the rows of the result set
+	 * @throws java.sql.SQLException when reading the result set failed
+	 */
+	private static List<List<String>> readResultSet (ResultSet rs) throws SQLException {
+		/*
+		 * obtains the metadata object for the returned result set.  The metadata
+		 * contains row and column info.
+		*/
+		ResultSetMetaData rsmd = rs.getMetaData ();
+		int numCol = rsmd.getColumnCount ();
+
+		//iterates through the result set and saves the data returned by the query.
+		List<List<String>> result  = new ArrayList<List<String>>();
+		while (rs.next()){
+			List<String> record = new ArrayList<String>();
+			for (int i=1; i<=numCol; ++i)
+				record.add(rs.getString (i));
+			result.add(record);
+		}//end while
+		return result;
+	}
+
+	/**
+	 * Method to execute an input query SQL instruction (i.e. SELECT).  This
+	 * method issues the query to the DBMS and returns the number of results
+	 *
+	 * @param query the input query string
+	 * @return the number of rows returned
+	 * @throws java.sql.SQLException when failed to execute the query
+	 */
+	public int executeQuery (String query) throws SQLException {
+		long start = System.nanoTime();
+		int rowCount = -1;
+		Connection conn = acquire();
+		try{
+			//creates a statement object
+			Statement stmt = conn.createStatement ();
+			try{
+				//issues the query instruction
+				ResultSet rs = stmt.executeQuery (query);
+
+				rowCount = 0;
+
+				//iterates through the result set and count nuber of results.
+				if(rs.next()){
+					rowCount++;
+				}//end while
+				return rowCount;
+			}finally{
+				stmt.close ();
+			}
+		}finally{
+			release(conn);
+			record(query, null, start, rowCount);
+		}
+	}
+
+	/**
+	 * Method to get a prepared statement for sql from the statement cache of
+	 * conn and bind the given values to its ? placeholders, in order.
+	 *
+	 * @param conn a connection obtained from acquire()
+	 * @param sql the SQL string with ? placeholders
+	 * @param params the bind values
+	 * @return the prepared statement, owned by the cache
+	 * @throws java.sql.SQLException when preparing or binding failed
+	 */
+	private PreparedStatement prepare (Connection conn, String sql, Object[] params) throws SQLException {
+		ConnectionPool pool = this._replicas == null ? null : this._replicas.poolOf(conn);
+		PreparedStatement stmt = (pool == null ? this._pool : pool).getStatementCache(conn).prepare(sql);
+		for (int i = 0; i < params.length; ++i){
+			Object value = params[i];
+			if (value == null)
+				stmt.setNull(i + 1, Types.VARCHAR);
+			else if (value instanceof Integer)
+				stmt.setInt(i + 1, (Integer) value);
+			else if (value instanceof Long)
+				stmt.setLong(i + 1, (Long) value);
+			else if (value instanceof String)
+				stmt.setString(i + 1, (String) value);
+			else if (value instanceof String[])
+				stmt.setArray(i + 1, conn.createArrayOf("text", (String[]) value));
+			else
+				stmt.setObject(i + 1, value);
+		}
+		return stmt;
+	}
+
+	/**
+	 * Method to execute a parameterized update SQL statement (INSERT, UPDATE,
+	 * DELETE).  The statement is prepared once per connection and reused.
+	 *
+	 * @param sql the SQL string with ? placeholders
+	 * @param params the values bound to the placeholders, in order
+	 * @return the number of rows affected
+	 * @throws java.sql.SQLException when update failed
+	 */
+	public int executePreparedUpdate (String sql, Object... params) throws SQLException {
+		long start = System.nanoTime();
+		int rows = -1;
+		Connection conn = acquire();
+		try{
+			rows = prepare(conn, sql, params).executeUpdate ();
+			return rows;
+		}finally{
+			release(conn);
+			record(sql, params, start, rows);
+		}
+	}//end executePreparedUpdate
+
+	/**
+	 * Method to execute a parameterized update SQL statement once per row
+	 * of values, as one JDBC batch.  The rows travel to the server
+	 * together, and with reWriteBatchedInserts a batch of INSERT ... VALUES
+	 * is sent as multi-row INSERTs.
+	 *
+	 * @param sql the SQL string with ? placeholders
+	 * @param rows the values bound to the placeholders, one array per execution
+	 * @return the number of rows affected
+	 * @throws java.sql.SQLException when any execution of the batch failed
+	 */
+	public int executePreparedBatch (String sql, List<Object[]> rows) throws SQLException {
+		long start = System.nanoTime();
+		int count = -1;
+		Connection conn = acquire();
+		PreparedStatement stmt = null;
+		try{
+			for (Object[] params : rows){
+				stmt = prepare(conn, sql, params);
+				stmt.addBatch ();
+			}
+			int total = 0;
+			if (stmt != null){
+				for (int n : stmt.executeBatch ())
+					// rewritten inserts do not report the rows of each execution
+					total += n == Statement.SUCCESS_NO_INFO ? 1 : n;
+			}
+			count = total;
+			return count;
+		}catch(BatchUpdateException e){
+			// the cause of a failed batch is chained to the exception
+			throw e.getNextException() != null ? e.getNextException() : e;
+		}finally{
+			if (count < 0 && stmt != null)
+				stmt.clearBatch ();
+			release(conn);
+			record(sql, null, start, count);
+		}
+	}//end executePreparedBatch
+
+	/**
+	 * Method to execute a parameterized query (i.e. SELECT) and output the
+	 * results to standard out.
+	 *
+	 * @param query the query string with ? placeholders
+	 * @param params the values bound to the placeholders, in order
+	 * @return the number of rows returned
+	 * @throws java.sql.SQLException when failed to execute the query
+	 */
+	public int executePreparedQueryAndPrintResult (String query, Object... params) throws SQLException {
+		//rows are printed as they arrive from a server-side cursor
+		return countedRead(query, params, AirBooking::printResultSet);
+	}
+
+	/**
+	 * Method to execute a parameterized query (i.e. SELECT) and return the
+	 * results as a list of records. Each record in turn is a list of
+	 * attribute values
+	 *
+	 * @param query the query string with ? placeholders
+	 * @param params the values bound to the placeholders, in order
+	 * @return the query result as a list of records
+	 * @throws java.sql.SQLException when failed to execute the query
+	 */
+	public List<List<String>> executePreparedQueryAndReturnResult (String query, Object... params) throws SQLException {
+		long start = System.nanoTime();
+		List<List<String>> result = null;
+		Connection conn = acquire();
+		try{
+			ResultSet rs = prepare(conn, query, params).executeQuery ();
+			try{
+				result = readResultSet(rs);
+				return result;
+			}finally{
+				rs.close ();
+			}
+		}finally{
+			release(conn);
+			record(query, params, start, result == null ? -1 : result.size());
+		}
+	}//end executePreparedQueryAndReturnResult
+
+	/**
+	 * Method to execute a parameterized query (i.e. SELECT) and return the
+	 * results column by column, with typed accessors for the values.
+	 *
+	 * @param query the query string with ? placeholders
+	 * @param params the values bound to the placeholders, in order
+	 * @return the query result
+	 * @throws java.sql.SQLException when failed to execute the query
+	 */
+	public QueryResult executePreparedQueryAndReturnColumns (String query, Object... params) throws SQLException {
+		long start = System.nanoTime();
+		QueryResult result = null;
+		Connection conn = acquire();
+		try{
+			ResultSet rs = prepare(conn, query, params).executeQuery ();
+			try{
+				result = QueryResult.read(rs);
+				return result;
+			}finally{
+				rs.close ();
+			}
+		}finally{
+			release(conn);
+			record(query, params, start, result == null ? -1 : result.size());
+		}
+	}//end executePreparedQueryAndReturnColumns
+
+	/**
+	 * Method to execute a parameterized query (i.e. SELECT) and hand its rows
+	 * to handler one at a time.  The rows are read through a server-side
+	 * cursor in batches of the fetch size, so memory use does not grow with
+	 * the size of the result and the first row is handled before the last
+	 * one has been produced.
+	 *
+	 * @param query the query string with ? placeholders
+	 * @param handler receives every row
+	 * @param params the values bound to the placeholders, in order
+	 * @return the number of rows handled
+	 * @throws java.sql.SQLException when failed to execute the query or the handler failed
+	 */
+	public int streamQuery (String query, final RowHandler handler, Object... params) throws SQLException {
+		return countedRead(query, params, rs -> {
+			int rowCount = 0;
+			while (rs.next()){
+				handler.row(rs);
+				++rowCount;
+			}
+			return rowCount;
+		});
+	}//end streamQuery
+
+	/**
+	 * Reads the result of a query while it is still being produced.
+	 */
+	private interface CursorReader<T> {
+		T read(ResultSet rs) throws SQLException;
+	}
+
+	/**
+	 * Runs query with the fetch size set, which makes the driver read the
+	 * result through a server-side cursor instead of buffering it all.  The
+	 * driver only does so outside autocommit mode, so a connection that is
+	 * not already in a transaction is switched for the duration of the
+	 * query.  params == null runs query as a plain, unprepared statement.
+	 */
+	private <T> T readWithCursor (String query, Object[] params, CursorReader<T> reader) throws SQLException {
+		Connection conn = acquire();
+		try{
+			boolean autoCommit = conn.getAutoCommit();
+			if (autoCommit)
+				conn.setAutoCommit(false);
+			Statement stmt = params == null ? conn.createStatement() : prepare(conn, query, params);
+			T result;
+			try{
+				stmt.setFetchSize(this._fetchSize);
+				ResultSet rs = params == null ? stmt.executeQuery(query) : ((PreparedStatement) stmt).executeQuery();
+				try{
+					result = reader.read(rs);
+				}finally{
+					rs.close();
+				}
+			}finally{
+				if (params == null)
+					stmt.close();
+				else
+					stmt.setFetchSize(0);
+			}
+			if (autoCommit){
+				conn.commit();
+				conn.setAutoCommit(true);
+			}
+			return result;
+		}finally{
+			//a failed query is rolled back and autocommit restored by the pool
+			release(conn);
+		}
+	}//end readWithCursor
+
+	/**
+	 * Runs readWithCursor() with a reader that returns the number of rows
+	 * it read, and charges the query to the metrics.
+	 */
+	private int countedRead (String query, Object[] params, CursorReader<Integer> reader) throws SQLException {
+		long start = System.nanoTime();
+		int rows = -1;
+		try{
+			rows = readWithCursor(query, params, reader);
+			return rows;
+		}finally{
+			record(query, params, start, rows);
+		}
+	}
+
+	/**
+	 * @param fetchSize rows fetched per round trip by streamed queries
+	 */
+	public void setFetchSize (int fetchSize) {
+		this._fetchSize = fetchSize;
+	}
+
+	/**
+	 * Method to execute a parameterized query (i.e. SELECT) and return
+	 * whether it produced a row (1) or not (0).
+	 *
+	 * @param query the query string with ? placeholders
+	 * @param params the values bound to the placeholders, in order
+	 * @return 1 when the query returned at least one row, 0 otherwise
+	 * @throws java.sql.SQLException when failed to execute the query
+	 */
+	public int executePreparedQuery (String query, Object... params) throws SQLException {
+		long start = System.nanoTime();
+		int rows = -1;
+		Connection conn = acquire();
+		try{
+			ResultSet rs = prepare(conn, query, params).executeQuery ();
+			try{
+				rows = rs.next() ? 1 : 0;
+				return rows;
+			}finally{
+				rs.close ();
+			}
+		}finally{
+			release(conn);
+			record(query, params, start, rows);
+		}
+	}
+
+	/**
+	 * Method to fetch the last value from sequence. This
+	 * method issues the query to the DBMS and returns the current
+	 * value of sequence used for autogenerated keys.  currval() is
+	 * session local, so the value is only meaningful when nextval() ran
+	 * on the same pooled connection.
+	 *
+	 * @param sequence name of the DB sequence
+	 * @return current value of a sequence
+	 * @throws java.sql.SQLException when failed to execute the query
+	 */
+
+	public int getCurrSeqVal(String sequence) throws SQLException {
+		Connection conn = acquire();
+		try{
+			Statement stmt = conn.createStatement ();
+			try{
+				ResultSet rs = stmt.executeQuery (String.format("Select currval('%s')", sequence));
+				int value = -1;
+				if (rs.next()) value = rs.getInt(1);
+				return value;
+			}finally{
+				stmt.close ();
+			}
+		}finally{
+			release(conn);
+		}
+	}
+
+	//inserts a flight or overwrites the flight with the same number, and returns it as a route graph row
+	static final String UPSERT_FLIGHT =
+			"WITH F AS (INSERT INTO Flight (airId, flightNum, origin, destination, plane, seats, duration)"
+			+ " VALUES (?,?,?,?,?,?,?) ON CONFLICT (flightNum) DO UPDATE SET airId = EXCLUDED.airId,"
+			+ " origin = EXCLUDED.origin, destination = EXCLUDED.destination, plane = EXCLUDED.plane,"
+			+ " seats = EXCLUDED.seats, duration = EXCLUDED.duration"
+			+ " RETURNING flightNum, origin, destination, duration, airId)"
+			+ " SELECT F.flightNum, F.origin, F.destination, F.duration, F.airId, A.name"
+			+ " FROM F JOIN Airline A ON A.airId = F.airId";
+
+	/**
+	 * Method to insert a flight, or update every attribute of the flight
+	 * with the same number.  The in-memory indexes over Flight are updated
+	 * once the change is committed.
+	 *
+	 * @param airId the airline operating the flight
+	 * @param flightNum the flight number
+	 * @param origin the departure city
+	 * @param destination the arrival city
+	 * @param plane the plane model
+	 * @param seats the number of seats
+	 * @param duration the flight duration in hours
+	 * @return the flight as stored
+	 * @throws java.sql.SQLException when the flight violates a constraint or the write failed
+	 */
+	public RouteGraph.Leg upsertFlight(int airId, String flightNum, String origin, String destination,
+			String plane, int seats, int duration) throws SQLException {
+		QueryResult stored = executePreparedQueryAndReturnColumns(UPSERT_FLIGHT,
+				airId, flightNum, origin, destination, plane, seats, duration);
+		final RouteGraph.Leg leg = RouteGraph.legOf(stored, 0);
+		afterCommit(() -> {
+			RouteGraph.Leg previous = this._routes.put(leg);
+			this._popularity.move(previous == null ? null : previous.destination, leg.destination);
+			this._origins.move(previous == null ? null : previous.origin, leg.origin);
+			this._destinations.move(previous == null ? null : previous.destination, leg.destination);
+			this._referenceCache.invalidateFlight(leg.flightNum,
+					new String[] { previous == null ? null : previous.origin, leg.origin },
+					new String[] { previous == null ? null : previous.destination, leg.destination });
+		});
+		return leg;
+	}//end upsertFlight
+
+	//adds one score to the running totals of a flight
+	static final String ADD_TO_RATING_SUMMARY =
+			"INSERT INTO RatingSummary (flightNum, total, scoreSum) VALUES (?, 1, ?)"
+			+ " ON CONFLICT (flightNum) DO UPDATE SET total = RatingSummary.total + 1,"
+			+ " scoreSum = RatingSummary.scoreSum + EXCLUDED.scoreSum";
+
+	//the k flights with the highest average score, most ratings first on ties
+	static final String HIGHEST_RATED =
+			"SELECT A.name, F.flightNum, F.origin, F.destination, F.plane, R.avg FROM"
+			+ " (SELECT flightNum, CAST(scoreSum AS NUMERIC) / total AS avg, total FROM RatingSummary"
+			+ " ORDER BY CAST(scoreSum AS NUMERIC) / total DESC, total DESC LIMIT ?) AS R"
+			+ " JOIN Flight F ON F.flightNum = R.flightNum JOIN Airline A ON A.airId = F.airId"
+			+ " ORDER BY R.avg DESC, R.total DESC";
+
+	/**
+	 * Method to insert a rating and add its score to the RatingSummary
+	 * totals of the flight, in one transaction.
+	 *
+	 * @param rid the rating id
+	 * @param pid the passenger
+	 * @param flightNum the rated flight
+	 * @param score the score, 0 to 5
+	 * @param comment the comment, may be null
+	 * @throws java.sql.SQLException when the rating violates a constraint or the write failed
+	 */
+	public void addRating(int rid, int pid, String flightNum, int score, String comment) throws SQLException {
+		beginTransaction();
+		try {
+			executePreparedUpdate("INSERT INTO Ratings(rID, pID, flightNum, score, comment) VALUES (?,?,?,?,?)",
+					rid, pid, flightNum, score, comment);
+			executePreparedUpdate(ADD_TO_RATING_SUMMARY, flightNum, score);
+			commitTransaction();
+		} catch (SQLException e) {
+			rollbackTransaction();
+			throw e;
+		}
+	}//end addRating
+
+	/**
+	 * Method to rebuild the RatingSummary table from Ratings, creating it
+	 * first when the database predates it.  Ratings is locked against
+	 * concurrent reviews while the totals are recomputed.
+	 *
+	 * @return the number of flights with ratings
+	 * @throws java.sql.SQLException when the rebuild failed
+	 */
+	public int rebuildRatingSummary() throws SQLException {
+		beginTransaction();
+		try {
+			executeUpdate("CREATE TABLE IF NOT EXISTS RatingSummary("
+					+ " flightNum CHAR(8) NOT NULL,"
+					+ " total INTEGER NOT NULL CHECK (total > 0),"
+					+ " scoreSum INTEGER NOT NULL,"
+					+ " PRIMARY KEY(flightNum),"
+					+ " FOREIGN KEY (flightNum) REFERENCES Flight(flightNum))");
+			executeUpdate("CREATE INDEX IF NOT EXISTS RatingSummary_rank"
+					+ " ON RatingSummary((CAST(scoreSum AS NUMERIC) / total) DESC, total DESC)");
+			executeUpdate("LOCK TABLE Ratings IN SHARE MODE");
+			executeUpdate("DELETE FROM RatingSummary");
+			int rows = executePreparedUpdate("INSERT INTO RatingSummary(flightNum, total, scoreSum)"
+					+ " SELECT flightNum, COUNT(*), SUM(score) FROM Ratings GROUP BY flightNum");
+			commitTransaction();
+			return rows;
+		} catch (SQLException e) {
+			rollbackTransaction();
+			throw e;
+		}
+	}//end rebuildRatingSummary
+
+	/**
+	 * Method to compare RatingSummary with a fresh aggregate over Ratings.
+	 *
+	 * @return one line per flight whose totals differ, empty when consistent
+	 * @throws java.sql.SQLException when the tables could not be read
+	 */
+	public List<String> checkRatingSummary() throws SQLException {
+		QueryResult drift = executePreparedQueryAndReturnColumns(
+				"SELECT COALESCE(S.flightNum, R.flightNum), COALESCE(S.total, 0), COALESCE(S.scoreSum, 0),"
+				+ " COALESCE(R.total, 0), COALESCE(R.scoreSum, 0) FROM RatingSummary S FULL JOIN"
+				+ " (SELECT flightNum, COUNT(*) AS total, SUM(score) AS scoreSum FROM Ratings GROUP BY flightNum) AS R"
+				+ " ON R.flightNum = S.flightNum"
+				+ " WHERE S.flightNum IS NULL OR R.flightNum IS NULL OR S.total <> R.total OR S.scoreSum <> R.scoreSum");
+		List<String> differences = new ArrayList<String>();
+		for (int i = 0; i < drift.size(); ++i) {
+			differences.add(drift.getString(i, 0) + ": " + drift.getLong(i, 1) + " rating(s) summing to "
+					+ drift.getLong(i, 2) + " in RatingSummary, " + drift.getLong(i, 3) + " summing to "
+					+ drift.getLong(i, 4) + " in Ratings");
+		}
+		return differences;
+	}//end checkRatingSummary
+
+	//queries shared by the menu and the non-interactive operations below
+	static final String FIND_PASSENGER = "SELECT pID FROM Passenger WHERE passNum = ?";
+	static final String INSERT_PASSENGER = "INSERT INTO Passenger(pID, passNum, fullName, bdate, country)"
+			+ " VALUES (?,?,?,CAST(? AS DATE),?)";
+	static final String CHECK_TOOK_FLIGHT = "SELECT departure FROM Booking WHERE flightNum = ? AND pID = ?";
+	static final String CHECK_REVIEWED = "SELECT rID FROM Ratings WHERE flightNum = ? AND pID = ?";
+	//seats left come from the SeatInventory counter of each flight on that date
+	static final String AVAILABLE_FLIGHTS =
+			"SELECT F.flightNum, F.origin, F.destination, CAST(? AS DATE) AS departure,"
+			+ " F.seats - COALESCE(S.booked + S.held, 0) AS availableseats"
+			+ " FROM Flight F LEFT JOIN SeatInventory S"
+			+ " ON S.flightNum = F.flightNum AND S.departure = CAST(? AS DATE)"
+			+ " WHERE F.origin = ? AND F.destination = ? AND F.seats - COALESCE(S.booked + S.held, 0) > 0";
+	static final String LIST_FLIGHTS = "SELECT * FROM flight WHERE origin = ? AND destination = ?";
+	static final String FLIGHTS_BY_DURATION =
+			"SELECT A.name, F.flightNum, F.origin, F.destination, F.duration, F.plane FROM Airline A, FLight F"
+			+ " WHERE F.airId = A.airID AND origin = ? AND destination = ? ORDER BY F.duration ASC LIMIT ?";
+	static final String AVAILABLE_SEATS =
+			"SELECT F.flightNum, F.origin, F.destination, CAST(? AS DATE) AS departure,"
+			+ " COALESCE(S.booked, 0) as booked, F.seats,"
+			+ " F.seats - COALESCE(S.booked + S.held, 0) as available"
+			+ " FROM Flight F LEFT JOIN SeatInventory S"
+			+ " ON S.flightNum = F.flightNum AND S.departure = CAST(? AS DATE)"
+			+ " WHERE F.seats - COALESCE(S.booked + S.held, 0) > 0"
+			+ " ORDER BY F.origin, F.destination";
+
+	/**
+	 * Method to look up a passenger by passport number.
+	 *
+	 * @param passNum the passport number
+	 * @return the pID of the passenger, or -1 when there is none
+	 * @throws java.sql.SQLException when the lookup failed
+	 */
+	public int passengerId(String passNum) throws SQLException {
+		beginReplicaReads();
+		try {
+			QueryResult found = executePreparedQueryAndReturnColumns(FIND_PASSENGER, passNum);
+			return found.size() == 0 ? -1 : found.getInt(0, 0);
+		} finally {
+			endReplicaReads();
+		}
+	}
+
 	/**
-	 * Method to execute an input query SQL instruction (i.e. SELECT).  This
-	 * method issues the query to the DBMS and returns the results as
-	 * a list of records. Each record in turn is a list of attribute values
+	 * Method to add a passenger with a new pID.
 	 *
-	 * @param query the input query string
-	 * @return the query result as a list of records
-	 * @throws java.sql.SQLException when failed to execute the query
+	 * @param passNum the passport number, 10 characters
+	 * @param fullName the full name
+	 * @param bdate the birth date (mm/dd/yyyy)
+	 * @param country the country
+	 * @return the pID of the new passenger
+	 * @throws java.sql.SQLException when the passport number is taken or the insert failed
 	 */
-	public List<List<String>> executeQueryAndReturnResult (String query) throws SQLException {
-		//creates a statement object
-		Statement stmt = this._connection.createStatement ();
-
-		//issues the query instruction
-		ResultSet rs = stmt.executeQuery (query);
-
-		/*
-		 * obtains the metadata object for the returned result set.  The metadata
-		 * contains row and column info.
-		*/
-		ResultSetMetaData rsmd = rs.getMetaData ();
-		int numCol = rsmd.getColumnCount ();
-		int rowCount = 0;
+	public int addPassenger(String passNum, String fullName, String bdate, String country) throws SQLException {
+		if (passNum.length() != 10) {
+			throw new IllegalArgumentException("passNum must have 10 characters");
+		}
+		int pid = getPassengerIds().nextInt();
+		executePreparedUpdate(INSERT_PASSENGER, pid, passNum, fullName, bdate, country);
+		return pid;
+	}
 
-		//iterates through the result set and saves the data returned by the query.
-		boolean outputHeader = false;
-		List<List<String>> result  = new ArrayList<List<String>>();
-		while (rs.next()){
-			List<String> record = new ArrayList<String>();
-			for (int i=1; i<=numCol; ++i)
-				record.add(rs.getString (i));
-			result.add(record);
-		}//end while
-		stmt.close ();
-		return result;
-	}//end executeQueryAndReturnResult
+	/**
+	 * Method to book one seat on a flight through the booking engine: the
+	 * seat is held, then the hold is confirmed.
+	 *
+	 * @param pid the passenger
+	 * @param flightNum the flight number
+	 * @param departure the departure date (mm/dd/yyyy)
+	 * @return the booking reference, or null when the flight is full on that date
+	 * @throws java.sql.SQLException when the booking failed, e.g. the passenger already has this flight on that date
+	 */
+	public String bookFlight(int pid, String flightNum, String departure) throws SQLException {
+		BookingEngine engine = getBookingEngine();
+		int holdId = engine.hold(pid, flightNum, departure);
+		if (holdId < 0) {
+			return null;
+		}
+		String bookref;
+		try {
+			bookref = engine.confirm(holdId);
+		} catch (SQLException e) {
+			engine.release(holdId);
+			throw e;
+		}
+		if (bookref == null) {
+			throw new SQLException("Your seat hold expired, please try again");
+		}
+		return bookref;
+	}//end bookFlight
 
 	/**
-	 * Method to execute an input query SQL instruction (i.e. SELECT).  This
-	 * method issues the query to the DBMS and returns the number of results
+	 * Method to add the review of a passenger who took a flight and has not
+	 * reviewed it yet.
 	 *
-	 * @param query the input query string
-	 * @return the number of rows returned
-	 * @throws java.sql.SQLException when failed to execute the query
+	 * @param pid the passenger
+	 * @param flightNum the flight number
+	 * @param score the score, 0 to 5
+	 * @param comment the comment, may be null
+	 * @return the rID of the new rating
+	 * @throws java.sql.SQLException when the insert failed
 	 */
-	public int executeQuery (String query) throws SQLException {
-		//creates a statement object
-		Statement stmt = this._connection.createStatement ();
+	public int reviewFlight(int pid, String flightNum, int score, String comment) throws SQLException {
+		if (score < 0 || score > 5) {
+			throw new IllegalArgumentException("invalid score, must be 0-5");
+		}
+		if (executePreparedQuery(CHECK_REVIEWED, flightNum, pid) != 0) {
+			throw new IllegalArgumentException("the passenger wrote a rating for this flight");
+		}
+		if (executePreparedQuery(CHECK_TOOK_FLIGHT, flightNum, pid) == 0) {
+			throw new IllegalArgumentException("the passenger didnt take the flight");
+		}
+		int rid = getRatingIds().nextInt();
+		addRating(rid, pid, flightNum, score, comment);
+		return rid;
+	}//end reviewFlight
 
-		//issues the query instruction
-		ResultSet rs = stmt.executeQuery (query);
+	/**
+	 * Method to rebuild the SeatInventory table from the Booking and
+	 * SeatHold tables, creating them first when the database predates them.
+	 * Booking and SeatHold are locked against concurrent changes while the
+	 * counters are recomputed, and expired holds are dropped.
+	 *
+	 * @return the number of (flightNum, departure) counters written
+	 * @throws java.sql.SQLException when the rebuild failed
+	 */
+	public int rebuildSeatInventory() throws SQLException {
+		beginTransaction();
+		try {
+			executeUpdate("CREATE TABLE IF NOT EXISTS SeatInventory("
+					+ " flightNum CHAR(8) NOT NULL,"
+					+ " departure DATE NOT NULL,"
+					+ " booked INTEGER NOT NULL DEFAULT 0,"
+					+ " held INTEGER NOT NULL DEFAULT 0,"
+					+ " PRIMARY KEY(flightNum, departure),"
+					+ " FOREIGN KEY (flightNum) REFERENCES Flight(flightNum))");
+			executeUpdate("ALTER TABLE SeatInventory ADD COLUMN IF NOT EXISTS held INTEGER NOT NULL DEFAULT 0");
+			executeUpdate("CREATE INDEX IF NOT EXISTS SeatInventory_departure ON SeatInventory(departure)");
+			executeUpdate("CREATE TABLE IF NOT EXISTS SeatHold("
+					+ " holdId SERIAL,"
+					+ " flightNum CHAR(8) NOT NULL,"
+					+ " departure DATE NOT NULL,"
+					+ " pID INTEGER NOT NULL,"
+					+ " expires TIMESTAMP WITH TIME ZONE NOT NULL,"
+					+ " PRIMARY KEY(holdId),"
+					+ " FOREIGN KEY (flightNum) REFERENCES Flight(flightNum),"
+					+ " FOREIGN KEY (pID) REFERENCES Passenger(pID))");
+			executeUpdate("CREATE INDEX IF NOT EXISTS SeatHold_flight ON SeatHold(flightNum, departure, expires)");
+			executeUpdate("LOCK TABLE Booking IN SHARE MODE");
+			executeUpdate("LOCK TABLE SeatHold IN EXCLUSIVE MODE");
+			executeUpdate("DELETE FROM SeatHold WHERE expires <= now()");
+			executeUpdate("DELETE FROM SeatInventory");
+			int rows = executePreparedUpdate("INSERT INTO SeatInventory(flightNum, departure, booked, held)"
+					+ " SELECT flightNum, departure, SUM(booked), SUM(held) FROM ("
+					+ " SELECT flightNum, departure, 1 AS booked, 0 AS held FROM Booking"
+					+ " UNION ALL SELECT flightNum, departure, 0, 1 FROM SeatHold) AS seat"
+					+ " GROUP BY flightNum, departure");
+			commitTransaction();
+			return rows;
+		} catch (SQLException e) {
+			rollbackTransaction();
+			throw e;
+		}
+	}//end rebuildSeatInventory
 
-		int rowCount = 0;
+	/**
+	 * Method to create the monthly partitions of Booking and SeatInventory
+	 * from the current month to months ahead, so that new bookings do not
+	 * pile up in the default partitions.  Needs migration V002.
+	 *
+	 * @param months how many months ahead to cover
+	 * @return the number of partitions created
+	 * @throws java.sql.SQLException when the partitions could not be created
+	 */
+	public int createMonthlyPartitions(int months) throws SQLException {
+		String sql = "SELECT create_monthly_partitions(?, CURRENT_DATE, CAST(CURRENT_DATE + make_interval(months => ?) AS DATE))";
+		beginTransaction();
+		try {
+			int created = executePreparedQueryAndReturnColumns(sql, "Booking", months).getInt(0, 0)
+					+ executePreparedQueryAndReturnColumns(sql, "SeatInventory", months).getInt(0, 0);
+			commitTransaction();
+			return created;
+		} catch (SQLException e) {
+			rollbackTransaction();
+			throw e;
+		}
+	}//end createMonthlyPartitions
 
-		//iterates through the result set and count nuber of results.
-		if(rs.next()){
-			rowCount++;
-		}//end while
-		stmt.close ();
-		return rowCount;
+	/**
+	 * Method to advance a sequence and return its new value.
+	 *
+	 * @param sequence name of the DB sequence
+	 * @return the next value of the sequence
+	 * @throws java.sql.SQLException when failed to execute the query
+	 */
+	public long getNextSeqVal(String sequence) throws SQLException {
+		QueryResult result = executePreparedQueryAndReturnColumns("SELECT nextval(CAST(? AS REGCLASS))", sequence);
+		return result.getLong(0, 0);
 	}
 
 	/**
-	 * Method to fetch the last value from sequence. This
-	 * method issues the query to the DBMS and returns the current
-	 * value of sequence used for autogenerated keys
+	 * Method to advance a sequence count times in one round trip.
 	 *
 	 * @param sequence name of the DB sequence
-	 * @return current value of a sequence
+	 * @param count number of values wanted
+	 * @return the new values of the sequence
 	 * @throws java.sql.SQLException when failed to execute the query
 	 */
-
-	public int getCurrSeqVal(String sequence) throws SQLException {
-		Statement stmt = this._connection.createStatement ();
-
-		ResultSet rs = stmt.executeQuery (String.format("Select currval('%s')", sequence));
-		if (rs.next()) return rs.getInt(1);
-		return -1;
+	public long[] getNextSeqVals(String sequence, int count) throws SQLException {
+		QueryResult result = executePreparedQueryAndReturnColumns(
+				"SELECT nextval(CAST(? AS REGCLASS)) FROM generate_series(1, ?)", sequence, count);
+		long[] values = new long[result.size()];
+		for (int i = 0; i < values.length; ++i) {
+			values[i] = result.getLong(i, 0);
+		}
+		return values;
 	}
 
 	/**
-	 * Method to close the physical connection if it is open.
+	 * Method to create the key sequences used by the id allocators, or
+	 * adjust existing ones, so that their increment matches the allocator
+	 * block size and their next block starts past every key already in
+	 * the tables.  A sequence is never moved backwards.
+	 *
+	 * @throws java.sql.SQLException when a sequence could not be set up
+	 */
+	public void setupIdSequences() throws SQLException {
+		String[][] sequences = {
+			{ PASSENGER_SEQUENCE, "SELECT COALESCE(MAX(pID), -1) + 1 FROM Passenger" },
+			{ RATINGS_SEQUENCE, "SELECT COALESCE(MAX(rID), -1) + 1 FROM Ratings" },
+			{ BOOKING_SEQUENCE, "SELECT 1" },
+		};
+		IdAllocator[] allocators = { this._passengerIds, this._ratingIds, this._bookingIds };
+		beginTransaction();
+		try {
+			for (int i = 0; i < sequences.length; ++i) {
+				String sequence = sequences[i][0];
+				int blockSize = allocators[i].getBlockSize();
+				executeUpdate("CREATE SEQUENCE IF NOT EXISTS " + sequence + " INCREMENT BY " + blockSize);
+				executeUpdate("ALTER SEQUENCE " + sequence + " INCREMENT BY " + blockSize);
+				executeQuery("SELECT setval('" + sequence + "', m, false) FROM (" + sequences[i][1] + ") AS t(m)"
+						+ " WHERE m > (SELECT CASE WHEN is_called THEN last_value + " + blockSize
+						+ " ELSE last_value END FROM " + sequence + ")");
+			}
+			commitTransaction();
+		} catch (SQLException e) {
+			rollbackTransaction();
+			throw e;
+		}
+	}//end setupIdSequences
+
+	/**
+	 * Method to close the connection pool and its physical connections.
 	 */
 	public void cleanup(){
-		try{
-			if (this._connection != null){
-				this._connection.close ();
-			}//end if
-		}catch (SQLException e){
-	         // ignored.
-		}//end try
+		this._metrics.unregister();
+		if (this._slowQueries != null){
+			//plans still being captured need the pool
+			this._slowQueries.close(5000);
+		}//end if
+		if (this._replicas != null){
+			this._replicas.close ();
+		}//end if
+		if (this._pool != null){
+			this._pool.close ();
+		}//end if
 	}//end cleanup
 
 	/**
@@ -229,10 +1442,45 @@ public class AirBooking{
 	 * @param args the command line arguments this inclues the <mysql|pgsql> <login file>
 	 */
 	public static void main (String[] args) {
-		if (args.length != 3) {
+		if (args.length > 0 && args[0].equals("scan-export")) {
+			//reads exported files only, without a database
+			try {
+				for (int i = 1; i < args.length; ++i) {
+					ColumnarExport.scan(new File(args[i]), System.out);
+				}
+			} catch (IOException e) {
+				System.err.println (e.getMessage ());
+			}
+			return;
+		}
+		if (System.getProperty("airbooking.storage", "postgres").equals("embedded")) {
+			runEmbedded(args);
+			return;
+		}
+		if (args.length < 3) {
 			System.err.println (
 				"Usage: " + "java [-classpath <classpath>] " + AirBooking.class.getName () +
-		            " <dbname> <port> <user>");
+		            " <dbname> <port> <user> [command [arguments]]");
+			System.err.println ("Commands:");
+			System.err.println ("  rebuild-seat-inventory      recompute SeatInventory from Booking and SeatHold");
+			System.err.println ("  expire-holds                return the seats of expired holds");
+			System.err.println ("  setup-id-sequences          create or realign the key sequences");
+			System.err.println ("  load [directory]            stream the CSV files (default ../data) into the tables");
+			System.err.println ("  book-group flight date [f]  book every passport of manifest f (default stdin) or none");
+			System.err.println ("  batch [file]                run operations from file (default stdin), one per line");
+			System.err.println ("  serve [port]                serve the operations as JSON over HTTP (default port 8080)");
+			System.err.println ("  bench [scales] [file]       benchmark every operation, optionally at dataset scales 1,4,...");
+			System.err.println ("  bench-compare old new [%]   compare two benchmark result files");
+			System.err.println ("  load-test [threads] [secs]  drive a 70/20/10 availability/book/review mix, e.g. threads 1,4,16");
+			System.err.println ("  rebuild-rating-summary      recompute RatingSummary from Ratings");
+			System.err.println ("  check-rating-summary        compare RatingSummary with Ratings");
+			System.err.println ("  migrate [directory]         apply the pending schema migrations (default ../sql/migrations)");
+			System.err.println ("  migration-status [dir]      list the applied, pending and changed migrations");
+			System.err.println ("  create-partitions [months]  create the Booking and SeatInventory partitions ahead (default 12)");
+			System.err.println ("  check-repository            run the repository conformance suite in a rolled back transaction");
+			System.err.println ("  export [directory]          write every table to a columnar .col file (default export)");
+			System.err.println ("Without a database: scan-export <file.col>...  print the header and scan every column");
+			System.err.println ("With -Dairbooking.storage=embedded: <directory> [import [dir]|batch [file]|check-repository|status]");
 			return;
 		}//end if
 
@@ -255,34 +1503,12 @@ public class AirBooking{
 
 			esql = new AirBooking (dbname, dbport, user, "");
 
-			boolean keepon = true;
-			while(keepon){
-				System.out.println("MAIN MENU");
-				System.out.println("---------");
-				System.out.println("1. Add Passenger");
-				System.out.println("2. Book Flight");
-				System.out.println("3. Review Flight");
-				System.out.println("4. Insert or Update Flight");
-				System.out.println("5. List Flights From Origin to Destination");
-				System.out.println("6. List Most Popular Destinations");
-				System.out.println("7. List Highest Rated Destinations");
-				System.out.println("8. List Flights to Destination in order of Duration");
-				System.out.println("9. Find Number of Available Seats on a given Flight");
-				System.out.println("10. < EXIT");
-
-				switch (readChoice()){
-					case 1: AddPassenger(esql); break;
-					case 2: BookFlight(esql); break;
-					case 3: TakeCustomerReview(esql); break;
-					case 4: InsertOrUpdateRouteForAirline(esql); break;
-					case 5: ListAvailableFlightsBetweenOriginAndDestination(esql); break;
-					case 6: ListMostPopularDestinations(esql); break;
-					case 7: ListHighestRatedRoutes(esql); break;
-					case 8: ListFlightFromOriginToDestinationInOrderOfDuration(esql); break;
-					case 9: FindNumberOfAvailableSeatsForFlight(esql); break;
-					case 10: keepon = false; break;
-				}
+			if (args.length > 3) {
+				runCommand(esql, args[3], Arrays.copyOfRange(args, 4, args.length));
+				return;
 			}
+
+			runMenu(esql, esql.getRepository());
 		}catch(Exception e){
 			System.err.println (e.getMessage ());
 		}finally{
@@ -298,6 +1524,296 @@ public class AirBooking{
 		}
 	}
 
+	/**
+	 * Method to run the interactive menu.  The nine booking operations go
+	 * through repository, so the menu also runs on the embedded store.
+	 * Without a database session the city suggestions, the airline list,
+	 * the connecting flights (option 10) and the operation metrics are not
+	 * available.
+	 *
+	 * @param esql the database session, null on the embedded store
+	 * @param repository the backend of the booking operations
+	 * @throws java.lang.Exception when reading the input failed
+	 */
+	public static void runMenu(AirBooking esql, BookingRepository repository) throws Exception {
+		boolean keepon = true;
+		while(keepon){
+			System.out.println("MAIN MENU");
+			System.out.println("---------");
+			System.out.println("1. Add Passenger");
+			System.out.println("2. Book Flight");
+			System.out.println("3. Review Flight");
+			System.out.println("4. Insert or Update Flight");
+			System.out.println("5. List Flights From Origin to Destination");
+			System.out.println("6. List Most Popular Destinations");
+			System.out.println("7. List Highest Rated Destinations");
+			System.out.println("8. List Flights to Destination in order of Duration");
+			System.out.println("9. Find Number of Available Seats on a given Flight");
+			System.out.println("10. Find Connecting Flights");
+			System.out.println("11. < EXIT");
+
+			int choice = readChoice();
+			//the statements run by a menu operation are charged to it
+			QueryMetrics.Operation operation = esql != null && choice >= 1 && choice <= MENU_OPERATIONS.length
+					? esql.getMetrics().beginOperation(MENU_OPERATIONS[choice - 1]) : null;
+			//the listings only read, and may read from a replica
+			boolean replicaReads = esql != null && choice >= 5 && choice <= 9;
+			if (replicaReads)
+				esql.beginReplicaReads();
+			try{
+				switch (choice){
+					case 1: AddPassenger(repository); break;
+					case 2: BookFlight(esql, repository); break;
+					case 3: TakeCustomerReview(repository); break;
+					case 4: InsertOrUpdateRouteForAirline(esql, repository); break;
+					case 5: ListAvailableFlightsBetweenOriginAndDestination(repository); break;
+					case 6: ListMostPopularDestinations(repository); break;
+					case 7: ListHighestRatedRoutes(repository); break;
+					case 8: ListFlightFromOriginToDestinationInOrderOfDuration(repository); break;
+					case 9: FindNumberOfAvailableSeatsForFlight(repository); break;
+					case 10:
+						if (esql != null)
+							FindConnectingFlights(esql);
+						else
+							System.out.println("Connecting flights need PostgreSQL");
+						break;
+					case 11: keepon = false; break;
+				}
+			}finally{
+				if (replicaReads)
+					esql.endReplicaReads();
+				if (operation != null)
+					operation.end(true);
+			}
+		}
+	}//end runMenu
+
+	/**
+	 * Method to run one maintenance command given on the command line
+	 * instead of the interactive menu.
+	 *
+	 * @param esql the database session
+	 * @param command the command name
+	 * @param args the remaining command line arguments
+	 * @throws java.lang.Exception when the command failed
+	 */
+	public static void runCommand(AirBooking esql, String command, String[] args) throws Exception {
+		if (command.equals("rebuild-seat-inventory")) {
+			int rows = esql.rebuildSeatInventory();
+			System.out.println("SeatInventory rebuilt: " + rows + " flight/departure counter(s)");
+		}
+		else if (command.equals("expire-holds")) {
+			int rows = esql.getBookingEngine().expireHolds();
+			System.out.println("Expired holds released on " + rows + " flight/departure counter(s)");
+		}
+		else if (command.equals("setup-id-sequences")) {
+			esql.setupIdSequences();
+			System.out.println("Key sequences are ready");
+		}
+		else if (command.equals("rebuild-rating-summary")) {
+			int rows = esql.rebuildRatingSummary();
+			System.out.println("RatingSummary rebuilt: " + rows + " flight(s) with ratings");
+		}
+		else if (command.equals("check-rating-summary")) {
+			List<String> differences = esql.checkRatingSummary();
+			for (String difference : differences) {
+				System.out.println(difference);
+			}
+			System.out.println(differences.isEmpty() ? "Rating totals are consistent"
+					: differences.size() + " flight(s) differ");
+		}
+		else if (command.equals("book-group")) {
+			if (args.length < 2) {
+				System.err.println("Usage: book-group <flightNum> <departure> [manifest]");
+				return;
+			}
+			BufferedReader input = args.length > 2 && !args[2].equals("-")
+					? new BufferedReader(new FileReader(args[2])) : in;
+			List<String> passNums = new ArrayList<String>();
+			try {
+				for (String line = input.readLine(); line != null; line = input.readLine()) {
+					if (!line.trim().isEmpty())
+						passNums.add(line.trim());
+				}
+			} finally {
+				input.close();
+			}
+			List<String> bookRefs = esql.getBookingEngine().bookGroup(passNums, args[0], args[1]);
+			if (bookRefs == null) {
+				System.out.println("Flight " + args[0] + " has fewer than " + passNums.size() + " seats left on " + args[1]);
+				return;
+			}
+			for (int i = 0; i < passNums.size(); ++i) {
+				System.out.println(passNums.get(i) + "\t" + bookRefs.get(i));
+			}
+			System.out.println(bookRefs.size() + " passenger(s) booked");
+		}
+		else if (command.equals("batch")) {
+			BufferedReader input = args.length > 0 && !args[0].equals("-")
+					? new BufferedReader(new FileReader(args[0])) : in;
+			try {
+				new BatchRunner(esql, Integer.getInteger("airbooking.batchSize", 100), System.out).run(input);
+			} finally {
+				input.close();
+			}
+		}
+		else if (command.equals("serve")) {
+			int port = args.length > 0 ? Integer.parseInt(args[0]) : Integer.getInteger("airbooking.http.port", 8080);
+			final HttpService service = new HttpService(esql, port,
+					Integer.getInteger("airbooking.http.dbPermits", Integer.getInteger("airbooking.pool.max", 8)),
+					Long.getLong("airbooking.pool.borrowTimeoutMillis", 30000L),
+					Integer.getInteger("airbooking.http.threads", 64));
+			service.start();
+			System.out.println("Serving on port " + port + (service.usesVirtualThreads()
+					? " with virtual threads" : " with a pool of platform threads") + ", Ctrl-C to stop");
+			final CountDownLatch stopped = new CountDownLatch(1);
+			Runtime.getRuntime().addShutdownHook(new Thread(() -> {
+				service.stop(1);
+				stopped.countDown();
+			}));
+			stopped.await();
+		}
+		else if (command.equals("bench")) {
+			Benchmarks bench = new Benchmarks(esql,
+					Integer.getInteger("airbooking.bench.warmupIterations", 3),
+					Integer.getInteger("airbooking.bench.measurementIterations", 5),
+					Long.getLong("airbooking.bench.iterationMillis", 2000L));
+			String scales = args.length > 0 ? args[0] : "current";
+			File output = new File(args.length > 1 ? args[1] : "bench.json");
+			List<Map<String, Object>> results = new ArrayList<Map<String, Object>>();
+			for (String scale : scales.split(",")) {
+				if (!scale.equals("current")) {
+					//replaces every row of the database
+					bench.loadScaled(new File(System.getProperty("airbooking.bench.data", "../data")), Integer.parseInt(scale));
+				}
+				results.addAll(bench.runAll(scale));
+			}
+			Benchmarks.write(results, output);
+			System.out.println("Results written to " + output);
+		}
+		else if (command.equals("bench-compare")) {
+			if (args.length < 2) {
+				System.err.println("Usage: bench-compare <baseline.json> <current.json> [threshold %]");
+				return;
+			}
+			int regressions = Benchmarks.compare(new File(args[0]), new File(args[1]),
+					args.length > 2 ? Double.parseDouble(args[2]) : 5.0);
+			System.out.println(regressions + " regression(s)");
+		}
+		else if (command.equals("load-test")) {
+			LoadDriver driver = new LoadDriver(esql,
+					LoadDriver.parseMix(System.getProperty("airbooking.load.mix", "availability=70,book=20,review=10")));
+			driver.loadDistributions(new File(System.getProperty("airbooking.load.data", "../data")));
+			int seconds = args.length > 1 ? Integer.parseInt(args[1]) : 30;
+			//one run per concurrency level, to find where bookings start to contend
+			for (String threads : (args.length > 0 ? args[0] : "8").split(",")) {
+				driver.run(Integer.parseInt(threads.trim()), Integer.getInteger("airbooking.load.warmupSeconds", 5), seconds,
+						Double.parseDouble(System.getProperty("airbooking.load.rate", "0")),
+						Long.getLong("airbooking.load.thinkMillis", 0L));
+			}
+		}
+		else if (command.equals("load")) {
+			File directory = new File(args.length > 0 ? args[0] : "../data");
+			new BulkLoader(esql, directory, Integer.getInteger("airbooking.copyBufferSize", 1 << 16)).load();
+		}
+		else if (command.equals("migrate")) {
+			MigrationRunner runner = new MigrationRunner(esql,
+					new File(args.length > 0 ? args[0] : System.getProperty("airbooking.migrations", "../sql/migrations")));
+			int applied = runner.migrate(System.out);
+			System.out.println(applied == 0 ? "The schema is up to date" : applied + " migration(s) applied");
+		}
+		else if (command.equals("migration-status")) {
+			MigrationRunner runner = new MigrationRunner(esql,
+					new File(args.length > 0 ? args[0] : System.getProperty("airbooking.migrations", "../sql/migrations")));
+			for (String line : runner.status()) {
+				System.out.println(line);
+			}
+		}
+		else if (command.equals("create-partitions")) {
+			int created = esql.createMonthlyPartitions(args.length > 0 ? Integer.parseInt(args[0]) : 12);
+			System.out.println(created + " monthly partition(s) created");
+		}
+		else if (command.equals("export")) {
+			ColumnarExport.exportAll(esql, new File(args.length > 0 ? args[0] : "export"), System.out);
+		}
+		else if (command.equals("check-repository")) {
+			printConformance(RepositoryConformance.checkPostgres(esql));
+		}
+		else {
+			System.err.println("Unknown command: " + command);
+		}
+	}
+
+	/**
+	 * Method to run a command on the embedded store instead of PostgreSQL
+	 * (-Dairbooking.storage=embedded).  The store is kept in the directory
+	 * given as the first argument; without a command the interactive menu
+	 * runs on the store.
+	 *
+	 * @param args the directory, the command and its arguments
+	 */
+	public static void runEmbedded(String[] args) {
+		if (args.length < 1) {
+			System.err.println ("Usage: java -Dairbooking.storage=embedded " + AirBooking.class.getName ()
+					+ " <directory> [command [arguments]]");
+			System.err.println ("Commands:");
+			System.err.println ("  import [directory]          import the CSV files (default ../data) into the store");
+			System.err.println ("  batch [file]                run operations from file (default stdin), one per line");
+			System.err.println ("  check-repository            run the repository conformance suite in a temporary store");
+			System.err.println ("  status                      print the number of rows held");
+			return;
+		}
+		if (args.length > 1 && args[1].equals("check-repository")) {
+			try {
+				printConformance(RepositoryConformance.checkEmbedded());
+			} catch (IOException e) {
+				System.err.println (e.getMessage ());
+			}
+			return;
+		}
+		EmbeddedBookingRepository store = null;
+		try {
+			store = new EmbeddedBookingRepository(new File(args[0]),
+					Boolean.parseBoolean(System.getProperty("airbooking.embedded.sync", "true")),
+					Integer.getInteger("airbooking.embedded.snapshotEvery", 10000));
+			if (args.length == 1) {
+				runMenu(null, store);
+			}
+			else if (args[1].equals("import")) {
+				int rows = store.importCsv(new File(args.length > 2 ? args[2] : "../data"));
+				System.out.println(rows + " row(s) imported");
+			}
+			else if (args[1].equals("batch")) {
+				BufferedReader input = args.length > 2 && !args[2].equals("-")
+						? new BufferedReader(new FileReader(args[2])) : in;
+				try {
+					new BatchRunner(store, Integer.getInteger("airbooking.batchSize", 100), System.out).run(input);
+				} finally {
+					input.close();
+				}
+			}
+			else if (args[1].equals("status")) {
+				System.out.println(store.summary());
+			}
+			else {
+				System.err.println("Unknown command: " + args[1]);
+			}
+		}catch(Exception e){
+			System.err.println (e.getMessage ());
+		}finally{
+			if (store != null) {
+				store.close();
+			}
+		}
+	}//end runEmbedded
+
+	private static void printConformance(List<String> failures) {
+		for (String failure : failures) {
+			System.out.println("FAILED " + failure);
+		}
+		System.out.println(failures.isEmpty() ? "The repository conforms" : failures.size() + " check(s) failed");
+	}
+
 	public static int readChoice() {
 		int input;
 		// returns only if a correct value is given.
@@ -314,38 +1830,23 @@ public class AirBooking{
 		return input;
 	}//end readChoice
 
-	public static void AddPassenger(AirBooking esql){//1
+	public static void AddPassenger(BookingRepository repository){//1
 		//Add a new passenger to the database
 		try{
-         String query =  "INSERT INTO Passenger(pID,passNum,fullName,"
-						+" bdate,country) VALUES (";
-
-		String getpID = "SELECT MAX(pID) FROM Passenger";
-		List<List<String>> pidGot = esql.executeQueryAndReturnResult(getpID);
-		int pid = Integer.valueOf(pidGot.get(0).get(0));
-		pid = pid + 1;
-		String pidGotten = Integer.toString(pid);
          int verify = 1;
          String input = "";
-         query += pidGotten;
 
-         String checkPN = "SELECT pID FROM Passenger WHERE passNum = '";
-         String tempCheck = checkPN;
 		 while(verify == 1){
 			 System.out.print("Enter passNum: ");
 			 input = in.readLine();
-			 checkPN += input;
-			 checkPN += "'";
-			 List<List<String>> passNumGot = esql.executeQueryAndReturnResult(checkPN);
-			 if(input.length() == 10 && passNumGot.size() == 0){
+			 if(input.length() == 10 && repository.passengerId(input) < 0){
 				 verify = 0;
 			}
 			else {
-				checkPN = tempCheck;
 				System.out.println("Error: incorrect Passenger");
 			}
 		}
-		query += ",'" + input + "'";
+		String passNum = input;
 
 		verify = 1;
 		while(verify == 1) {
@@ -355,7 +1856,7 @@ public class AirBooking{
 				verify = 0;
 			}
 		}
-		query += ",'" + input + "'";
+		String fullName = input;
 
 		verify = 1;
 		while(verify == 1) {
@@ -368,7 +1869,7 @@ public class AirBooking{
 				System.out.println("Error invalid date, please re enter date");
 			}
 		}
-		query += ",'" + input + "'";
+		String bdate = input;
 
 		verify = 1;
 		while(verify == 1){
@@ -381,39 +1882,31 @@ public class AirBooking{
 				System.out.println("Error: please enter less than 24 characters");
 			}
 		}
-		query += ",'" + input + "')";
+		String country = input;
 
-         esql.executeUpdate(query);
+         int pid = repository.addPassenger(passNum, fullName, bdate, country);
+         System.out.println("Passenger added, pID: " + pid);
 
       }catch(Exception e){
          System.err.println (e.getMessage());
       }
 	}
 
-	public static void BookFlight(AirBooking esql){//2
+	public static void BookFlight(AirBooking esql, BookingRepository repository){//2
 		//Book Flight for an existing customer
 		try{
          int verify = 1;
 
-         String input = "input";
-
-		String passnum = "0";
-         verify = 1;
-         while(verify == 1){
+		String passNum = "";
+		int pid = -1;
+         while(pid < 0){
 			 System.out.print("Enter passport number: ");
-			 passnum = in.readLine();
-			 String validPN = "SELECT P.passNum FROM Passenger P WHERE P.passNum = '" + passnum +"'";
-			 List<List<String>> validUSER = esql.executeQueryAndReturnResult(validPN);
-			 if(validUSER.size() == 0){
+			 passNum = in.readLine();
+			 pid = repository.passengerId(passNum);
+			 if(pid < 0){
 				 System.out.print("invalid passport\n");
 			 }
-			 else{
-				 verify = 0;
-			 }
 		}
-		String validP = "SELECT P.pID FROM Passenger P WHERE P.passNum = '" + passnum +"'";
-		List<List<String>> validPID = esql.executeQueryAndReturnResult(validP);
-		String pid = validPID.get(0).get(0);
 
 			 String origin = "";
 			 verify = 1;
@@ -421,15 +1914,14 @@ public class AirBooking{
 				 System.out.print("Enter origin: ");
 				 origin = in.readLine();
 
-				 String validO = "SELECT F.origin FROM Flight F WHERE F.origin = '" + origin + "'";
-				 List<List<String>> validOrigin = esql.executeQueryAndReturnResult(validO);
-				 if(validOrigin.size() == 0){
+				 String city = esql == null ? origin : esql.getOrigins().resolve(origin);
+				 if(city == null){
 					 System.out.print("invalid origin\n");
+					 printSuggestions(esql.getOrigins().suggest(origin, 5));
 				 }
 				 else{
-					if(origin.length() <= 16){
+					origin = city;
 					verify = 0;
-					}
 				 }
 			}
 			String dest = "";
@@ -438,15 +1930,14 @@ public class AirBooking{
 				 System.out.print("Enter destination: ");
 				 dest = in.readLine();
 
-				 String validD = "SELECT F.destination FROM Flight F WHERE F.destination = '" + dest + "'";
-				 List<List<String>> validDest = esql.executeQueryAndReturnResult(validD);
-				 if(validDest.size() == 0){
+				 String city = esql == null ? dest : esql.getDestinations().resolve(dest);
+				 if(city == null){
 					 System.out.print("invalid destination\n");
+					 printSuggestions(esql.getDestinations().suggest(dest, 5));
 				 }
 				 else{
-					if(dest.length() <= 16){
+					dest = city;
 					verify = 0;
-					}
 				 }
 			}
 			verify = 1;
@@ -467,20 +1958,10 @@ public class AirBooking{
 			}
 
 
-			String query = "SELECT F.flightNum, F.origin, F.destination,B1.departure, "
-						   +"F.seats - (SELECT Count(B.flightNum) FROM Booking B WHERE B.flightNum = F.flightNum)"
-						   +" AS availableseats FROM Flight F, Booking B1 WHERE F.origin = ";
-			query += "'" + origin + "' AND F.destination = ";
-			query += "'" + dest + "' AND B1.departure = ";
-			query += "'" + date + "'AND (F.seats - (SELECT Count(B3.flightNum) FROM Booking B3 WHERE B3.flightNum = F.flightNum)) > 0"
-				  +" GROUP BY F.flightNum, F.origin, F.destination, B1.departure";
-
-
-
-				List<List<String>> check = esql.executeQueryAndReturnResult(query);
+				QueryResult check = repository.availableFlights(origin, dest, date);
 				if(check.size() > 0) {
 					System.out.print("\nList of Available flights: \n");
-					esql.executeQueryAndPrintResult(query);
+					printQueryResult(check);
 							System.out.print("\nSelect a flight \n");
 
 							String flightNum = "";
@@ -495,28 +1976,14 @@ public class AirBooking{
 							}
 							System.out.print("\n");
 
-							String bookref="";
-							verify = 1;
-							while(verify == 1){
-								String CHARS = "ABCDEFGHIJKLMNOPQRSTUVWXYZ1234567890";
-								StringBuilder ref = new StringBuilder();
-								Random rnd = new Random();
-								while (ref.length() < 10) { // length of the random string.
-									int index = (int) (rnd.nextFloat() * CHARS.length());
-									ref.append(CHARS.charAt(index));
-								}
-								bookref = ref.toString();
-
-								String test = "SELECT B.bookRef FROM Booking B WHERE B.bookRef = '"+ bookref +"'";
-								 List<List<String>> val_book = esql.executeQueryAndReturnResult(test);
-								 if(val_book.size() == 0){
-									 verify = 0;
-								 }
-							}
-					String insert =  "INSERT INTO Booking(bookRef,departure,flightNum,pID)"
-									+" VALUES ('"+ bookref +"', '"+ date +"', '"+ flightNum +"', '"+ pid +"')";
-
-					esql.executeUpdate(insert);
+					//one round trip: the seat is checked and taken, and the booking inserted, by one statement
+					BookingEngine.Outcome booking = repository.bookFlight(passNum, flightNum, date);
+					if (booking.bookRef == null) {
+						System.out.println("Flight " + flightNum + " on " + date + ": " + booking.failure);
+					}
+					else {
+						System.out.println("Booking reference: " + booking.bookRef);
+					}
 				} else {
 					System.out.println("There are no available flights");
 				}
@@ -526,94 +1993,57 @@ public class AirBooking{
 
 	}
 
-	public static void TakeCustomerReview(AirBooking esql){//3
+	/**
+	 * Prints the cities suggested for a city name that matched none.
+	 */
+	private static void printSuggestions(List<CityIndex.Suggestion> suggestions) {
+		if (suggestions.isEmpty())
+			return;
+		System.out.println("Did you mean:");
+		for (CityIndex.Suggestion suggestion : suggestions)
+			System.out.println("  " + suggestion);
+	}
+
+	public static void TakeCustomerReview(BookingRepository repository){//3
 		//Insert customer review into the ratings table
 
 		try{
-         String query =  "INSERT INTO Ratings(rID, pID, flightNum, score,comment) VALUES (";
-
-
-
-        String getID = "SELECT MAX(rID) FROM Ratings";
-		List<List<String>> ratingID = esql.executeQueryAndReturnResult(getID);
-		int rid = Integer.valueOf(ratingID.get(0).get(0));
-		rid = rid + 1;
-		String rating = Integer.toString(rid);
-		String input = rating;
-		query += input;
-		query += ",";
+		String input = "";
+		int pid = -1;
 
-         int verify = 1;
-         String verifytook = query;
-         while(verify == 1) {
-			 String verifyExist = "SELECT passNum FROM Passenger WHERE pID = ";
-			 String temp = verifyExist;
-			 String verifypidTook = "temp";
-			 while(verify == 1) {
-				 System.out.print("Enter pID: ");
-				 input = in.readLine();
-				 verifyExist += input;
-				 List<List<String>> verifyIDE = esql.executeQueryAndReturnResult(verifyExist);
-				 if(verifyIDE.size() != 0){
-					 verify = 0;
-				}
-				else {
-					verifyExist = temp;
-					System.out.print("Error pID does not exist\n");
-				}
+		 while(pid < 0) {
+			 System.out.print("Enter pID: ");
+			 input = in.readLine();
+			 try {
+				 pid = Integer.parseInt(input.trim());
+			 } catch (NumberFormatException e) {
+				 pid = -1;
 			 }
-			 query += input + ",";
-			 String pidGot = input;
-			 verify = 1;
-
-			 String verifyflightNumExist = "SELECT airId FROM Flight WHERE flightNum = '";
-			 temp = verifyflightNumExist;
-
-			 while(verify == 1) {
-				 System.out.print("Enter flightNum: ");
-				 input = in.readLine();
-				 verifyflightNumExist += input;
-				 verifyflightNumExist += "'";
-				 List<List<String>> flightExist = esql.executeQueryAndReturnResult(verifyflightNumExist);
-				 if(flightExist.size() != 0) {
-					 verify = 0;
-				 }
-				 else {
-					 verifyflightNumExist = temp;
-					 System.out.print("Error flightNum does no exist\n");
-				 }
+			 if(pid < 0 || !repository.passengerExists(pid)){
+				 System.out.print("Error pID does not exist\n");
+				 pid = -1;
 			 }
-			 query += "'" + input + "',";
-			 String checkTook = "SELECT departure FROM Booking WHERE flightNum = ";
-			 checkTook += "'" + input + "'" + " AND pID = " + pidGot;
-			 String checkWrote = "SELECT rID FROM Ratings WHERE flightNum = ";
-			 checkWrote += "'" + input + "'" + " AND pID = " + pidGot;
-
-			 List<List<String>> verifyIfExist = esql.executeQueryAndReturnResult(checkTook);
-			 List<List<String>> verifyIfWrote = esql.executeQueryAndReturnResult(checkWrote);
-			 if(verifyIfExist.size() != 0 && verifyIfWrote.size() == 0) {
+		 }
+
+		 String flightNum = "";
+		 int verify = 1;
+		 while(verify == 1) {
+			 System.out.print("Enter flightNum: ");
+			 flightNum = in.readLine();
+			 if(repository.flightExists(flightNum)) {
 				 verify = 0;
 			 }
-			 else if ( verifyIfWrote.size() != 0 ) {
-				 System.out.print("Error the passenger wrote a rating for this flight, please enter info again\n");
-				 query = verifytook;
-
-				 verify = 1;
-				}
 			 else {
-				 System.out.print("Error the passenger didnt take the flight, please enter info again\n");
-				 query = verifytook;
-				 verify = 1;
+				 System.out.print("Error flightNum does no exist\n");
 			 }
-		}
+		 }
 		 verify = 1;
 
-
-
+		 int score = 0;
 		 while(verify == 1) {
 			 System.out.print("Enter a score (0-5): ");
 			 input = in.readLine();
-			 int score = Integer.valueOf(input);
+			 score = Integer.valueOf(input);
 			 if(score >= 0 && score <= 5) {
 				 verify = 0;
 			 }
@@ -622,30 +2052,28 @@ public class AirBooking{
 				 System.out.print("Error invalid score, please enter (0-5)\n");
 			}
 		}
-		 query += input + ",";
 
 		 System.out.print("Enter your comments on flight: ");
-		 input = in.readLine();
-		 query += "'" + input + "'" + ")";
+		 String comment = in.readLine();
 
-         esql.executeUpdate(query);
+         //the repository checks that the passenger took the flight and did not review it yet
+         repository.reviewFlight(pid, flightNum, score, comment);
       }catch(Exception e){
          System.err.println (e.getMessage());
       }
 	}
 
-	public static void InsertOrUpdateRouteForAirline(AirBooking esql){//4
+	public static void InsertOrUpdateRouteForAirline(AirBooking esql, BookingRepository repository){//4
 		//Insert a new route for the airline
 				try{
-				String query = "SELECT airId, name FROM Airline;";
-				esql.executeQueryAndPrintResult(query);
+				if (esql != null)
+					printQueryResult(esql.getReferenceCache().airlines());
 				System.out.print("Please select airId: " );
 				String airId = in.readLine();
 
-				String query0 = "SELECT * FROM Airline WHERE airId = '"; 
-				query0 += airId + "';"; 
-				List<List<String>> check = esql.executeQueryAndReturnResult(query0);
-				while(check.size() <= 0)
+				//without a database session an unknown airline is reported by the upsert
+				int check = esql == null ? 1 : airlineById(esql, airId);
+				while(check <= 0)
 				{
 					System.out.print("Enter a valid airId: " );
 					airId = in.readLine();
@@ -653,41 +2081,52 @@ public class AirBooking{
 					{
 						return;
 					}
-					query0 = "SELECT * FROM Airline WHERE airId = '"; 
-					query0 += airId + "';"; 
-					check = esql.executeQueryAndReturnResult(query0);
+					check = airlineById(esql, airId);
 				}
-			
+
 				System.out.print("Enter origin: ");
 				String origin = in.readLine();
-				
+
 				System.out.print("Enter destination: ");
 				String destination = in.readLine();
-				
+
 				System.out.print("Enter plane: ");
 				String plane = in.readLine();
 
 				System.out.print("Enter number of seats: ");
 				String seats = in.readLine();
-			    
+
 				System.out.print("Enter flight duration: ");
 				String duration = in.readLine();
-				
+
 				System.out.print("Enter flight number: ");
 				String flightNum = in.readLine();
-				
-				String queryLast = "INSERT INTO Flight (airId, flightNum, origin, destination, plane, seats, duration) VALUES (";
-				queryLast += "'" + airId + "', '" + flightNum + "', '" + origin + "', '" + destination + "', '" + plane +"', '" + seats +"', '" + duration +"');"; 
-				System.out.println("Flight Created"); 
-                esql.executeUpdate(queryLast);
-			
+
+				String saved = esql == null ? "Flight Saved"
+						: esql.getRouteGraph().getFlight(flightNum) != null ? "Flight Updated" : "Flight Created";
+                repository.upsertFlight(Integer.parseInt(airId.trim()), flightNum, origin, destination, plane,
+						Integer.parseInt(seats.trim()), Integer.parseInt(duration.trim()));
+				System.out.println(saved);
+
 		  }catch(Exception e){
 			 System.err.println (e.getMessage());
 		  }
 	}
 
+	/**
+	 * Looks up an airline by the airId typed by the user; input that is not
+	 * a number matches no airline.
+	 */
+	private static int airlineById(AirBooking esql, String airId) throws SQLException {
+		try {
+			return esql.getReferenceCache().airline(Integer.parseInt(airId.trim())) == null ? 0 : 1;
+		} catch (NumberFormatException e) {
+			return 0;
+		}
+	}
+
 
-	public static void ListAvailableFlightsBetweenOriginAndDestination(AirBooking esql) throws Exception{//5
+	public static void ListAvailableFlightsBetweenOriginAndDestination(BookingRepository repository) throws Exception{//5
 		//List all flights between origin and distination (i.e. flightNum,origin,destination,plane,duration)
 		String origin = "";
 		System.out.print("Please enter Origin of flights you would like to see: ");
@@ -708,9 +2147,7 @@ public class AirBooking{
 			destination += input2;
 		}
 		try{
-			String query1 = "SELECT * FROM flight WHERE origin = '";
-			String query2 = "' AND destination = '";
-			int checkSize = esql.executeQueryAndPrintResult(query1 + origin + query2 + destination + "'");
+			int checkSize = printQueryResult(repository.listFlights(origin, destination));
 			if(checkSize <= 0) {
 				System.out.println("There are no such flights");
 			}
@@ -719,15 +2156,12 @@ public class AirBooking{
 		}
 	}
 
-	public static void ListMostPopularDestinations(AirBooking esql){//6
+	public static void ListMostPopularDestinations(BookingRepository repository){//6
 		//Print the k most popular destinations based on the number of flights offered to them (i.e. destination, choices)
 		try {
 			String input = "";
 			Integer shouldRepeat = 1;
-			List<List<String>> popularDestinations;
-			List<List<String>> totalNumberOfFlights;
-			String totalFlights = "SELECT COUNT(*) FROM Flight GROUP BY destination";
-			totalNumberOfFlights = esql.executeQueryAndReturnResult(totalFlights);
+			QueryResult popularDestinations;
 
 			System.out.print("Please enter number of top-rated destinations you want to see: ");
 			do {
@@ -738,13 +2172,13 @@ public class AirBooking{
 					shouldRepeat = 0;
 				}
 			} while(shouldRepeat == 0);
-			String query = "SELECT destination,COUNT(*) as count FROM Flight GROUP BY destination ORDER BY count DESC LIMIT " + input + ";";
-			popularDestinations = esql.executeQueryAndReturnResult(query);
+			//served from the in-memory ranking on PostgreSQL, see GET /stats/popularity
+			popularDestinations = repository.popularDestinations(Integer.parseInt(input));
 			System.out.print("__________________________________________________\n");
 			for (int i = 0; i < popularDestinations.size(); i++) {
-				String dest2print = popularDestinations.get(i).get(0).replaceAll("\\s+","");
+				String dest2print = popularDestinations.getString(i, 0);
 				System.out.println("\nDestination: " + dest2print);
-				String flight2print = popularDestinations.get(i).get(1);
+				int flight2print = popularDestinations.getInt(i, 1);
 				System.out.println("Number of flights: " + flight2print);
 				System.out.println("__________________________________________________");
 			}
@@ -755,7 +2189,7 @@ public class AirBooking{
 		}
 	}
 
-	public static void ListHighestRatedRoutes(AirBooking esql){//7
+	public static void ListHighestRatedRoutes(BookingRepository repository){//7
 		//List the k highest rated Routes (i.e. Airline Name, flightNum, Avg_Score)
 		try{
 			System.out.print("Please enter number of highest rated routes you want: ");
@@ -772,25 +2206,16 @@ public class AirBooking{
 				}
 			} while (shouldRepeat == 0);
 
-			String query = "";
-			String select = "SELECT Ratings.flightNum, AVG(Ratings.score) as avg, COUNT(Ratings.flightNum) as total ";
-			String from = "FROM Ratings GROUP BY Ratings.flightNum ";
-			String orderby = "ORDER BY avg DESC, total DESC LIMIT " + numRoutes;
-			query = query + select + from + orderby;
-
-			String display = "SELECT Airline.name, Flight.flightNum, Flight.origin, Flight.destination, Flight.plane, a.avg ";
-			display += "FROM Airline, Flight ";
-			display += "INNER JOIN (";
-			display += query + ") AS a ON Flight.flightNum = a.flightNum WHERE Flight.airID = Airline.airID ORDER BY a.avg DESC, a.total DESC";
-
-			esql.executeQueryAndPrintResult(display);
+			//RatingSummary holds the running totals, so only k rows are read
+			//rows are printed as they are read
+			repository.highestRated(Integer.parseInt(numRoutes.trim()), printRows());
 		}catch(Exception e)
 		{
 			System.err.println(e.getMessage());
 		}
 	}
 
-	public static void ListFlightFromOriginToDestinationInOrderOfDuration(AirBooking esql){//8
+	public static void ListFlightFromOriginToDestinationInOrderOfDuration(BookingRepository repository){//8
 		//List flight to destination in order of duration (i.e. Airline name, flightNum, origin, destination, duration, plane)
 		try {
 			String origin = "";
@@ -822,9 +2247,6 @@ public class AirBooking{
 				}
 			} while (shouldRepeat);
 
-			String query = "SELECT A.name, F.flightNum, F.origin, F.destination, F.duration, F.plane FROM Airline A, FLight F WHERE F.airId = A.airID AND origin = '";
-			query += origin + "' AND destination = '" + dest + "' ORDER BY F.duration ASC";
-
 			shouldRepeat = true;
 			String numFlights = "";
 			System.out.print("Enter the number of flights you would like to see: ");
@@ -839,7 +2261,7 @@ public class AirBooking{
 				}
 			} while (shouldRepeat);
 
-			List<List<String>> flightsResult = esql.executeQueryAndReturnResult(query);
+			QueryResult flightsResult = repository.flightsByDuration(origin, dest, Integer.parseInt(numFlights.trim()));
 
 
 			if(flightsResult.size() == 0) {
@@ -848,8 +2270,8 @@ public class AirBooking{
 			else {
 			System.out.print("Airline                        Flight Number    Origin                 Destination            Duration    Plane \n");
 				for(int i = 0; i < Integer.parseInt(numFlights); i++) {
-					for(int j = 0; j < flightsResult.get(i).size(); j++) {
-						System.out.print(flightsResult.get(i).get(j));
+					for(int j = 0; j < flightsResult.columnCount(); j++) {
+						System.out.print(flightsResult.getString(i, j));
 						System.out.print("\t");
 					}
 					System.out.print("\n");
@@ -864,23 +2286,16 @@ public class AirBooking{
 		}
 	}
 
-	public static void FindNumberOfAvailableSeatsForFlight(AirBooking esql){//9
+	public static void FindNumberOfAvailableSeatsForFlight(BookingRepository repository){//9
 		//
 		try{
-		String query = "SELECT F.flightNum, F.origin, F.destination,B1.departure,"
-						+ " (SELECT COUNT(B2.flightNum) FROM Booking B2"
-						+ " WHERE B2.flightNum = F.flightNum) as booked,F.seats,"
-						+ " (F.seats - (SELECT Count(B.flightNum)FROM Booking B"
-						+ " WHERE B.flightNum = F.flightNum)) as available FROM Flight F, Booking B1"
-						+ " WHERE B1.departure = '";
-
-
 		String input = "";
+		int rows = 0;
 		int shouldRepeat = 1;
 		while (shouldRepeat == 1) {
 			System.out.print("Please enter the departure date for flights (or 'Exit' to exit): ");
 			input = in.readLine();
-			
+
 			while (input.length() < 10 && !input.contains("Exit")) {
 					System.out.print(input);
 					System.out.print("Please Enter Valid Date: ");
@@ -890,23 +2305,15 @@ public class AirBooking{
 					System.out.println();
 					return;
 				}
-			String dates = "SELECT * FROM Booking WHERE departure = '" + input + "'";
-			List<List<String>> flights = esql.executeQueryAndReturnResult(dates);
-				 if(flights.size() == 0){
+			//rows are printed as they are read, through a server-side cursor on PostgreSQL
+			rows = repository.availableSeats(input, printRows());
+				 if(rows == 0){
 					 System.out.print("There are no available flights for this departure date. ");
 				 }
 				 else {
 					 shouldRepeat = 0;
-					 query += input;
-					 query += "'";
 				 }
 		}
-		query += " AND  (F.seats - (SELECT Count(B.flightNum) FROM Booking B";
-		query += " WHERE B.flightNum = F.flightNum)) > 0" ;
-		query += " GROUP BY F.flightNum, F.origin, F.destination, F.plane, B1.departure, F.seats";
-		query += " ORDER BY F.origin, F.destination";
-
-		int rows = esql.executeQueryAndPrintResult(query);
 		System.out.println ("total row(s): " + rows);
 
 		}catch(Exception e) {
@@ -914,4 +2321,71 @@ public class AirBooking{
 		}
 	}
 
+	public static void FindConnectingFlights(AirBooking esql){//10
+		//List the k fastest itineraries between two cities, with connections (i.e. total duration, flights)
+		try{
+			String origin = "";
+			System.out.print("Enter the origin: ");
+			origin = in.readLine();
+			while (origin.trim().length() <= 0) {
+				System.out.print("Cannot leave entry blank. Try again: ");
+				origin = in.readLine();
+			}
+			String dest = "";
+			System.out.print("Enter the destination: ");
+			dest = in.readLine();
+			while (dest.trim().length() <= 0) {
+				System.out.print("Cannot leave entry blank. Try again: ");
+				dest = in.readLine();
+			}
+			int k = readPositive("Enter the number of itineraries you would like to see: ");
+			System.out.print("Enter the maximum number of stops: ");
+			int maxStops = -1;
+			while (maxStops < 0) {
+				try {
+					maxStops = Integer.parseInt(in.readLine().trim());
+				} catch (NumberFormatException e) {
+					maxStops = -1;
+				}
+				if (maxStops < 0 || maxStops > RouteGraph.MAX_STOPS) {
+					System.out.print("Enter a value from 0 to " + RouteGraph.MAX_STOPS + ": ");
+					maxStops = -1;
+				}
+			}
+
+			List<RouteGraph.Itinerary> itineraries = esql.getRouteGraph().fastest(origin, dest, k, maxStops);
+			if (itineraries.size() == 0) {
+				System.out.println("There are no such connections");
+			}
+			for (int i = 0; i < itineraries.size(); i++) {
+				RouteGraph.Itinerary itinerary = itineraries.get(i);
+				System.out.println("\n" + (i + 1) + ". " + itinerary.duration + " hours, " + itinerary.stops() + " stop(s)");
+				for (RouteGraph.Leg leg : itinerary.legs) {
+					System.out.println("   " + leg);
+				}
+			}
+			System.out.println();
+		}catch(Exception e){
+			System.err.println(e.getMessage());
+		}
+	}
+
+	/**
+	 * Prompts until the user enters a number greater than 0.
+	 */
+	private static int readPositive(String prompt) throws IOException {
+		System.out.print(prompt);
+		while (true) {
+			try {
+				int value = Integer.parseInt(in.readLine().trim());
+				if (value > 0) {
+					return value;
+				}
+			} catch (NumberFormatException e) {
+				// asks again below.
+			}
+			System.out.print("Enter a value greater than 0: ");
+		}
+	}
+
 }
@@ -0,0 +1,284 @@
+import java.io.BufferedReader;
+import java.io.IOException;
+import java.io.PrintStream;
+import java.sql.SQLException;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.TreeMap;
+
+/**
+ * This class runs AirBooking operations read from a file or stdin, one per
+ * line, instead of prompting for every field.  A line is either the
+ * operation name followed by its fields separated by tabs, or a flat JSON
+ * object with an "op" member and one member per field:
+ *
+ *	book	AB12345678	1234	05/31/2018
+ *	{"op":"book","passNum":"AB12345678","flightNum":"1234","departure":"05/31/2018"}
+ *
+ * Blank lines and lines starting with # are skipped.  Operations run in
+ * transactions of batchSize lines.  Each line runs in a nested transaction,
+ * so a failing line is rolled back alone and the rest of its batch still
+ * commits.  One result line is printed per operation once its batch has
+ * committed (tab separated, or a JSON object for JSON input), followed by
+ * a summary of throughput and errors.
+ *
+ * On a repository without transactions, such as the embedded store, every
+ * line runs and is durable on its own, and the batches only group the
+ * output.
+ */
+public class BatchRunner {
+	private final AirBooking _esql;
+	//set instead of _esql when the operations run on a repository without transactions
+	private final BookingRepository _repository;
+	private final int _batchSize;
+	private final PrintStream _out;
+
+	/**
+	 * The outcome of one input line.
+	 */
+	private static class Outcome {
+		final int line;
+		final String op;
+		final boolean json;
+		Object value;
+		String error;
+
+		Outcome(int line, String op, boolean json) {
+			this.line = line;
+			this.op = op;
+			this.json = json;
+		}
+	}
+
+	/**
+	 * @param esql the database session to run the operations through
+	 * @param batchSize operations per transaction
+	 * @param out where results and the summary are printed
+	 */
+	public BatchRunner(AirBooking esql, int batchSize, PrintStream out) {
+		if (batchSize <= 0) {
+			throw new IllegalArgumentException("invalid batch size: " + batchSize);
+		}
+		this._esql = esql;
+		this._repository = null;
+		this._batchSize = batchSize;
+		this._out = out;
+	}
+
+	/**
+	 * @param repository the repository to run the operations on, without transactions
+	 * @param batchSize operations per group of results
+	 * @param out where results and the summary are printed
+	 */
+	public BatchRunner(BookingRepository repository, int batchSize, PrintStream out) {
+		if (batchSize <= 0) {
+			throw new IllegalArgumentException("invalid batch size: " + batchSize);
+		}
+		this._esql = null;
+		this._repository = repository;
+		this._batchSize = batchSize;
+		this._out = out;
+	}
+
+	/**
+	 * Method to run every operation of input and print the results.
+	 *
+	 * @param input the operations, one per line
+	 * @return the number of operations that failed
+	 * @throws java.io.IOException when input could not be read
+	 */
+	public int run(BufferedReader input) throws IOException {
+		long start = System.nanoTime();
+		Map<String, int[]> counts = new TreeMap<String, int[]>();
+		List<Outcome> batch = new ArrayList<Outcome>(this._batchSize);
+		int total = 0;
+		int errors = 0;
+		int lineNo = 0;
+		String line;
+		while ((line = input.readLine()) != null) {
+			++lineNo;
+			String trimmed = line.trim();
+			if (trimmed.isEmpty() || trimmed.startsWith("#")) {
+				continue;
+			}
+			if (batch.isEmpty() && !begin(lineNo)) {
+				break;
+			}
+			batch.add(runLine(line, lineNo));
+			if (batch.size() == this._batchSize) {
+				errors += flush(batch, counts);
+				total += batch.size();
+				batch.clear();
+			}
+		}
+		if (!batch.isEmpty()) {
+			errors += flush(batch, counts);
+			total += batch.size();
+		}
+
+		long nanos = System.nanoTime() - start;
+		for (Map.Entry<String, int[]> count : counts.entrySet()) {
+			this._out.println(String.format("# %-22s %8d ok %8d error(s)", count.getKey(), count.getValue()[0], count.getValue()[1]));
+		}
+		this._out.println(String.format("# %d operation(s), %d error(s) in %.2f s, %.0f operations/s",
+				total, errors, nanos / 1e9, nanos == 0 ? 0 : total * 1e9 / nanos));
+		return errors;
+	}//end run
+
+	/**
+	 * Starts the transaction of a new batch, or reports why it could not be
+	 * started.
+	 */
+	private boolean begin(int lineNo) {
+		if (this._esql == null) {
+			return true;
+		}
+		try {
+			this._esql.beginTransaction();
+			return true;
+		} catch (SQLException e) {
+			this._out.println(lineNo + "\tERROR\tcould not start a transaction: " + e.getMessage());
+			return false;
+		}
+	}
+
+	/**
+	 * Runs one line in a nested transaction.
+	 */
+	private Outcome runLine(String line, int lineNo) {
+		boolean json = line.trim().startsWith("{");
+		Outcome outcome = new Outcome(lineNo, null, json);
+		Map<String, String> fields;
+		try {
+			fields = json ? Json.parseObject(line.trim()) : positional(line);
+		} catch (RuntimeException e) {
+			outcome.error = e.getMessage();
+			return outcome;
+		}
+		outcome = new Outcome(lineNo, fields.get("op"), json);
+		if (this._esql == null) {
+			try {
+				outcome.value = Operations.execute(this._repository, outcome.op, fields);
+			} catch (SQLException | RuntimeException e) {
+				outcome.error = e.getMessage() == null ? e.toString() : e.getMessage();
+			}
+			return outcome;
+		}
+		try {
+			this._esql.beginTransaction();
+			try {
+				outcome.value = Operations.execute(this._esql, outcome.op, fields);
+				this._esql.commitTransaction();
+			} catch (SQLException | RuntimeException e) {
+				this._esql.rollbackTransaction();
+				throw e;
+			}
+		} catch (SQLException | RuntimeException e) {
+			outcome.error = e.getMessage() == null ? e.toString() : e.getMessage();
+		}
+		return outcome;
+	}//end runLine
+
+	/**
+	 * Commits the transaction of a batch and prints its results.  When the
+	 * commit fails, every line of the batch is reported as failed.
+	 */
+	private int flush(List<Outcome> batch, Map<String, int[]> counts) {
+		String failure = null;
+		try {
+			if (this._esql != null) {
+				this._esql.commitTransaction();
+			}
+		} catch (SQLException e) {
+			failure = "batch rolled back: " + e.getMessage();
+		}
+		int errors = 0;
+		for (Outcome outcome : batch) {
+			if (failure != null && outcome.error == null) {
+				outcome.error = failure;
+				outcome.value = null;
+			}
+			String key = outcome.op == null ? "(invalid)" : outcome.op;
+			int[] count = counts.get(key);
+			if (count == null) {
+				count = new int[2];
+				counts.put(key, count);
+			}
+			if (outcome.error != null) {
+				++errors;
+				++count[1];
+			}
+			else {
+				++count[0];
+			}
+			print(outcome);
+		}
+		return errors;
+	}//end flush
+
+	private void print(Outcome outcome) {
+		if (outcome.json) {
+			Map<String, Object> result = new LinkedHashMap<String, Object>();
+			result.put("line", outcome.line);
+			result.put("ok", outcome.error == null);
+			if (outcome.error != null) {
+				result.put("error", outcome.error);
+			}
+			else {
+				result.put("result", outcome.value);
+			}
+			this._out.println(Json.toJson(result));
+			return;
+		}
+		if (outcome.error != null) {
+			this._out.println(outcome.line + "\tERROR\t" + outcome.error);
+			return;
+		}
+		if (outcome.value instanceof QueryResult) {
+			QueryResult rows = (QueryResult) outcome.value;
+			this._out.println(outcome.line + "\tOK\t" + rows.size() + " row(s)");
+			for (int r = 0; r < rows.size(); ++r) {
+				StringBuilder sb = new StringBuilder();
+				for (int c = 0; c < rows.columnCount(); ++c) {
+					sb.append('\t').append(rows.getString(r, c));
+				}
+				this._out.println(sb);
+			}
+		}
+		else if (outcome.value instanceof List) {
+			List<?> items = (List<?>) outcome.value;
+			this._out.println(outcome.line + "\tOK\t" + items.size() + " row(s)");
+			for (Object item : items) {
+				this._out.println("\t" + Json.toJson(item));
+			}
+		}
+		else {
+			this._out.println(outcome.line + "\tOK\t" + outcome.value);
+		}
+	}//end print
+
+	/**
+	 * Maps the tab separated fields of a line to the field names of its
+	 * operation.
+	 */
+	private static Map<String, String> positional(String line) {
+		String[] parts = line.split("\t", -1);
+		String op = parts[0].trim();
+		String[] names = Operations.fields(op);
+		if (names == null) {
+			throw new IllegalArgumentException("unknown operation: " + op);
+		}
+		if (parts.length - 1 > names.length) {
+			throw new IllegalArgumentException(op + " takes " + names.length + " field(s)");
+		}
+		Map<String, String> fields = new HashMap<String, String>();
+		fields.put("op", op);
+		for (int i = 1; i < parts.length; ++i) {
+			fields.put(names[i - 1], parts[i]);
+		}
+		return fields;
+	}
+}//end BatchRunner
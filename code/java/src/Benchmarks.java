@@ -0,0 +1,509 @@
+import java.io.BufferedWriter;
+import java.io.File;
+import java.io.FileWriter;
+import java.io.IOException;
+import java.io.PrintWriter;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.sql.SQLException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Random;
+
+/**
+ * This class benchmarks the query paths behind the menu operations against
+ * the database AirBooking is connected to, in the manner of JMH: each
+ * benchmark runs warmup iterations, then measurement iterations of a fixed
+ * duration, and reports the average time per operation with its 99.9%
+ * confidence interval and latency percentiles.  Results are written in
+ * JMH's JSON result format, so they can be diffed with compare() or any
+ * JMH result viewer.
+ *
+ * Writes run in a transaction that is rolled back, so the dataset is the
+ * same for every benchmark and every run, and the numbers measure the
+ * statements rather than commit latency.  Parameters (routes, dates,
+ * passengers) are drawn from the tables with a fixed seed.
+ *
+ * The dataset scale is a parameter: for scale n the CSV files of code/data
+ * are replicated n times with distinct keys and loaded with BulkLoader
+ * before the benchmarks run.  This replaces every row of the database.
+ */
+public class Benchmarks {
+	//99.9% two sided Student's t quantiles for 1..30 degrees of freedom, as used by JMH for score errors
+	private static final double[] T_999 = { 636.62, 31.60, 12.92, 8.61, 6.87, 5.96, 5.41, 5.04, 4.78, 4.59,
+		4.44, 4.32, 4.22, 4.14, 4.07, 4.01, 3.97, 3.92, 3.88, 3.85,
+		3.82, 3.79, 3.77, 3.75, 3.73, 3.71, 3.69, 3.67, 3.66, 3.65 };
+	//replica r of a flight gets character r appended, so flight numbers stay within CHAR(8); flight
+	//numbers are upper case, so a replica cannot collide with another original flight
+	private static final String REPLICA_CHARS = "-abcdefghijklmnopqrstuvwxyz";
+	//CASCADE also empties the tables derived from these
+	private static final String TRUNCATE = "TRUNCATE Airline, Passenger, Flight, Ratings, Booking CASCADE";
+
+	private final AirBooking _esql;
+	private final int _warmupIterations;
+	private final int _measurementIterations;
+	private final long _iterationMillis;
+
+	/**
+	 * One benchmarked operation; i counts the invocations, to pick parameters.
+	 */
+	interface Op {
+		void run(int i) throws SQLException;
+	}
+
+	/**
+	 * @param esql the database session to benchmark
+	 * @param warmupIterations iterations run before measuring
+	 * @param measurementIterations iterations measured
+	 * @param iterationMillis duration of every iteration
+	 */
+	public Benchmarks(AirBooking esql, int warmupIterations, int measurementIterations, long iterationMillis) {
+		this._esql = esql;
+		this._warmupIterations = warmupIterations;
+		this._measurementIterations = Math.max(1, measurementIterations);
+		this._iterationMillis = iterationMillis;
+	}
+
+	/**
+	 * Method to run every benchmark on the current contents of the database.
+	 *
+	 * @param scale the dataset scale reported with the results
+	 * @return one JMH style result per benchmark
+	 * @throws java.sql.SQLException when a query failed
+	 */
+	public List<Map<String, Object>> runAll(String scale) throws SQLException {
+		final AirBooking esql = this._esql;
+		final Random random = new Random(42);
+		final QueryResult routes = esql.executePreparedQueryAndReturnColumns(
+				"SELECT DISTINCT origin, destination FROM Flight ORDER BY 1, 2");
+		final QueryResult dates = esql.executePreparedQueryAndReturnColumns(
+				"SELECT DISTINCT to_char(departure, 'MM/DD/YYYY') FROM Booking ORDER BY 1");
+		final QueryResult flights = esql.executePreparedQueryAndReturnColumns(
+				"SELECT airId, flightNum, origin, destination, plane, seats, duration FROM Flight ORDER BY flightNum");
+		final QueryResult passengers = esql.executePreparedQueryAndReturnColumns(
+				"SELECT pID, passNum FROM Passenger ORDER BY pID");
+		final QueryResult trips = esql.executePreparedQueryAndReturnColumns(
+				"SELECT B.pID, B.flightNum FROM Booking B WHERE NOT EXISTS"
+				+ " (SELECT 1 FROM Ratings R WHERE R.pID = B.pID AND R.flightNum = B.flightNum)"
+				+ " ORDER BY B.bookRef LIMIT 10000");
+		if (routes.size() == 0 || dates.size() == 0 || passengers.size() == 0 || trips.size() == 0) {
+			throw new SQLException("the benchmarks need flights, passengers and bookings; load code/data first");
+		}
+		final int[] routeOf = shuffled(routes.size(), random);
+		final int[] dateOf = shuffled(dates.size(), random);
+		final int[] flightOf = shuffled(flights.size(), random);
+		final int[] passengerOf = shuffled(passengers.size(), random);
+
+		List<Map<String, Object>> results = new ArrayList<Map<String, Object>>();
+		//1
+		results.add(measure("addPassenger", scale, rolledBack(new Op() {
+			public void run(int i) throws SQLException {
+				esql.addPassenger(String.format("B%09d", i % 1000000000), "Bench Passenger", "01/01/1980", "Nowhere");
+			}
+		})));
+		//2: the availability query BookFlight shows, then the booking itself
+		results.add(measure("bookFlightAvailability", scale, new Op() {
+			public void run(int i) throws SQLException {
+				int r = routeOf[i % routeOf.length];
+				String date = dates.getString(dateOf[i % dateOf.length], 0);
+				esql.executePreparedQueryAndReturnColumns(AirBooking.AVAILABLE_FLIGHTS,
+						date, date, routes.getString(r, 0), routes.getString(r, 1));
+			}
+		}));
+		results.add(measure("bookFlight", scale, rolledBack(new Op() {
+			public void run(int i) throws SQLException {
+				int f = flightOf[i % flightOf.length];
+				esql.bookFlight(passengers.getInt(passengerOf[i % passengerOf.length], 0),
+						flights.getString(f, 1), dates.getString(dateOf[i % dateOf.length], 0));
+			}
+		})));
+		results.add(measure("bookFlightSingleStatement", scale, rolledBack(new Op() {
+			public void run(int i) throws SQLException {
+				int f = flightOf[i % flightOf.length];
+				esql.getBookingEngine().book(passengers.getString(passengerOf[i % passengerOf.length], 1),
+						flights.getString(f, 1), dates.getString(dateOf[i % dateOf.length], 0));
+			}
+		})));
+		//3
+		results.add(measure("takeCustomerReview", scale, rolledBack(new Op() {
+			public void run(int i) throws SQLException {
+				int t = i % trips.size();
+				esql.reviewFlight(trips.getInt(t, 0), trips.getString(t, 1), i % 6, "benchmark");
+			}
+		})));
+		//4
+		results.add(measure("insertOrUpdateRoute", scale, rolledBack(new Op() {
+			public void run(int i) throws SQLException {
+				int f = flightOf[i % flightOf.length];
+				esql.upsertFlight(flights.getInt(f, 0), flights.getString(f, 1), flights.getString(f, 2),
+						flights.getString(f, 3), flights.getString(f, 4), flights.getInt(f, 5), flights.getInt(f, 6));
+			}
+		})));
+		//5
+		results.add(measure("listFlights", scale, new Op() {
+			public void run(int i) throws SQLException {
+				int r = routeOf[i % routeOf.length];
+				esql.executePreparedQueryAndReturnColumns(AirBooking.LIST_FLIGHTS, routes.getString(r, 0), routes.getString(r, 1));
+			}
+		}));
+		//6
+		results.add(measure("mostPopularDestinations", scale, new Op() {
+			public void run(int i) throws SQLException {
+				esql.getDestinationPopularity().top(10);
+			}
+		}));
+		//7
+		results.add(measure("highestRatedRoutes", scale, new Op() {
+			public void run(int i) throws SQLException {
+				esql.executePreparedQueryAndReturnColumns(AirBooking.HIGHEST_RATED, 10);
+			}
+		}));
+		//8
+		results.add(measure("flightsByDuration", scale, new Op() {
+			public void run(int i) throws SQLException {
+				int r = routeOf[i % routeOf.length];
+				esql.executePreparedQueryAndReturnColumns(AirBooking.FLIGHTS_BY_DURATION,
+						routes.getString(r, 0), routes.getString(r, 1), 10);
+			}
+		}));
+		//9
+		results.add(measure("availableSeats", scale, new Op() {
+			public void run(int i) throws SQLException {
+				String date = dates.getString(dateOf[i % dateOf.length], 0);
+				esql.executePreparedQueryAndReturnColumns(AirBooking.AVAILABLE_SEATS, date, date);
+			}
+		}));
+		return results;
+	}//end runAll
+
+	/**
+	 * An operation run in a transaction that is always rolled back.
+	 * Failures such as a passenger already booked on a flight are part of
+	 * the measured work, but they are counted: measure() reports them and
+	 * rejects a benchmark that mostly measured failures.
+	 */
+	private class RolledBack implements Op {
+		final Op op;
+		long failures = 0;
+		Exception lastFailure = null;
+
+		RolledBack(Op op) {
+			this.op = op;
+		}
+
+		public void run(int i) throws SQLException {
+			_esql.beginTransaction();
+			try {
+				this.op.run(i);
+			} catch (SQLException | RuntimeException e) {
+				++this.failures;
+				this.lastFailure = e;
+			} finally {
+				_esql.rollbackTransaction();
+			}
+		}
+	}
+
+	private Op rolledBack(Op op) {
+		return new RolledBack(op);
+	}
+
+	private static int[] shuffled(int n, Random random) {
+		int[] order = new int[Math.max(n, 1)];
+		for (int i = 0; i < n; ++i) {
+			order[i] = i;
+		}
+		for (int i = n - 1; i > 0; --i) {
+			int j = random.nextInt(i + 1);
+			int t = order[i];
+			order[i] = order[j];
+			order[j] = t;
+		}
+		return order;
+	}
+
+	/**
+	 * Method to run one benchmark: warmup iterations, then measured
+	 * iterations, each as many invocations as fit in the iteration time.
+	 *
+	 * @param name the benchmark name
+	 * @param scale the dataset scale
+	 * @param op the operation
+	 * @return the result in JMH's JSON layout, average time in us/op, with
+	 *         the failed calls of a rolled back operation as secondary metric
+	 * @throws java.sql.SQLException when the operation failed, or when most
+	 *         measured calls of a rolled back operation failed
+	 */
+	Map<String, Object> measure(String name, String scale, Op op) throws SQLException {
+		int invocation = 0;
+		for (int w = 0; w < this._warmupIterations; ++w) {
+			long end = System.nanoTime() + this._iterationMillis * 1000000L;
+			while (System.nanoTime() < end) {
+				op.run(invocation++);
+			}
+		}
+		RolledBack counted = op instanceof RolledBack ? (RolledBack) op : null;
+		LatencyHistogram latency = new LatencyHistogram();
+		List<Double> scores = new ArrayList<Double>();
+		List<Long> failures = new ArrayList<Long>();
+		long calls = 0;
+		long failed = 0;
+		for (int m = 0; m < this._measurementIterations; ++m) {
+			long failedBefore = counted == null ? 0 : counted.failures;
+			long start = System.nanoTime();
+			long end = start + this._iterationMillis * 1000000L;
+			long ops = 0;
+			long now = start;
+			while (now < end) {
+				op.run(invocation++);
+				long after = System.nanoTime();
+				latency.record(after - now);
+				now = after;
+				++ops;
+			}
+			scores.add((now - start) / 1e3 / ops);
+			failures.add((counted == null ? 0 : counted.failures) - failedBefore);
+			calls += ops;
+			failed += failures.get(m);
+		}
+		if (2 * failed > calls) {
+			throw new SQLException(name + ": " + failed + " of " + calls + " measured calls failed, the last with: "
+					+ counted.lastFailure.getMessage(), counted.lastFailure);
+		}
+
+		double mean = 0;
+		for (double s : scores) {
+			mean += s;
+		}
+		mean /= scores.size();
+		double error = Double.NaN;
+		if (scores.size() > 1) {
+			double variance = 0;
+			for (double s : scores) {
+				variance += (s - mean) * (s - mean);
+			}
+			variance /= scores.size() - 1;
+			int df = scores.size() - 1;
+			error = (df <= T_999.length ? T_999[df - 1] : 3.29) * Math.sqrt(variance / scores.size());
+		}
+
+		Map<String, Object> percentiles = new LinkedHashMap<String, Object>();
+		for (double p : new double[] { 0, 50, 90, 95, 99, 99.9, 99.99, 100 }) {
+			percentiles.put(String.valueOf(p), (p == 0 ? 0 : latency.percentile(p)) / 1e3);
+		}
+		Map<String, Object> primary = new LinkedHashMap<String, Object>();
+		primary.put("score", mean);
+		primary.put("scoreError", Double.isNaN(error) ? "NaN" : (Object) error);
+		primary.put("scoreConfidence", Double.isNaN(error) ? null : Arrays.asList(mean - error, mean + error));
+		primary.put("scorePercentiles", percentiles);
+		primary.put("scoreUnit", "us/op");
+		List<Object> raw = new ArrayList<Object>();
+		raw.add(scores);
+		primary.put("rawData", raw);
+
+		Map<String, Object> params = new LinkedHashMap<String, Object>();
+		params.put("scale", scale);
+		Map<String, Object> result = new LinkedHashMap<String, Object>();
+		result.put("benchmark", "AirBooking." + name);
+		result.put("mode", "avgt");
+		result.put("threads", 1);
+		result.put("forks", 1);
+		result.put("jvm", System.getProperty("java.home"));
+		result.put("jdkVersion", System.getProperty("java.version"));
+		result.put("warmupIterations", this._warmupIterations);
+		result.put("warmupTime", this._iterationMillis + " ms");
+		result.put("measurementIterations", this._measurementIterations);
+		result.put("measurementTime", this._iterationMillis + " ms");
+		result.put("params", params);
+		result.put("primaryMetric", primary);
+		Map<String, Object> secondary = new LinkedHashMap<String, Object>();
+		if (counted != null) {
+			Map<String, Object> failure = new LinkedHashMap<String, Object>();
+			failure.put("score", failed);
+			failure.put("scoreError", "NaN");
+			failure.put("scoreConfidence", null);
+			failure.put("scoreUnit", "#");
+			List<Object> rawFailures = new ArrayList<Object>();
+			rawFailures.add(failures);
+			failure.put("rawData", rawFailures);
+			secondary.put("failures", failure);
+		}
+		result.put("secondaryMetrics", secondary);
+
+		System.out.println(String.format("%-40s %6s %12.3f +- %10.3f us/op   p50 %10.3f  p99 %10.3f us%s",
+				name, scale, mean, Double.isNaN(error) ? 0 : error,
+				latency.percentile(50) / 1e3, latency.percentile(99) / 1e3,
+				failed > 0 ? "   " + failed + " of " + calls + " failed" : ""));
+		return result;
+	}//end measure
+
+	/**
+	 * Method to replace the contents of the database with the CSV files of
+	 * source replicated scale times, and rebuild the in-memory indexes.
+	 * Replica r &gt; 0 of a flight has a replica character appended to its
+	 * number; passengers, ratings and bookings get keys past the ones of
+	 * the earlier replicas and point at the flights of their replica.
+	 *
+	 * @param source the directory holding the CSV files of code/data
+	 * @param scale the number of replicas, 1 to 27
+	 * @throws java.lang.Exception when the files could not be written or loaded
+	 */
+	public void loadScaled(File source, int scale) throws Exception {
+		if (scale < 1 || scale > REPLICA_CHARS.length()) {
+			throw new IllegalArgumentException("scale must be 1 to " + REPLICA_CHARS.length());
+		}
+		File directory = Files.createTempDirectory("airbooking-scale" + scale).toFile();
+		try {
+			copy(new File(source, "airline.csv"), new File(directory, "airline.csv"));
+			replicate(source, directory, scale);
+			this._esql.executeUpdate(TRUNCATE);
+			new BulkLoader(this._esql, directory, 1 << 16).load();
+			this._esql.reloadIndexes();
+		} finally {
+			for (File f : directory.listFiles()) {
+				f.delete();
+			}
+			directory.delete();
+		}
+	}//end loadScaled
+
+	private static void copy(File from, File to) throws IOException {
+		Files.copy(from.toPath(), to.toPath());
+	}
+
+	private static void replicate(File source, File target, int scale) throws IOException {
+		List<String[]> passengers = BulkLoader.readCsv(new File(source, "passenger.csv"));
+		List<String[]> flights = BulkLoader.readCsv(new File(source, "flights.csv"));
+		List<String[]> ratings = BulkLoader.readCsv(new File(source, "ratings.csv"));
+		List<String[]> bookings = BulkLoader.readCsv(new File(source, "bookings.csv"));
+		long pidStride = maxKey(passengers) + 1;
+		long ridStride = maxKey(ratings) + 1;
+
+		PrintWriter passengerOut = writer(new File(target, "passenger.csv"));
+		PrintWriter flightOut = writer(new File(target, "flights.csv"));
+		PrintWriter ratingOut = writer(new File(target, "ratings.csv"));
+		PrintWriter bookingOut = writer(new File(target, "bookings.csv"));
+		try {
+			for (int r = 0; r < scale; ++r) {
+				long pidOffset = r * pidStride;
+				for (String[] p : passengers) {
+					long pid = Long.parseLong(p[0].trim()) + pidOffset;
+					//original passport numbers are letters only, replicas are digits only
+					String passNum = r == 0 ? p[1] : String.format("%010d", pid);
+					passengerOut.println(pid + "," + passNum + "," + p[2] + "," + p[3] + "," + p[4]);
+				}
+				for (String[] f : flights) {
+					flightOut.println(f[0] + "," + flightNum(f[1], r) + "," + join(f, 2));
+				}
+				for (String[] x : ratings) {
+					ratingOut.println((Long.parseLong(x[0].trim()) + r * ridStride) + ","
+							+ (Long.parseLong(x[1].trim()) + pidOffset) + "," + flightNum(x[2], r) + "," + join(x, 3));
+				}
+				for (int i = 0; i < bookings.size(); ++i) {
+					String[] b = bookings.get(i);
+					String bookRef = r == 0 ? b[0] : String.format("%010d", (long) r * 100000000L + i);
+					bookingOut.println(bookRef + "," + b[1] + "," + flightNum(b[2], r) + ","
+							+ (Long.parseLong(b[3].trim()) + pidOffset));
+				}
+			}
+		} finally {
+			passengerOut.close();
+			flightOut.close();
+			ratingOut.close();
+			bookingOut.close();
+		}
+	}//end replicate
+
+	private static String flightNum(String flightNum, int replica) {
+		String trimmed = flightNum.trim();
+		return replica == 0 ? trimmed : trimmed + REPLICA_CHARS.charAt(replica);
+	}
+
+	private static String join(String[] fields, int from) {
+		StringBuilder sb = new StringBuilder();
+		for (int i = from; i < fields.length; ++i) {
+			sb.append(i == from ? "" : ",").append(fields[i]);
+		}
+		return sb.toString();
+	}
+
+	private static long maxKey(List<String[]> rows) {
+		long max = -1;
+		for (String[] row : rows) {
+			max = Math.max(max, Long.parseLong(row[0].trim()));
+		}
+		return max;
+	}
+
+	private static PrintWriter writer(File file) throws IOException {
+		return new PrintWriter(new BufferedWriter(new FileWriter(file)));
+	}
+
+	/**
+	 * Method to write results as a JMH JSON result file.
+	 *
+	 * @param results the results of runAll()
+	 * @param file the file to write
+	 * @throws java.io.IOException when the file could not be written
+	 */
+	public static void write(List<Map<String, Object>> results, File file) throws IOException {
+		Files.write(file.toPath(), Json.toJson(results).getBytes(StandardCharsets.UTF_8));
+	}
+
+	/**
+	 * Method to compare two result files benchmark by benchmark.  A change is
+	 * flagged when the confidence intervals of the two scores do not
+	 * overlap and the score moved by more than threshold percent.
+	 *
+	 * @param baseline the results of the earlier version
+	 * @param current the results of the version under test
+	 * @param threshold the smallest change in percent worth flagging
+	 * @return the number of regressions
+	 * @throws java.io.IOException when a file could not be read
+	 */
+	public static int compare(File baseline, File current, double threshold) throws IOException {
+		Map<String, Map<String, Object>> before = byKey(baseline);
+		Map<String, Map<String, Object>> after = byKey(current);
+		int regressions = 0;
+		System.out.println(String.format("%-48s %12s %12s %9s", "benchmark (scale)", "before", "after", "change"));
+		for (Map.Entry<String, Map<String, Object>> entry : after.entrySet()) {
+			Map<String, Object> old = before.get(entry.getKey());
+			double now = score(entry.getValue(), "score");
+			if (old == null) {
+				System.out.println(String.format("%-48s %12s %12.3f %9s", entry.getKey(), "-", now, "new"));
+				continue;
+			}
+			double was = score(old, "score");
+			double change = (now - was) / was * 100;
+			boolean significant = Math.abs(change) > threshold
+					&& Math.abs(now - was) > score(old, "scoreError") + score(entry.getValue(), "scoreError");
+			String flag = !significant ? "" : change > 0 ? "  REGRESSION" : "  improvement";
+			if (significant && change > 0) {
+				++regressions;
+			}
+			System.out.println(String.format("%-48s %12.3f %12.3f %+8.1f%%%s", entry.getKey(), was, now, change, flag));
+		}
+		return regressions;
+	}//end compare
+
+	@SuppressWarnings("unchecked")
+	private static Map<String, Map<String, Object>> byKey(File file) throws IOException {
+		Object results = Json.parse(new String(Files.readAllBytes(file.toPath()), StandardCharsets.UTF_8));
+		Map<String, Map<String, Object>> byKey = new LinkedHashMap<String, Map<String, Object>>();
+		for (Object r : (List<Object>) results) {
+			Map<String, Object> result = (Map<String, Object>) r;
+			Map<String, Object> params = (Map<String, Object>) result.get("params");
+			byKey.put(result.get("benchmark") + " (" + (params == null ? "" : params.get("scale")) + ")",
+					(Map<String, Object>) result.get("primaryMetric"));
+		}
+		return byKey;
+	}
+
+	private static double score(Map<String, Object> metric, String name) {
+		Object value = metric.get(name);
+		return value instanceof Number ? ((Number) value).doubleValue() : 0;
+	}
+}//end Benchmarks
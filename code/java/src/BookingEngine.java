@@ -0,0 +1,462 @@
+import java.math.BigInteger;
+import java.sql.SQLException;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ThreadLocalRandom;
+
+/**
+ * This class books seats in two steps so that concurrent sessions cannot
+ * oversell a flight.  hold() reserves one seat on a (flightNum, departure)
+ * for a limited time, and confirm() turns the hold into a Booking or
+ * release() gives the seat back.  bookGroup() books a whole manifest of
+ * passengers on one flight and date at once, or none of them.  book()
+ * takes the seat and inserts the Booking in a single statement, for
+ * callers that do not need a hold in between.
+ *
+ * Every step locks the SeatInventory row of the flight and date
+ * (SELECT ... FOR UPDATE), so the capacity check and the counter update
+ * happen atomically.  Bookings of different flights do not block each
+ * other.  A step that fails with a serialization failure or deadlock is
+ * retried a bounded number of times with a short randomized backoff.
+ */
+public class BookingEngine {
+	//SQLSTATEs worth retrying: serialization_failure, deadlock_detected, lock_not_available
+	private static final String SERIALIZATION_FAILURE = "40001";
+	private static final String DEADLOCK_DETECTED = "40P01";
+	private static final String LOCK_NOT_AVAILABLE = "55P03";
+
+	private static final String LOCK_INVENTORY =
+			"SELECT F.seats, S.booked, S.held FROM SeatInventory S JOIN Flight F ON F.flightNum = S.flightNum"
+			+ " WHERE S.flightNum = ? AND S.departure = CAST(? AS DATE) FOR UPDATE OF S";
+	private static final String CREATE_INVENTORY =
+			"INSERT INTO SeatInventory(flightNum, departure, booked, held) VALUES (?, CAST(? AS DATE), 0, 0)"
+			+ " ON CONFLICT (flightNum, departure) DO NOTHING";
+	private static final String EXPIRE_FLIGHT_HOLDS =
+			"DELETE FROM SeatHold WHERE flightNum = ? AND departure = CAST(? AS DATE) AND expires <= now()";
+	private static final String INSERT_HOLD =
+			"INSERT INTO SeatHold(flightNum, departure, pID, expires)"
+			+ " VALUES (?, CAST(? AS DATE), ?, now() + ? * INTERVAL '1 millisecond') RETURNING holdId";
+	private static final String ADJUST_INVENTORY =
+			"UPDATE SeatInventory SET booked = booked + ?, held = held + ?"
+			+ " WHERE flightNum = ? AND departure = CAST(? AS DATE)";
+	private static final String FIND_HOLD =
+			"SELECT flightNum, departure, pID FROM SeatHold WHERE holdId = ?";
+	private static final String DELETE_HOLD =
+			"DELETE FROM SeatHold WHERE holdId = ? RETURNING CASE WHEN expires > now() THEN 1 ELSE 0 END";
+	private static final String INSERT_BOOKING =
+			"INSERT INTO Booking(bookRef, departure, flightNum, pID) VALUES (?, CAST(? AS DATE), ?, ?)";
+	private static final String FIND_PASSENGERS =
+			"SELECT passNum, pID FROM Passenger WHERE passNum = ANY(CAST(? AS CHAR(10)[]))";
+	//the passenger, flight, capacity and duplicate checks, the seat and the Booking in one statement:
+	//the upsert takes the seat only while the locked counter is below capacity, and the Booking
+	//is inserted only when it did; the last column names the check that failed
+	private static final String BOOK_SEAT =
+			"WITH passenger AS (SELECT pID FROM Passenger WHERE passNum = ?),"
+			+ " flight AS (SELECT flightNum, seats FROM Flight WHERE flightNum = ?),"
+			+ " booked AS (SELECT 1 FROM Booking B JOIN passenger P ON B.pID = P.pID"
+			+ " WHERE B.flightNum = ? AND B.departure = CAST(? AS DATE)),"
+			+ " seat AS (INSERT INTO SeatInventory AS S (flightNum, departure, booked, held)"
+			+ " SELECT F.flightNum, CAST(? AS DATE), 1, 0 FROM flight F"
+			+ " WHERE F.seats > 0 AND EXISTS (SELECT 1 FROM passenger) AND NOT EXISTS (SELECT 1 FROM booked)"
+			+ " ON CONFLICT (flightNum, departure) DO UPDATE SET booked = S.booked + 1"
+			+ " WHERE S.booked + S.held < (SELECT seats FROM flight)"
+			+ " RETURNING S.flightNum),"
+			+ " booking AS (INSERT INTO Booking(bookRef, departure, flightNum, pID)"
+			+ " SELECT ?, CAST(? AS DATE), S.flightNum, P.pID FROM seat S, passenger P RETURNING bookRef)"
+			+ " SELECT (SELECT bookRef FROM booking),"
+			+ " CASE WHEN NOT EXISTS (SELECT 1 FROM passenger) THEN '" + Outcome.UNKNOWN_PASSPORT + "'"
+			+ " WHEN NOT EXISTS (SELECT 1 FROM flight) THEN '" + Outcome.UNKNOWN_FLIGHT + "'"
+			+ " WHEN EXISTS (SELECT 1 FROM booked) THEN '" + Outcome.ALREADY_BOOKED + "'"
+			+ " WHEN NOT EXISTS (SELECT 1 FROM booking) THEN '" + Outcome.FULL + "' END";
+	//SQLSTATE unique_violation, raised when the same passenger is booked concurrently
+	private static final String UNIQUE_VIOLATION = "23505";
+	private static final String EXPIRE_ALL_HOLDS =
+			"WITH expired AS (DELETE FROM SeatHold WHERE expires <= now() RETURNING flightNum, departure)"
+			+ " UPDATE SeatInventory S SET held = S.held - E.n"
+			+ " FROM (SELECT flightNum, departure, COUNT(*) AS n FROM expired GROUP BY flightNum, departure) E"
+			+ " WHERE S.flightNum = E.flightNum AND S.departure = E.departure";
+
+	private static final String REF_CHARS = "ABCDEFGHIJKLMNOPQRSTUVWXYZ1234567890";
+	//36^10 references; the multiplier is coprime with 36, which makes id -> reference a bijection
+	private static final BigInteger REF_SPACE = BigInteger.valueOf(36).pow(10);
+	private static final BigInteger REF_MULTIPLIER = BigInteger.valueOf(2259630184031291L);
+	private static final BigInteger REF_OFFSET = BigInteger.valueOf(1181783497276652981L).mod(REF_SPACE);
+
+	private final AirBooking _esql;
+	private final long _holdTtlMillis;
+	private final int _maxRetries;
+
+	/**
+	 * The result of book(): a booking reference, or why there is none.
+	 */
+	public static class Outcome {
+		public static final String UNKNOWN_PASSPORT = "unknown passport";
+		public static final String UNKNOWN_FLIGHT = "unknown flight";
+		public static final String ALREADY_BOOKED = "already booked on this flight and date";
+		public static final String FULL = "no seats left";
+
+		//null when the booking failed
+		public final String bookRef;
+		//one of the constants above, null when the booking succeeded
+		public final String failure;
+
+		Outcome(String bookRef, String failure) {
+			this.bookRef = bookRef;
+			this.failure = failure;
+		}
+
+		public String toString() {
+			return this.bookRef != null ? this.bookRef : this.failure;
+		}
+	}
+
+	/**
+	 * One step of the engine, run inside a transaction.
+	 */
+	private interface Step<T> {
+		T run() throws SQLException;
+	}
+
+	/**
+	 * @param esql the database session to book through
+	 * @param holdTtlMillis how long a hold keeps its seat before it expires
+	 * @param maxRetries how many times a step is retried after a serialization failure or deadlock
+	 */
+	public BookingEngine(AirBooking esql, long holdTtlMillis, int maxRetries) {
+		this._esql = esql;
+		this._holdTtlMillis = holdTtlMillis;
+		this._maxRetries = maxRetries;
+	}
+
+	/**
+	 * Method to reserve one seat for a passenger on a flight and departure
+	 * date.  Expired holds of that flight and date are reclaimed first.
+	 *
+	 * @param pID the passenger the seat is held for
+	 * @param flightNum the flight number
+	 * @param departure the departure date (mm/dd/yyyy)
+	 * @return the id of the new hold, or -1 when the flight is full on that date
+	 * @throws java.sql.SQLException when the flight does not exist or the hold failed
+	 */
+	public int hold(final int pID, final String flightNum, final String departure) throws SQLException {
+		return inTransaction(new Step<Integer>() {
+			public Integer run() throws SQLException {
+				QueryResult inventory = _esql.executePreparedQueryAndReturnColumns(LOCK_INVENTORY, flightNum, departure);
+				if (inventory.size() == 0) {
+					//first seat sold on this date, the foreign key rejects unknown flights
+					_esql.executePreparedUpdate(CREATE_INVENTORY, flightNum, departure);
+					inventory = _esql.executePreparedQueryAndReturnColumns(LOCK_INVENTORY, flightNum, departure);
+				}
+				int seats = inventory.getInt(0, 0);
+				int booked = inventory.getInt(0, 1);
+				int held = inventory.getInt(0, 2);
+
+				int expired = _esql.executePreparedUpdate(EXPIRE_FLIGHT_HOLDS, flightNum, departure);
+				held -= expired;
+				if (seats - booked - held <= 0) {
+					if (expired > 0) {
+						_esql.executePreparedUpdate(ADJUST_INVENTORY, 0, -expired, flightNum, departure);
+					}
+					return -1;
+				}
+				QueryResult hold = _esql.executePreparedQueryAndReturnColumns(INSERT_HOLD,
+						flightNum, departure, pID, (double) _holdTtlMillis);
+				_esql.executePreparedUpdate(ADJUST_INVENTORY, 0, 1 - expired, flightNum, departure);
+				return hold.getInt(0, 0);
+			}
+		});
+	}//end hold
+
+	/**
+	 * Method to turn a hold into a booking.  The Booking row is inserted and
+	 * the seat moves from held to booked in the same transaction.
+	 *
+	 * @param holdId the id returned by hold()
+	 * @return the booking reference, or null when the hold expired or no longer exists
+	 * @throws java.sql.SQLException when the booking failed
+	 */
+	public String confirm(final int holdId) throws SQLException {
+		return inTransaction(new Step<String>() {
+			public String run() throws SQLException {
+				QueryResult hold = _esql.executePreparedQueryAndReturnColumns(FIND_HOLD, holdId);
+				if (hold.size() == 0) {
+					return null;
+				}
+				String flightNum = hold.getString(0, 0);
+				String departure = hold.getString(0, 1);
+				int pID = hold.getInt(0, 2);
+
+				//lock the counters before touching the hold, in the same order as hold()
+				_esql.executePreparedQueryAndReturnColumns(LOCK_INVENTORY, flightNum, departure);
+				QueryResult deleted = _esql.executePreparedQueryAndReturnColumns(DELETE_HOLD, holdId);
+				if (deleted.size() == 0) {
+					//released or reclaimed by another session meanwhile
+					return null;
+				}
+				if (deleted.getInt(0, 0) == 0) {
+					//expired, the seat goes back to the flight
+					_esql.executePreparedUpdate(ADJUST_INVENTORY, 0, -1, flightNum, departure);
+					return null;
+				}
+				String bookRef = newBookingReference();
+				_esql.executePreparedUpdate(INSERT_BOOKING, bookRef, departure, flightNum, pID);
+				_esql.executePreparedUpdate(ADJUST_INVENTORY, 1, -1, flightNum, departure);
+				return bookRef;
+			}
+		});
+	}//end confirm
+
+	/**
+	 * Method to book one seat in a single statement, which costs one round
+	 * trip: the passport is resolved, the capacity checked against the
+	 * SeatInventory counter, the counter incremented and the Booking row
+	 * inserted by the database at once, atomically.  The booking reference
+	 * comes from the allocator, which rarely needs the database.
+	 *
+	 * Holds that expired are only reclaimed when the flight looks full, in
+	 * which case the statement is tried once more.
+	 *
+	 * @param passNum the passport number of the passenger
+	 * @param flightNum the flight number
+	 * @param departure the departure date (mm/dd/yyyy)
+	 * @return the booking reference, or the reason there is none
+	 * @throws java.sql.SQLException when the statement failed, e.g. the date is invalid
+	 */
+	public Outcome book(String passNum, String flightNum, String departure) throws SQLException {
+		String bookRef = newBookingReference();
+		for (int attempt = 0; ; attempt++) {
+			QueryResult result;
+			try {
+				result = this._esql.executePreparedQueryAndReturnColumns(BOOK_SEAT, passNum, flightNum,
+						flightNum, departure, departure, bookRef, departure);
+			} catch (SQLException e) {
+				if (UNIQUE_VIOLATION.equals(e.getSQLState()) && !this._esql.inTransaction()) {
+					//the same passenger was booked by another session after our duplicate check
+					return new Outcome(null, Outcome.ALREADY_BOOKED);
+				}
+				if (attempt >= this._maxRetries || !isRetryable(e) || this._esql.inTransaction()) {
+					throw e;
+				}
+				backoff(attempt);
+				continue;
+			}
+			String failure = result.getString(0, 1);
+			if (failure == null) {
+				return new Outcome(result.getString(0, 0), null);
+			}
+			if (!failure.equals(Outcome.FULL) || attempt > 0 || reclaimExpiredHolds(flightNum, departure) == 0) {
+				return new Outcome(null, failure);
+			}
+		}
+	}//end book
+
+	/**
+	 * Returns the seats of the expired holds of one flight and date to it.
+	 */
+	private int reclaimExpiredHolds(final String flightNum, final String departure) throws SQLException {
+		return inTransaction(new Step<Integer>() {
+			public Integer run() throws SQLException {
+				_esql.executePreparedQueryAndReturnColumns(LOCK_INVENTORY, flightNum, departure);
+				int expired = _esql.executePreparedUpdate(EXPIRE_FLIGHT_HOLDS, flightNum, departure);
+				if (expired > 0) {
+					_esql.executePreparedUpdate(ADJUST_INVENTORY, 0, -expired, flightNum, departure);
+				}
+				return expired;
+			}
+		});
+	}
+
+	/**
+	 * Method to book a group of passengers on the same flight and date in
+	 * one transaction: either every passenger gets a seat or none does.
+	 * The passports are resolved in one query, capacity is checked once for
+	 * the whole group, the booking references are reserved in bulk and the
+	 * Booking rows are inserted as one batch.
+	 *
+	 * @param passNums the passport numbers of the group, each at most once
+	 * @param flightNum the flight number
+	 * @param departure the departure date (mm/dd/yyyy)
+	 * @return the booking references, in the order of passNums, or null when fewer seats are left than passengers
+	 * @throws java.lang.IllegalArgumentException when a passport is unknown or repeated
+	 * @throws java.sql.SQLException when the booking failed, e.g. a passenger already has this flight on that date
+	 */
+	public List<String> bookGroup(final List<String> passNums, final String flightNum, final String departure)
+			throws SQLException {
+		final Set<String> distinct = new LinkedHashSet<String>();
+		for (String passNum : passNums) {
+			if (!distinct.add(passNum.trim())) {
+				throw new IllegalArgumentException("passport listed twice: " + passNum);
+			}
+		}
+		if (distinct.isEmpty()) {
+			throw new IllegalArgumentException("no passports to book");
+		}
+		return inTransaction(new Step<List<String>>() {
+			public List<String> run() throws SQLException {
+				QueryResult found = _esql.executePreparedQueryAndReturnColumns(FIND_PASSENGERS,
+						(Object) distinct.toArray(new String[0]));
+				Map<String, Integer> pIDs = new HashMap<String, Integer>();
+				for (int i = 0; i < found.size(); ++i) {
+					pIDs.put(found.getString(i, 0), found.getInt(i, 1));
+				}
+				if (pIDs.size() < distinct.size()) {
+					List<String> unknown = new ArrayList<String>();
+					for (String passNum : distinct) {
+						if (!pIDs.containsKey(passNum)) {
+							unknown.add(passNum);
+						}
+					}
+					throw new IllegalArgumentException("invalid passport(s): " + String.join(", ", unknown));
+				}
+				int group = distinct.size();
+
+				QueryResult inventory = _esql.executePreparedQueryAndReturnColumns(LOCK_INVENTORY, flightNum, departure);
+				if (inventory.size() == 0) {
+					_esql.executePreparedUpdate(CREATE_INVENTORY, flightNum, departure);
+					inventory = _esql.executePreparedQueryAndReturnColumns(LOCK_INVENTORY, flightNum, departure);
+				}
+				int seats = inventory.getInt(0, 0);
+				int booked = inventory.getInt(0, 1);
+				int held = inventory.getInt(0, 2);
+				int expired = _esql.executePreparedUpdate(EXPIRE_FLIGHT_HOLDS, flightNum, departure);
+				held -= expired;
+				if (seats - booked - held < group) {
+					if (expired > 0) {
+						_esql.executePreparedUpdate(ADJUST_INVENTORY, 0, -expired, flightNum, departure);
+					}
+					return null;
+				}
+
+				long[] ids = _esql.getBookingIds().next(group);
+				List<String> bookRefs = new ArrayList<String>(group);
+				List<Object[]> rows = new ArrayList<Object[]>(group);
+				int i = 0;
+				for (String passNum : distinct) {
+					String bookRef = toBookingReference(ids[i++]);
+					bookRefs.add(bookRef);
+					rows.add(new Object[] { bookRef, departure, flightNum, pIDs.get(passNum) });
+				}
+				_esql.executePreparedBatch(INSERT_BOOKING, rows);
+				_esql.executePreparedUpdate(ADJUST_INVENTORY, group, -expired, flightNum, departure);
+				return bookRefs;
+			}
+		});
+	}//end bookGroup
+
+	/**
+	 * Method to give the seat of a hold back before it expires.
+	 *
+	 * @param holdId the id returned by hold()
+	 * @return true when the hold existed and was released
+	 * @throws java.sql.SQLException when the release failed
+	 */
+	public boolean release(final int holdId) throws SQLException {
+		return inTransaction(new Step<Boolean>() {
+			public Boolean run() throws SQLException {
+				QueryResult hold = _esql.executePreparedQueryAndReturnColumns(FIND_HOLD, holdId);
+				if (hold.size() == 0) {
+					return false;
+				}
+				String flightNum = hold.getString(0, 0);
+				String departure = hold.getString(0, 1);
+				_esql.executePreparedQueryAndReturnColumns(LOCK_INVENTORY, flightNum, departure);
+				QueryResult deleted = _esql.executePreparedQueryAndReturnColumns(DELETE_HOLD, holdId);
+				if (deleted.size() == 0) {
+					return false;
+				}
+				_esql.executePreparedUpdate(ADJUST_INVENTORY, 0, -1, flightNum, departure);
+				return true;
+			}
+		});
+	}//end release
+
+	/**
+	 * Method to reclaim the seats of every expired hold.  hold() already
+	 * reclaims expired holds of the flight it books, so this only keeps the
+	 * counters of flights nobody is booking right now accurate.
+	 *
+	 * @return the number of (flightNum, departure) counters adjusted
+	 * @throws java.sql.SQLException when the sweep failed
+	 */
+	public int expireHolds() throws SQLException {
+		return inTransaction(new Step<Integer>() {
+			public Integer run() throws SQLException {
+				return _esql.executePreparedUpdate(EXPIRE_ALL_HOLDS);
+			}
+		});
+	}
+
+	/**
+	 * Method to generate a new booking reference.  References come from the
+	 * booking id allocator, so they are unique without asking the database
+	 * whether a reference is taken.
+	 *
+	 * @return a 10 character booking reference
+	 * @throws java.sql.SQLException when a new block of ids could not be reserved
+	 */
+	public String newBookingReference() throws SQLException {
+		return toBookingReference(this._esql.getBookingIds().next());
+	}
+
+	/**
+	 * Method to turn a booking id into a 10 character reference.  The id is
+	 * scrambled with a bijection on [0, 36^10), so consecutive ids give
+	 * unrelated looking references and distinct ids never share one.
+	 *
+	 * @param id a booking id, at least 0
+	 * @return the reference of id
+	 */
+	public static String toBookingReference(long id) {
+		long code = BigInteger.valueOf(id).multiply(REF_MULTIPLIER).add(REF_OFFSET).mod(REF_SPACE).longValue();
+		char[] ref = new char[10];
+		for (int i = ref.length - 1; i >= 0; --i) {
+			ref[i] = REF_CHARS.charAt((int) (code % REF_CHARS.length()));
+			code /= REF_CHARS.length();
+		}
+		return new String(ref);
+	}
+
+	/**
+	 * Runs step in its own transaction, retrying it when the database
+	 * aborted it because of a serialization failure or deadlock.
+	 */
+	private <T> T inTransaction(Step<T> step) throws SQLException {
+		for (int attempt = 0; ; attempt++) {
+			this._esql.beginTransaction();
+			try {
+				T result = step.run();
+				this._esql.commitTransaction();
+				return result;
+			} catch (SQLException e) {
+				this._esql.rollbackTransaction();
+				if (attempt >= this._maxRetries || !isRetryable(e)) {
+					throw e;
+				}
+				backoff(attempt);
+			} catch (RuntimeException e) {
+				this._esql.rollbackTransaction();
+				throw e;
+			}
+		}
+	}
+
+	private static boolean isRetryable(SQLException e) {
+		String state = e.getSQLState();
+		return SERIALIZATION_FAILURE.equals(state) || DEADLOCK_DETECTED.equals(state)
+				|| LOCK_NOT_AVAILABLE.equals(state);
+	}
+
+	private static void backoff(int attempt) throws SQLException {
+		long maxMillis = Math.min(50, 1L << Math.min(attempt, 5));
+		try {
+			Thread.sleep(ThreadLocalRandom.current().nextLong(maxMillis + 1));
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+			throw new SQLException("Interrupted while retrying a booking", SERIALIZATION_FAILURE);
+		}
+	}
+}//end BookingEngine
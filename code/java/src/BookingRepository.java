@@ -0,0 +1,212 @@
+import java.sql.SQLException;
+
+/**
+ * This interface is the booking domain behind the nine menu operations,
+ * independent of where the data lives.  JdbcBookingRepository runs them
+ * against PostgreSQL through AirBooking; EmbeddedBookingRepository keeps
+ * the data in memory in this process, with a log on local disk.
+ *
+ * Both backends report the same failures the same way:
+ * IllegalArgumentException for invalid input, SQLException with the
+ * PostgreSQL SQLSTATE for constraint violations (23505 for a duplicate
+ * key, 23503 for a reference to a missing row, 23514 for a failed check,
+ * 22001 for a value that is too long, 22007 or 22008 for an invalid
+ * date).  Text values are returned without CHAR padding, dates as
+ * yyyy-mm-dd.
+ * RepositoryConformance checks that a backend behaves this way.
+ */
+public interface BookingRepository {
+	/**
+	 * Callback that receives the rows of a streamed listing one at a time.
+	 * The values are text without CHAR padding, null for NULL; the arrays
+	 * must not be kept after the call returns.
+	 */
+	interface RowCallback {
+		/**
+		 * @param columns the column names, the same for every row
+		 * @param values the values of the row
+		 * @throws java.sql.SQLException when handling the row failed; the listing is aborted
+		 */
+		void row(String[] columns, String[] values) throws SQLException;
+	}
+
+	/**
+	 * Method to add an airline.  Not a menu operation; used to set up data.
+	 *
+	 * @param airId the airline id
+	 * @param name the airline name
+	 * @param founded the year the airline was founded, 1900 or later
+	 * @param country the country of the airline
+	 * @param hub the hub city of the airline
+	 * @throws java.sql.SQLException when the airline exists or violates a constraint
+	 */
+	void addAirline(int airId, String name, int founded, String country, String hub) throws SQLException;
+
+	/**
+	 * Method to add a passenger with a new pID (option 1).
+	 *
+	 * @param passNum the passport number, 10 characters
+	 * @param fullName the full name
+	 * @param bdate the birth date (mm/dd/yyyy)
+	 * @param country the country
+	 * @return the pID of the new passenger
+	 * @throws java.sql.SQLException when the passport number is taken or the insert failed
+	 */
+	int addPassenger(String passNum, String fullName, String bdate, String country) throws SQLException;
+
+	/**
+	 * Method to book one seat on a flight and date (option 2).
+	 *
+	 * @param passNum the passport number of the passenger
+	 * @param flightNum the flight number
+	 * @param departure the departure date (mm/dd/yyyy)
+	 * @return the booking reference, or the reason there is none
+	 * @throws java.sql.SQLException when the booking failed, e.g. the date is invalid
+	 */
+	BookingEngine.Outcome bookFlight(String passNum, String flightNum, String departure) throws SQLException;
+
+	/**
+	 * Method to add the review of a passenger who booked a flight and has
+	 * not reviewed it yet (option 3).
+	 *
+	 * @param pID the passenger
+	 * @param flightNum the flight number
+	 * @param score the score, 0 to 5
+	 * @param comment the comment, may be null
+	 * @return the rID of the new rating
+	 * @throws java.sql.SQLException when the insert failed
+	 */
+	int reviewFlight(int pID, String flightNum, int score, String comment) throws SQLException;
+
+	/**
+	 * Method to insert a flight, or update every attribute of the flight
+	 * with the same number (option 4).
+	 *
+	 * @param airId the airline operating the flight
+	 * @param flightNum the flight number
+	 * @param origin the departure city
+	 * @param destination the arrival city
+	 * @param plane the plane model
+	 * @param seats the number of seats, 1 to 499
+	 * @param duration the flight duration in hours, 1 to 23
+	 * @return the flight as stored
+	 * @throws java.sql.SQLException when the flight violates a constraint or the write failed
+	 */
+	RouteGraph.Leg upsertFlight(int airId, String flightNum, String origin, String destination,
+			String plane, int seats, int duration) throws SQLException;
+
+	/**
+	 * Method to list the flights of a route (option 5).
+	 *
+	 * @param origin the departure city
+	 * @param destination the arrival city
+	 * @return airid, flightnum, origin, destination, plane, seats, duration of every flight, in no particular order
+	 * @throws java.sql.SQLException when the flights could not be read
+	 */
+	QueryResult listFlights(String origin, String destination) throws SQLException;
+
+	/**
+	 * Method to rank the destinations by number of flights (option 6).
+	 *
+	 * @param k the number of destinations wanted
+	 * @return destination, flights of up to k destinations, most flights first, then by name
+	 * @throws java.sql.SQLException when the flights could not be read
+	 */
+	QueryResult popularDestinations(int k) throws SQLException;
+
+	/**
+	 * Method to rank the rated flights by average score (option 7).
+	 *
+	 * @param k the number of flights wanted
+	 * @return name, flightnum, origin, destination, plane, avg of up to k flights, best average first, then most ratings
+	 * @throws java.sql.SQLException when the ratings could not be read
+	 */
+	QueryResult highestRated(int k) throws SQLException;
+
+	/**
+	 * Method to hand the rows of highestRated(k) to callback as they are
+	 * read, without holding the result in memory.
+	 *
+	 * @param k the number of flights wanted
+	 * @param callback receives every row
+	 * @return the number of rows
+	 * @throws java.sql.SQLException when the ratings could not be read or the callback failed
+	 */
+	int highestRated(int k, RowCallback callback) throws SQLException;
+
+	/**
+	 * Method to list the flights of a route by duration (option 8).
+	 *
+	 * @param origin the departure city
+	 * @param destination the arrival city
+	 * @param k the number of flights wanted
+	 * @return name, flightnum, origin, destination, duration, plane of up to k flights, shortest first
+	 * @throws java.sql.SQLException when the flights could not be read
+	 */
+	QueryResult flightsByDuration(String origin, String destination, int k) throws SQLException;
+
+	/**
+	 * Method to list the flights of a route with seats left on a date, the
+	 * choices option 2 offers before booking.
+	 *
+	 * @param origin the departure city
+	 * @param destination the arrival city
+	 * @param departure the departure date (mm/dd/yyyy)
+	 * @return flightnum, origin, destination, departure, availableseats of every such flight, in no particular order
+	 * @throws java.sql.SQLException when the flights could not be read or the date is invalid
+	 */
+	QueryResult availableFlights(String origin, String destination, String departure) throws SQLException;
+
+	/**
+	 * Method to list the flights with seats left on a date (option 9).
+	 *
+	 * @param departure the departure date (mm/dd/yyyy)
+	 * @return flightnum, origin, destination, departure, booked, seats, available, ordered by origin and destination
+	 * @throws java.sql.SQLException when the flights could not be read or the date is invalid
+	 */
+	QueryResult availableSeats(String departure) throws SQLException;
+
+	/**
+	 * Method to hand the rows of availableSeats(departure) to callback as
+	 * they are read, without holding the result in memory (option 9).
+	 *
+	 * @param departure the departure date (mm/dd/yyyy)
+	 * @param callback receives every row
+	 * @return the number of rows
+	 * @throws java.sql.SQLException when the flights could not be read, the date is invalid or the callback failed
+	 */
+	int availableSeats(String departure, RowCallback callback) throws SQLException;
+
+	/**
+	 * Method to look up a passenger by passport, so the menu can check the
+	 * passport as it is typed (options 1 and 2).
+	 *
+	 * @param passNum the passport number
+	 * @return the pID, -1 when no passenger has this passport
+	 * @throws java.sql.SQLException when the passenger could not be read
+	 */
+	int passengerId(String passNum) throws SQLException;
+
+	/**
+	 * Method to check that a passenger exists (option 3).
+	 *
+	 * @param pID the passenger
+	 * @return true when the passenger exists
+	 * @throws java.sql.SQLException when the passenger could not be read
+	 */
+	boolean passengerExists(int pID) throws SQLException;
+
+	/**
+	 * Method to check that a flight exists (option 3).
+	 *
+	 * @param flightNum the flight number
+	 * @return true when the flight exists
+	 * @throws java.sql.SQLException when the flight could not be read
+	 */
+	boolean flightExists(String flightNum) throws SQLException;
+
+	/**
+	 * Method to release the resources of the backend.
+	 */
+	void close();
+}//end BookingRepository
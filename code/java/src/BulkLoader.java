@@ -0,0 +1,259 @@
+import java.io.BufferedInputStream;
+import java.io.BufferedReader;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileNotFoundException;
+import java.io.FileReader;
+import java.io.IOException;
+import java.io.InputStream;
+import java.sql.Connection;
+import java.sql.SQLException;
+import java.sql.Statement;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+
+import org.postgresql.PGConnection;
+import org.postgresql.copy.CopyManager;
+
+/**
+ * This class loads the CSV files of code/data (or any directory holding
+ * files with the same names) by streaming them to the server with the
+ * driver's COPY FROM STDIN support.  Unlike the COPY ... FROM 'file' of
+ * create.sql, the files are read by the client, so they do not have to be
+ * copied into $PGDATA first, and they are never held in memory.
+ *
+ * Tables are loaded in foreign key order, with independent tables loaded
+ * in parallel: Airline and Passenger, then Flight, then Ratings and
+ * Booking.  Secondary indexes of the loaded tables are dropped before the
+ * load and rebuilt once afterwards.  Indexes of a partitioned table, such
+ * as Booking after V002, are left in place: their definition only covers
+ * the parent (CREATE INDEX ... ON ONLY), so recreating it would leave the
+ * partitions without the index.
+ */
+public class BulkLoader {
+	//table, column list and file name, in the column order of the CSV files
+	private static final String[] AIRLINE = { "Airline", "airId, name, founded, country, hub", "airline.csv" };
+	private static final String[] PASSENGER = { "Passenger", "pID, passNum, fullName, bdate, country", "passenger.csv" };
+	private static final String[] FLIGHT = { "Flight", "airId, flightNum, origin, destination, plane, seats, duration", "flights.csv" };
+	private static final String[] RATINGS = { "Ratings", "rID, pID, flightNum, score, comment", "ratings.csv" };
+	private static final String[] BOOKING = { "Booking", "bookRef, departure, flightNum, pID", "bookings.csv" };
+
+	private static final String SECONDARY_INDEXES =
+			"SELECT CAST(CAST(i.indexrelid AS REGCLASS) AS TEXT), pg_get_indexdef(i.indexrelid)"
+			+ " FROM pg_index i JOIN pg_class c ON c.oid = i.indrelid JOIN pg_class ci ON ci.oid = i.indexrelid"
+			+ " WHERE c.oid = CAST(? AS REGCLASS) AND ci.relkind = 'i' AND NOT EXISTS"
+			+ " (SELECT 1 FROM pg_constraint k WHERE k.conindid = i.indexrelid)";
+
+	private final AirBooking _esql;
+	private final File _directory;
+	private final int _bufferSize;
+
+	/**
+	 * @param esql the database session to load through
+	 * @param directory directory holding airline.csv, passenger.csv, flights.csv, ratings.csv and bookings.csv
+	 * @param bufferSize size in bytes of the chunks streamed to the server
+	 */
+	public BulkLoader(AirBooking esql, File directory, int bufferSize) {
+		this._esql = esql;
+		this._directory = directory;
+		this._bufferSize = bufferSize;
+	}
+
+	/**
+	 * Result of loading one file.
+	 */
+	static class TableLoad {
+		final String table;
+		final long rows;
+		final long nanos;
+
+		TableLoad(String table, long rows, long nanos) {
+			this.table = table;
+			this.rows = rows;
+			this.nanos = nanos;
+		}
+
+		double rowsPerSecond() {
+			return this.nanos == 0 ? 0 : this.rows * 1e9 / this.nanos;
+		}
+	}
+
+	/**
+	 * Method to load every CSV file into its table and print rows per
+	 * second for each table and for the whole load.  Derived data
+	 * (SeatInventory counters, RatingSummary totals and key sequences) is
+	 * brought up to date
+	 * afterwards.
+	 *
+	 * @return the per table results, in load order
+	 * @throws java.lang.Exception when a file could not be read or loaded
+	 */
+	public List<TableLoad> load() throws Exception {
+		String[][] tables = { AIRLINE, PASSENGER, FLIGHT, RATINGS, BOOKING };
+		for (String[] table : tables) {
+			File file = new File(this._directory, table[2]);
+			if (!file.isFile()) {
+				throw new FileNotFoundException(file.getPath());
+			}
+		}
+
+		long start = System.nanoTime();
+		List<TableLoad> loads = new ArrayList<TableLoad>();
+		List<String> indexes = new ArrayList<String>();
+		for (String[] table : tables) {
+			indexes.addAll(dropSecondaryIndexes(table[0]));
+		}
+
+		ExecutorService workers = Executors.newFixedThreadPool(2);
+		long indexStart;
+		Exception failure = null;
+		try {
+			//tables of one stage only reference tables of earlier stages
+			loads.addAll(loadInParallel(workers, AIRLINE, PASSENGER));
+			loads.addAll(loadInParallel(workers, FLIGHT));
+			loads.addAll(loadInParallel(workers, RATINGS, BOOKING));
+		} catch (Exception e) {
+			failure = e;
+			throw e;
+		} finally {
+			workers.shutdownNow();
+			//the indexes come back even when the load failed half way
+			indexStart = System.nanoTime();
+			SQLException rebuild = null;
+			for (String ddl : indexes) {
+				try {
+					this._esql.executeUpdate(ddl);
+				} catch (SQLException e) {
+					if (rebuild == null) {
+						rebuild = e;
+					} else {
+						rebuild.addSuppressed(e);
+					}
+				}
+			}
+			//a failed rebuild must not hide why the load failed
+			if (rebuild != null) {
+				if (failure == null) {
+					throw rebuild;
+				}
+				failure.addSuppressed(rebuild);
+			}
+		}
+		long indexNanos = System.nanoTime() - indexStart;
+
+		this._esql.rebuildSeatInventory();
+		this._esql.rebuildRatingSummary();
+		this._esql.setupIdSequences();
+		for (String[] table : tables) {
+			this._esql.executeUpdate("ANALYZE " + table[0]);
+		}
+
+		long totalRows = 0;
+		for (TableLoad load : loads) {
+			totalRows += load.rows;
+			System.out.println(String.format("%-10s %10d rows %8.2f s %12.0f rows/s",
+					load.table, load.rows, load.nanos / 1e9, load.rowsPerSecond()));
+		}
+		long nanos = System.nanoTime() - start;
+		System.out.println(String.format("%d secondary index(es) rebuilt in %.2f s", indexes.size(), indexNanos / 1e9));
+		System.out.println(String.format("%-10s %10d rows %8.2f s %12.0f rows/s",
+				"total", totalRows, nanos / 1e9, totalRows * 1e9 / nanos));
+		return loads;
+	}//end load
+
+	/**
+	 * Loads the given tables concurrently and waits for all of them.
+	 */
+	private List<TableLoad> loadInParallel(ExecutorService workers, final String[]... tables) throws Exception {
+		List<Future<TableLoad>> futures = new ArrayList<Future<TableLoad>>();
+		for (final String[] table : tables) {
+			futures.add(workers.submit(() -> copy(table[0], table[1], new File(this._directory, table[2]))));
+		}
+		List<TableLoad> loads = new ArrayList<TableLoad>();
+		for (Future<TableLoad> future : futures) {
+			try {
+				loads.add(future.get());
+			} catch (ExecutionException e) {
+				Throwable cause = e.getCause();
+				throw cause instanceof Exception ? (Exception) cause : e;
+			}
+		}
+		return loads;
+	}
+
+	/**
+	 * Method to stream one CSV file into a table with COPY FROM STDIN.  The
+	 * file is read in bufferSize chunks, so its size is not limited by the
+	 * heap.
+	 *
+	 * @param table the target table
+	 * @param columns the column list, in the order of the CSV fields
+	 * @param file the CSV file
+	 * @return the number of rows loaded and the time it took
+	 * @throws java.lang.Exception when reading the file or the COPY failed
+	 */
+	public TableLoad copy(String table, String columns, File file) throws Exception {
+		Connection conn = this._esql.acquire();
+		try {
+			//the files use mm/dd/yyyy dates
+			Statement stmt = conn.createStatement();
+			stmt.executeUpdate("SET DateStyle = 'ISO, MDY'");
+			CopyManager copier = conn.unwrap(PGConnection.class).getCopyAPI();
+			long start = System.nanoTime();
+			InputStream data = new BufferedInputStream(new FileInputStream(file), this._bufferSize);
+			try {
+				long rows = copier.copyIn("COPY " + table + " (" + columns + ") FROM STDIN WITH DELIMITER ','",
+						data, this._bufferSize);
+				return new TableLoad(table, rows, System.nanoTime() - start);
+			} finally {
+				data.close();
+				stmt.executeUpdate("RESET DateStyle");
+				stmt.close();
+			}
+		} finally {
+			this._esql.release(conn);
+		}
+	}//end copy
+
+	/**
+	 * Drops the indexes of table that do not back a constraint and returns
+	 * the statements that recreate them.
+	 */
+	private List<String> dropSecondaryIndexes(String table) throws SQLException {
+		List<String> ddl = new ArrayList<String>();
+		QueryResult indexes = this._esql.executePreparedQueryAndReturnColumns(SECONDARY_INDEXES, table);
+		for (int i = 0; i < indexes.size(); ++i) {
+			this._esql.executeUpdate("DROP INDEX " + indexes.getString(i, 0));
+			ddl.add(indexes.getString(i, 1));
+		}
+		return ddl;
+	}
+
+	/**
+	 * Method to read a whole CSV file of code/data into memory, e.g. to
+	 * sample or replicate it; the fields are split at every comma.
+	 *
+	 * @param file the file to read
+	 * @return the fields of every line that is not empty
+	 * @throws java.io.IOException when the file could not be read
+	 */
+	static List<String[]> readCsv(File file) throws IOException {
+		List<String[]> rows = new ArrayList<String[]>();
+		BufferedReader in = new BufferedReader(new FileReader(file));
+		try {
+			String line;
+			while ((line = in.readLine()) != null) {
+				if (!line.isEmpty()) {
+					rows.add(line.split(",", -1));
+				}
+			}
+		} finally {
+			in.close();
+		}
+		return rows;
+	}
+}//end BulkLoader
@@ -0,0 +1,269 @@
+import java.sql.SQLException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.TreeMap;
+
+/**
+ * This class indexes the distinct cities of one Flight column (origin or
+ * destination) for lookups by what the user typed.  Names are matched
+ * without regard to case, CHAR padding or repeated blanks.
+ *
+ * The cities are kept as a sorted array of normalized names, so a prefix
+ * is a binary search for a range of the array.  When the prefix matches
+ * fewer cities than asked for, the remaining suggestions are the cities
+ * within a small edit distance of the input (insertions, deletions,
+ * substitutions and swaps of adjacent letters), compared both with the
+ * whole name and with its first letters, so typos in a partly typed name
+ * are forgiven too.  Suggestions are ranked by distance, then by the
+ * number of flights.
+ *
+ * Lookups read an immutable snapshot without locking; inserting or moving
+ * a flight builds a new one.
+ */
+public class CityIndex {
+	static final String COUNT_ORIGINS = "SELECT origin, COUNT(*) FROM Flight GROUP BY origin";
+	static final String COUNT_DESTINATIONS = "SELECT destination, COUNT(*) FROM Flight GROUP BY destination";
+
+	/**
+	 * A suggested city.
+	 */
+	public static class Suggestion {
+		//the city as stored in Flight, without padding
+		public final String name;
+		public final int flights;
+		//edits between the input and the city, 0 when the input is a prefix of it
+		public final int distance;
+
+		Suggestion(String name, int flights, int distance) {
+			this.name = name;
+			this.flights = flights;
+			this.distance = distance;
+		}
+
+		public String toString() {
+			return this.name + " (" + this.flights + " flights)";
+		}
+	}
+
+	/**
+	 * The cities sorted by normalized name, with the name stored in Flight
+	 * and the number of flights of each.
+	 */
+	private static class Snapshot {
+		final String[] keys;
+		final String[] names;
+		final int[] flights;
+
+		Snapshot(String[] keys, String[] names, int[] flights) {
+			this.keys = keys;
+			this.names = names;
+			this.flights = flights;
+		}
+	}
+
+	//flights per city as stored in Flight; guarded by this
+	private final Map<String, Integer> _counts = new HashMap<String, Integer>();
+	private volatile Snapshot _snapshot = new Snapshot(new String[0], new String[0], new int[0]);
+
+	/**
+	 * Method to index the cities of a Flight column.
+	 *
+	 * @param esql the database session to read from
+	 * @param query COUNT_ORIGINS or COUNT_DESTINATIONS
+	 * @return the index
+	 * @throws java.sql.SQLException when the flights could not be read
+	 */
+	public static CityIndex load(AirBooking esql, String query) throws SQLException {
+		CityIndex index = new CityIndex();
+		QueryResult counts = esql.executePreparedQueryAndReturnColumns(query);
+		for (int i = 0; i < counts.size(); ++i) {
+			index._counts.put(counts.getString(i, 0).trim(), counts.getInt(i, 1));
+		}
+		index.rebuild();
+		return index;
+	}
+
+	/**
+	 * Method to normalize a city name for matching: lower case, without
+	 * leading, trailing or repeated blanks.
+	 *
+	 * @param name a city name
+	 * @return the normalized name
+	 */
+	public static String normalize(String name) {
+		return name.trim().replaceAll("\\s+", " ").toLowerCase(Locale.ROOT);
+	}
+
+	//cities that normalize alike are one key, named after the variant with the most flights
+	private void rebuild() {
+		TreeMap<String, String> names = new TreeMap<String, String>();
+		Map<String, Integer> totals = new HashMap<String, Integer>();
+		for (Map.Entry<String, Integer> city : this._counts.entrySet()) {
+			String key = normalize(city.getKey());
+			String best = names.get(key);
+			if (best == null || this._counts.get(best) < city.getValue()
+					|| (this._counts.get(best).equals(city.getValue()) && city.getKey().compareTo(best) < 0)) {
+				names.put(key, city.getKey());
+			}
+			Integer total = totals.get(key);
+			totals.put(key, (total == null ? 0 : total) + city.getValue());
+		}
+		String[] keys = names.keySet().toArray(new String[0]);
+		String[] display = new String[keys.length];
+		int[] flights = new int[keys.length];
+		for (int i = 0; i < keys.length; ++i) {
+			display[i] = names.get(keys[i]);
+			flights[i] = totals.get(keys[i]);
+		}
+		this._snapshot = new Snapshot(keys, display, flights);
+	}
+
+	/**
+	 * Method to account for a flight that was inserted, or whose city in
+	 * this column changed.
+	 *
+	 * @param from the previous city of the flight, null for a new flight
+	 * @param to the city of the flight now
+	 */
+	public synchronized void move(String from, String to) {
+		to = to.trim();
+		if (from != null && from.trim().equals(to)) {
+			return;
+		}
+		if (from != null) {
+			from = from.trim();
+			Integer n = this._counts.get(from);
+			if (n != null && n > 1) {
+				this._counts.put(from, n - 1);
+			}
+			else {
+				this._counts.remove(from);
+			}
+		}
+		Integer n = this._counts.get(to);
+		this._counts.put(to, n == null ? 1 : n + 1);
+		rebuild();
+	}//end move
+
+	/**
+	 * Method to find the city the user meant when the input matches one
+	 * exactly, apart from case and blanks.
+	 *
+	 * @param input what the user typed
+	 * @return the city as stored in Flight, null when no city matches
+	 */
+	public String resolve(String input) {
+		Snapshot s = this._snapshot;
+		int i = Arrays.binarySearch(s.keys, normalize(input));
+		return i < 0 ? null : s.names[i];
+	}
+
+	/**
+	 * Method to suggest the cities the user may have meant: the cities
+	 * that start with the input, the ones with the most flights first,
+	 * then the cities within the edit distance.
+	 *
+	 * @param input what the user typed, possibly a prefix
+	 * @param k the most suggestions wanted
+	 * @return up to k suggestions, best first
+	 */
+	public List<Suggestion> suggest(String input, int k) {
+		Snapshot s = this._snapshot;
+		String key = normalize(input);
+		int lo = lowerBound(s.keys, key);
+		int hi = lowerBound(s.keys, key + Character.MAX_VALUE);
+		List<Suggestion> suggestions = new ArrayList<Suggestion>();
+		for (int i = lo; i < hi; ++i) {
+			suggestions.add(new Suggestion(s.names[i], s.flights[i], 0));
+		}
+		if (suggestions.size() < k && key.length() > 0) {
+			int maxDistance = key.length() <= 4 ? 1 : 2;
+			for (int i = 0; i < s.keys.length; ++i) {
+				if (i == lo && hi > lo) {
+					//the prefix matches were added above
+					i = hi - 1;
+					continue;
+				}
+				int d = Math.min(distance(key, s.keys[i], maxDistance),
+						distance(key, s.keys[i].substring(0, Math.min(key.length(), s.keys[i].length())), maxDistance));
+				if (d <= maxDistance) {
+					suggestions.add(new Suggestion(s.names[i], s.flights[i], d));
+				}
+			}
+		}
+		Collections.sort(suggestions, (a, b) -> a.distance != b.distance ? Integer.compare(a.distance, b.distance)
+				: a.flights != b.flights ? Integer.compare(b.flights, a.flights) : a.name.compareTo(b.name));
+		return suggestions.size() > k ? new ArrayList<Suggestion>(suggestions.subList(0, k)) : suggestions;
+	}//end suggest
+
+	//first index whose key is not less than key
+	private static int lowerBound(String[] keys, String key) {
+		int lo = 0;
+		int hi = keys.length;
+		while (lo < hi) {
+			int mid = (lo + hi) >>> 1;
+			if (keys[mid].compareTo(key) < 0) {
+				lo = mid + 1;
+			}
+			else {
+				hi = mid;
+			}
+		}
+		return lo;
+	}
+
+	/**
+	 * Method to count the edits, counting a swap of adjacent letters as
+	 * one, that turn a into b (optimal string alignment distance).  Stops
+	 * early once the distance is known to exceed max.
+	 *
+	 * @param a a string
+	 * @param b another string
+	 * @param max the largest distance of interest
+	 * @return the distance, or max + 1 when it is larger than max
+	 */
+	static int distance(String a, String b, int max) {
+		if (Math.abs(a.length() - b.length()) > max) {
+			return max + 1;
+		}
+		int[] before = new int[b.length() + 1];
+		int[] previous = new int[b.length() + 1];
+		int[] current = new int[b.length() + 1];
+		for (int j = 0; j <= b.length(); ++j) {
+			previous[j] = j;
+		}
+		for (int i = 1; i <= a.length(); ++i) {
+			current[0] = i;
+			int best = i;
+			for (int j = 1; j <= b.length(); ++j) {
+				int cost = a.charAt(i - 1) == b.charAt(j - 1) ? 0 : 1;
+				int d = Math.min(Math.min(previous[j] + 1, current[j - 1] + 1), previous[j - 1] + cost);
+				if (i > 1 && j > 1 && a.charAt(i - 1) == b.charAt(j - 2) && a.charAt(i - 2) == b.charAt(j - 1)) {
+					d = Math.min(d, before[j - 2] + 1);
+				}
+				current[j] = d;
+				best = Math.min(best, d);
+			}
+			if (best > max) {
+				return max + 1;
+			}
+			int[] recycled = before;
+			before = previous;
+			previous = current;
+			current = recycled;
+		}
+		return Math.min(previous[b.length()], max + 1);
+	}//end distance
+
+	/**
+	 * @return number of distinct cities
+	 */
+	public int size() {
+		return this._snapshot.keys.length;
+	}
+}//end CityIndex
@@ -0,0 +1,230 @@
+import java.io.File;
+import java.io.IOException;
+import java.io.PrintStream;
+import java.nio.ByteBuffer;
+import java.nio.IntBuffer;
+import java.nio.LongBuffer;
+import java.sql.ResultSet;
+import java.sql.SQLException;
+import java.time.LocalDate;
+
+/**
+ * This class exports the tables to columnar files (see ColumnarWriter)
+ * for analytics jobs, one file per table, and scans them back.  Cities,
+ * planes, countries and the flight numbers of Ratings and Booking are
+ * dictionary encoded; booking references are fixed-width text and names
+ * and passports plain text.  CHAR padding is not exported.
+ */
+public class ColumnarExport {
+	private static final ColumnarWriter.Type INT = ColumnarWriter.Type.INT;
+	private static final ColumnarWriter.Type DATE = ColumnarWriter.Type.DATE;
+	private static final ColumnarWriter.Type DICT = ColumnarWriter.Type.DICT;
+	private static final ColumnarWriter.Type STRING = ColumnarWriter.Type.STRING;
+	private static final ColumnarWriter.Type FIXED = ColumnarWriter.Type.FIXED;
+
+	/**
+	 * One exported table: its file, columns and types.
+	 */
+	private static class Table {
+		final String file;
+		final String name;
+		final String[] columns;
+		final ColumnarWriter.Type[] types;
+		final int[] widths;
+
+		Table(String file, String name, String[] columns, ColumnarWriter.Type[] types) {
+			this(file, name, columns, types, new int[types.length]);
+		}
+
+		Table(String file, String name, String[] columns, ColumnarWriter.Type[] types, int[] widths) {
+			this.file = file;
+			this.name = name;
+			this.columns = columns;
+			this.types = types;
+			this.widths = widths;
+		}
+	}
+
+	private static final Table[] TABLES = {
+		new Table("airline.col", "Airline", new String[] { "airid", "name", "founded", "country", "hub" },
+				new ColumnarWriter.Type[] { INT, STRING, INT, DICT, DICT }),
+		new Table("flight.col", "Flight",
+				new String[] { "airid", "flightnum", "origin", "destination", "plane", "seats", "duration" },
+				new ColumnarWriter.Type[] { INT, STRING, DICT, DICT, DICT, INT, INT }),
+		new Table("passenger.col", "Passenger", new String[] { "pid", "passnum", "fullname", "bdate", "country" },
+				new ColumnarWriter.Type[] { INT, STRING, STRING, DATE, DICT }),
+		new Table("ratings.col", "Ratings", new String[] { "rid", "pid", "flightnum", "score", "comment" },
+				new ColumnarWriter.Type[] { INT, INT, DICT, INT, STRING }),
+		new Table("booking.col", "Booking", new String[] { "bookref", "departure", "flightnum", "pid" },
+				new ColumnarWriter.Type[] { FIXED, DATE, DICT, INT }, new int[] { 10, 0, 0, 0 }),
+	};
+
+	/**
+	 * Method to export every table to directory.  Each table is read in one
+	 * streamed query, so it is a consistent snapshot of that table.
+	 *
+	 * @param esql the database session
+	 * @param directory where the .col files are written
+	 * @param out where a line per table is printed
+	 * @throws java.sql.SQLException when a table could not be read
+	 * @throws java.io.IOException when a file could not be written
+	 */
+	public static void exportAll(AirBooking esql, File directory, PrintStream out) throws SQLException, IOException {
+		if (!directory.isDirectory() && !directory.mkdirs()) {
+			throw new IOException("cannot create " + directory);
+		}
+		for (Table table : TABLES) {
+			long start = System.nanoTime();
+			File file = new File(directory, table.file);
+			long bytes = export(esql, table, file);
+			out.println(String.format("%-14s %10d bytes in %.2f s", table.file, bytes, (System.nanoTime() - start) / 1e9));
+		}
+	}
+
+	private static long export(AirBooking esql, final Table table, final File file) throws SQLException, IOException {
+		final ColumnarWriter writer = new ColumnarWriter(file, table.columns, table.types, table.widths);
+		boolean ok = false;
+		try {
+			StringBuilder query = new StringBuilder("SELECT ");
+			for (int c = 0; c < table.columns.length; ++c) {
+				query.append(c > 0 ? ", " : "").append(table.columns[c]);
+			}
+			query.append(" FROM ").append(table.name);
+			final Object[] row = new Object[table.columns.length];
+			esql.streamQuery(query.toString(), new RowHandler() {
+				public void row(ResultSet rs) throws SQLException {
+					for (int c = 0; c < row.length; ++c) {
+						switch (table.types[c]) {
+							case INT:
+								int value = rs.getInt(c + 1);
+								row[c] = rs.wasNull() ? null : value;
+								break;
+							case DATE:
+								row[c] = rs.getDate(c + 1);
+								break;
+							default:
+								String text = rs.getString(c + 1);
+								row[c] = text == null ? null : QueryResult.trimTrailing(text);
+						}
+					}
+					try {
+						writer.add(row);
+					} catch (IOException e) {
+						throw new SQLException("cannot write " + file + ": " + e.getMessage(), "58030", e);
+					}
+				}
+			});
+			long bytes = writer.close();
+			ok = true;
+			return bytes;
+		} finally {
+			if (!ok) {
+				writer.discard();
+			}
+		}
+	}//end export
+
+	/**
+	 * Method to print the header of a columnar file and scan every column,
+	 * as a check of the file and a measure of the scan speed.
+	 *
+	 * @param file a file written by ColumnarWriter
+	 * @param out where the columns are printed
+	 * @throws java.io.IOException when the file could not be mapped
+	 */
+	public static void scan(File file, PrintStream out) throws IOException {
+		long start = System.nanoTime();
+		ColumnarReader reader = new ColumnarReader(file);
+		out.println(String.format("%s: %d row(s), %d column(s), opened in %.3f ms", file, reader.size(),
+				reader.columnCount(), (System.nanoTime() - start) / 1e6));
+		for (int c = 0; c < reader.columnCount(); ++c) {
+			start = System.nanoTime();
+			String summary;
+			long bytes;
+			switch (reader.getType(c)) {
+				case INT:
+				case DATE: {
+					long sum = 0;
+					long nulls = 0;
+					for (IntBuffer values : reader.ints(c)) {
+						while (values.hasRemaining()) {
+							int v = values.get();
+							if (v == Integer.MIN_VALUE) {
+								++nulls;
+							}
+							else {
+								sum += v;
+							}
+						}
+					}
+					bytes = 4 * reader.size();
+					summary = reader.getType(c) == DATE
+							? "min " + LocalDate.ofEpochDay(reader.getMin(c)) + " max " + LocalDate.ofEpochDay(reader.getMax(c))
+							: "min " + reader.getMin(c) + " max " + reader.getMax(c) + " sum " + sum;
+					summary += nulls > 0 ? " nulls " + nulls : "";
+					break;
+				}
+				case DICT: {
+					long[] counts = new long[reader.dictionary(c).length];
+					long nulls = 0;
+					for (IntBuffer codes : reader.ints(c)) {
+						while (codes.hasRemaining()) {
+							int code = codes.get();
+							if (code < 0) {
+								++nulls;
+							}
+							else {
+								++counts[code];
+							}
+						}
+					}
+					int top = 0;
+					for (int i = 1; i < counts.length; ++i) {
+						top = counts[i] > counts[top] ? i : top;
+					}
+					bytes = 4 * reader.size();
+					summary = counts.length + " distinct" + (counts.length > 0
+							? ", most frequent " + reader.dictionary(c)[top] + " (" + counts[top] + ")" : "")
+							+ (nulls > 0 ? " nulls " + nulls : "");
+					break;
+				}
+				case FIXED: {
+					int width = reader.getWidth(c);
+					long longest = 0;
+					for (ByteBuffer values : reader.values(c)) {
+						while (values.hasRemaining()) {
+							int at = values.position();
+							int length = width;
+							while (length > 0 && values.get(at + length - 1) == 0) {
+								--length;
+							}
+							longest = Math.max(longest, length);
+							values.position(at + width);
+						}
+					}
+					bytes = (long) width * reader.size();
+					summary = "width " + width + ", length " + reader.getMin(c) + " to " + reader.getMax(c) + " bytes"
+							+ (reader.size() > 0 && longest != reader.getMax(c) ? ", but the longest scanned is " + longest : "");
+					break;
+				}
+				default: {
+					long longest = 0;
+					long previous = 0;
+					for (LongBuffer offsets : reader.offsets(c)) {
+						while (offsets.hasRemaining()) {
+							long offset = offsets.get();
+							longest = Math.max(longest, offset - previous);
+							previous = offset;
+						}
+					}
+					bytes = 8 * (reader.size() + 1) + previous;
+					summary = "length " + reader.getMin(c) + " to " + reader.getMax(c) + " bytes"
+							+ (reader.size() > 0 && longest != reader.getMax(c) ? ", but the longest scanned is " + longest : "");
+				}
+			}
+			long nanos = Math.max(1, System.nanoTime() - start);
+			out.println(String.format("  %-12s %-6s %s, scanned at %.0f MB/s", reader.getColumnName(c), reader.getType(c),
+					summary, bytes * 1e3 / nanos));
+		}
+	}//end scan
+}//end ColumnarExport
@@ -0,0 +1,435 @@
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.IntBuffer;
+import java.nio.LongBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.time.LocalDate;
+import java.util.Arrays;
+
+/**
+ * This class reads a file written by ColumnarWriter.  Opening it reads the
+ * header and maps every column into memory; nothing else is read until it
+ * is used, so even a large file opens at once, and the views returned by
+ * values(), ints() and offsets() scan the page cache directly, without
+ * copying.  Only the dictionaries of DICT columns are decoded, once, on
+ * first use.
+ *
+ * A MappedByteBuffer cannot exceed 2 GB, so a column is mapped in chunks
+ * of at most 1 GB: its per-row values in chunks of a whole number of rows,
+ * and the value bytes of a STRING or DICT column separately.  Rows are
+ * numbered with longs and a column has no size limit; a view covers one
+ * chunk, so a scan walks the array of views.  The mappings stay valid
+ * after the file is closed or replaced and are released by the garbage
+ * collector.
+ */
+public class ColumnarReader {
+	static final int CHUNK = 1 << 30;
+
+	private final File _file;
+	private final long _rows;
+	private final String[] _names;
+	private final ColumnarWriter.Type[] _types;
+	private final int[] _dictionarySizes;
+	//bytes per row of the values, by column
+	private final int[] _widths;
+	private final long[] _min;
+	private final long[] _max;
+	//the per-row values, in chunks of _perChunk rows
+	private final ByteBuffer[][] _values;
+	private final int[] _perChunk;
+	//the value bytes of a STRING column, the dictionary of a DICT column, in chunks of CHUNK bytes
+	private final ByteBuffer[][] _heap;
+	//decoded dictionaries, by column
+	private final String[][] _dictionaries;
+
+	/**
+	 * Maps the columns of file.
+	 *
+	 * @param file a file written by ColumnarWriter
+	 * @throws java.io.IOException when the file could not be mapped or is not a columnar file
+	 */
+	public ColumnarReader(File file) throws IOException {
+		this._file = file;
+		RandomAccessFile in = new RandomAccessFile(file, "r");
+		try {
+			FileChannel channel = in.getChannel();
+			long size = channel.size();
+			if (size < ColumnarWriter.HEADER) {
+				throw new IOException(file + " is not a columnar file");
+			}
+			ByteBuffer header = channel.map(FileChannel.MapMode.READ_ONLY, 0, ColumnarWriter.HEADER)
+					.order(ByteOrder.LITTLE_ENDIAN);
+			if (header.getInt() != ColumnarWriter.MAGIC) {
+				throw new IOException(file + " is not a columnar file");
+			}
+			int version = header.getInt();
+			//version 1 is version 2 without FIXED columns
+			if (version < 1 || version > ColumnarWriter.VERSION) {
+				throw new IOException(file + " has version " + version + ", expected at most " + ColumnarWriter.VERSION);
+			}
+			this._rows = header.getLong();
+			int columns = header.getInt();
+			if (columns < 0 || ColumnarWriter.HEADER + (long) ColumnarWriter.COLUMN * columns > size) {
+				throw new IOException(file + " is truncated");
+			}
+			if (this._rows < 0) {
+				throw new IOException(file + " has " + this._rows + " rows");
+			}
+			this._names = new String[columns];
+			this._types = new ColumnarWriter.Type[columns];
+			this._dictionarySizes = new int[columns];
+			this._widths = new int[columns];
+			this._min = new long[columns];
+			this._max = new long[columns];
+			this._values = new ByteBuffer[columns][];
+			this._perChunk = new int[columns];
+			this._heap = new ByteBuffer[columns][];
+			this._dictionaries = new String[columns][];
+			ByteBuffer descriptors = channel.map(FileChannel.MapMode.READ_ONLY, ColumnarWriter.HEADER,
+					ColumnarWriter.COLUMN * columns).order(ByteOrder.LITTLE_ENDIAN);
+			for (int c = 0; c < columns; ++c) {
+				byte[] name = new byte[ColumnarWriter.NAME];
+				descriptors.get(name);
+				int length = 0;
+				while (length < name.length && name[length] != 0) {
+					++length;
+				}
+				this._names[c] = new String(name, 0, length, StandardCharsets.UTF_8);
+				int type = descriptors.getInt();
+				if (type < 0 || type >= ColumnarWriter.Type.values().length) {
+					throw new IOException(file + ": unknown type " + type + " of column " + this._names[c]);
+				}
+				this._types[c] = ColumnarWriter.Type.values()[type];
+				this._dictionarySizes[c] = descriptors.getInt();
+				this._min[c] = descriptors.getLong();
+				this._max[c] = descriptors.getLong();
+				long offset = descriptors.getLong();
+				long bytes = descriptors.getLong();
+				if (offset < 0 || bytes < 0 || offset + bytes > size) {
+					throw new IOException(file + " is truncated in column " + this._names[c]);
+				}
+				int width;
+				long values;
+				switch (this._types[c]) {
+					case STRING:
+						width = 8;
+						values = 8 * (this._rows + 1);
+						break;
+					case FIXED:
+						width = this._dictionarySizes[c];
+						if (width <= 0) {
+							throw new IOException(file + ": FIXED column " + this._names[c] + " has width " + width);
+						}
+						values = width * this._rows;
+						break;
+					default:
+						width = 4;
+						values = 4 * this._rows;
+				}
+				if (values > bytes || values / width < this._rows) {
+					throw new IOException(file + " is truncated in column " + this._names[c]);
+				}
+				this._widths[c] = width;
+				this._perChunk[c] = CHUNK / width;
+				this._values[c] = map(channel, offset, values, (long) this._perChunk[c] * width);
+				this._heap[c] = map(channel, offset + values, bytes - values, CHUNK);
+			}
+		} finally {
+			in.close();
+		}
+	}//end ColumnarReader
+
+	/**
+	 * Maps bytes at offset in chunks of at most chunk bytes.
+	 */
+	private static ByteBuffer[] map(FileChannel channel, long offset, long bytes, long chunk) throws IOException {
+		ByteBuffer[] chunks = new ByteBuffer[(int) ((bytes + chunk - 1) / chunk)];
+		for (int i = 0; i < chunks.length; ++i) {
+			long start = i * chunk;
+			chunks[i] = channel.map(FileChannel.MapMode.READ_ONLY, offset + start, Math.min(chunk, bytes - start))
+					.order(ByteOrder.LITTLE_ENDIAN);
+		}
+		return chunks;
+	}
+
+	/**
+	 * Copies into.length bytes from position of chunks of CHUNK bytes.
+	 */
+	private static void read(ByteBuffer[] chunks, long position, byte[] into) {
+		int done = 0;
+		while (done < into.length) {
+			ByteBuffer chunk = chunks[(int) ((position + done) / CHUNK)].duplicate();
+			chunk.position((int) ((position + done) % CHUNK));
+			int n = Math.min(into.length - done, chunk.remaining());
+			chunk.get(into, done, n);
+			done += n;
+		}
+	}
+
+	/**
+	 * @return the file this reader maps
+	 */
+	public File getFile() {
+		return this._file;
+	}
+
+	/**
+	 * @return the number of rows
+	 */
+	public long size() {
+		return this._rows;
+	}
+
+	/**
+	 * @return the number of columns
+	 */
+	public int columnCount() {
+		return this._names.length;
+	}
+
+	/**
+	 * @param col the column number, from 0
+	 * @return the name of the column
+	 */
+	public String getColumnName(int col) {
+		return this._names[col];
+	}
+
+	/**
+	 * @param name a column name
+	 * @return the number of the column, or -1 when there is no such column
+	 */
+	public int column(String name) {
+		for (int c = 0; c < this._names.length; ++c) {
+			if (this._names[c].equalsIgnoreCase(name)) {
+				return c;
+			}
+		}
+		return -1;
+	}
+
+	/**
+	 * @param col the column number, from 0
+	 * @return the type of the column
+	 */
+	public ColumnarWriter.Type getType(int col) {
+		return this._types[col];
+	}
+
+	/**
+	 * @param col a FIXED column
+	 * @return the bytes per row of the column
+	 */
+	public int getWidth(int col) {
+		if (this._types[col] != ColumnarWriter.Type.FIXED) {
+			throw new IllegalArgumentException("column " + this._names[col] + " is not a FIXED column");
+		}
+		return this._widths[col];
+	}
+
+	/**
+	 * @param col the column number, from 0
+	 * @return the smallest value of an INT or DATE column, the length in bytes of the shortest text otherwise
+	 */
+	public long getMin(int col) {
+		return this._min[col];
+	}
+
+	/**
+	 * @param col the column number, from 0
+	 * @return the largest value of an INT or DATE column, the length in bytes of the longest text otherwise
+	 */
+	public long getMax(int col) {
+		return this._max[col];
+	}
+
+	/**
+	 * Method to tell from the header alone whether an INT or DATE column can
+	 * hold value, e.g. to skip the files of other periods.
+	 *
+	 * @param col the column number, from 0
+	 * @param value a value, a date as its day number
+	 * @return false when no row of the column holds value
+	 */
+	public boolean mayContain(int col, long value) {
+		return this._rows > 0 && value >= this._min[col] && value <= this._max[col];
+	}
+
+	/**
+	 * Method to view the per-row values of a column in place: the ints of
+	 * an INT, DATE or DICT column, the offsets of a STRING column (one more
+	 * than the rows) or the padded values of a FIXED column.  Each view is a
+	 * chunk of at most 1 GB holding a whole number of values, in row order,
+	 * and has its own position, so concurrent scans do not interfere.
+	 *
+	 * @param col the column number, from 0
+	 * @return the chunks of the column
+	 */
+	public ByteBuffer[] values(int col) {
+		ByteBuffer[] views = new ByteBuffer[this._values[col].length];
+		for (int i = 0; i < views.length; ++i) {
+			views[i] = this._values[col][i].duplicate().order(ByteOrder.LITTLE_ENDIAN);
+		}
+		return views;
+	}
+
+	/**
+	 * Method to view the values of an INT or DATE column, or the codes of a
+	 * DICT column, in place, as values() does.
+	 *
+	 * @param col the column number, from 0
+	 * @return one int per row, in chunks of at most 2^28 rows
+	 */
+	public IntBuffer[] ints(int col) {
+		ColumnarWriter.Type type = this._types[col];
+		if (type == ColumnarWriter.Type.STRING || type == ColumnarWriter.Type.FIXED) {
+			throw new IllegalArgumentException("column " + this._names[col] + " is a " + type + " column");
+		}
+		ByteBuffer[] chunks = values(col);
+		IntBuffer[] views = new IntBuffer[chunks.length];
+		for (int i = 0; i < views.length; ++i) {
+			views[i] = chunks[i].asIntBuffer();
+		}
+		return views;
+	}
+
+	/**
+	 * Method to view the value offsets of a STRING column in place, as
+	 * values() does: value r spans the value bytes from offset r to offset
+	 * r + 1, which getBytes() reads.
+	 *
+	 * @param col the column number, from 0
+	 * @return row count + 1 offsets, in chunks of at most 2^27
+	 */
+	public LongBuffer[] offsets(int col) {
+		if (this._types[col] != ColumnarWriter.Type.STRING) {
+			throw new IllegalArgumentException("column " + this._names[col] + " is not a STRING column");
+		}
+		ByteBuffer[] chunks = values(col);
+		LongBuffer[] views = new LongBuffer[chunks.length];
+		for (int i = 0; i < views.length; ++i) {
+			views[i] = chunks[i].asLongBuffer();
+		}
+		return views;
+	}
+
+	/**
+	 * @param col the column number, from 0
+	 * @param row the row number, from 0
+	 * @return the value of an INT column, Integer.MIN_VALUE for NULL
+	 */
+	public int getInt(int col, long row) {
+		int per = this._perChunk[col];
+		return this._values[col][(int) (row / per)].getInt(4 * (int) (row % per));
+	}
+
+	/**
+	 * @param col a DATE column
+	 * @param row the row number, from 0
+	 * @return the date, null for NULL
+	 */
+	public LocalDate getDate(int col, long row) {
+		int day = getInt(col, row);
+		return day == Integer.MIN_VALUE ? null : LocalDate.ofEpochDay(day);
+	}
+
+	/**
+	 * @param col a STRING or FIXED column
+	 * @param row the row number, from 0
+	 * @return the UTF-8 bytes of the value, without the padding of a FIXED column
+	 */
+	public byte[] getBytes(int col, long row) {
+		int per = this._perChunk[col];
+		ByteBuffer chunk = this._values[col][(int) (row / per)];
+		int at = (int) (row % per);
+		switch (this._types[col]) {
+			case STRING: {
+				long start = chunk.getLong(8 * at);
+				//the next offset may begin the next chunk
+				long end = at + 1 < per ? chunk.getLong(8 * (at + 1)) : this._values[col][(int) (row / per) + 1].getLong(0);
+				byte[] bytes = new byte[(int) (end - start)];
+				read(this._heap[col], start, bytes);
+				return bytes;
+			}
+			case FIXED: {
+				int width = this._widths[col];
+				int length = width;
+				while (length > 0 && chunk.get(width * at + length - 1) == 0) {
+					--length;
+				}
+				byte[] bytes = new byte[length];
+				ByteBuffer value = chunk.duplicate();
+				value.position(width * at);
+				value.get(bytes);
+				return bytes;
+			}
+			default:
+				throw new IllegalArgumentException("column " + this._names[col] + " is not a STRING or FIXED column");
+		}
+	}//end getBytes
+
+	/**
+	 * @param col the column number, from 0
+	 * @param row the row number, from 0
+	 * @return the value as text, null for NULL; dates as yyyy-mm-dd
+	 */
+	public String getString(int col, long row) {
+		switch (this._types[col]) {
+			case INT: {
+				int value = getInt(col, row);
+				return value == Integer.MIN_VALUE ? null : Integer.toString(value);
+			}
+			case DATE: {
+				LocalDate date = getDate(col, row);
+				return date == null ? null : date.toString();
+			}
+			case DICT: {
+				int code = getInt(col, row);
+				return code < 0 ? null : dictionary(col)[code];
+			}
+			default:
+				return new String(getBytes(col, row), StandardCharsets.UTF_8);
+		}
+	}//end getString
+
+	/**
+	 * @param col a DICT column
+	 * @return the values of the column in code order, which is sorted order
+	 */
+	public synchronized String[] dictionary(int col) {
+		if (this._types[col] != ColumnarWriter.Type.DICT) {
+			throw new IllegalArgumentException("column " + this._names[col] + " is not a DICT column");
+		}
+		if (this._dictionaries[col] == null) {
+			int n = this._dictionarySizes[col];
+			byte[] table = new byte[4 * (n + 1)];
+			read(this._heap[col], 0, table);
+			IntBuffer offsets = ByteBuffer.wrap(table).order(ByteOrder.LITTLE_ENDIAN).asIntBuffer();
+			String[] values = new String[n];
+			for (int i = 0; i < n; ++i) {
+				byte[] value = new byte[offsets.get(i + 1) - offsets.get(i)];
+				read(this._heap[col], table.length + offsets.get(i), value);
+				values[i] = new String(value, StandardCharsets.UTF_8);
+			}
+			this._dictionaries[col] = values;
+		}
+		return this._dictionaries[col];
+	}//end dictionary
+
+	/**
+	 * Method to look up the code of a value of a DICT column, so a scan can
+	 * compare codes instead of text.
+	 *
+	 * @param col a DICT column
+	 * @param value a value
+	 * @return the code of value, or -1 when no row holds it
+	 */
+	public int code(int col, String value) {
+		int code = Arrays.binarySearch(dictionary(col), value);
+		return code < 0 ? -1 : code;
+	}
+}//end ColumnarReader
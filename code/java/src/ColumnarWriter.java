@@ -0,0 +1,447 @@
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.time.LocalDate;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * This class writes a table to a binary columnar file, which
+ * ColumnarReader maps into memory.  All numbers are little-endian.
+ *
+ *	header   int magic, int version, long row count, int column count, int 0
+ *	column   64 bytes per column: name (24 bytes, UTF-8, zero padded),
+ *	         int type, int dictionary size or width, long min, long max,
+ *	         long data offset, long data length
+ *	data     one section per column, starting at a multiple of 8
+ *
+ * INT and DATE columns are an int per row; a date is its number of days
+ * since 1970-01-01, a NULL is Integer.MIN_VALUE.  A DICT column is an int
+ * code per row (-1 for NULL) followed by its dictionary: dictionary size + 1
+ * int offsets into the UTF-8 bytes of the values, which are sorted, so
+ * codes compare like the values they stand for.  A STRING column is row
+ * count + 1 long offsets into the UTF-8 bytes of the values.  A FIXED
+ * column is width bytes per row, the UTF-8 value padded with zero bytes,
+ * for text of a bounded length such as a CHAR(n) key.  A NULL STRING or
+ * FIXED value is written as the empty string.  min and max are the
+ * smallest and largest value of an INT or DATE column, and the shortest
+ * and longest value in bytes of a DICT, STRING or FIXED column.
+ *
+ * Rows are spilled to a temporary file per column while they are added,
+ * so a table of any size is written with memory for its dictionaries
+ * only.  The file appears, complete, when close() returns.
+ */
+public class ColumnarWriter {
+	static final int MAGIC = 0x4142434c;
+	static final int VERSION = 2;
+	static final int HEADER = 24;
+	static final int COLUMN = 64;
+	static final int NAME = 24;
+
+	public enum Type { INT, DATE, DICT, STRING, FIXED }
+
+	/**
+	 * A spill file written through a little-endian buffer.
+	 */
+	private static class Spill {
+		final File file;
+		final FileChannel channel;
+		final ByteBuffer buffer = ByteBuffer.allocateDirect(1 << 16).order(ByteOrder.LITTLE_ENDIAN);
+
+		@SuppressWarnings("resource")
+		Spill(File file) throws IOException {
+			this.file = file;
+			this.channel = new FileOutputStream(file).getChannel();
+		}
+
+		ByteBuffer room(int bytes) throws IOException {
+			if (this.buffer.remaining() < bytes) {
+				flush();
+			}
+			return this.buffer;
+		}
+
+		void put(byte[] bytes) throws IOException {
+			int done = 0;
+			while (done < bytes.length) {
+				int n = Math.min(bytes.length - done, room(1).remaining());
+				this.buffer.put(bytes, done, n);
+				done += n;
+			}
+		}
+
+		void flush() throws IOException {
+			this.buffer.flip();
+			while (this.buffer.hasRemaining()) {
+				this.channel.write(this.buffer);
+			}
+			this.buffer.clear();
+		}
+
+		void close() throws IOException {
+			flush();
+			this.channel.close();
+		}
+	}
+
+	/**
+	 * A column being written, with its statistics.
+	 */
+	private static class Column {
+		final String name;
+		final Type type;
+		//the bytes per row of a FIXED column
+		final int width;
+		//ints, codes, the offsets of a STRING column or the values of a FIXED column
+		final Spill values;
+		//the value bytes of a STRING column
+		final Spill heap;
+		//the codes of a DICT column, in order of first appearance
+		final Map<String, Integer> codes;
+		final List<byte[]> dictionary;
+		long min = Long.MAX_VALUE;
+		long max = Long.MIN_VALUE;
+		long heapSize = 0;
+
+		Column(String name, Type type, int width, File file, int index) throws IOException {
+			this.name = name;
+			this.type = type;
+			this.width = width;
+			this.values = new Spill(new File(file.getPath() + "." + index + ".values"));
+			this.heap = type == Type.STRING ? new Spill(new File(file.getPath() + "." + index + ".heap")) : null;
+			this.codes = type == Type.DICT ? new HashMap<String, Integer>() : null;
+			this.dictionary = type == Type.DICT ? new ArrayList<byte[]>() : null;
+		}
+
+		void seen(long value) {
+			this.min = Math.min(this.min, value);
+			this.max = Math.max(this.max, value);
+		}
+	}
+
+	private final File _file;
+	private final Column[] _columns;
+	private long _rows = 0;
+	private boolean _closed = false;
+
+	/**
+	 * @param file the file to write
+	 * @param names the column names, at most 24 bytes each
+	 * @param types the column types, no FIXED column
+	 * @throws java.io.IOException when the spill files could not be created
+	 */
+	public ColumnarWriter(File file, String[] names, Type[] types) throws IOException {
+		this(file, names, types, new int[types.length]);
+	}
+
+	/**
+	 * @param file the file to write
+	 * @param names the column names, at most 24 bytes each
+	 * @param types the column types
+	 * @param widths the bytes per row of each FIXED column, ignored for the others
+	 * @throws java.io.IOException when the spill files could not be created
+	 */
+	public ColumnarWriter(File file, String[] names, Type[] types, int[] widths) throws IOException {
+		if (names.length != types.length || widths.length != types.length) {
+			throw new IllegalArgumentException(names.length + " names and " + widths.length + " widths for "
+					+ types.length + " types");
+		}
+		this._file = file;
+		this._columns = new Column[names.length];
+		try {
+			for (int c = 0; c < names.length; ++c) {
+				if (names[c].getBytes(StandardCharsets.UTF_8).length > NAME) {
+					throw new IllegalArgumentException("column name longer than " + NAME + " bytes: " + names[c]);
+				}
+				if (types[c] == Type.FIXED && widths[c] <= 0) {
+					throw new IllegalArgumentException("FIXED column " + names[c] + " needs a width");
+				}
+				this._columns[c] = new Column(names[c], types[c], types[c] == Type.FIXED ? widths[c] : 0, file, c);
+				if (types[c] == Type.STRING) {
+					this._columns[c].values.room(8).putLong(0);
+				}
+			}
+		} catch (IOException | RuntimeException e) {
+			discard();
+			throw e;
+		}
+	}
+
+	/**
+	 * Method to add a row.  INT values are Numbers, DATE values are
+	 * LocalDates or java.sql.Dates, DICT, STRING and FIXED values are
+	 * Strings; any value may be null.  A FIXED value must fit its width.
+	 *
+	 * @param values one value per column
+	 * @throws java.io.IOException when a spill file could not be written
+	 */
+	public void add(Object... values) throws IOException {
+		if (values.length != this._columns.length) {
+			throw new IllegalArgumentException(values.length + " values for " + this._columns.length + " columns");
+		}
+		for (int c = 0; c < values.length; ++c) {
+			Column column = this._columns[c];
+			Object value = values[c];
+			switch (column.type) {
+				case INT: {
+					int v = value == null ? Integer.MIN_VALUE : ((Number) value).intValue();
+					if (value != null) {
+						column.seen(v);
+					}
+					column.values.room(4).putInt(v);
+					break;
+				}
+				case DATE: {
+					int v = Integer.MIN_VALUE;
+					if (value != null) {
+						v = (int) (value instanceof java.sql.Date ? ((java.sql.Date) value).toLocalDate()
+								: (LocalDate) value).toEpochDay();
+						column.seen(v);
+					}
+					column.values.room(4).putInt(v);
+					break;
+				}
+				case DICT: {
+					int code = -1;
+					if (value != null) {
+						String s = value.toString();
+						Integer known = column.codes.get(s);
+						if (known == null) {
+							byte[] bytes = s.getBytes(StandardCharsets.UTF_8);
+							known = column.dictionary.size();
+							column.codes.put(s, known);
+							column.dictionary.add(bytes);
+							column.seen(bytes.length);
+						}
+						code = known;
+					}
+					column.values.room(4).putInt(code);
+					break;
+				}
+				case FIXED: {
+					byte[] bytes = value == null ? new byte[0] : value.toString().getBytes(StandardCharsets.UTF_8);
+					if (bytes.length > column.width) {
+						throw new IllegalArgumentException("value of " + bytes.length + " bytes in column " + column.name
+								+ " of width " + column.width);
+					}
+					column.seen(bytes.length);
+					column.values.put(Arrays.copyOf(bytes, column.width));
+					break;
+				}
+				default: {
+					byte[] bytes = value == null ? new byte[0] : value.toString().getBytes(StandardCharsets.UTF_8);
+					column.seen(bytes.length);
+					column.heap.put(bytes);
+					column.heapSize += bytes.length;
+					column.values.room(8).putLong(column.heapSize);
+				}
+			}
+		}
+		++this._rows;
+	}//end add
+
+	/**
+	 * @return the number of rows added so far
+	 */
+	public long size() {
+		return this._rows;
+	}
+
+	private static long align(long offset) {
+		return (offset + 7) & ~7L;
+	}
+
+	/**
+	 * Method to assemble the file from the spilled columns and delete the
+	 * spill files.  The file is written under a temporary name and renamed
+	 * when complete.
+	 *
+	 * @return the size of the file in bytes
+	 * @throws java.io.IOException when the file could not be written
+	 */
+	public long close() throws IOException {
+		if (this._closed) {
+			throw new IllegalStateException("already closed");
+		}
+		this._closed = true;
+		File tmp = new File(this._file.getPath() + ".tmp");
+		try {
+			for (Column column : this._columns) {
+				column.values.close();
+				if (column.heap != null) {
+					column.heap.close();
+				}
+			}
+			//the codes of the sorted dictionary, by code of first appearance
+			int[][] remap = new int[this._columns.length][];
+			byte[][][] sorted = new byte[this._columns.length][][];
+			long[] lengths = new long[this._columns.length];
+			for (int c = 0; c < this._columns.length; ++c) {
+				Column column = this._columns[c];
+				if (column.type == Type.DICT) {
+					String[] values = column.codes.keySet().toArray(new String[0]);
+					Arrays.sort(values);
+					remap[c] = new int[values.length];
+					sorted[c] = new byte[values.length][];
+					long bytes = 0;
+					for (int i = 0; i < values.length; ++i) {
+						int first = column.codes.get(values[i]);
+						remap[c][first] = i;
+						sorted[c][i] = column.dictionary.get(first);
+						bytes += sorted[c][i].length;
+					}
+					lengths[c] = 4 * this._rows + 4L * (values.length + 1) + bytes;
+				}
+				else {
+					lengths[c] = column.values.file.length() + (column.heap == null ? 0 : column.heap.file.length());
+				}
+			}
+
+			RandomAccessFile out = new RandomAccessFile(tmp, "rw");
+			try {
+				out.setLength(0);
+				FileChannel channel = out.getChannel();
+				ByteBuffer header = ByteBuffer.allocate(HEADER + COLUMN * this._columns.length).order(ByteOrder.LITTLE_ENDIAN);
+				header.putInt(MAGIC).putInt(VERSION).putLong(this._rows).putInt(this._columns.length).putInt(0);
+				long offset = align(header.capacity());
+				long[] offsets = new long[this._columns.length];
+				for (int c = 0; c < this._columns.length; ++c) {
+					Column column = this._columns[c];
+					byte[] name = Arrays.copyOf(column.name.getBytes(StandardCharsets.UTF_8), NAME);
+					offsets[c] = offset;
+					header.put(name).putInt(column.type.ordinal())
+							.putInt(column.type == Type.DICT ? sorted[c].length : column.width)
+							.putLong(column.min <= column.max ? column.min : 0).putLong(column.min <= column.max ? column.max : 0)
+							.putLong(offset).putLong(lengths[c]);
+					offset = align(offset + lengths[c]);
+				}
+				header.flip();
+				write(channel, header, 0);
+				for (int c = 0; c < this._columns.length; ++c) {
+					Column column = this._columns[c];
+					if (column.type == Type.DICT) {
+						writeDictionary(channel, offsets[c], column.values.file, remap[c], sorted[c]);
+					}
+					else {
+						long at = copy(channel, offsets[c], column.values.file);
+						if (column.heap != null) {
+							copy(channel, at, column.heap.file);
+						}
+					}
+				}
+				out.setLength(offset);
+				channel.force(true);
+			} finally {
+				out.close();
+			}
+			Files.move(tmp.toPath(), this._file.toPath(), StandardCopyOption.ATOMIC_MOVE, StandardCopyOption.REPLACE_EXISTING);
+			return this._file.length();
+		} finally {
+			tmp.delete();
+			discard();
+		}
+	}//end close
+
+	private static void write(FileChannel channel, ByteBuffer buffer, long position) throws IOException {
+		while (buffer.hasRemaining()) {
+			position += channel.write(buffer, position);
+		}
+	}
+
+	/**
+	 * Appends a spill file at position and returns the position after it.
+	 */
+	private static long copy(FileChannel channel, long position, File file) throws IOException {
+		FileChannel in = new RandomAccessFile(file, "r").getChannel();
+		try {
+			long size = in.size();
+			long done = 0;
+			while (done < size) {
+				done += in.transferTo(done, size - done, channel.position(position + done));
+			}
+			return position + size;
+		} finally {
+			in.close();
+		}
+	}
+
+	/**
+	 * Writes the codes of a DICT column, translated to the sorted
+	 * dictionary, followed by the dictionary.
+	 */
+	private void writeDictionary(FileChannel channel, long position, File codes, int[] remap, byte[][] sorted)
+			throws IOException {
+		FileChannel in = new RandomAccessFile(codes, "r").getChannel();
+		try {
+			ByteBuffer buffer = ByteBuffer.allocateDirect(1 << 16).order(ByteOrder.LITTLE_ENDIAN);
+			boolean eof = false;
+			while (!eof || buffer.position() > 0) {
+				eof = in.read(buffer) < 0;
+				buffer.flip();
+				//an incomplete int waits for the next read
+				int whole = buffer.remaining() & ~3;
+				if (eof && whole < buffer.remaining()) {
+					throw new IOException(codes + " ends with an incomplete code");
+				}
+				for (int i = 0; i < whole; i += 4) {
+					int code = buffer.getInt(i);
+					buffer.putInt(i, code < 0 ? code : remap[code]);
+				}
+				ByteBuffer chunk = buffer.duplicate();
+				chunk.limit(whole);
+				write(channel, chunk, position);
+				position += whole;
+				buffer.position(whole);
+				buffer.compact();
+			}
+		} finally {
+			in.close();
+		}
+		ByteBuffer offsets = ByteBuffer.allocate(4 * (sorted.length + 1)).order(ByteOrder.LITTLE_ENDIAN);
+		int at = 0;
+		offsets.putInt(at);
+		for (byte[] value : sorted) {
+			at += value.length;
+			offsets.putInt(at);
+		}
+		offsets.flip();
+		write(channel, offsets, position);
+		position += offsets.capacity();
+		for (byte[] value : sorted) {
+			write(channel, ByteBuffer.wrap(value), position);
+			position += value.length;
+		}
+	}//end writeDictionary
+
+	/**
+	 * Method to abandon the file: the spill files are closed and deleted.
+	 */
+	public void discard() {
+		for (Column column : this._columns) {
+			if (column == null) {
+				continue;
+			}
+			for (Spill spill : new Spill[] { column.values, column.heap }) {
+				if (spill != null) {
+					try {
+						spill.channel.close();
+					} catch (IOException e) {
+						// ignored.
+					}
+					spill.file.delete();
+				}
+			}
+		}
+		this._closed = true;
+	}
+}//end ColumnarWriter
@@ -0,0 +1,409 @@
+import java.sql.DriverManager;
+import java.sql.Connection;
+import java.sql.SQLException;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Deque;
+import java.util.IdentityHashMap;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * This class keeps a bounded set of physical connections to one PostgreSQL
+ * database so that several sessions can share them.  Connections are borrowed
+ * with borrow() and must be handed back with release() once the statement
+ * (or transaction) that needed them is done.
+ *
+ * A background housekeeper closes connections that stayed idle for longer
+ * than the idle timeout (never going below the minimum size) and reports
+ * connections that were borrowed for longer than the leak threshold.
+ */
+public class ConnectionPool {
+	private final String _url;
+	private final String _user;
+	private final String _passwd;
+	private final int _minSize;
+	private final int _maxSize;
+	private final long _idleTimeoutMillis;
+	private final long _borrowTimeoutMillis;
+	private final long _validationIntervalMillis;
+	private final long _leakThresholdMillis;
+	private final boolean _leakStackTraces;
+	private final int _statementCacheSize;
+
+	//connections ready to be borrowed, most recently used first
+	private final Deque<PooledConnection> _idle = new ArrayDeque<PooledConnection>();
+	//connections currently handed out, keyed by the physical connection
+	private final Map<Connection, PooledConnection> _borrowed = new IdentityHashMap<Connection, PooledConnection>();
+	//idle + borrowed + connections being opened right now
+	private int _total = 0;
+	private boolean _closed = false;
+	private final ScheduledExecutorService _housekeeper;
+
+	/**
+	 * Bookkeeping for one physical connection owned by the pool.
+	 */
+	static class PooledConnection {
+		final Connection connection;
+		final StatementCache statements;
+		long lastUsed;
+		long borrowedAt;
+		Throwable borrowTrace;
+		boolean leakReported;
+
+		PooledConnection(Connection connection, int statementCacheSize) {
+			this.connection = connection;
+			this.statements = new StatementCache(connection, statementCacheSize);
+			this.lastUsed = System.currentTimeMillis();
+		}
+	}
+
+	/**
+	 * Creates the pool and opens minSize connections right away, so that a
+	 * wrong URL or a stopped server is reported at startup.
+	 *
+	 * @param url the JDBC connection URL
+	 * @param user the database user
+	 * @param passwd the password of the database user
+	 * @param minSize number of connections kept open even when idle
+	 * @param maxSize upper bound on open connections
+	 * @param idleTimeoutMillis idle time after which a connection above minSize is closed
+	 * @param borrowTimeoutMillis how long borrow() waits for a free connection
+	 * @param validationIntervalMillis connections idle for longer than this are validated on borrow (0 validates every borrow)
+	 * @param leakThresholdMillis borrow time after which a connection is reported as leaked (0 disables leak detection)
+	 * @param leakStackTraces also record where every connection is borrowed, to print it with a leak; costs a stack walk per borrow
+	 * @param statementCacheSize number of prepared statements cached per connection
+	 * @throws java.sql.SQLException when the initial connections cannot be opened
+	 */
+	public ConnectionPool(String url, String user, String passwd, int minSize, int maxSize,
+			long idleTimeoutMillis, long borrowTimeoutMillis, long validationIntervalMillis,
+			long leakThresholdMillis, boolean leakStackTraces, int statementCacheSize) throws SQLException {
+		if (maxSize <= 0 || minSize < 0 || minSize > maxSize) {
+			throw new IllegalArgumentException("invalid pool size: min=" + minSize + " max=" + maxSize);
+		}
+		this._url = url;
+		this._user = user;
+		this._passwd = passwd;
+		this._minSize = minSize;
+		this._maxSize = maxSize;
+		this._idleTimeoutMillis = idleTimeoutMillis;
+		this._borrowTimeoutMillis = borrowTimeoutMillis;
+		this._validationIntervalMillis = validationIntervalMillis;
+		this._leakThresholdMillis = leakThresholdMillis;
+		this._leakStackTraces = leakStackTraces;
+		this._statementCacheSize = statementCacheSize;
+
+		for (int i = 0; i < minSize; i++) {
+			this._idle.push(new PooledConnection(openConnection(), this._statementCacheSize));
+			this._total++;
+		}
+
+		this._housekeeper = Executors.newSingleThreadScheduledExecutor(new ThreadFactory() {
+			public Thread newThread(Runnable r) {
+				Thread t = new Thread(r, "connection-pool-housekeeper");
+				t.setDaemon(true);
+				return t;
+			}
+		});
+		long period = Math.max(1000, Math.min(idleTimeoutMillis, leakThresholdMillis > 0 ? leakThresholdMillis : idleTimeoutMillis) / 2);
+		this._housekeeper.scheduleWithFixedDelay(new Runnable() {
+			public void run() {
+				housekeep();
+			}
+		}, period, period, TimeUnit.MILLISECONDS);
+	}
+
+	private Connection openConnection() throws SQLException {
+		return DriverManager.getConnection(this._url, this._user, this._passwd);
+	}
+
+	/**
+	 * Method to borrow a connection from the pool.  Reuses an idle connection
+	 * when one is available, opens a new one while the pool is below its
+	 * maximum size, and otherwise waits for another session to release one.
+	 *
+	 * @return a validated connection in autocommit mode
+	 * @throws java.sql.SQLException when no connection became available in time or opening one failed
+	 */
+	public Connection borrow() throws SQLException {
+		long deadline = System.currentTimeMillis() + this._borrowTimeoutMillis;
+		while (true) {
+			PooledConnection pc = null;
+			boolean mayOpen = false;
+			synchronized (this) {
+				while (true) {
+					if (this._closed) {
+						throw new SQLException("Connection pool is closed", "08003");
+					}
+					if (!this._idle.isEmpty()) {
+						pc = this._idle.pop();
+						break;
+					}
+					if (this._total < this._maxSize) {
+						this._total++;
+						mayOpen = true;
+						break;
+					}
+					long wait = deadline - System.currentTimeMillis();
+					if (wait <= 0) {
+						throw new SQLException("Timed out after " + this._borrowTimeoutMillis
+								+ " ms waiting for a database connection (pool size " + this._maxSize + ")", "08001");
+					}
+					try {
+						wait(wait);
+					} catch (InterruptedException e) {
+						Thread.currentThread().interrupt();
+						throw new SQLException("Interrupted while waiting for a database connection", "08001");
+					}
+				}
+			}
+
+			if (mayOpen) {
+				try {
+					pc = new PooledConnection(openConnection(), this._statementCacheSize);
+				} catch (SQLException e) {
+					synchronized (this) {
+						this._total--;
+						notifyAll();
+					}
+					throw e;
+				}
+			}
+			else if (!isUsable(pc)) {
+				discard(pc);
+				continue;
+			}
+			return markBorrowed(pc);
+		}
+	}//end borrow
+
+	/**
+	 * Method to hand a borrowed connection back to the pool.  A connection
+	 * left inside a transaction is rolled back and put back in autocommit
+	 * mode; a connection that cannot be reset is closed instead.
+	 *
+	 * @param connection a connection obtained from borrow()
+	 */
+	public void release(Connection connection) {
+		if (connection == null) {
+			return;
+		}
+		PooledConnection pc;
+		synchronized (this) {
+			pc = this._borrowed.remove(connection);
+		}
+		if (pc == null) {
+			return;
+		}
+		try {
+			if (connection.isClosed()) {
+				discard(pc);
+				return;
+			}
+			if (!connection.getAutoCommit()) {
+				connection.rollback();
+				connection.setAutoCommit(true);
+			}
+			connection.clearWarnings();
+		} catch (SQLException e) {
+			discard(pc);
+			return;
+		}
+		synchronized (this) {
+			pc.lastUsed = System.currentTimeMillis();
+			pc.borrowTrace = null;
+			if (this._closed) {
+				this._total--;
+				closeQuietly(pc);
+			}
+			else {
+				this._idle.push(pc);
+			}
+			notifyAll();
+		}
+	}//end release
+
+	/**
+	 * Method to close the pool.  Idle connections are closed right away;
+	 * connections still borrowed are closed when they are released.
+	 */
+	public void close() {
+		List<PooledConnection> toClose;
+		synchronized (this) {
+			if (this._closed) {
+				return;
+			}
+			this._closed = true;
+			toClose = new ArrayList<PooledConnection>(this._idle);
+			this._total -= this._idle.size();
+			this._idle.clear();
+			notifyAll();
+		}
+		this._housekeeper.shutdownNow();
+		for (PooledConnection pc : toClose) {
+			closeQuietly(pc);
+		}
+	}//end close
+
+	/**
+	 * Method to get the prepared statement cache of a borrowed connection.
+	 *
+	 * @param connection a connection obtained from borrow()
+	 * @return the statement cache belonging to connection
+	 */
+	public StatementCache getStatementCache(Connection connection) {
+		PooledConnection pc;
+		synchronized (this) {
+			pc = this._borrowed.get(connection);
+		}
+		if (pc == null) {
+			throw new IllegalStateException("connection is not borrowed from this pool");
+		}
+		return pc.statements;
+	}
+
+	/**
+	 * @param connection a connection
+	 * @return true when connection is currently borrowed from this pool
+	 */
+	public synchronized boolean owns(Connection connection) {
+		return this._borrowed.containsKey(connection);
+	}
+
+	/**
+	 * @return number of connections currently borrowed
+	 */
+	public synchronized int getActiveCount() {
+		return this._borrowed.size();
+	}
+
+	/**
+	 * @return number of open connections waiting to be borrowed
+	 */
+	public synchronized int getIdleCount() {
+		return this._idle.size();
+	}
+
+	/**
+	 * @return the maximum number of connections this pool opens
+	 */
+	public int getMaxSize() {
+		return this._maxSize;
+	}
+
+	private Connection markBorrowed(PooledConnection pc) {
+		pc.borrowedAt = System.currentTimeMillis();
+		pc.leakReported = false;
+		//the timestamp is enough to find a leak; the stack is only taken on request
+		pc.borrowTrace = this._leakThresholdMillis > 0 && this._leakStackTraces
+				? new Throwable("Connection borrowed here") : null;
+		synchronized (this) {
+			this._borrowed.put(pc.connection, pc);
+		}
+		return pc.connection;
+	}
+
+	private boolean isUsable(PooledConnection pc) {
+		if (System.currentTimeMillis() - pc.lastUsed < this._validationIntervalMillis) {
+			return true;
+		}
+		try {
+			return pc.connection.isValid(5);
+		} catch (SQLException e) {
+			return false;
+		}
+	}
+
+	private void discard(PooledConnection pc) {
+		closeQuietly(pc);
+		synchronized (this) {
+			this._total--;
+			notifyAll();
+		}
+	}
+
+	private static void closeQuietly(PooledConnection pc) {
+		pc.statements.close();
+		try {
+			pc.connection.close();
+		} catch (SQLException e) {
+			// ignored.
+		}
+	}
+
+	/**
+	 * Evicts connections idle for longer than the idle timeout, tops the
+	 * pool back up to its minimum size and reports leaked connections.
+	 */
+	private void housekeep() {
+		long now = System.currentTimeMillis();
+		List<PooledConnection> evicted = new ArrayList<PooledConnection>();
+		List<PooledConnection> leaked = new ArrayList<PooledConnection>();
+		int missing;
+		synchronized (this) {
+			if (this._closed) {
+				return;
+			}
+			//the least recently used connections sit at the tail
+			Iterator<PooledConnection> it = this._idle.descendingIterator();
+			while (it.hasNext() && this._total - evicted.size() > this._minSize) {
+				PooledConnection pc = it.next();
+				if (now - pc.lastUsed < this._idleTimeoutMillis) {
+					break;
+				}
+				it.remove();
+				evicted.add(pc);
+			}
+			this._total -= evicted.size();
+
+			if (this._leakThresholdMillis > 0) {
+				for (PooledConnection pc : this._borrowed.values()) {
+					if (!pc.leakReported && now - pc.borrowedAt > this._leakThresholdMillis) {
+						pc.leakReported = true;
+						leaked.add(pc);
+					}
+				}
+			}
+			missing = this._minSize - this._total;
+			this._total += Math.max(0, missing);
+		}
+
+		for (PooledConnection pc : evicted) {
+			closeQuietly(pc);
+		}
+		for (PooledConnection pc : leaked) {
+			System.err.println("Warning - database connection borrowed " + (now - pc.borrowedAt)
+					+ " ms ago was not released (possible leak)");
+			if (pc.borrowTrace != null) {
+				pc.borrowTrace.printStackTrace();
+			}
+		}
+		for (int i = 0; i < missing; i++) {
+			PooledConnection pc;
+			try {
+				pc = new PooledConnection(openConnection(), this._statementCacheSize);
+			} catch (SQLException e) {
+				synchronized (this) {
+					this._total -= missing - i;
+					notifyAll();
+				}
+				return;
+			}
+			synchronized (this) {
+				if (this._closed) {
+					this._total--;
+					closeQuietly(pc);
+				}
+				else {
+					this._idle.addLast(pc);
+				}
+				notifyAll();
+			}
+		}
+	}//end housekeep
+}//end ConnectionPool
@@ -0,0 +1,141 @@
+import java.sql.SQLException;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.TreeSet;
+
+/**
+ * This class counts the flights offered to every destination and keeps the
+ * destinations sorted by that count, so the k most popular destinations are
+ * read from memory in O(k).  It is built once from the Flight table and
+ * updated incrementally when a flight is inserted or changes destination.
+ *
+ * Only the flights upserted through this process are seen: another
+ * process writing to Flight leaves the counts stale until restart.  The
+ * service reports the drift at GET /stats/popularity.
+ */
+public class DestinationPopularity {
+	static final String COUNT_FLIGHTS =
+			"SELECT destination, COUNT(*) FROM Flight GROUP BY destination";
+
+	/**
+	 * A destination and the number of flights to it.
+	 */
+	public static class Destination implements Comparable<Destination> {
+		public final String name;
+		public final int flights;
+
+		Destination(String name, int flights) {
+			this.name = name;
+			this.flights = flights;
+		}
+
+		//most flights first, then by name so the order is total
+		public int compareTo(Destination other) {
+			if (this.flights != other.flights) {
+				return Integer.compare(other.flights, this.flights);
+			}
+			return this.name.compareTo(other.name);
+		}
+	}
+
+	private final Map<String, Destination> _byName = new HashMap<String, Destination>();
+	private final TreeSet<Destination> _ranked = new TreeSet<Destination>();
+
+	/**
+	 * Method to count the flights per destination in the Flight table.
+	 *
+	 * @param esql the database session to read from
+	 * @return the counts
+	 * @throws java.sql.SQLException when the flights could not be counted
+	 */
+	public static DestinationPopularity load(AirBooking esql) throws SQLException {
+		DestinationPopularity popularity = new DestinationPopularity();
+		QueryResult counts = esql.executePreparedQueryAndReturnColumns(COUNT_FLIGHTS);
+		for (int i = 0; i < counts.size(); ++i) {
+			popularity.set(counts.getString(i, 0), counts.getInt(i, 1));
+		}
+		return popularity;
+	}
+
+	private void set(String name, int flights) {
+		Destination old = this._byName.remove(name);
+		if (old != null) {
+			this._ranked.remove(old);
+		}
+		if (flights > 0) {
+			Destination updated = new Destination(name, flights);
+			this._byName.put(name, updated);
+			this._ranked.add(updated);
+		}
+	}
+
+	/**
+	 * Method to account for a flight that was inserted, or whose
+	 * destination changed.
+	 *
+	 * @param from the previous destination of the flight, null for a new flight
+	 * @param to the destination of the flight now
+	 */
+	public synchronized void move(String from, String to) {
+		if (from != null && from.equals(to)) {
+			return;
+		}
+		if (from != null) {
+			set(from, count(from) - 1);
+		}
+		set(to, count(to) + 1);
+	}
+
+	/**
+	 * @param destination a city
+	 * @return the number of flights to destination
+	 */
+	public synchronized int count(String destination) {
+		Destination d = this._byName.get(destination);
+		return d == null ? 0 : d.flights;
+	}
+
+	/**
+	 * Method to get the k destinations with the most flights.
+	 *
+	 * @param k the number of destinations wanted
+	 * @return up to k destinations, most flights first
+	 */
+	public synchronized List<Destination> top(int k) {
+		List<Destination> top = new ArrayList<Destination>(Math.min(k, this._ranked.size()));
+		Iterator<Destination> it = this._ranked.iterator();
+		while (top.size() < k && it.hasNext()) {
+			top.add(it.next());
+		}
+		return top;
+	}
+
+	/**
+	 * Method to compare the in-memory counts with a fresh GROUP BY over the
+	 * Flight table.
+	 *
+	 * @param esql the database session to read from
+	 * @return one line per destination whose counts differ, empty when consistent
+	 * @throws java.sql.SQLException when the flights could not be counted
+	 */
+	public List<String> check(AirBooking esql) throws SQLException {
+		DestinationPopularity actual = load(esql);
+		List<String> differences = new ArrayList<String>();
+		synchronized (this) {
+			for (Destination d : actual._ranked) {
+				if (count(d.name) != d.flights) {
+					differences.add(d.name + ": " + count(d.name) + " in memory, " + d.flights + " in Flight");
+				}
+			}
+			for (Destination d : this._ranked) {
+				if (!actual._byName.containsKey(d.name)) {
+					differences.add(d.name + ": " + d.flights + " in memory, 0 in Flight");
+				}
+			}
+		}
+		return differences;
+	}//end check
+}//end DestinationPopularity
@@ -0,0 +1,1025 @@
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.BufferedReader;
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.EOFException;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.FileReader;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.sql.SQLException;
+import java.time.LocalDate;
+import java.time.format.DateTimeFormatter;
+import java.time.format.DateTimeParseException;
+import java.time.format.ResolverStyle;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.zip.CRC32;
+
+/**
+ * This class keeps the booking domain in the memory of this process, for
+ * machines without a PostgreSQL server such as kiosks.  Airlines,
+ * passengers and ratings are indexed by their int keys in IntObjectMaps,
+ * flights by number and by (origin, destination), and the seats booked per
+ * flight and departure day are counters in a LongIntMap, so every menu
+ * operation is a few hash lookups.
+ *
+ * Every change is appended to log.dat (and forced to disk unless
+ * airbooking.embedded.sync is false) before it is applied in memory.  Every
+ * snapshotEvery changes, and on close(), the whole state is written to
+ * snapshot.dat, which is replaced atomically, and the log starts over.
+ * Opening the directory loads the snapshot and replays the log; records
+ * carry a sequence number, so a log that outlived its snapshot is not
+ * applied twice, and a record torn by a crash ends the replay and is cut
+ * off.
+ *
+ * The constraints of the PostgreSQL schema are checked here too and fail
+ * with the same SQLSTATEs.  All methods are synchronized.
+ */
+public class EmbeddedBookingRepository implements BookingRepository {
+	private static final int SNAPSHOT_MAGIC = 0x41425331;
+	//record types
+	private static final byte AIRLINE = 1;
+	private static final byte PASSENGER = 2;
+	private static final byte FLIGHT = 3;
+	private static final byte BOOKING = 4;
+	private static final byte RATING = 5;
+	//longest record accepted on replay, anything longer is a torn length
+	private static final int MAX_RECORD = 1 << 20;
+
+	private static final DateTimeFormatter MDY = DateTimeFormatter.ofPattern("M/d/uuuu").withResolverStyle(ResolverStyle.STRICT);
+
+	private static class Airline {
+		final int airId;
+		final String name;
+		final int founded;
+		final String country;
+		final String hub;
+
+		Airline(int airId, String name, int founded, String country, String hub) {
+			this.airId = airId;
+			this.name = name;
+			this.founded = founded;
+			this.country = country;
+			this.hub = hub;
+		}
+	}
+
+	private static class Passenger {
+		final int pID;
+		final String passNum;
+		final String fullName;
+		//days since 1970-01-01
+		final int bdate;
+		final String country;
+		final List<Booking> bookings = new ArrayList<Booking>(2);
+		final List<Rating> ratings = new ArrayList<Rating>(1);
+
+		Passenger(int pID, String passNum, String fullName, int bdate, String country) {
+			this.pID = pID;
+			this.passNum = passNum;
+			this.fullName = fullName;
+			this.bdate = bdate;
+			this.country = country;
+		}
+	}
+
+	private static class Flight {
+		//dense index of the flight, part of the booked seat counter keys
+		final int id;
+		final String flightNum;
+		int airId;
+		String origin;
+		String destination;
+		String plane;
+		int seats;
+		int duration;
+		int ratings = 0;
+		int scoreSum = 0;
+
+		Flight(int id, String flightNum) {
+			this.id = id;
+			this.flightNum = flightNum;
+		}
+	}
+
+	private static class Booking {
+		final long id;
+		final String bookRef;
+		final int departure;
+		final Flight flight;
+		final Passenger passenger;
+
+		Booking(long id, String bookRef, int departure, Flight flight, Passenger passenger) {
+			this.id = id;
+			this.bookRef = bookRef;
+			this.departure = departure;
+			this.flight = flight;
+			this.passenger = passenger;
+		}
+	}
+
+	private static class Rating {
+		final int rID;
+		final Passenger passenger;
+		final Flight flight;
+		final int score;
+		final String comment;
+
+		Rating(int rID, Passenger passenger, Flight flight, int score, String comment) {
+			this.rID = rID;
+			this.passenger = passenger;
+			this.flight = flight;
+			this.score = score;
+			this.comment = comment;
+		}
+	}
+
+	private final File _directory;
+	private final boolean _sync;
+	private final int _snapshotEvery;
+
+	private final IntObjectMap<Airline> _airlines = new IntObjectMap<Airline>(64);
+	private final IntObjectMap<Passenger> _passengers = new IntObjectMap<Passenger>(1024);
+	private final Map<String, Passenger> _passports = new HashMap<String, Passenger>();
+	private final Map<String, Flight> _flights = new HashMap<String, Flight>();
+	private final List<Flight> _flightsById = new ArrayList<Flight>();
+	//flights by origin + "\n" + destination
+	private final Map<String, List<Flight>> _routes = new HashMap<String, List<Flight>>();
+	//flights per destination
+	private final Map<String, int[]> _destinations = new HashMap<String, int[]>();
+	private final Map<String, Booking> _bookings = new HashMap<String, Booking>();
+	//seats booked per (flight id << 32 | departure day)
+	private final LongIntMap _booked = new LongIntMap(1024);
+	private final IntObjectMap<Rating> _ratings = new IntObjectMap<Rating>(1024);
+
+	private int _nextPassengerId = 0;
+	private int _nextRatingId = 0;
+	private long _nextBookingId = 1;
+	//sequence number of the last change applied, and of the last one in the snapshot
+	private long _seq = 0;
+	private long _snapshotSeq = 0;
+	private FileOutputStream _log = null;
+
+	/**
+	 * Opens the store in directory, creating it when it does not exist, and
+	 * recovers its state from the snapshot and the log.
+	 *
+	 * @param directory where snapshot.dat and log.dat are kept
+	 * @param sync whether every change is forced to disk before it is acknowledged
+	 * @param snapshotEvery number of changes after which a new snapshot is written
+	 * @throws java.io.IOException when the files could not be read or the snapshot is corrupt
+	 */
+	public EmbeddedBookingRepository(File directory, boolean sync, int snapshotEvery) throws IOException {
+		if (!directory.isDirectory() && !directory.mkdirs()) {
+			throw new IOException("cannot create " + directory);
+		}
+		this._directory = directory;
+		this._sync = sync;
+		this._snapshotEvery = Math.max(1, snapshotEvery);
+		File snapshot = snapshotFile();
+		if (snapshot.exists()) {
+			DataInputStream in = new DataInputStream(new BufferedInputStream(new FileInputStream(snapshot)));
+			try {
+				if (in.readInt() != SNAPSHOT_MAGIC) {
+					throw new IOException(snapshot + " is not a snapshot");
+				}
+				this._snapshotSeq = in.readLong();
+				if (replay(in, 0, Long.MIN_VALUE) >= 0) {
+					throw new IOException(snapshot + " is corrupt");
+				}
+			} finally {
+				in.close();
+			}
+			this._seq = this._snapshotSeq;
+		}
+		File log = logFile();
+		if (log.exists()) {
+			DataInputStream in = new DataInputStream(new BufferedInputStream(new FileInputStream(log)));
+			long torn;
+			try {
+				torn = replay(in, 0, this._snapshotSeq);
+			} finally {
+				in.close();
+			}
+			if (torn >= 0) {
+				System.err.println("Warning - " + log + " ends with a torn record at byte " + torn + ", cut off");
+				RandomAccessFile file = new RandomAccessFile(log, "rw");
+				try {
+					file.setLength(torn);
+				} finally {
+					file.close();
+				}
+			}
+		}
+		this._log = new FileOutputStream(log, true);
+	}//end EmbeddedBookingRepository
+
+	private File snapshotFile() {
+		return new File(this._directory, "snapshot.dat");
+	}
+
+	private File logFile() {
+		return new File(this._directory, "log.dat");
+	}
+
+	/**
+	 * Applies the records of in whose sequence number is above after.
+	 * Returns -1 at a clean end, or the offset of the first torn or corrupt
+	 * record.
+	 */
+	private long replay(DataInputStream in, long offset, long after) throws IOException {
+		CRC32 crc = new CRC32();
+		while (true) {
+			int length;
+			try {
+				length = in.readInt();
+			} catch (EOFException e) {
+				return -1;
+			}
+			byte[] body;
+			long checksum;
+			try {
+				if (length < 9 || length > MAX_RECORD) {
+					return offset;
+				}
+				checksum = in.readInt() & 0xffffffffL;
+				body = new byte[length];
+				in.readFully(body);
+			} catch (EOFException e) {
+				return offset;
+			}
+			crc.reset();
+			crc.update(body, 0, body.length);
+			if (crc.getValue() != checksum) {
+				return offset;
+			}
+			DataInputStream record = new DataInputStream(new ByteArrayInputStream(body));
+			long seq = record.readLong();
+			if (seq > after) {
+				try {
+					apply(record.readByte(), record);
+				} catch (SQLException e) {
+					throw new IOException("record " + seq + " cannot be applied: " + e.getMessage(), e);
+				}
+				this._seq = Math.max(this._seq, seq);
+			}
+			offset += 8 + length;
+		}
+	}//end replay
+
+	/**
+	 * Decodes one record and applies it to the indexes.
+	 */
+	private void apply(byte type, DataInputStream in) throws IOException, SQLException {
+		switch (type) {
+			case AIRLINE:
+				applyAirline(new Airline(in.readInt(), in.readUTF(), in.readInt(), in.readUTF(), in.readUTF()));
+				break;
+			case PASSENGER:
+				applyPassenger(new Passenger(in.readInt(), in.readUTF(), in.readUTF(), in.readInt(), in.readUTF()));
+				break;
+			case FLIGHT:
+				applyFlight(in.readInt(), in.readUTF(), in.readUTF(), in.readUTF(), in.readUTF(), in.readInt(), in.readInt());
+				break;
+			case BOOKING: {
+				long id = in.readLong();
+				String bookRef = in.readUTF();
+				int departure = in.readInt();
+				applyBooking(new Booking(id, bookRef, departure, flight(in.readUTF()), passenger(in.readInt())));
+				break;
+			}
+			case RATING: {
+				int rID = in.readInt();
+				Passenger passenger = passenger(in.readInt());
+				Flight flight = flight(in.readUTF());
+				int score = in.readInt();
+				applyRating(new Rating(rID, passenger, flight, score, in.readBoolean() ? in.readUTF() : null));
+				break;
+			}
+			default:
+				throw new IOException("unknown record type " + type);
+		}
+	}//end apply
+
+	private Flight flight(String flightNum) throws SQLException {
+		Flight flight = this._flights.get(flightNum);
+		if (flight == null) {
+			throw new SQLException("flight " + flightNum + " does not exist", "23503");
+		}
+		return flight;
+	}
+
+	private Passenger passenger(int pID) throws SQLException {
+		Passenger passenger = this._passengers.get(pID);
+		if (passenger == null) {
+			throw new SQLException("passenger " + pID + " does not exist", "23503");
+		}
+		return passenger;
+	}
+
+	private void applyAirline(Airline airline) {
+		this._airlines.put(airline.airId, airline);
+	}
+
+	private void applyPassenger(Passenger passenger) {
+		this._passengers.put(passenger.pID, passenger);
+		this._passports.put(passenger.passNum, passenger);
+		this._nextPassengerId = Math.max(this._nextPassengerId, passenger.pID + 1);
+	}
+
+	private void applyFlight(int airId, String flightNum, String origin, String destination, String plane,
+			int seats, int duration) {
+		Flight flight = this._flights.get(flightNum);
+		if (flight == null) {
+			flight = new Flight(this._flightsById.size(), flightNum);
+			this._flights.put(flightNum, flight);
+			this._flightsById.add(flight);
+		}
+		else {
+			this._routes.get(flight.origin + "\n" + flight.destination).remove(flight);
+			this._destinations.get(flight.destination)[0]--;
+		}
+		flight.airId = airId;
+		flight.origin = origin;
+		flight.destination = destination;
+		flight.plane = plane;
+		flight.seats = seats;
+		flight.duration = duration;
+		String route = origin + "\n" + destination;
+		List<Flight> flights = this._routes.get(route);
+		if (flights == null) {
+			flights = new ArrayList<Flight>(2);
+			this._routes.put(route, flights);
+		}
+		flights.add(flight);
+		int[] count = this._destinations.get(destination);
+		if (count == null) {
+			count = new int[1];
+			this._destinations.put(destination, count);
+		}
+		count[0]++;
+	}//end applyFlight
+
+	private void applyBooking(Booking booking) {
+		this._bookings.put(booking.bookRef, booking);
+		booking.passenger.bookings.add(booking);
+		this._booked.add(seatKey(booking.flight, booking.departure), 1);
+		this._nextBookingId = Math.max(this._nextBookingId, booking.id + 1);
+	}
+
+	private void applyRating(Rating rating) {
+		this._ratings.put(rating.rID, rating);
+		rating.passenger.ratings.add(rating);
+		rating.flight.ratings++;
+		rating.flight.scoreSum += rating.score;
+		this._nextRatingId = Math.max(this._nextRatingId, rating.rID + 1);
+	}
+
+	private static long seatKey(Flight flight, int departure) {
+		return ((long) flight.id << 32) | (departure & 0xffffffffL);
+	}
+
+	//record encoders, shared by the log and the snapshot
+
+	private static byte[] airlineRecord(Airline a) throws IOException {
+		Record r = new Record(AIRLINE);
+		r.out.writeInt(a.airId);
+		r.out.writeUTF(a.name);
+		r.out.writeInt(a.founded);
+		r.out.writeUTF(a.country);
+		r.out.writeUTF(a.hub);
+		return r.bytes();
+	}
+
+	private static byte[] passengerRecord(Passenger p) throws IOException {
+		Record r = new Record(PASSENGER);
+		r.out.writeInt(p.pID);
+		r.out.writeUTF(p.passNum);
+		r.out.writeUTF(p.fullName);
+		r.out.writeInt(p.bdate);
+		r.out.writeUTF(p.country);
+		return r.bytes();
+	}
+
+	private static byte[] flightRecord(int airId, String flightNum, String origin, String destination, String plane,
+			int seats, int duration) throws IOException {
+		Record r = new Record(FLIGHT);
+		r.out.writeInt(airId);
+		r.out.writeUTF(flightNum);
+		r.out.writeUTF(origin);
+		r.out.writeUTF(destination);
+		r.out.writeUTF(plane);
+		r.out.writeInt(seats);
+		r.out.writeInt(duration);
+		return r.bytes();
+	}
+
+	private static byte[] bookingRecord(Booking b) throws IOException {
+		Record r = new Record(BOOKING);
+		r.out.writeLong(b.id);
+		r.out.writeUTF(b.bookRef);
+		r.out.writeInt(b.departure);
+		r.out.writeUTF(b.flight.flightNum);
+		r.out.writeInt(b.passenger.pID);
+		return r.bytes();
+	}
+
+	private static byte[] ratingRecord(Rating rating) throws IOException {
+		Record r = new Record(RATING);
+		r.out.writeInt(rating.rID);
+		r.out.writeInt(rating.passenger.pID);
+		r.out.writeUTF(rating.flight.flightNum);
+		r.out.writeInt(rating.score);
+		r.out.writeBoolean(rating.comment != null);
+		if (rating.comment != null) {
+			r.out.writeUTF(rating.comment);
+		}
+		return r.bytes();
+	}
+
+	/**
+	 * The body of a record after its sequence number: the type and the
+	 * fields.
+	 */
+	private static class Record {
+		final ByteArrayOutputStream bytes = new ByteArrayOutputStream(64);
+		final DataOutputStream out = new DataOutputStream(this.bytes);
+
+		Record(byte type) throws IOException {
+			this.out.writeByte(type);
+		}
+
+		byte[] bytes() {
+			return this.bytes.toByteArray();
+		}
+	}
+
+	/**
+	 * Frames a record: length, CRC32 and the body, which is the sequence
+	 * number followed by the record.
+	 */
+	private static void frame(DataOutputStream out, long seq, byte[] record) throws IOException {
+		ByteArrayOutputStream bytes = new ByteArrayOutputStream(record.length + 8);
+		DataOutputStream body = new DataOutputStream(bytes);
+		body.writeLong(seq);
+		body.write(record);
+		byte[] b = bytes.toByteArray();
+		CRC32 crc = new CRC32();
+		crc.update(b, 0, b.length);
+		out.writeInt(b.length);
+		out.writeInt((int) crc.getValue());
+		out.write(b);
+	}
+
+	/**
+	 * Writes one change to the log, durably when sync is on, before the
+	 * caller applies it.  Writes a snapshot every snapshotEvery changes.
+	 */
+	private void append(byte[] record) throws SQLException {
+		try {
+			ByteArrayOutputStream bytes = new ByteArrayOutputStream(record.length + 16);
+			frame(new DataOutputStream(bytes), this._seq + 1, record);
+			this._log.write(bytes.toByteArray());
+			this._log.flush();
+			if (this._sync) {
+				this._log.getChannel().force(false);
+			}
+		} catch (IOException e) {
+			throw new SQLException("cannot write " + logFile() + ": " + e.getMessage(), "58030", e);
+		}
+		++this._seq;
+	}
+
+	/**
+	 * Snapshots after the change just applied when it is due.
+	 */
+	private void snapshotIfDue() throws SQLException {
+		if (this._seq - this._snapshotSeq >= this._snapshotEvery) {
+			try {
+				snapshot();
+			} catch (IOException e) {
+				//the log still holds every change, the next snapshot will catch up
+				System.err.println("Warning - snapshot failed: " + e.getMessage());
+			}
+		}
+	}
+
+	/**
+	 * Method to write the whole state to a new snapshot and start an empty
+	 * log.  The snapshot replaces the previous one atomically.
+	 *
+	 * @throws java.io.IOException when the snapshot could not be written
+	 */
+	public synchronized void snapshot() throws IOException {
+		File tmp = new File(this._directory, "snapshot.tmp");
+		FileOutputStream file = new FileOutputStream(tmp);
+		try {
+			DataOutputStream out = new DataOutputStream(new BufferedOutputStream(file, 1 << 16));
+			out.writeInt(SNAPSHOT_MAGIC);
+			out.writeLong(this._seq);
+			//referenced rows first
+			for (Airline a : this._airlines.values()) {
+				frame(out, 0, airlineRecord(a));
+			}
+			for (Flight f : this._flightsById) {
+				frame(out, 0, flightRecord(f.airId, f.flightNum, f.origin, f.destination, f.plane, f.seats, f.duration));
+			}
+			for (Passenger p : this._passengers.values()) {
+				frame(out, 0, passengerRecord(p));
+			}
+			for (Booking b : this._bookings.values()) {
+				frame(out, 0, bookingRecord(b));
+			}
+			for (Rating r : this._ratings.values()) {
+				frame(out, 0, ratingRecord(r));
+			}
+			out.flush();
+			file.getChannel().force(true);
+		} finally {
+			file.close();
+		}
+		Files.move(tmp.toPath(), snapshotFile().toPath(), StandardCopyOption.ATOMIC_MOVE, StandardCopyOption.REPLACE_EXISTING);
+		//the rename must be on disk before the log is emptied, or a crash loses both
+		syncDirectory();
+		this._snapshotSeq = this._seq;
+		//the records of the old log are all in the snapshot now
+		this._log.close();
+		this._log = new FileOutputStream(logFile(), false);
+	}//end snapshot
+
+	/**
+	 * Forces the entries of the store directory to disk.  A platform that
+	 * cannot open a directory (Windows) makes a rename durable by itself.
+	 */
+	private void syncDirectory() throws IOException {
+		FileChannel directory;
+		try {
+			directory = FileChannel.open(this._directory.toPath(), StandardOpenOption.READ);
+		} catch (IOException e) {
+			return;
+		}
+		try {
+			directory.force(true);
+		} finally {
+			directory.close();
+		}
+	}
+
+	//checks shared by the operations, with the SQLSTATEs PostgreSQL would raise
+
+	private static String text(String value, int max, String column) throws SQLException {
+		if (value == null) {
+			throw new SQLException("null value in column \"" + column + "\"", "23502");
+		}
+		String trimmed = QueryResult.trimTrailing(value);
+		if (trimmed.length() > max) {
+			throw new SQLException("value too long for " + column + " (character(" + max + "))", "22001");
+		}
+		return trimmed;
+	}
+
+	private static void check(boolean ok, String constraint) throws SQLException {
+		if (!ok) {
+			throw new SQLException("value violates check constraint " + constraint, "23514");
+		}
+	}
+
+	/**
+	 * Method to parse a date as PostgreSQL does with DateStyle MDY:
+	 * mm/dd/yyyy, or yyyy-mm-dd.
+	 *
+	 * @param date the date text
+	 * @return days since 1970-01-01
+	 * @throws java.sql.SQLException when the date is not valid
+	 */
+	static int parseDate(String date) throws SQLException {
+		String d = date.trim();
+		try {
+			LocalDate day = d.indexOf('-') > 0 ? LocalDate.parse(d) : LocalDate.parse(d, MDY);
+			return (int) day.toEpochDay();
+		} catch (DateTimeParseException e) {
+			boolean shaped = d.matches("\\d{1,2}/\\d{1,2}/\\d{4}|\\d{4}-\\d{1,2}-\\d{1,2}");
+			throw new SQLException((shaped ? "date/time field value out of range: " : "invalid input syntax for type date: ")
+					+ "\"" + date + "\"", shaped ? "22008" : "22007");
+		}
+	}
+
+	public synchronized void addAirline(int airId, String name, int founded, String country, String hub) throws SQLException {
+		Airline airline = new Airline(airId, text(name, 24, "name"), founded, text(country, 24, "country"), text(hub, 24, "hub"));
+		check(founded >= 1900, "_year_check");
+		if (this._airlines.get(airId) != null) {
+			throw new SQLException("duplicate key value violates unique constraint \"airline_pkey\"", "23505");
+		}
+		try {
+			append(airlineRecord(airline));
+		} catch (IOException e) {
+			throw new SQLException(e.getMessage(), "58030", e);
+		}
+		applyAirline(airline);
+		snapshotIfDue();
+	}
+
+	public synchronized int addPassenger(String passNum, String fullName, String bdate, String country) throws SQLException {
+		if (passNum.length() != 10) {
+			throw new IllegalArgumentException("passNum must have 10 characters");
+		}
+		Passenger passenger = new Passenger(this._nextPassengerId, text(passNum, 10, "passnum"),
+				text(fullName, 24, "fullname"), parseDate(bdate), text(country, 24, "country"));
+		if (this._passports.containsKey(passenger.passNum)) {
+			throw new SQLException("duplicate key value violates unique constraint \"passenger_passnum_key\"", "23505");
+		}
+		try {
+			append(passengerRecord(passenger));
+		} catch (IOException e) {
+			throw new SQLException(e.getMessage(), "58030", e);
+		}
+		applyPassenger(passenger);
+		snapshotIfDue();
+		return passenger.pID;
+	}
+
+	public synchronized BookingEngine.Outcome bookFlight(String passNum, String flightNum, String departure)
+			throws SQLException {
+		int day = parseDate(departure);
+		Passenger passenger = this._passports.get(QueryResult.trimTrailing(passNum));
+		if (passenger == null) {
+			return new BookingEngine.Outcome(null, BookingEngine.Outcome.UNKNOWN_PASSPORT);
+		}
+		Flight flight = this._flights.get(QueryResult.trimTrailing(flightNum));
+		if (flight == null) {
+			return new BookingEngine.Outcome(null, BookingEngine.Outcome.UNKNOWN_FLIGHT);
+		}
+		for (Booking b : passenger.bookings) {
+			if (b.flight == flight && b.departure == day) {
+				return new BookingEngine.Outcome(null, BookingEngine.Outcome.ALREADY_BOOKED);
+			}
+		}
+		if (this._booked.get(seatKey(flight, day)) >= flight.seats) {
+			return new BookingEngine.Outcome(null, BookingEngine.Outcome.FULL);
+		}
+		long id = this._nextBookingId;
+		while (this._bookings.containsKey(BookingEngine.toBookingReference(id))) {
+			//taken by an imported booking
+			++id;
+		}
+		Booking booking = new Booking(id, BookingEngine.toBookingReference(id), day, flight, passenger);
+		try {
+			append(bookingRecord(booking));
+		} catch (IOException e) {
+			throw new SQLException(e.getMessage(), "58030", e);
+		}
+		applyBooking(booking);
+		snapshotIfDue();
+		return new BookingEngine.Outcome(booking.bookRef, null);
+	}//end bookFlight
+
+	public synchronized int reviewFlight(int pID, String flightNum, int score, String comment) throws SQLException {
+		if (score < 0 || score > 5) {
+			throw new IllegalArgumentException("invalid score, must be 0-5");
+		}
+		Passenger passenger = this._passengers.get(pID);
+		Flight flight = this._flights.get(QueryResult.trimTrailing(flightNum));
+		if (passenger != null) {
+			for (Rating r : passenger.ratings) {
+				if (r.flight == flight) {
+					throw new IllegalArgumentException("the passenger wrote a rating for this flight");
+				}
+			}
+		}
+		boolean took = false;
+		if (passenger != null) {
+			for (Booking b : passenger.bookings) {
+				took |= b.flight == flight;
+			}
+		}
+		if (!took) {
+			throw new IllegalArgumentException("the passenger didnt take the flight");
+		}
+		Rating rating = new Rating(this._nextRatingId, passenger, flight, score, comment);
+		try {
+			append(ratingRecord(rating));
+		} catch (IOException e) {
+			throw new SQLException(e.getMessage(), "58030", e);
+		}
+		applyRating(rating);
+		snapshotIfDue();
+		return rating.rID;
+	}//end reviewFlight
+
+	public synchronized RouteGraph.Leg upsertFlight(int airId, String flightNum, String origin, String destination,
+			String plane, int seats, int duration) throws SQLException {
+		flightNum = text(flightNum, 8, "flightnum");
+		origin = text(origin, 16, "origin");
+		destination = text(destination, 16, "destination");
+		plane = text(plane, 16, "plane");
+		check(seats > 0 && seats < 500, "_seats_check");
+		check(duration > 0 && duration < 24, "_hours_check");
+		Airline airline = this._airlines.get(airId);
+		if (airline == null) {
+			throw new SQLException("insert or update on table \"flight\" violates foreign key constraint"
+					+ " \"flight_airid_fkey\"", "23503");
+		}
+		try {
+			append(flightRecord(airId, flightNum, origin, destination, plane, seats, duration));
+		} catch (IOException e) {
+			throw new SQLException(e.getMessage(), "58030", e);
+		}
+		applyFlight(airId, flightNum, origin, destination, plane, seats, duration);
+		snapshotIfDue();
+		return new RouteGraph.Leg(flightNum, origin, destination, duration, airId, airline.name);
+	}//end upsertFlight
+
+	private List<Flight> route(String origin, String destination) {
+		List<Flight> flights = this._routes.get(QueryResult.trimTrailing(origin) + "\n" + QueryResult.trimTrailing(destination));
+		return flights == null ? Collections.<Flight>emptyList() : flights;
+	}
+
+	public synchronized QueryResult listFlights(String origin, String destination) {
+		QueryResult.Builder rows = new QueryResult.Builder(
+				new String[] { "airid", "flightnum", "origin", "destination", "plane", "seats", "duration" },
+				new QueryResult.Type[] { QueryResult.Type.INT, QueryResult.Type.STRING, QueryResult.Type.STRING,
+						QueryResult.Type.STRING, QueryResult.Type.STRING, QueryResult.Type.INT, QueryResult.Type.INT });
+		for (Flight f : route(origin, destination)) {
+			rows.add(f.airId, f.flightNum, f.origin, f.destination, f.plane, f.seats, f.duration);
+		}
+		return rows.build();
+	}
+
+	public synchronized QueryResult popularDestinations(int k) {
+		List<Map.Entry<String, int[]>> ranked = new ArrayList<Map.Entry<String, int[]>>();
+		for (Map.Entry<String, int[]> d : this._destinations.entrySet()) {
+			if (d.getValue()[0] > 0) {
+				ranked.add(d);
+			}
+		}
+		Collections.sort(ranked, (a, b) -> a.getValue()[0] != b.getValue()[0]
+				? Integer.compare(b.getValue()[0], a.getValue()[0]) : a.getKey().compareTo(b.getKey()));
+		QueryResult.Builder rows = new QueryResult.Builder(new String[] { "destination", "flights" },
+				new QueryResult.Type[] { QueryResult.Type.STRING, QueryResult.Type.INT });
+		for (int i = 0; i < k && i < ranked.size(); ++i) {
+			rows.add(ranked.get(i).getKey(), ranked.get(i).getValue()[0]);
+		}
+		return rows.build();
+	}
+
+	private static final String[] HIGHEST_RATED = { "name", "flightnum", "origin", "destination", "plane", "avg" };
+	private static final String[] AVAILABLE_SEATS =
+			{ "flightnum", "origin", "destination", "departure", "booked", "seats", "available" };
+
+	/**
+	 * The rated flights, best average score first, then most ratings.
+	 */
+	private List<Flight> rated() {
+		List<Flight> rated = new ArrayList<Flight>();
+		for (Flight f : this._flightsById) {
+			if (f.ratings > 0) {
+				rated.add(f);
+			}
+		}
+		//scoreSum / ratings compared exactly, by cross multiplication
+		Collections.sort(rated, (a, b) -> {
+			long diff = (long) b.scoreSum * a.ratings - (long) a.scoreSum * b.ratings;
+			return diff != 0 ? Long.signum(diff) : Integer.compare(b.ratings, a.ratings);
+		});
+		return rated;
+	}
+
+	public synchronized QueryResult highestRated(int k) {
+		List<Flight> rated = rated();
+		QueryResult.Builder rows = new QueryResult.Builder(HIGHEST_RATED,
+				new QueryResult.Type[] { QueryResult.Type.STRING, QueryResult.Type.STRING, QueryResult.Type.STRING,
+						QueryResult.Type.STRING, QueryResult.Type.STRING, QueryResult.Type.DOUBLE });
+		for (int i = 0; i < k && i < rated.size(); ++i) {
+			Flight f = rated.get(i);
+			rows.add(this._airlines.get(f.airId).name, f.flightNum, f.origin, f.destination, f.plane,
+					(double) f.scoreSum / f.ratings);
+		}
+		return rows.build();
+	}
+
+	public synchronized int highestRated(int k, RowCallback callback) throws SQLException {
+		List<Flight> rated = rated();
+		int n = Math.min(k, rated.size());
+		for (int i = 0; i < n; ++i) {
+			Flight f = rated.get(i);
+			callback.row(HIGHEST_RATED, new String[] { this._airlines.get(f.airId).name, f.flightNum, f.origin,
+					f.destination, f.plane, Double.toString((double) f.scoreSum / f.ratings) });
+		}
+		return n;
+	}
+
+	public synchronized QueryResult flightsByDuration(String origin, String destination, int k) {
+		List<Flight> flights = new ArrayList<Flight>(route(origin, destination));
+		Collections.sort(flights, (a, b) -> Integer.compare(a.duration, b.duration));
+		QueryResult.Builder rows = new QueryResult.Builder(
+				new String[] { "name", "flightnum", "origin", "destination", "duration", "plane" },
+				new QueryResult.Type[] { QueryResult.Type.STRING, QueryResult.Type.STRING, QueryResult.Type.STRING,
+						QueryResult.Type.STRING, QueryResult.Type.INT, QueryResult.Type.STRING });
+		for (int i = 0; i < k && i < flights.size(); ++i) {
+			Flight f = flights.get(i);
+			rows.add(this._airlines.get(f.airId).name, f.flightNum, f.origin, f.destination, f.duration, f.plane);
+		}
+		return rows.build();
+	}
+
+	public synchronized QueryResult availableFlights(String origin, String destination, String departure)
+			throws SQLException {
+		int day = parseDate(departure);
+		String date = LocalDate.ofEpochDay(day).toString();
+		QueryResult.Builder rows = new QueryResult.Builder(
+				new String[] { "flightnum", "origin", "destination", "departure", "availableseats" },
+				new QueryResult.Type[] { QueryResult.Type.STRING, QueryResult.Type.STRING, QueryResult.Type.STRING,
+						QueryResult.Type.STRING, QueryResult.Type.INT });
+		for (Flight f : route(origin, destination)) {
+			int left = f.seats - this._booked.get(seatKey(f, day));
+			if (left > 0) {
+				rows.add(f.flightNum, f.origin, f.destination, date, left);
+			}
+		}
+		return rows.build();
+	}
+
+	/**
+	 * The flights with seats left on day, by origin and destination.
+	 */
+	private List<Flight> withSeatsLeft(int day) {
+		List<Flight> flights = new ArrayList<Flight>();
+		for (Flight f : this._flightsById) {
+			if (f.seats - this._booked.get(seatKey(f, day)) > 0) {
+				flights.add(f);
+			}
+		}
+		Collections.sort(flights, (a, b) -> a.origin.equals(b.origin)
+				? a.destination.compareTo(b.destination) : a.origin.compareTo(b.origin));
+		return flights;
+	}
+
+	public synchronized QueryResult availableSeats(String departure) throws SQLException {
+		int day = parseDate(departure);
+		String date = LocalDate.ofEpochDay(day).toString();
+		QueryResult.Builder rows = new QueryResult.Builder(AVAILABLE_SEATS,
+				new QueryResult.Type[] { QueryResult.Type.STRING, QueryResult.Type.STRING, QueryResult.Type.STRING,
+						QueryResult.Type.STRING, QueryResult.Type.INT, QueryResult.Type.INT, QueryResult.Type.INT });
+		for (Flight f : withSeatsLeft(day)) {
+			int booked = this._booked.get(seatKey(f, day));
+			rows.add(f.flightNum, f.origin, f.destination, date, booked, f.seats, f.seats - booked);
+		}
+		return rows.build();
+	}//end availableSeats
+
+	public synchronized int availableSeats(String departure, RowCallback callback) throws SQLException {
+		int day = parseDate(departure);
+		String date = LocalDate.ofEpochDay(day).toString();
+		List<Flight> flights = withSeatsLeft(day);
+		for (Flight f : flights) {
+			int booked = this._booked.get(seatKey(f, day));
+			callback.row(AVAILABLE_SEATS, new String[] { f.flightNum, f.origin, f.destination, date,
+					Integer.toString(booked), Integer.toString(f.seats), Integer.toString(f.seats - booked) });
+		}
+		return flights.size();
+	}
+
+	/**
+	 * Method to import the CSV files of code/data (airline.csv,
+	 * passenger.csv, flights.csv, ratings.csv and bookings.csv) with their
+	 * keys, as the load command does for PostgreSQL.  Bookings are not
+	 * checked against capacity, like a COPY into Booking.
+	 *
+	 * @param directory the directory holding the files
+	 * @return the number of rows imported
+	 * @throws java.io.IOException when a file could not be read
+	 * @throws java.sql.SQLException when a row violates a constraint
+	 */
+	public synchronized int importCsv(File directory) throws IOException, SQLException {
+		int rows = 0;
+		for (String[] f : csv(new File(directory, "airline.csv"), 5)) {
+			addAirline(Integer.parseInt(f[0].trim()), f[1], Integer.parseInt(f[2].trim()), f[3], f[4]);
+			++rows;
+		}
+		for (String[] f : csv(new File(directory, "flights.csv"), 7)) {
+			upsertFlight(Integer.parseInt(f[0].trim()), f[1], f[2], f[3], f[4],
+					Integer.parseInt(f[5].trim()), Integer.parseInt(f[6].trim()));
+			++rows;
+		}
+		for (String[] f : csv(new File(directory, "passenger.csv"), 5)) {
+			Passenger passenger = new Passenger(Integer.parseInt(f[0].trim()), text(f[1], 10, "passnum"),
+					text(f[2], 24, "fullname"), parseDate(f[3]), text(f[4], 24, "country"));
+			if (this._passengers.get(passenger.pID) != null || this._passports.containsKey(passenger.passNum)) {
+				throw new SQLException("duplicate passenger " + passenger.pID + " " + passenger.passNum, "23505");
+			}
+			append(passengerRecord(passenger));
+			applyPassenger(passenger);
+			snapshotIfDue();
+			++rows;
+		}
+		for (String[] f : csv(new File(directory, "ratings.csv"), 5)) {
+			Rating rating = new Rating(Integer.parseInt(f[0].trim()), passenger(Integer.parseInt(f[1].trim())),
+					flight(text(f[2], 8, "flightnum")), Integer.parseInt(f[3].trim()), f[4]);
+			if (this._ratings.get(rating.rID) != null) {
+				throw new SQLException("duplicate rating " + rating.rID, "23505");
+			}
+			append(ratingRecord(rating));
+			applyRating(rating);
+			snapshotIfDue();
+			++rows;
+		}
+		for (String[] f : csv(new File(directory, "bookings.csv"), 4)) {
+			Booking booking = new Booking(-1, text(f[0], 10, "bookref"), parseDate(f[1]),
+					flight(text(f[2], 8, "flightnum")), passenger(Integer.parseInt(f[3].trim())));
+			if (this._bookings.containsKey(booking.bookRef)) {
+				throw new SQLException("duplicate booking " + booking.bookRef, "23505");
+			}
+			append(bookingRecord(booking));
+			applyBooking(booking);
+			snapshotIfDue();
+			++rows;
+		}
+		return rows;
+	}//end importCsv
+
+	private static List<String[]> csv(File file, int columns) throws IOException {
+		List<String[]> rows = new ArrayList<String[]>();
+		BufferedReader in = new BufferedReader(new FileReader(file));
+		try {
+			for (String line = in.readLine(); line != null; line = in.readLine()) {
+				if (!line.trim().isEmpty()) {
+					String[] fields = line.split(",", columns);
+					if (fields.length != columns) {
+						throw new IOException(file + ": " + columns + " fields expected in: " + line);
+					}
+					rows.add(fields);
+				}
+			}
+		} finally {
+			in.close();
+		}
+		return rows;
+	}
+
+	public synchronized int passengerId(String passNum) {
+		Passenger passenger = this._passports.get(QueryResult.trimTrailing(passNum));
+		return passenger == null ? -1 : passenger.pID;
+	}
+
+	public synchronized boolean passengerExists(int pID) {
+		return this._passengers.get(pID) != null;
+	}
+
+	public synchronized boolean flightExists(String flightNum) {
+		return this._flights.containsKey(QueryResult.trimTrailing(flightNum));
+	}
+
+	/**
+	 * @return the number of flights, passengers and bookings held, for status output
+	 */
+	public synchronized String summary() {
+		return this._airlines.size() + " airline(s), " + this._flights.size() + " flight(s), "
+				+ this._passengers.size() + " passenger(s), " + this._bookings.size() + " booking(s), "
+				+ this._ratings.size() + " rating(s)";
+	}
+
+	/**
+	 * Snapshots the state, so the next open does not replay the log, and
+	 * closes the log.
+	 */
+	public synchronized void close() {
+		if (this._log == null) {
+			return;
+		}
+		try {
+			if (this._seq > this._snapshotSeq) {
+				snapshot();
+			}
+		} catch (IOException e) {
+			System.err.println("Warning - snapshot failed, the log is kept: " + e.getMessage());
+		}
+		try {
+			this._log.close();
+		} catch (IOException e) {
+			// ignored.
+		}
+		this._log = null;
+	}
+
+	/**
+	 * Closes the log without a snapshot, leaving the files as a crash
+	 * would; used to check recovery.
+	 */
+	synchronized void closeWithoutSnapshot() throws IOException {
+		this._log.close();
+		this._log = null;
+	}
+}//end EmbeddedBookingRepository
@@ -0,0 +1,345 @@
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.io.UnsupportedEncodingException;
+import java.net.InetSocketAddress;
+import java.net.URLDecoder;
+import java.nio.charset.StandardCharsets;
+import java.sql.SQLException;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.LongAdder;
+
+import com.sun.net.httpserver.HttpExchange;
+import com.sun.net.httpserver.HttpHandler;
+import com.sun.net.httpserver.HttpServer;
+
+/**
+ * This class serves the AirBooking operations as JSON over HTTP with the
+ * JDK's built-in server.  Requests run one per virtual thread when the JVM
+ * has them (Java 21+), otherwise on a fixed pool of platform threads.
+ *
+ * At most dbPermits requests use the database at a time; the others wait
+ * up to the borrow timeout for a permit and are then refused with 503, so a
+ * burst of traffic queues in cheap threads instead of on the connection
+ * pool.  Operations answered from memory need no permit.
+ *
+ *	POST /passengers              {"passNum", "fullName", "bdate", "country"}
+ *	POST /bookings                {"passNum", "flightNum", "departure"}
+ *	POST /bookings/group          {"flightNum", "departure", "passNums"}, passports separated by commas
+ *	POST /reviews                 {"pID", "flightNum", "score", "comment"}
+ *	POST /flights                 {"airId", "flightNum", "origin", "destination", "plane", "seats", "duration"}
+ *	GET  /flights                 ?origin&destination
+ *	GET  /flights/by-duration     ?origin&destination&k
+ *	GET  /destinations/popular    ?k
+ *	GET  /routes/highest-rated    ?k
+ *	GET  /seats                   ?departure
+ *	GET  /connections             ?origin&destination&k&maxStops, maxStops at most RouteGraph.MAX_STOPS
+ *	GET  /cities/suggest          ?kind=origin|destination&input&k
+ *	GET  /stats                   request counts, requests per second and latency percentiles per route,
+ *	                              reference cache hits and misses, replica health and lag
+ *	GET  /stats/popularity        destinations whose in-memory flight count (/destinations/popular) differs
+ *	                              from a fresh count of Flight
+ *
+ * Successful responses are {"result": ...}; failures are {"error": "..."}
+ * with 400 for invalid input, 404 for unknown routes, 409 for constraint
+ * violations and full flights, 503 when no database permit became free and
+ * 500 otherwise.
+ */
+public class HttpService {
+	//"METHOD path" -> operation
+	private static final Map<String, String> ROUTES = new LinkedHashMap<String, String>();
+	static {
+		ROUTES.put("POST /passengers", "add-passenger");
+		ROUTES.put("POST /bookings", "book");
+		ROUTES.put("POST /bookings/group", "book-group");
+		ROUTES.put("POST /reviews", "review");
+		ROUTES.put("POST /flights", "upsert-flight");
+		ROUTES.put("GET /flights", "list-flights");
+		ROUTES.put("GET /flights/by-duration", "flights-by-duration");
+		ROUTES.put("GET /destinations/popular", "popular-destinations");
+		ROUTES.put("GET /routes/highest-rated", "highest-rated");
+		ROUTES.put("GET /seats", "available-seats");
+		ROUTES.put("GET /connections", "connections");
+		ROUTES.put("GET /cities/suggest", "suggest-cities");
+		ROUTES.put("GET /stats/popularity", "check-popularity");
+	}
+
+	//largest request body accepted
+	private static final int MAX_BODY = 64 * 1024;
+
+	private final AirBooking _esql;
+	private final Semaphore _dbPermits;
+	private final long _permitTimeoutMillis;
+	private final HttpServer _server;
+	private final ExecutorService _executor;
+	private final Map<String, LatencyHistogram> _latency = new ConcurrentHashMap<String, LatencyHistogram>();
+	private final Map<String, LongAdder> _errors = new ConcurrentHashMap<String, LongAdder>();
+	private volatile long _startNanos = System.nanoTime();
+
+	/**
+	 * @param esql the database session to serve
+	 * @param port the TCP port to listen on
+	 * @param dbPermits requests allowed to use the database at the same time
+	 * @param permitTimeoutMillis how long a request waits for a database permit
+	 * @param platformThreads size of the thread pool used when virtual threads are not available
+	 * @throws java.io.IOException when the port could not be bound
+	 */
+	public HttpService(AirBooking esql, int port, int dbPermits, long permitTimeoutMillis, int platformThreads) throws IOException {
+		this._esql = esql;
+		this._dbPermits = new Semaphore(dbPermits, true);
+		this._permitTimeoutMillis = permitTimeoutMillis;
+		this._executor = newExecutor(platformThreads);
+		this._server = HttpServer.create(new InetSocketAddress(port), 1024);
+		this._server.setExecutor(this._executor);
+		this._server.createContext("/", new HttpHandler() {
+			public void handle(HttpExchange exchange) throws IOException {
+				serve(exchange);
+			}
+		});
+	}
+
+	/**
+	 * Uses a virtual thread per request on JVMs that have them; the code
+	 * is compiled for Java 8, so the factory method is looked up by name.
+	 */
+	private static ExecutorService newExecutor(int platformThreads) {
+		try {
+			return (ExecutorService) Executors.class.getMethod("newVirtualThreadPerTaskExecutor").invoke(null);
+		} catch (ReflectiveOperationException e) {
+			return Executors.newFixedThreadPool(platformThreads);
+		}
+	}
+
+	/**
+	 * @return true when requests run on virtual threads
+	 */
+	public boolean usesVirtualThreads() {
+		return this._executor.getClass().getName().contains("ThreadPerTask");
+	}
+
+	/**
+	 * Method to start accepting requests.
+	 */
+	public void start() {
+		this._startNanos = System.nanoTime();
+		this._server.start();
+	}
+
+	/**
+	 * Method to stop accepting requests and wait up to delaySeconds for the
+	 * running ones to finish.
+	 *
+	 * @param delaySeconds the grace period
+	 */
+	public void stop(int delaySeconds) {
+		this._server.stop(delaySeconds);
+		this._executor.shutdown();
+	}
+
+	private void serve(HttpExchange exchange) throws IOException {
+		long start = System.nanoTime();
+		String path = exchange.getRequestURI().getPath();
+		if (path.length() > 1 && path.endsWith("/")) {
+			path = path.substring(0, path.length() - 1);
+		}
+		String route = exchange.getRequestMethod() + " " + path;
+		int status;
+		String body;
+		try {
+			if (route.equals("GET /stats")) {
+				status = 200;
+				body = Json.toJson(stats());
+			}
+			else {
+				String op = ROUTES.get(route);
+				if (op == null) {
+					status = 404;
+					body = error("no such route: " + route);
+				}
+				else {
+					Object result = run(op, fields(exchange));
+					Map<String, Object> response = new LinkedHashMap<String, Object>();
+					response.put("result", result);
+					status = 200;
+					body = Json.toJson(response);
+				}
+			}
+		} catch (IllegalArgumentException e) {
+			status = 400;
+			body = error(e.getMessage());
+		} catch (IllegalStateException e) {
+			status = 409;
+			body = error(e.getMessage());
+		} catch (Unavailable e) {
+			status = 503;
+			body = error(e.getMessage());
+		} catch (SQLException e) {
+			//class 23 is integrity constraint violation
+			String state = e.getSQLState();
+			status = state != null && state.startsWith("23") ? 409 : 500;
+			body = error(e.getMessage());
+		} catch (Exception e) {
+			status = 500;
+			body = error(e.toString());
+		}
+
+		byte[] bytes = body.getBytes(StandardCharsets.UTF_8);
+		try {
+			exchange.getResponseHeaders().set("Content-Type", "application/json; charset=utf-8");
+			exchange.sendResponseHeaders(status, bytes.length);
+			OutputStream out = exchange.getResponseBody();
+			out.write(bytes);
+			out.close();
+		} finally {
+			exchange.close();
+			String key = ROUTES.containsKey(route) || route.equals("GET /stats") ? route : "other";
+			histogram(key).record(System.nanoTime() - start);
+			if (status >= 400) {
+				LongAdder errors = this._errors.get(key);
+				if (errors == null) {
+					this._errors.putIfAbsent(key, new LongAdder());
+					errors = this._errors.get(key);
+				}
+				errors.increment();
+			}
+		}
+	}//end serve
+
+	/**
+	 * A request that waited too long for a database permit.
+	 */
+	private static class Unavailable extends Exception {
+		private static final long serialVersionUID = 1L;
+
+		Unavailable(String message) {
+			super(message);
+		}
+	}
+
+	/**
+	 * Runs an operation, holding a database permit when it needs one.
+	 */
+	private Object run(String op, Map<String, String> fields) throws SQLException, Unavailable, InterruptedException {
+		if (!Operations.usesDatabase(op)) {
+			return Operations.execute(this._esql, op, fields);
+		}
+		if (!this._dbPermits.tryAcquire(this._permitTimeoutMillis, TimeUnit.MILLISECONDS)) {
+			throw new Unavailable("the database is busy, try again");
+		}
+		try {
+			return Operations.execute(this._esql, op, fields);
+		} finally {
+			this._dbPermits.release();
+		}
+	}
+
+	/**
+	 * Reads the fields of a request: the JSON body of a POST, or the query
+	 * string of a GET.
+	 */
+	private static Map<String, String> fields(HttpExchange exchange) throws IOException {
+		if (exchange.getRequestMethod().equals("POST")) {
+			return Json.parseObject(readBody(exchange.getRequestBody()));
+		}
+		Map<String, String> fields = new LinkedHashMap<String, String>();
+		String query = exchange.getRequestURI().getRawQuery();
+		if (query == null) {
+			return fields;
+		}
+		for (String pair : query.split("&")) {
+			if (pair.isEmpty()) {
+				continue;
+			}
+			int eq = pair.indexOf('=');
+			String name = eq < 0 ? pair : pair.substring(0, eq);
+			String value = eq < 0 ? "" : pair.substring(eq + 1);
+			fields.put(decode(name), decode(value));
+		}
+		return fields;
+	}
+
+	private static String decode(String s) throws UnsupportedEncodingException {
+		return URLDecoder.decode(s, "UTF-8");
+	}
+
+	private static String readBody(InputStream in) throws IOException {
+		ByteArrayOutputStream body = new ByteArrayOutputStream();
+		byte[] buffer = new byte[4096];
+		int n;
+		while ((n = in.read(buffer)) > 0) {
+			body.write(buffer, 0, n);
+			if (body.size() > MAX_BODY) {
+				throw new IllegalArgumentException("request body larger than " + MAX_BODY + " bytes");
+			}
+		}
+		return new String(body.toByteArray(), StandardCharsets.UTF_8);
+	}
+
+	private static String error(String message) {
+		Map<String, Object> response = new LinkedHashMap<String, Object>();
+		response.put("error", message);
+		return Json.toJson(response);
+	}
+
+	private LatencyHistogram histogram(String route) {
+		LatencyHistogram histogram = this._latency.get(route);
+		if (histogram == null) {
+			this._latency.putIfAbsent(route, new LatencyHistogram());
+			histogram = this._latency.get(route);
+		}
+		return histogram;
+	}
+
+	/**
+	 * Method to summarize the traffic served since start().
+	 *
+	 * @return per route request and error counts, requests per second and latency percentiles in milliseconds
+	 */
+	public Map<String, Object> stats() {
+		double seconds = (System.nanoTime() - this._startNanos) / 1e9;
+		Map<String, Object> stats = new LinkedHashMap<String, Object>();
+		stats.put("uptimeSeconds", Math.round(seconds));
+		stats.put("virtualThreads", usesVirtualThreads());
+		stats.put("dbPermitsFree", this._dbPermits.availablePermits());
+		Map<String, Object> routes = new LinkedHashMap<String, Object>();
+		long total = 0;
+		for (Map.Entry<String, LatencyHistogram> entry : new TreeMap<String, LatencyHistogram>(this._latency).entrySet()) {
+			LatencyHistogram h = entry.getValue();
+			LongAdder errors = this._errors.get(entry.getKey());
+			Map<String, Object> route = new LinkedHashMap<String, Object>();
+			route.put("requests", h.count());
+			route.put("errors", errors == null ? 0 : errors.sum());
+			route.put("requestsPerSecond", seconds == 0 ? 0 : Math.round(h.count() / seconds));
+			route.put("meanMs", h.mean() / 1e6);
+			route.put("p50Ms", h.percentile(50) / 1e6);
+			route.put("p99Ms", h.percentile(99) / 1e6);
+			route.put("p999Ms", h.percentile(99.9) / 1e6);
+			route.put("maxMs", h.max() / 1e6);
+			routes.put(entry.getKey(), route);
+			total += h.count();
+		}
+		stats.put("requests", total);
+		stats.put("requestsPerSecond", seconds == 0 ? 0 : Math.round(total / seconds));
+		stats.put("routes", routes);
+		ReferenceCache cache = this._esql.getReferenceCache();
+		Map<String, Object> referenceCache = new LinkedHashMap<String, Object>();
+		referenceCache.put("entries", cache.size());
+		referenceCache.put("hits", cache.hits());
+		referenceCache.put("misses", cache.misses());
+		referenceCache.put("evictions", cache.evictions());
+		stats.put("referenceCache", referenceCache);
+		ReplicaRouter replicas = this._esql.getReplicaRouter();
+		if (replicas != null) {
+			stats.put("replicas", replicas.status());
+		}
+		return stats;
+	}//end stats
+}//end HttpService
@@ -0,0 +1,105 @@
+import java.sql.SQLException;
+
+/**
+ * This class hands out unique keys from a database sequence without a round
+ * trip per key.  Each call to nextval() reserves a whole block of ids for
+ * this process (the sequence is created with INCREMENT BY blockSize), and
+ * the ids of the block are then handed out from memory.
+ *
+ * Ids are unique across processes and sessions; they are not gap free,
+ * since the unused part of a block is lost when the process exits.
+ */
+public class IdAllocator {
+	private final AirBooking _esql;
+	private final String _sequence;
+	private final int _blockSize;
+	//next id to hand out and the end (exclusive) of the current block
+	private long _next = 0;
+	private long _limit = 0;
+
+	/**
+	 * @param esql the database session the sequence lives in
+	 * @param sequence name of the DB sequence
+	 * @param blockSize ids per block, must equal the INCREMENT BY of the sequence
+	 */
+	public IdAllocator(AirBooking esql, String sequence, int blockSize) {
+		if (blockSize <= 0) {
+			throw new IllegalArgumentException("invalid block size: " + blockSize);
+		}
+		this._esql = esql;
+		this._sequence = sequence;
+		this._blockSize = blockSize;
+	}
+
+	/**
+	 * Method to get the next unused id.  Only the first call of every block
+	 * reaches the database.
+	 *
+	 * @return a new unique id
+	 * @throws java.sql.SQLException when reserving a new block failed
+	 */
+	public synchronized long next() throws SQLException {
+		if (this._next >= this._limit) {
+			long start = this._esql.getNextSeqVal(this._sequence);
+			this._next = start;
+			this._limit = start + this._blockSize;
+		}
+		return this._next++;
+	}
+
+	/**
+	 * Method to get count unused ids at once, e.g. for a group booking.
+	 * The rest of the current block is used first, and all the further
+	 * blocks needed are reserved in a single database round trip.
+	 *
+	 * @param count number of ids wanted
+	 * @return count new unique ids, not necessarily consecutive
+	 * @throws java.sql.SQLException when reserving new blocks failed
+	 */
+	public synchronized long[] next(int count) throws SQLException {
+		long[] ids = new long[count];
+		int n = 0;
+		while (n < count && this._next < this._limit) {
+			ids[n++] = this._next++;
+		}
+		if (n < count) {
+			int blocks = (count - n + this._blockSize - 1) / this._blockSize;
+			for (long start : this._esql.getNextSeqVals(this._sequence, blocks)) {
+				this._next = start;
+				this._limit = start + this._blockSize;
+				while (n < count && this._next < this._limit) {
+					ids[n++] = this._next++;
+				}
+			}
+		}
+		return ids;
+	}//end next
+
+	/**
+	 * Method to get the next unused id as an INTEGER key.
+	 *
+	 * @return a new unique id
+	 * @throws java.sql.SQLException when reserving a new block failed
+	 */
+	public int nextInt() throws SQLException {
+		long id = next();
+		if (id > Integer.MAX_VALUE) {
+			throw new SQLException("sequence " + this._sequence + " is past the INTEGER range", "22003");
+		}
+		return (int) id;
+	}
+
+	/**
+	 * @return name of the sequence blocks are reserved from
+	 */
+	public String getSequence() {
+		return this._sequence;
+	}
+
+	/**
+	 * @return number of ids reserved per database round trip
+	 */
+	public int getBlockSize() {
+		return this._blockSize;
+	}
+}//end IdAllocator
@@ -0,0 +1,127 @@
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+/**
+ * This class maps int keys to objects without boxing the keys: keys and
+ * values sit in two parallel arrays probed linearly from the hash of the
+ * key, so a lookup touches one or two array slots and allocates nothing.
+ * Entries cannot be removed, and values must not be null.
+ *
+ * Not thread safe.
+ */
+public class IntObjectMap<V> {
+	private int[] _keys;
+	private Object[] _values;
+	private int _size = 0;
+
+	/**
+	 * @param expected the number of entries to size the map for
+	 */
+	public IntObjectMap(int expected) {
+		int capacity = 16;
+		while (capacity * 3 / 4 < expected) {
+			capacity *= 2;
+		}
+		this._keys = new int[capacity];
+		this._values = new Object[capacity];
+	}
+
+	//spreads consecutive keys over the table (murmur3 finalizer)
+	static int mix(int key) {
+		int h = key * 0x85ebca6b;
+		h ^= h >>> 13;
+		h *= 0xc2b2ae35;
+		return h ^ (h >>> 16);
+	}
+
+	/**
+	 * @param key a key
+	 * @return the value of key, null when there is none
+	 */
+	@SuppressWarnings("unchecked")
+	public V get(int key) {
+		int mask = this._keys.length - 1;
+		for (int i = mix(key) & mask; this._values[i] != null; i = (i + 1) & mask) {
+			if (this._keys[i] == key) {
+				return (V) this._values[i];
+			}
+		}
+		return null;
+	}
+
+	/**
+	 * @param key a key
+	 * @param value the new value of key, not null
+	 * @return the previous value of key, null when there was none
+	 */
+	@SuppressWarnings("unchecked")
+	public V put(int key, V value) {
+		if (value == null) {
+			throw new IllegalArgumentException("null value");
+		}
+		if ((this._size + 1) * 4 > this._keys.length * 3) {
+			grow();
+		}
+		int mask = this._keys.length - 1;
+		int i = mix(key) & mask;
+		for (; this._values[i] != null; i = (i + 1) & mask) {
+			if (this._keys[i] == key) {
+				V previous = (V) this._values[i];
+				this._values[i] = value;
+				return previous;
+			}
+		}
+		this._keys[i] = key;
+		this._values[i] = value;
+		++this._size;
+		return null;
+	}//end put
+
+	private void grow() {
+		int[] keys = this._keys;
+		Object[] values = this._values;
+		this._keys = new int[keys.length * 2];
+		this._values = new Object[keys.length * 2];
+		int mask = this._keys.length - 1;
+		for (int j = 0; j < keys.length; ++j) {
+			if (values[j] != null) {
+				int i = mix(keys[j]) & mask;
+				while (this._values[i] != null) {
+					i = (i + 1) & mask;
+				}
+				this._keys[i] = keys[j];
+				this._values[i] = values[j];
+			}
+		}
+	}
+
+	/**
+	 * @return the number of entries
+	 */
+	public int size() {
+		return this._size;
+	}
+
+	/**
+	 * @return the values, in no particular order
+	 */
+	@SuppressWarnings("unchecked")
+	public List<V> values() {
+		List<V> values = new ArrayList<V>(this._size);
+		for (Object value : this._values) {
+			if (value != null) {
+				values.add((V) value);
+			}
+		}
+		return values;
+	}
+
+	/**
+	 * Method to remove every entry.
+	 */
+	public void clear() {
+		Arrays.fill(this._values, null);
+		this._size = 0;
+	}
+}//end IntObjectMap
@@ -0,0 +1,143 @@
+import java.sql.ResultSet;
+import java.sql.ResultSetMetaData;
+import java.sql.SQLException;
+
+/**
+ * This class runs the booking operations against PostgreSQL through an
+ * AirBooking session, the way the menu does.  The flights of a route and
+ * the destination ranking come from the reference cache and the in-memory
+ * index outside a transaction; inside one they are read from the tables,
+ * since the cache and the index only see committed changes.  The streamed
+ * listings are read through a server-side cursor.
+ */
+public class JdbcBookingRepository implements BookingRepository {
+	static final String INSERT_AIRLINE = "INSERT INTO Airline(airId, name, founded, country, hub) VALUES (?,?,?,?,?)";
+	static final String POPULAR_DESTINATIONS =
+			"SELECT destination, CAST(COUNT(*) AS INTEGER) AS flights FROM Flight"
+			+ " GROUP BY destination ORDER BY COUNT(*) DESC, destination LIMIT ?";
+
+	static final String FIND_PASSENGER_BY_ID = "SELECT passNum FROM Passenger WHERE pID = ?";
+
+	static final String FIND_FLIGHT = "SELECT flightNum FROM Flight WHERE flightNum = ?";
+
+	private final AirBooking _esql;
+
+	/**
+	 * @param esql the database session
+	 */
+	public JdbcBookingRepository(AirBooking esql) {
+		this._esql = esql;
+	}
+
+	public void addAirline(int airId, String name, int founded, String country, String hub) throws SQLException {
+		this._esql.executePreparedUpdate(INSERT_AIRLINE, airId, name, founded, country, hub);
+	}
+
+	public int addPassenger(String passNum, String fullName, String bdate, String country) throws SQLException {
+		return this._esql.addPassenger(passNum, fullName, bdate, country);
+	}
+
+	public BookingEngine.Outcome bookFlight(String passNum, String flightNum, String departure) throws SQLException {
+		return this._esql.getBookingEngine().book(passNum, flightNum, departure);
+	}
+
+	public int reviewFlight(int pID, String flightNum, int score, String comment) throws SQLException {
+		return this._esql.reviewFlight(pID, flightNum, score, comment);
+	}
+
+	public RouteGraph.Leg upsertFlight(int airId, String flightNum, String origin, String destination,
+			String plane, int seats, int duration) throws SQLException {
+		return this._esql.upsertFlight(airId, flightNum, origin, destination, plane, seats, duration);
+	}
+
+	public QueryResult listFlights(String origin, String destination) throws SQLException {
+		if (this._esql.inTransaction()) {
+			return this._esql.executePreparedQueryAndReturnColumns(AirBooking.LIST_FLIGHTS, origin, destination);
+		}
+		return this._esql.getReferenceCache().flightsBetween(origin, destination);
+	}
+
+	public QueryResult popularDestinations(int k) throws SQLException {
+		if (this._esql.inTransaction()) {
+			return this._esql.executePreparedQueryAndReturnColumns(POPULAR_DESTINATIONS, k);
+		}
+		QueryResult.Builder rows = new QueryResult.Builder(new String[] { "destination", "flights" },
+				new QueryResult.Type[] { QueryResult.Type.STRING, QueryResult.Type.INT });
+		for (DestinationPopularity.Destination d : this._esql.getDestinationPopularity().top(k)) {
+			rows.add(d.name, d.flights);
+		}
+		return rows.build();
+	}
+
+	public QueryResult highestRated(int k) throws SQLException {
+		return this._esql.executePreparedQueryAndReturnColumns(AirBooking.HIGHEST_RATED, k);
+	}
+
+	public int highestRated(int k, RowCallback callback) throws SQLException {
+		return stream(AirBooking.HIGHEST_RATED, callback, k);
+	}
+
+	public QueryResult flightsByDuration(String origin, String destination, int k) throws SQLException {
+		return this._esql.executePreparedQueryAndReturnColumns(AirBooking.FLIGHTS_BY_DURATION, origin, destination, k);
+	}
+
+	public QueryResult availableFlights(String origin, String destination, String departure) throws SQLException {
+		return this._esql.executePreparedQueryAndReturnColumns(AirBooking.AVAILABLE_FLIGHTS,
+				departure, departure, origin, destination);
+	}
+
+	public QueryResult availableSeats(String departure) throws SQLException {
+		return this._esql.executePreparedQueryAndReturnColumns(AirBooking.AVAILABLE_SEATS, departure, departure);
+	}
+
+	public int availableSeats(String departure, RowCallback callback) throws SQLException {
+		return stream(AirBooking.AVAILABLE_SEATS, callback, departure, departure);
+	}
+
+	public int passengerId(String passNum) throws SQLException {
+		return this._esql.passengerId(passNum);
+	}
+
+	public boolean passengerExists(int pID) throws SQLException {
+		return this._esql.executePreparedQuery(FIND_PASSENGER_BY_ID, pID) != 0;
+	}
+
+	public boolean flightExists(String flightNum) throws SQLException {
+		if (this._esql.inTransaction()) {
+			return this._esql.executePreparedQuery(FIND_FLIGHT, flightNum) != 0;
+		}
+		return this._esql.getReferenceCache().flight(flightNum) != null;
+	}
+
+	/**
+	 * Streams the rows of query to callback as text without CHAR padding.
+	 */
+	private int stream(String query, final RowCallback callback, Object... params) throws SQLException {
+		return this._esql.streamQuery(query, new RowHandler() {
+			String[] columns;
+			String[] values;
+
+			public void row(ResultSet rs) throws SQLException {
+				if (this.columns == null) {
+					ResultSetMetaData meta = rs.getMetaData();
+					this.columns = new String[meta.getColumnCount()];
+					for (int c = 0; c < this.columns.length; ++c) {
+						this.columns[c] = meta.getColumnName(c + 1);
+					}
+					this.values = new String[this.columns.length];
+				}
+				for (int c = 0; c < this.values.length; ++c) {
+					String value = rs.getString(c + 1);
+					this.values[c] = value == null ? null : QueryResult.trimTrailing(value);
+				}
+				callback.row(this.columns, this.values);
+			}
+		}, params);
+	}
+
+	/**
+	 * Does nothing; the session is closed by AirBooking.cleanup().
+	 */
+	public void close() {
+	}
+}//end JdbcBookingRepository
@@ -0,0 +1,307 @@
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * This class reads and writes the small JSON documents exchanged by the
+ * batch and service front ends.  Request input is limited to flat objects
+ * whose values are strings, numbers, booleans or null; every value is
+ * returned as its text.  parse() reads any document, for tools that read
+ * back their own reports.  Output supports strings, numbers, booleans,
+ * null, maps, lists and query results, which are written as an array of
+ * row objects.
+ */
+public class Json {
+	private final String _text;
+	private int _pos = 0;
+
+	private Json(String text) {
+		this._text = text;
+	}
+
+	/**
+	 * Method to parse a flat JSON object.
+	 *
+	 * @param text the JSON text
+	 * @return the members in document order, values as text (null for JSON null)
+	 * @throws java.lang.IllegalArgumentException when text is not a flat JSON object
+	 */
+	public static Map<String, String> parseObject(String text) {
+		Json parser = new Json(text);
+		Map<String, String> members = new LinkedHashMap<String, String>();
+		parser.expect('{');
+		if (!parser.consume('}')) {
+			do {
+				String name = parser.string();
+				parser.expect(':');
+				members.put(name, parser.value());
+			} while (parser.consume(','));
+			parser.expect('}');
+		}
+		parser.skipSpace();
+		if (parser._pos != text.length()) {
+			throw parser.error("unexpected text after the object");
+		}
+		return members;
+	}//end parseObject
+
+	/**
+	 * Method to parse any JSON document.
+	 *
+	 * @param text the JSON text
+	 * @return a Map (members in document order), List, String, Double, Boolean or null
+	 * @throws java.lang.IllegalArgumentException when text is not valid JSON
+	 */
+	public static Object parse(String text) {
+		Json parser = new Json(text);
+		Object value = parser.any();
+		parser.skipSpace();
+		if (parser._pos != text.length()) {
+			throw parser.error("unexpected text after the value");
+		}
+		return value;
+	}
+
+	private Object any() {
+		if (consume('{')) {
+			Map<String, Object> members = new LinkedHashMap<String, Object>();
+			if (!consume('}')) {
+				do {
+					String name = string();
+					expect(':');
+					members.put(name, any());
+				} while (consume(','));
+				expect('}');
+			}
+			return members;
+		}
+		if (consume('[')) {
+			List<Object> items = new ArrayList<Object>();
+			if (!consume(']')) {
+				do {
+					items.add(any());
+				} while (consume(','));
+				expect(']');
+			}
+			return items;
+		}
+		skipSpace();
+		if (this._pos < this._text.length() && this._text.charAt(this._pos) == '"') {
+			return string();
+		}
+		String literal = value();
+		if (literal == null) {
+			return null;
+		}
+		if (literal.equals("true") || literal.equals("false")) {
+			return Boolean.valueOf(literal);
+		}
+		return Double.valueOf(literal);
+	}
+
+	private String value() {
+		skipSpace();
+		if (this._pos >= this._text.length()) {
+			throw error("value expected");
+		}
+		char c = this._text.charAt(this._pos);
+		if (c == '"') {
+			return string();
+		}
+		int start = this._pos;
+		while (this._pos < this._text.length() && "{}[],: \t\r\n\"".indexOf(this._text.charAt(this._pos)) < 0) {
+			++this._pos;
+		}
+		String literal = this._text.substring(start, this._pos);
+		if (literal.equals("null")) {
+			return null;
+		}
+		if (literal.equals("true") || literal.equals("false") || literal.matches("-?\\d+(\\.\\d+)?([eE][+-]?\\d+)?")) {
+			return literal;
+		}
+		throw error("string, number, boolean or null expected");
+	}
+
+	private String string() {
+		expect('"');
+		StringBuilder sb = new StringBuilder();
+		while (true) {
+			if (this._pos >= this._text.length()) {
+				throw error("unterminated string");
+			}
+			char c = this._text.charAt(this._pos++);
+			if (c == '"') {
+				return sb.toString();
+			}
+			if (c != '\\') {
+				sb.append(c);
+				continue;
+			}
+			if (this._pos >= this._text.length()) {
+				throw error("unterminated string");
+			}
+			char e = this._text.charAt(this._pos++);
+			switch (e) {
+				case 'b': sb.append('\b'); break;
+				case 'f': sb.append('\f'); break;
+				case 'n': sb.append('\n'); break;
+				case 'r': sb.append('\r'); break;
+				case 't': sb.append('\t'); break;
+				case 'u':
+					if (this._pos + 4 > this._text.length()) {
+						throw error("bad unicode escape");
+					}
+					try {
+						sb.append((char) Integer.parseInt(this._text.substring(this._pos, this._pos + 4), 16));
+					} catch (NumberFormatException ex) {
+						throw error("bad unicode escape");
+					}
+					this._pos += 4;
+					break;
+				default: sb.append(e);
+			}
+		}
+	}
+
+	private void skipSpace() {
+		while (this._pos < this._text.length() && Character.isWhitespace(this._text.charAt(this._pos))) {
+			++this._pos;
+		}
+	}
+
+	private boolean consume(char c) {
+		skipSpace();
+		if (this._pos < this._text.length() && this._text.charAt(this._pos) == c) {
+			++this._pos;
+			return true;
+		}
+		return false;
+	}
+
+	private void expect(char c) {
+		if (!consume(c)) {
+			throw error("'" + c + "' expected");
+		}
+	}
+
+	private IllegalArgumentException error(String message) {
+		return new IllegalArgumentException("invalid JSON at offset " + this._pos + ": " + message);
+	}
+
+	/**
+	 * Method to write a value as JSON.
+	 *
+	 * @param value a String, Number, Boolean, null, Map, List or QueryResult
+	 * @return the JSON text
+	 */
+	public static String toJson(Object value) {
+		StringBuilder sb = new StringBuilder();
+		write(sb, value);
+		return sb.toString();
+	}
+
+	/**
+	 * Method to append a value as JSON.
+	 *
+	 * @param sb the buffer to append to
+	 * @param value a String, Number, Boolean, null, Map, List or QueryResult
+	 */
+	public static void write(StringBuilder sb, Object value) {
+		if (value == null) {
+			sb.append("null");
+		}
+		else if (value instanceof Number || value instanceof Boolean) {
+			sb.append(value);
+		}
+		else if (value instanceof Map) {
+			sb.append('{');
+			Iterator<? extends Map.Entry<?, ?>> it = ((Map<?, ?>) value).entrySet().iterator();
+			while (it.hasNext()) {
+				Map.Entry<?, ?> member = it.next();
+				quote(sb, String.valueOf(member.getKey()));
+				sb.append(':');
+				write(sb, member.getValue());
+				if (it.hasNext()) {
+					sb.append(',');
+				}
+			}
+			sb.append('}');
+		}
+		else if (value instanceof List) {
+			sb.append('[');
+			List<?> list = (List<?>) value;
+			for (int i = 0; i < list.size(); ++i) {
+				if (i > 0) {
+					sb.append(',');
+				}
+				write(sb, list.get(i));
+			}
+			sb.append(']');
+		}
+		else if (value instanceof QueryResult) {
+			writeRows(sb, (QueryResult) value);
+		}
+		else {
+			quote(sb, value.toString());
+		}
+	}//end write
+
+	private static void writeRows(StringBuilder sb, QueryResult rows) {
+		sb.append('[');
+		for (int r = 0; r < rows.size(); ++r) {
+			if (r > 0) {
+				sb.append(',');
+			}
+			sb.append('{');
+			for (int c = 0; c < rows.columnCount(); ++c) {
+				if (c > 0) {
+					sb.append(',');
+				}
+				quote(sb, rows.getColumnName(c));
+				sb.append(':');
+				if (rows.isNull(r, c)) {
+					sb.append("null");
+					continue;
+				}
+				switch (rows.getType(c)) {
+					case INT: sb.append(rows.getInt(r, c)); break;
+					case LONG: sb.append(rows.getLong(r, c)); break;
+					case DOUBLE: sb.append(rows.getDouble(r, c)); break;
+					default: quote(sb, rows.getString(r, c));
+				}
+			}
+			sb.append('}');
+		}
+		sb.append(']');
+	}
+
+	/**
+	 * Method to append a string as a JSON string literal.
+	 *
+	 * @param sb the buffer to append to
+	 * @param s the string
+	 */
+	public static void quote(StringBuilder sb, String s) {
+		sb.append('"');
+		for (int i = 0; i < s.length(); ++i) {
+			char c = s.charAt(i);
+			switch (c) {
+				case '"': sb.append("\\\""); break;
+				case '\\': sb.append("\\\\"); break;
+				case '\n': sb.append("\\n"); break;
+				case '\r': sb.append("\\r"); break;
+				case '\t': sb.append("\\t"); break;
+				default:
+					if (c < 0x20) {
+						sb.append(String.format("\\u%04x", (int) c));
+					}
+					else {
+						sb.append(c);
+					}
+			}
+		}
+		sb.append('"');
+	}
+}//end Json
@@ -0,0 +1,143 @@
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.concurrent.atomic.LongAccumulator;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * This class records latencies into log-linear buckets, in the manner of
+ * an HDR histogram: values below 128 ns get a bucket each, and every
+ * power-of-two range above is split into 64 buckets, so any recorded value
+ * is reported within 1.6% of its true value.  The buckets cover the whole
+ * long range in under 4000 counters.
+ *
+ * Recording is lock free and safe from any number of threads; readers see
+ * a consistent enough view for monitoring without stopping writers.
+ */
+public class LatencyHistogram {
+	private static final int SUB_BUCKETS = 128;
+	private static final int HALF = SUB_BUCKETS / 2;
+	//index of the last bucket, reached by values with the highest bit of a long set
+	private static final int BUCKETS = index(Long.MAX_VALUE) + 1;
+
+	private final AtomicLongArray _counts = new AtomicLongArray(BUCKETS);
+	private final LongAdder _count = new LongAdder();
+	private final LongAdder _sum = new LongAdder();
+	private final LongAccumulator _max = new LongAccumulator(Math::max, 0);
+
+	static int index(long value) {
+		if (value < SUB_BUCKETS) {
+			return (int) Math.max(0, value);
+		}
+		int shift = 63 - Long.numberOfLeadingZeros(value) - 6;
+		return SUB_BUCKETS + (shift - 1) * HALF + (int) (value >>> shift) - HALF;
+	}
+
+	//highest value that falls into bucket i
+	static long upperBound(int i) {
+		if (i < SUB_BUCKETS) {
+			return i;
+		}
+		int shift = (i - SUB_BUCKETS) / HALF + 1;
+		long top = (i - SUB_BUCKETS) % HALF + HALF;
+		return ((top + 1) << shift) - 1;
+	}
+
+	/**
+	 * Method to record one latency.
+	 *
+	 * @param nanos the latency in nanoseconds; negative values count as 0
+	 */
+	public void record(long nanos) {
+		this._counts.incrementAndGet(index(nanos));
+		this._count.increment();
+		this._sum.add(Math.max(0, nanos));
+		this._max.accumulate(nanos);
+	}
+
+	/**
+	 * Method to add every value recorded by another histogram to this one.
+	 *
+	 * @param other the histogram to merge
+	 */
+	public void add(LatencyHistogram other) {
+		for (int i = 0; i < BUCKETS; ++i) {
+			long n = other._counts.get(i);
+			if (n != 0) {
+				this._counts.addAndGet(i, n);
+			}
+		}
+		this._count.add(other._count.sum());
+		this._sum.add(other._sum.sum());
+		this._max.accumulate(other._max.get());
+	}
+
+	/**
+	 * @return number of recorded values
+	 */
+	public long count() {
+		return this._count.sum();
+	}
+
+	/**
+	 * @return mean of the recorded values in nanoseconds, 0 when empty
+	 */
+	public double mean() {
+		long n = this._count.sum();
+		return n == 0 ? 0 : (double) this._sum.sum() / n;
+	}
+
+	/**
+	 * @return largest recorded value in nanoseconds
+	 */
+	public long max() {
+		return this._max.get();
+	}
+
+	/**
+	 * Method to get a percentile of the recorded values.
+	 *
+	 * @param percentile the percentile, 0 to 100 (e.g. 99.9)
+	 * @return the smallest bucket bound in nanoseconds at or above that share of the values, 0 when empty
+	 */
+	public long percentile(double percentile) {
+		long total = 0;
+		long[] counts = new long[BUCKETS];
+		for (int i = 0; i < BUCKETS; ++i) {
+			counts[i] = this._counts.get(i);
+			total += counts[i];
+		}
+		if (total == 0) {
+			return 0;
+		}
+		long rank = Math.max(1, (long) Math.ceil(total * percentile / 100.0));
+		long seen = 0;
+		for (int i = 0; i < BUCKETS; ++i) {
+			seen += counts[i];
+			if (seen >= rank) {
+				return Math.min(upperBound(i), max());
+			}
+		}
+		return max();
+	}//end percentile
+
+	/**
+	 * Method to forget every recorded value.  Values recorded concurrently
+	 * may or may not survive the reset.
+	 */
+	public void reset() {
+		for (int i = 0; i < BUCKETS; ++i) {
+			this._counts.set(i, 0);
+		}
+		this._count.reset();
+		this._sum.reset();
+		this._max.reset();
+	}
+
+	/**
+	 * @return count, mean and the usual percentiles, in milliseconds
+	 */
+	public String toString() {
+		return String.format("count=%d mean=%.3fms p50=%.3fms p90=%.3fms p99=%.3fms p99.9=%.3fms max=%.3fms",
+				count(), mean() / 1e6, percentile(50) / 1e6, percentile(90) / 1e6,
+				percentile(99) / 1e6, percentile(99.9) / 1e6, max() / 1e6);
+	}
+}//end LatencyHistogram
@@ -0,0 +1,346 @@
+import java.io.File;
+import java.io.IOException;
+import java.sql.SQLException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.concurrent.locks.LockSupport;
+
+/**
+ * This class puts a realistic mix of operations on the database from many
+ * threads and reports throughput and latency percentiles per operation.
+ * The default mix is 70% availability lookups (the query BookFlight
+ * shows), 20% bookings and 10% reviews, run through the same AirBooking
+ * methods as the menu.
+ *
+ * Passengers, routes and departure dates are drawn from the distributions
+ * of the CSV files: a passenger or date is picked in proportion to its
+ * bookings in bookings.csv, a route in proportion to the bookings of its
+ * flights, and a review for a (passenger, flight) pair of bookings.csv.
+ *
+ * In closed loop every thread issues its next operation as soon as the last
+ * one finished.  In open loop (rate &gt; 0) operations arrive as a Poisson
+ * process at the given rate and latency is measured from the intended
+ * arrival time, so queueing behind a slow database is counted rather than
+ * hidden (coordinated omission).  Arrivals still queued when the time is
+ * up are run and recorded before the results are reported.
+ *
+ * Bookings and reviews are committed: run it against a scratch database.
+ */
+public class LoadDriver {
+	private final AirBooking _esql;
+	private final Map<String, Integer> _mix;
+	private final String[] _ops;
+	private final double[] _opWeights;
+
+	//empirical distributions of the dataset
+	private Sampler<Integer> _passengers;
+	private Sampler<String> _routes;
+	private Sampler<String> _dates;
+	private final Map<String, List<String>> _flightsByRoute = new HashMap<String, List<String>>();
+	//(pID, flightNum) of every booking, the candidates for a review
+	private final List<Integer> _tripPassengers = new ArrayList<Integer>();
+	private final List<String> _tripFlights = new ArrayList<String>();
+
+	/**
+	 * Weighted choice among values by cumulative weight and binary search.
+	 */
+	static class Sampler<T> {
+		final List<T> values = new ArrayList<T>();
+		double[] cumulative = new double[16];
+		double total = 0;
+
+		void add(T value, double weight) {
+			if (this.values.size() == this.cumulative.length) {
+				this.cumulative = Arrays.copyOf(this.cumulative, this.cumulative.length * 2);
+			}
+			this.total += weight;
+			this.cumulative[this.values.size()] = this.total;
+			this.values.add(value);
+		}
+
+		T next(ThreadLocalRandom random) {
+			double x = random.nextDouble() * this.total;
+			int i = Arrays.binarySearch(this.cumulative, 0, this.values.size(), x);
+			i = i < 0 ? -i - 1 : i + 1;
+			return this.values.get(Math.min(i, this.values.size() - 1));
+		}
+	}
+
+	/**
+	 * Outcome counters and latency of one operation.
+	 */
+	static class OpStats {
+		final LatencyHistogram latency = new LatencyHistogram();
+		//refusals the application reports to users: full flight, already booked, already reviewed
+		final LongAdder rejected = new LongAdder();
+		final LongAdder errors = new LongAdder();
+	}
+
+	/**
+	 * @param esql the database session to drive
+	 * @param mix operation name to weight, among availability, book and review
+	 */
+	public LoadDriver(AirBooking esql, Map<String, Integer> mix) {
+		this._esql = esql;
+		this._mix = mix;
+		this._ops = mix.keySet().toArray(new String[0]);
+		this._opWeights = new double[this._ops.length];
+		double total = 0;
+		for (int i = 0; i < this._ops.length; ++i) {
+			if (!Arrays.asList("availability", "book", "review").contains(this._ops[i])) {
+				throw new IllegalArgumentException("unknown operation in mix: " + this._ops[i]);
+			}
+			total += mix.get(this._ops[i]);
+			this._opWeights[i] = total;
+		}
+	}
+
+	/**
+	 * Method to parse a mix such as "availability=70,book=20,review=10".
+	 *
+	 * @param spec the mix
+	 * @return operation name to weight
+	 */
+	public static Map<String, Integer> parseMix(String spec) {
+		Map<String, Integer> mix = new LinkedHashMap<String, Integer>();
+		for (String part : spec.split(",")) {
+			String[] kv = part.split("=");
+			if (kv.length != 2) {
+				throw new IllegalArgumentException("invalid mix entry: " + part);
+			}
+			mix.put(kv[0].trim(), Integer.parseInt(kv[1].trim()));
+		}
+		return mix;
+	}
+
+	/**
+	 * Method to read the distributions of passengers, routes and dates from
+	 * the CSV files of directory.
+	 *
+	 * @param directory the directory holding flights.csv and bookings.csv
+	 * @throws java.io.IOException when a file could not be read
+	 */
+	public void loadDistributions(File directory) throws IOException {
+		Map<String, String> routeOfFlight = new HashMap<String, String>();
+		for (String[] f : BulkLoader.readCsv(new File(directory, "flights.csv"))) {
+			String route = f[2].trim() + "\t" + f[3].trim();
+			routeOfFlight.put(f[1].trim(), route);
+			List<String> flights = this._flightsByRoute.get(route);
+			if (flights == null) {
+				flights = new ArrayList<String>();
+				this._flightsByRoute.put(route, flights);
+			}
+			flights.add(f[1].trim());
+		}
+		Map<Integer, Integer> perPassenger = new HashMap<Integer, Integer>();
+		Map<String, Integer> perRoute = new HashMap<String, Integer>();
+		Map<String, Integer> perDate = new HashMap<String, Integer>();
+		for (String[] b : BulkLoader.readCsv(new File(directory, "bookings.csv"))) {
+			int pid = Integer.parseInt(b[3].trim());
+			increment(perPassenger, pid);
+			increment(perDate, b[1].trim());
+			String route = routeOfFlight.get(b[2].trim());
+			if (route != null) {
+				increment(perRoute, route);
+			}
+			this._tripPassengers.add(pid);
+			this._tripFlights.add(b[2].trim());
+		}
+		this._passengers = new Sampler<Integer>();
+		for (Map.Entry<Integer, Integer> e : perPassenger.entrySet()) {
+			this._passengers.add(e.getKey(), e.getValue());
+		}
+		this._dates = new Sampler<String>();
+		for (Map.Entry<String, Integer> e : perDate.entrySet()) {
+			this._dates.add(e.getKey(), e.getValue());
+		}
+		//routes nobody booked still get some traffic
+		this._routes = new Sampler<String>();
+		for (String route : this._flightsByRoute.keySet()) {
+			Integer n = perRoute.get(route);
+			this._routes.add(route, 1 + (n == null ? 0 : n));
+		}
+		if (this._passengers.values.isEmpty() || this._dates.values.isEmpty() || this._routes.values.isEmpty()) {
+			throw new IOException("no flights or bookings in " + directory);
+		}
+	}//end loadDistributions
+
+	private static <K> void increment(Map<K, Integer> counts, K key) {
+		Integer n = counts.get(key);
+		counts.put(key, n == null ? 1 : n + 1);
+	}
+
+	/**
+	 * Runs one operation picked from the mix and records it.
+	 */
+	private void runOne(Map<String, OpStats> stats, long intendedStart) {
+		ThreadLocalRandom random = ThreadLocalRandom.current();
+		double x = random.nextDouble() * this._opWeights[this._opWeights.length - 1];
+		String op = this._ops[this._ops.length - 1];
+		for (int i = 0; i < this._ops.length; ++i) {
+			if (x < this._opWeights[i]) {
+				op = this._ops[i];
+				break;
+			}
+		}
+		OpStats s = stats.get(op);
+		try {
+			if (!execute(op, random)) {
+				s.rejected.increment();
+			}
+		} catch (SQLException e) {
+			//class 23 is integrity constraint violation, e.g. a passenger booked twice on a flight
+			if (e.getSQLState() != null && e.getSQLState().startsWith("23")) {
+				s.rejected.increment();
+			}
+			else {
+				s.errors.increment();
+			}
+		} catch (IllegalArgumentException e) {
+			s.rejected.increment();
+		} catch (RuntimeException e) {
+			s.errors.increment();
+		}
+		s.latency.record(System.nanoTime() - intendedStart);
+	}//end runOne
+
+	/**
+	 * @return false when the application refused the operation
+	 */
+	private boolean execute(String op, ThreadLocalRandom random) throws SQLException {
+		if (op.equals("availability")) {
+			String[] route = this._routes.next(random).split("\t");
+			String date = this._dates.next(random);
+			this._esql.beginReplicaReads();
+			try {
+				this._esql.executePreparedQueryAndReturnColumns(AirBooking.AVAILABLE_FLIGHTS, date, date, route[0], route[1]);
+			} finally {
+				this._esql.endReplicaReads();
+			}
+			return true;
+		}
+		if (op.equals("book")) {
+			List<String> flights = this._flightsByRoute.get(this._routes.next(random));
+			String flightNum = flights.get(random.nextInt(flights.size()));
+			return this._esql.bookFlight(this._passengers.next(random), flightNum, this._dates.next(random)) != null;
+		}
+		int trip = random.nextInt(this._tripFlights.size());
+		this._esql.reviewFlight(this._tripPassengers.get(trip), this._tripFlights.get(trip), random.nextInt(6), "load test");
+		return true;
+	}
+
+	/**
+	 * Method to drive the database with threads workers for the given time
+	 * after a warmup, and print the results.
+	 *
+	 * @param threads number of worker threads
+	 * @param warmupSeconds time run before measuring
+	 * @param seconds time measured
+	 * @param rate operations per second in open loop, or 0 for closed loop
+	 * @param thinkMillis pause between the operations of a closed loop thread
+	 * @return throughput and latency per operation
+	 * @throws java.lang.InterruptedException when interrupted while waiting for the workers
+	 */
+	public Map<String, OpStats> run(int threads, int warmupSeconds, int seconds, double rate, long thinkMillis)
+			throws InterruptedException {
+		if (warmupSeconds > 0) {
+			drive(threads, warmupSeconds, rate, thinkMillis);
+		}
+		long start = System.nanoTime();
+		Map<String, OpStats> stats = drive(threads, seconds, rate, thinkMillis);
+		report(threads, stats, (System.nanoTime() - start) / 1e9);
+		return stats;
+	}
+
+	private Map<String, OpStats> drive(int threads, int seconds, final double rate, final long thinkMillis)
+			throws InterruptedException {
+		final Map<String, OpStats> stats = new LinkedHashMap<String, OpStats>();
+		for (String op : this._ops) {
+			stats.put(op, new OpStats());
+		}
+		final long end = System.nanoTime() + TimeUnit.SECONDS.toNanos(seconds);
+		final BlockingQueue<Long> arrivals = new LinkedBlockingQueue<Long>();
+		//set when the last arrival is queued; open loop workers then drain the queue
+		final AtomicBoolean arrived = new AtomicBoolean(false);
+		List<Thread> workers = new ArrayList<Thread>();
+		for (int t = 0; t < threads; ++t) {
+			Thread worker = new Thread(() -> {
+				try {
+					while (rate > 0 ? !arrived.get() || !arrivals.isEmpty() : System.nanoTime() < end) {
+						long intended;
+						if (rate > 0) {
+							Long arrival = arrivals.poll(10, TimeUnit.MILLISECONDS);
+							if (arrival == null) {
+								continue;
+							}
+							intended = arrival;
+						}
+						else {
+							intended = System.nanoTime();
+						}
+						runOne(stats, intended);
+						if (rate <= 0 && thinkMillis > 0) {
+							Thread.sleep(thinkMillis);
+						}
+					}
+				} catch (InterruptedException e) {
+					Thread.currentThread().interrupt();
+				}
+			}, "load-" + t);
+			workers.add(worker);
+			worker.start();
+		}
+		if (rate > 0) {
+			//Poisson arrivals: exponential gaps with mean 1/rate
+			long next = System.nanoTime();
+			ThreadLocalRandom random = ThreadLocalRandom.current();
+			while (next < end) {
+				long wait = next - System.nanoTime();
+				if (wait > 0) {
+					LockSupport.parkNanos(wait);
+				}
+				arrivals.add(next);
+				next += (long) (-Math.log(1 - random.nextDouble()) / rate * 1e9);
+			}
+			arrived.set(true);
+		}
+		for (Thread worker : workers) {
+			worker.join();
+		}
+		return stats;
+	}//end drive
+
+	private void report(int threads, Map<String, OpStats> stats, double seconds) {
+		System.out.println(String.format("%d thread(s), %.1f s, mix %s", threads, seconds, this._mix));
+		System.out.println(String.format("%-14s %9s %9s %7s %7s %10s %10s %10s %10s %10s",
+				"operation", "ops", "ops/s", "reject", "errors", "p50 ms", "p95 ms", "p99 ms", "p99.9 ms", "max ms"));
+		LatencyHistogram all = new LatencyHistogram();
+		long rejected = 0;
+		long errors = 0;
+		for (Map.Entry<String, OpStats> entry : stats.entrySet()) {
+			OpStats s = entry.getValue();
+			all.add(s.latency);
+			rejected += s.rejected.sum();
+			errors += s.errors.sum();
+			line(entry.getKey(), s.latency, s.rejected.sum(), s.errors.sum(), seconds);
+		}
+		line("total", all, rejected, errors, seconds);
+		System.out.println();
+	}
+
+	private static void line(String name, LatencyHistogram h, long rejected, long errors, double seconds) {
+		System.out.println(String.format("%-14s %9d %9.0f %7d %7d %10.3f %10.3f %10.3f %10.3f %10.3f",
+				name, h.count(), h.count() / seconds, rejected, errors, h.percentile(50) / 1e6, h.percentile(95) / 1e6,
+				h.percentile(99) / 1e6, h.percentile(99.9) / 1e6, h.max() / 1e6));
+	}
+}//end LoadDriver
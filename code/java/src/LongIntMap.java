@@ -0,0 +1,105 @@
+import java.util.Arrays;
+
+/**
+ * This class maps long keys to int counters without boxing, in two
+ * parallel arrays probed linearly like IntObjectMap.  A missing key counts
+ * 0.  Entries cannot be removed.
+ *
+ * Not thread safe.
+ */
+public class LongIntMap {
+	private long[] _keys;
+	private int[] _values;
+	private boolean[] _used;
+	private int _size = 0;
+
+	/**
+	 * @param expected the number of entries to size the map for
+	 */
+	public LongIntMap(int expected) {
+		int capacity = 16;
+		while (capacity * 3 / 4 < expected) {
+			capacity *= 2;
+		}
+		this._keys = new long[capacity];
+		this._values = new int[capacity];
+		this._used = new boolean[capacity];
+	}
+
+	private static int mix(long key) {
+		return IntObjectMap.mix((int) (key ^ (key >>> 32)) * 0x9e3779b9);
+	}
+
+	/**
+	 * @param key a key
+	 * @return the counter of key, 0 when there is none
+	 */
+	public int get(long key) {
+		int mask = this._keys.length - 1;
+		for (int i = mix(key) & mask; this._used[i]; i = (i + 1) & mask) {
+			if (this._keys[i] == key) {
+				return this._values[i];
+			}
+		}
+		return 0;
+	}
+
+	/**
+	 * @param key a key
+	 * @param delta the amount added to the counter of key
+	 * @return the new counter of key
+	 */
+	public int add(long key, int delta) {
+		if ((this._size + 1) * 4 > this._keys.length * 3) {
+			grow();
+		}
+		int mask = this._keys.length - 1;
+		int i = mix(key) & mask;
+		for (; this._used[i]; i = (i + 1) & mask) {
+			if (this._keys[i] == key) {
+				return this._values[i] += delta;
+			}
+		}
+		this._used[i] = true;
+		this._keys[i] = key;
+		this._values[i] = delta;
+		++this._size;
+		return delta;
+	}//end add
+
+	private void grow() {
+		long[] keys = this._keys;
+		int[] values = this._values;
+		boolean[] used = this._used;
+		this._keys = new long[keys.length * 2];
+		this._values = new int[keys.length * 2];
+		this._used = new boolean[keys.length * 2];
+		int mask = this._keys.length - 1;
+		for (int j = 0; j < keys.length; ++j) {
+			if (used[j]) {
+				int i = mix(keys[j]) & mask;
+				while (this._used[i]) {
+					i = (i + 1) & mask;
+				}
+				this._used[i] = true;
+				this._keys[i] = keys[j];
+				this._values[i] = values[j];
+			}
+		}
+	}
+
+	/**
+	 * @return the number of keys
+	 */
+	public int size() {
+		return this._size;
+	}
+
+	/**
+	 * Method to remove every entry.
+	 */
+	public void clear() {
+		Arrays.fill(this._used, false);
+		this._size = 0;
+	}
+}//end LongIntMap
@@ -0,0 +1,229 @@
+import java.io.File;
+import java.io.IOException;
+import java.io.PrintStream;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.sql.Connection;
+import java.sql.SQLException;
+import java.sql.Statement;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+
+/**
+ * This class brings the schema of an existing database up to date by
+ * applying the migration scripts of a directory in version order.  Scripts
+ * are named V<version>__<description>.sql, e.g. V002__partition_booking.sql,
+ * and may hold any number of statements, including dollar-quoted function
+ * bodies.
+ *
+ * Every script runs in its own transaction together with the row that
+ * records it in SchemaMigration, so a failing script leaves nothing behind
+ * and is retried by the next run.  Scripts must preserve the data they
+ * restructure.  A transaction-level advisory lock keeps concurrent runners
+ * from applying the same script twice, and the checksum of every applied
+ * script is compared with its file so that an edited migration is reported
+ * instead of silently skipped.
+ */
+public class MigrationRunner {
+	private static final Pattern NAME = Pattern.compile("V(\\d+)__(\\w+)\\.sql");
+	//key of the advisory lock held while a script is applied
+	private static final long LOCK = 0x41697242L;
+
+	private static final String CREATE_TABLE = "CREATE TABLE IF NOT EXISTS SchemaMigration("
+			+ " version INTEGER NOT NULL,"
+			+ " description TEXT NOT NULL,"
+			+ " checksum CHAR(64) NOT NULL,"
+			+ " appliedAt TIMESTAMP WITH TIME ZONE NOT NULL DEFAULT now(),"
+			+ " durationMillis BIGINT NOT NULL,"
+			+ " PRIMARY KEY(version))";
+
+	private final AirBooking _esql;
+	private final File _directory;
+
+	/**
+	 * @param esql the database session
+	 * @param directory the directory holding the migration scripts
+	 */
+	public MigrationRunner(AirBooking esql, File directory) {
+		this._esql = esql;
+		this._directory = directory;
+	}
+
+	/**
+	 * A migration script.
+	 */
+	public static class Migration {
+		public final int version;
+		public final String description;
+		public final File file;
+
+		Migration(int version, String description, File file) {
+			this.version = version;
+			this.description = description;
+			this.file = file;
+		}
+
+		public String toString() {
+			return String.format("V%03d %s", this.version, this.description);
+		}
+	}
+
+	/**
+	 * Method to list the migration scripts of the directory.
+	 *
+	 * @return the scripts in version order
+	 * @throws java.io.IOException when the directory cannot be read or two scripts share a version
+	 */
+	public List<Migration> scripts() throws IOException {
+		File[] files = this._directory.listFiles();
+		if (files == null) {
+			throw new IOException("cannot read migration directory " + this._directory);
+		}
+		List<Migration> scripts = new ArrayList<Migration>();
+		for (File file : files) {
+			Matcher m = NAME.matcher(file.getName());
+			if (m.matches()) {
+				scripts.add(new Migration(Integer.parseInt(m.group(1)), m.group(2), file));
+			}
+		}
+		Collections.sort(scripts, new Comparator<Migration>() {
+			public int compare(Migration a, Migration b) {
+				return Integer.compare(a.version, b.version);
+			}
+		});
+		for (int i = 1; i < scripts.size(); ++i) {
+			if (scripts.get(i).version == scripts.get(i - 1).version) {
+				throw new IOException("two migration scripts with version " + scripts.get(i).version + ": "
+						+ scripts.get(i - 1).file.getName() + ", " + scripts.get(i).file.getName());
+			}
+		}
+		return scripts;
+	}//end scripts
+
+	/**
+	 * @return the checksums of the applied migrations, by version
+	 */
+	private Map<Integer, String> applied() throws SQLException {
+		QueryResult rows = this._esql.executePreparedQueryAndReturnColumns(
+				"SELECT version, checksum FROM SchemaMigration ORDER BY version");
+		Map<Integer, String> applied = new LinkedHashMap<Integer, String>();
+		for (int r = 0; r < rows.size(); ++r) {
+			applied.put(rows.getInt(r, 0), rows.getString(r, 1));
+		}
+		return applied;
+	}
+
+	/**
+	 * Method to describe every script as applied, pending or changed since
+	 * it was applied, and every applied version that has no script.
+	 *
+	 * @return one line per migration
+	 * @throws java.lang.Exception when the scripts or the database could not be read
+	 */
+	public List<String> status() throws Exception {
+		this._esql.executeUpdate(CREATE_TABLE);
+		Map<Integer, String> applied = applied();
+		List<String> lines = new ArrayList<String>();
+		for (Migration migration : scripts()) {
+			String checksum = applied.remove(migration.version);
+			String state = checksum == null ? "pending"
+					: checksum.equals(checksum(migration)) ? "applied" : "CHANGED since it was applied";
+			lines.add(migration + "  " + state);
+		}
+		for (Integer version : applied.keySet()) {
+			lines.add(String.format("V%03d applied, but its script is missing", version));
+		}
+		return lines;
+	}
+
+	/**
+	 * Method to apply the pending scripts in version order.  Stops at the
+	 * first failing script.
+	 *
+	 * @param out receives one line per applied script
+	 * @return the number of scripts applied
+	 * @throws java.lang.IllegalStateException when an applied script was changed
+	 * @throws java.lang.Exception when a script could not be read or failed
+	 */
+	public int migrate(PrintStream out) throws Exception {
+		this._esql.executeUpdate(CREATE_TABLE);
+		List<Migration> scripts = scripts();
+		Map<Integer, String> applied = applied();
+		for (Migration migration : scripts) {
+			String checksum = applied.get(migration.version);
+			if (checksum != null && !checksum.equals(checksum(migration))) {
+				throw new IllegalStateException(migration + " was changed after it was applied;"
+						+ " add a new migration instead of editing " + migration.file.getName());
+			}
+		}
+		int count = 0;
+		for (Migration migration : scripts) {
+			if (!applied.containsKey(migration.version) && apply(migration)) {
+				out.println("Applied " + migration);
+				++count;
+			}
+		}
+		return count;
+	}//end migrate
+
+	/**
+	 * Runs one script and records it, in one transaction.  Returns false
+	 * when another runner applied it first.
+	 */
+	private boolean apply(Migration migration) throws Exception {
+		String script = new String(Files.readAllBytes(migration.file.toPath()), StandardCharsets.UTF_8);
+		this._esql.beginTransaction();
+		try {
+			this._esql.executePreparedQuery("SELECT pg_advisory_xact_lock(?)", LOCK);
+			if (this._esql.executePreparedQuery("SELECT 1 FROM SchemaMigration WHERE version = ?", migration.version) > 0) {
+				this._esql.rollbackTransaction();
+				return false;
+			}
+			long start = System.nanoTime();
+			Connection conn = this._esql.acquire();
+			try {
+				//execute() accepts several statements, and statements that return rows
+				Statement stmt = conn.createStatement();
+				try {
+					stmt.execute(script);
+				} finally {
+					stmt.close();
+				}
+			} finally {
+				this._esql.release(conn);
+			}
+			this._esql.executePreparedUpdate("INSERT INTO SchemaMigration (version, description, checksum, durationMillis)"
+					+ " VALUES (?,?,?,?)", migration.version, migration.description, checksum(migration),
+					(System.nanoTime() - start) / 1000000);
+			this._esql.commitTransaction();
+			return true;
+		} catch (SQLException e) {
+			this._esql.rollbackTransaction();
+			throw new SQLException(migration + " failed: " + e.getMessage(), e.getSQLState(), e);
+		} catch (RuntimeException e) {
+			this._esql.rollbackTransaction();
+			throw e;
+		}
+	}//end apply
+
+	private static String checksum(Migration migration) throws IOException {
+		try {
+			byte[] digest = MessageDigest.getInstance("SHA-256").digest(Files.readAllBytes(migration.file.toPath()));
+			StringBuilder sb = new StringBuilder();
+			for (byte b : digest) {
+				sb.append(String.format("%02x", b));
+			}
+			return sb.toString();
+		} catch (NoSuchAlgorithmException e) {
+			throw new IllegalStateException(e);
+		}
+	}
+}//end MigrationRunner
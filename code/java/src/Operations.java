@@ -0,0 +1,238 @@
+import java.sql.SQLException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * This class maps the named operations of the batch and HTTP front ends to
+ * the BookingRepository methods behind the menu options, and to the
+ * AirBooking indexes for the rest.  An operation takes its fields by name,
+ * as text.  Invalid fields raise IllegalArgumentException, and a booking on
+ * a full flight raises IllegalStateException.
+ */
+public class Operations {
+	//field names of every operation, in the order of the tab separated form
+	private static final Map<String, String[]> OPERATIONS = new LinkedHashMap<String, String[]>();
+	static {
+		OPERATIONS.put("add-passenger", new String[] { "passNum", "fullName", "bdate", "country" });
+		OPERATIONS.put("book", new String[] { "passNum", "flightNum", "departure" });
+		OPERATIONS.put("book-group", new String[] { "flightNum", "departure", "passNums" });
+		OPERATIONS.put("review", new String[] { "pID", "flightNum", "score", "comment" });
+		OPERATIONS.put("upsert-flight", new String[] { "airId", "flightNum", "origin", "destination", "plane", "seats", "duration" });
+		OPERATIONS.put("list-flights", new String[] { "origin", "destination" });
+		OPERATIONS.put("popular-destinations", new String[] { "k" });
+		OPERATIONS.put("highest-rated", new String[] { "k" });
+		OPERATIONS.put("flights-by-duration", new String[] { "origin", "destination", "k" });
+		OPERATIONS.put("available-seats", new String[] { "departure" });
+		OPERATIONS.put("connections", new String[] { "origin", "destination", "k", "maxStops" });
+		OPERATIONS.put("suggest-cities", new String[] { "kind", "input", "k" });
+		OPERATIONS.put("check-popularity", new String[0]);
+	}
+
+	//operations answered from in-memory indexes, without a database connection
+	private static final List<String> IN_MEMORY = Arrays.asList("popular-destinations", "connections", "suggest-cities");
+	//operations of the nine menu options, run through a BookingRepository
+	private static final List<String> REPOSITORY = Arrays.asList("add-passenger", "book", "review", "upsert-flight",
+			"list-flights", "popular-destinations", "highest-rated", "flights-by-duration", "available-seats");
+	//operations that only read, and may read from a replica
+	private static final List<String> READ_ONLY = Arrays.asList("list-flights", "highest-rated",
+			"flights-by-duration", "available-seats");
+
+	/**
+	 * @param op an operation name
+	 * @return the field names of op in positional order, or null when there is no such operation
+	 */
+	public static String[] fields(String op) {
+		return OPERATIONS.get(op);
+	}
+
+	/**
+	 * @param op an operation name
+	 * @return true when op reads or writes the database
+	 */
+	public static boolean usesDatabase(String op) {
+		return !IN_MEMORY.contains(op);
+	}
+
+	/**
+	 * Method to run one operation through the same AirBooking methods the
+	 * menu uses.
+	 *
+	 * @param esql the database session
+	 * @param op the operation name
+	 * @param fields the fields of the operation, by name
+	 * @return the result: a key, a booking reference, or the rows of a listing
+	 * @throws java.sql.SQLException when the operation failed in the database
+	 */
+	public static Object execute(AirBooking esql, String op, Map<String, String> fields) throws SQLException {
+		if (op == null || !OPERATIONS.containsKey(op)) {
+			throw new IllegalArgumentException("unknown operation: " + op);
+		}
+		QueryMetrics.Operation operation = esql.getMetrics().beginOperation(op);
+		boolean readOnly = READ_ONLY.contains(op);
+		if (readOnly) {
+			esql.beginReplicaReads();
+		}
+		boolean ok = false;
+		try {
+			Object result = run(esql, op, fields);
+			ok = true;
+			return result;
+		} finally {
+			if (readOnly) {
+				esql.endReplicaReads();
+			}
+			operation.end(ok);
+		}
+	}
+
+	/**
+	 * Method to run one of the menu operations on a repository without an
+	 * AirBooking session, e.g. on the embedded store.
+	 *
+	 * @param repository the repository
+	 * @param op the operation name
+	 * @param fields the fields of the operation, by name
+	 * @return the result: a key, a booking reference, or the rows of a listing
+	 * @throws java.sql.SQLException when the operation failed in the repository
+	 */
+	public static Object execute(BookingRepository repository, String op, Map<String, String> fields) throws SQLException {
+		if (op == null || !OPERATIONS.containsKey(op)) {
+			throw new IllegalArgumentException("unknown operation: " + op);
+		}
+		if (!REPOSITORY.contains(op)) {
+			throw new IllegalArgumentException(op + " needs the PostgreSQL backend");
+		}
+		return run(repository, op, fields);
+	}
+
+	private static Object run(AirBooking esql, String op, Map<String, String> fields) throws SQLException {
+		if (REPOSITORY.contains(op)) {
+			return run(esql.getRepository(), op, fields);
+		}
+		if (op.equals("book-group")) {
+			//passports separated by commas or blanks
+			List<String> passNums = Arrays.asList(text(fields, "passNums").trim().split("[,\\s]+"));
+			String flightNum = text(fields, "flightNum");
+			String departure = text(fields, "departure");
+			List<String> bookRefs = esql.getBookingEngine().bookGroup(passNums, flightNum, departure);
+			if (bookRefs == null) {
+				throw new IllegalStateException("Flight " + flightNum + " has fewer than " + passNums.size()
+						+ " seats left on " + departure);
+			}
+			List<Map<String, Object>> rows = new ArrayList<Map<String, Object>>();
+			for (int i = 0; i < bookRefs.size(); ++i) {
+				Map<String, Object> row = new LinkedHashMap<String, Object>();
+				row.put("passNum", passNums.get(i).trim());
+				row.put("bookRef", bookRefs.get(i));
+				rows.add(row);
+			}
+			return rows;
+		}
+		if (op.equals("check-popularity")) {
+			//compares the ranking of this process, the one popular-destinations answers from
+			List<String> differences = esql.getDestinationPopularity().check(esql);
+			Map<String, Object> result = new LinkedHashMap<String, Object>();
+			result.put("consistent", differences.isEmpty());
+			result.put("differences", differences);
+			return result;
+		}
+		if (op.equals("suggest-cities")) {
+			String kind = text(fields, "kind");
+			CityIndex cities = kind.equals("origin") ? esql.getOrigins()
+					: kind.equals("destination") ? esql.getDestinations() : null;
+			if (cities == null) {
+				throw new IllegalArgumentException("invalid kind: " + kind + ", expected origin or destination");
+			}
+			List<Map<String, Object>> rows = new ArrayList<Map<String, Object>>();
+			for (CityIndex.Suggestion suggestion : cities.suggest(text(fields, "input"), number(fields, "k"))) {
+				Map<String, Object> row = new LinkedHashMap<String, Object>();
+				row.put("city", suggestion.name);
+				row.put("flights", suggestion.flights);
+				row.put("distance", suggestion.distance);
+				rows.add(row);
+			}
+			return rows;
+		}
+		//connections
+		List<Map<String, Object>> rows = new ArrayList<Map<String, Object>>();
+		for (RouteGraph.Itinerary itinerary : esql.getRouteGraph().fastest(text(fields, "origin"),
+				text(fields, "destination"), number(fields, "k"), number(fields, "maxStops"))) {
+			List<String> flights = new ArrayList<String>();
+			for (RouteGraph.Leg leg : itinerary.legs) {
+				flights.add(leg.flightNum);
+			}
+			Map<String, Object> row = new LinkedHashMap<String, Object>();
+			row.put("duration", itinerary.duration);
+			row.put("stops", itinerary.stops());
+			row.put("flights", flights);
+			rows.add(row);
+		}
+		return rows;
+	}//end run
+
+	private static Object run(BookingRepository repository, String op, Map<String, String> fields) throws SQLException {
+		if (op.equals("add-passenger")) {
+			return repository.addPassenger(text(fields, "passNum"), text(fields, "fullName"),
+					text(fields, "bdate"), text(fields, "country"));
+		}
+		if (op.equals("book")) {
+			String passNum = text(fields, "passNum");
+			String flightNum = text(fields, "flightNum");
+			String departure = text(fields, "departure");
+			BookingEngine.Outcome booking = repository.bookFlight(passNum, flightNum, departure);
+			if (booking.failure == null) {
+				return booking.bookRef;
+			}
+			if (booking.failure.equals(BookingEngine.Outcome.UNKNOWN_PASSPORT)) {
+				throw new IllegalArgumentException("invalid passport: " + passNum);
+			}
+			if (booking.failure.equals(BookingEngine.Outcome.UNKNOWN_FLIGHT)) {
+				throw new IllegalArgumentException("invalid flight: " + flightNum);
+			}
+			throw new IllegalStateException("Flight " + flightNum + " on " + departure + ": " + booking.failure);
+		}
+		if (op.equals("review")) {
+			return repository.reviewFlight(number(fields, "pID"), text(fields, "flightNum"),
+					number(fields, "score"), fields.get("comment"));
+		}
+		if (op.equals("upsert-flight")) {
+			return repository.upsertFlight(number(fields, "airId"), text(fields, "flightNum"), text(fields, "origin"),
+					text(fields, "destination"), text(fields, "plane"), number(fields, "seats"),
+					number(fields, "duration")).toString();
+		}
+		if (op.equals("list-flights")) {
+			return repository.listFlights(text(fields, "origin"), text(fields, "destination"));
+		}
+		if (op.equals("popular-destinations")) {
+			return repository.popularDestinations(number(fields, "k"));
+		}
+		if (op.equals("highest-rated")) {
+			return repository.highestRated(number(fields, "k"));
+		}
+		if (op.equals("flights-by-duration")) {
+			return repository.flightsByDuration(text(fields, "origin"), text(fields, "destination"), number(fields, "k"));
+		}
+		//available-seats
+		return repository.availableSeats(text(fields, "departure"));
+	}//end run
+
+	private static String text(Map<String, String> fields, String name) {
+		String value = fields.get(name);
+		if (value == null || value.trim().isEmpty()) {
+			throw new IllegalArgumentException("missing field: " + name);
+		}
+		return value;
+	}
+
+	private static int number(Map<String, String> fields, String name) {
+		String value = text(fields, name);
+		try {
+			return Integer.parseInt(value.trim());
+		} catch (NumberFormatException e) {
+			throw new IllegalArgumentException("invalid " + name + ": " + value);
+		}
+	}
+}//end Operations
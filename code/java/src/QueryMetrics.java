@@ -0,0 +1,455 @@
+import java.lang.management.ManagementFactory;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.regex.Pattern;
+
+import javax.management.InstanceAlreadyExistsException;
+import javax.management.JMException;
+import javax.management.MBeanServer;
+import javax.management.ObjectName;
+import javax.management.StandardMBean;
+
+/**
+ * This class counts calls, errors and rows and keeps a latency histogram
+ * for every statement shape and every operation run by a session, and
+ * publishes them as platform MXBeans, for jconsole, VisualVM or any other
+ * JMX client:
+ *
+ *	AirBooking:type=QueryMetrics                   totals, the statements and operations taking the most time, reset()
+ *	AirBooking:type=Statement,name="<shape>"       one per statement shape
+ *	AirBooking:type=Operation,name=<operation>     one per menu or service operation
+ *
+ * The shape of a statement is its text with string and number literals
+ * replaced by ?, IN lists collapsed and whitespace normalized, so the same
+ * query issued with different constants is counted once.  Shapes past the
+ * configured limit are counted together under "(other)".
+ *
+ * Recording takes no locks: counters are LongAdders, which stripe their
+ * cells across contending threads, and the histograms are
+ * LatencyHistograms.  The statements of an operation are also charged to
+ * it, so an operation reports how much of its time was spent in the
+ * database; for menu operations, whose elapsed time includes waiting for
+ * the user to type, that is the figure to watch.
+ */
+public class QueryMetrics {
+	//JMX domain the beans are registered under
+	public static final String DOMAIN = "AirBooking";
+	//shape of the statements past the limit
+	private static final String OTHER = "(other)";
+	//number of raw statement texts remembered with their statistics
+	private static final int MAX_TEXTS = 4096;
+	//rows listed by the top statement and operation attributes
+	private static final int TOP = 20;
+	private static final Pattern IN_LIST = Pattern.compile("(?i)\\bIN ?\\(\\?(?: ?, ?\\?)*\\)");
+
+	private final int _maxStatements;
+	//statement shape -> statistics
+	private final Map<String, Stats> _statements = new ConcurrentHashMap<String, Stats>();
+	//raw statement text -> statistics of its shape, so a repeated statement is not normalized again
+	private final Map<String, Stats> _texts = new ConcurrentHashMap<String, Stats>();
+	private final Map<String, OperationStats> _operations = new ConcurrentHashMap<String, OperationStats>();
+	//operation running on the current thread, if any
+	private final ThreadLocal<Operation> _current = new ThreadLocal<Operation>();
+	private final List<ObjectName> _registered = Collections.synchronizedList(new ArrayList<ObjectName>());
+
+	/**
+	 * @param maxStatements number of distinct statement shapes tracked separately
+	 */
+	public QueryMetrics(int maxStatements) {
+		this._maxStatements = maxStatements;
+		register(objectName("type=QueryMetrics"), new Summary(), SummaryMXBean.class);
+	}
+
+	/**
+	 * Statistics of one statement shape or operation.
+	 */
+	public interface StatsMXBean {
+		String getName();
+		long getCalls();
+		long getErrors();
+		long getRows();
+		double getTotalMillis();
+		double getMeanMillis();
+		double getP50Millis();
+		double getP90Millis();
+		double getP99Millis();
+		double getP999Millis();
+		double getMaxMillis();
+		void reset();
+	}
+
+	/**
+	 * Statistics of an operation, with the share of it spent in statements.
+	 */
+	public interface OperationStatsMXBean extends StatsMXBean {
+		long getStatements();
+		double getDatabaseMillis();
+	}
+
+	/**
+	 * Totals over the whole session.
+	 */
+	public interface SummaryMXBean {
+		int getStatementShapes();
+		long getStatementCalls();
+		long getStatementErrors();
+		String[] getTopStatements();
+		String[] getTopOperations();
+		void reset();
+	}
+
+	public static class Stats implements StatsMXBean {
+		private final String _name;
+		private final LongAdder _errors = new LongAdder();
+		private final LongAdder _rows = new LongAdder();
+		private final LatencyHistogram _latency = new LatencyHistogram();
+
+		Stats(String name) {
+			this._name = name;
+		}
+
+		/**
+		 * Method to record one call.
+		 *
+		 * @param nanos the latency of the call
+		 * @param rows rows returned or affected, or a negative number when the call failed
+		 */
+		public void record(long nanos, long rows) {
+			this._latency.record(nanos);
+			if (rows < 0) {
+				this._errors.increment();
+			}
+			else {
+				this._rows.add(rows);
+			}
+		}
+
+		public String getName() { return this._name; }
+		public long getCalls() { return this._latency.count(); }
+		public long getErrors() { return this._errors.sum(); }
+		public long getRows() { return this._rows.sum(); }
+		public double getTotalMillis() { return this._latency.mean() * this._latency.count() / 1e6; }
+		public double getMeanMillis() { return this._latency.mean() / 1e6; }
+		public double getP50Millis() { return this._latency.percentile(50) / 1e6; }
+		public double getP90Millis() { return this._latency.percentile(90) / 1e6; }
+		public double getP99Millis() { return this._latency.percentile(99) / 1e6; }
+		public double getP999Millis() { return this._latency.percentile(99.9) / 1e6; }
+		public double getMaxMillis() { return this._latency.max() / 1e6; }
+
+		public void reset() {
+			this._latency.reset();
+			this._errors.reset();
+			this._rows.reset();
+		}
+
+		public String toString() {
+			return String.format("total=%.1fms calls=%d errors=%d rows=%d mean=%.3fms p99=%.3fms  %s",
+					getTotalMillis(), getCalls(), getErrors(), getRows(), getMeanMillis(), getP99Millis(), this._name);
+		}
+	}//end Stats
+
+	public static class OperationStats extends Stats implements OperationStatsMXBean {
+		private final LongAdder _statements = new LongAdder();
+		private final LongAdder _databaseNanos = new LongAdder();
+
+		OperationStats(String name) {
+			super(name);
+		}
+
+		public long getStatements() { return this._statements.sum(); }
+		public double getDatabaseMillis() { return this._databaseNanos.sum() / 1e6; }
+
+		public void reset() {
+			super.reset();
+			this._statements.reset();
+			this._databaseNanos.reset();
+		}
+	}
+
+	/**
+	 * An operation in progress on one thread, returned by beginOperation().
+	 */
+	public final class Operation {
+		private final OperationStats _stats;
+		private final Operation _outer;
+		private final long _start = System.nanoTime();
+		private long _rows = 0;
+		private long _statements = 0;
+		private long _databaseNanos = 0;
+		private boolean _failed = false;
+
+		private Operation(OperationStats stats, Operation outer) {
+			this._stats = stats;
+			this._outer = outer;
+		}
+
+		/**
+		 * Method to record the operation and make the enclosing one, if
+		 * any, current again.
+		 *
+		 * @param ok false when the operation failed; a failed statement also fails it
+		 */
+		public void end(boolean ok) {
+			QueryMetrics.this._current.set(this._outer);
+			this._stats.record(System.nanoTime() - this._start, ok && !this._failed ? this._rows : -1);
+			this._stats._statements.add(this._statements);
+			this._stats._databaseNanos.add(this._databaseNanos);
+		}
+	}//end Operation
+
+	/**
+	 * Method to start timing an operation on the current thread.  Every
+	 * statement the thread runs until end() is also charged to it.
+	 *
+	 * @param name the operation name
+	 * @return the running operation, to be ended in a finally block
+	 */
+	public Operation beginOperation(String name) {
+		OperationStats stats = this._operations.get(name);
+		if (stats == null) {
+			stats = new OperationStats(name);
+			if (this._operations.putIfAbsent(name, stats) == null) {
+				register(objectName("type=Operation,name=" + ObjectName.quote(name)), stats, OperationStatsMXBean.class);
+			}
+			stats = this._operations.get(name);
+		}
+		Operation operation = new Operation(stats, this._current.get());
+		this._current.set(operation);
+		return operation;
+	}
+
+	/**
+	 * Method to record one statement.
+	 *
+	 * @param sql the statement text
+	 * @param nanos the latency of the statement
+	 * @param rows rows returned or affected, or a negative number when the statement failed
+	 */
+	public void recordStatement(String sql, long nanos, long rows) {
+		statement(sql).record(nanos, rows);
+		Operation operation = this._current.get();
+		if (operation != null) {
+			++operation._statements;
+			operation._databaseNanos += nanos;
+			if (rows < 0) {
+				operation._failed = true;
+			}
+			else {
+				operation._rows += rows;
+			}
+		}
+	}
+
+	private Stats statement(String sql) {
+		Stats stats = this._texts.get(sql);
+		if (stats != null) {
+			return stats;
+		}
+		String shape = shape(sql);
+		stats = this._statements.get(shape);
+		if (stats == null) {
+			if (this._statements.size() >= this._maxStatements) {
+				shape = OTHER;
+			}
+			stats = new Stats(shape);
+			if (this._statements.putIfAbsent(shape, stats) == null) {
+				register(objectName("type=Statement,name=" + ObjectName.quote(shape)), stats, StatsMXBean.class);
+			}
+			stats = this._statements.get(shape);
+		}
+		//statements built with literals in them would fill the map with one-off texts
+		if (this._texts.size() < MAX_TEXTS) {
+			this._texts.put(sql, stats);
+		}
+		return stats;
+	}//end statement
+
+	/**
+	 * Method to reduce a statement to its shape: string and number
+	 * literals become ?, lists of values after IN become (?...) and runs
+	 * of whitespace become a single space.
+	 *
+	 * @param sql the statement text
+	 * @return the shape of the statement
+	 */
+	public static String shape(String sql) {
+		int n = sql.length();
+		StringBuilder sb = new StringBuilder(n);
+		boolean space = false;
+		int i = 0;
+		while (i < n) {
+			char c = sql.charAt(i);
+			if (Character.isWhitespace(c)) {
+				space = true;
+				++i;
+				continue;
+			}
+			if (space && sb.length() > 0) {
+				sb.append(' ');
+			}
+			space = false;
+			if (c == '\'') {
+				//a doubled quote inside a string literal stands for one quote
+				++i;
+				while (i < n && (sql.charAt(i) != '\'' || (i + 1 < n && sql.charAt(i + 1) == '\''))) {
+					i += sql.charAt(i) == '\'' ? 2 : 1;
+				}
+				++i;
+				sb.append('?');
+			}
+			else if (c == '"') {
+				//quoted identifiers are kept as they are
+				int end = sql.indexOf('"', i + 1);
+				end = end < 0 ? n : end + 1;
+				sb.append(sql, i, end);
+				i = end;
+			}
+			else if (Character.isDigit(c) && !inWord(sb)) {
+				while (i < n && (Character.isLetterOrDigit(sql.charAt(i)) || sql.charAt(i) == '.')) {
+					++i;
+				}
+				sb.append('?');
+			}
+			else {
+				sb.append(c);
+				++i;
+			}
+		}
+		return IN_LIST.matcher(sb).replaceAll("IN (?...)");
+	}//end shape
+
+	//true when the next character continues an identifier, as the 1 in Flight1 or $1
+	private static boolean inWord(StringBuilder sb) {
+		if (sb.length() == 0) {
+			return false;
+		}
+		char last = sb.charAt(sb.length() - 1);
+		return Character.isLetterOrDigit(last) || last == '_' || last == '$';
+	}
+
+	/**
+	 * @return statistics of every statement shape seen so far
+	 */
+	public List<Stats> statements() {
+		return new ArrayList<Stats>(this._statements.values());
+	}
+
+	/**
+	 * @return statistics of every operation seen so far
+	 */
+	public List<Stats> operations() {
+		return new ArrayList<Stats>(this._operations.values());
+	}
+
+	/**
+	 * Method to forget everything recorded so far.  The beans stay
+	 * registered.
+	 */
+	public void reset() {
+		for (Stats stats : this._statements.values()) {
+			stats.reset();
+		}
+		for (Stats stats : this._operations.values()) {
+			stats.reset();
+		}
+	}
+
+	private static String[] top(List<Stats> all) {
+		Collections.sort(all, new Comparator<Stats>() {
+			public int compare(Stats a, Stats b) {
+				return Double.compare(b.getTotalMillis(), a.getTotalMillis());
+			}
+		});
+		String[] lines = new String[Math.min(TOP, all.size())];
+		for (int i = 0; i < lines.length; ++i) {
+			lines[i] = all.get(i).toString();
+		}
+		return lines;
+	}
+
+	private class Summary implements SummaryMXBean {
+		public int getStatementShapes() {
+			return QueryMetrics.this._statements.size();
+		}
+
+		public long getStatementCalls() {
+			long calls = 0;
+			for (Stats stats : QueryMetrics.this._statements.values()) {
+				calls += stats.getCalls();
+			}
+			return calls;
+		}
+
+		public long getStatementErrors() {
+			long errors = 0;
+			for (Stats stats : QueryMetrics.this._statements.values()) {
+				errors += stats.getErrors();
+			}
+			return errors;
+		}
+
+		public String[] getTopStatements() {
+			return top(statements());
+		}
+
+		public String[] getTopOperations() {
+			return top(operations());
+		}
+
+		public void reset() {
+			QueryMetrics.this.reset();
+		}
+	}//end Summary
+
+	private static ObjectName objectName(String properties) {
+		try {
+			return new ObjectName(DOMAIN + ":" + properties);
+		} catch (JMException e) {
+			throw new IllegalArgumentException(e);
+		}
+	}
+
+	/**
+	 * Publishes a bean, replacing one left behind by an earlier session in
+	 * the same JVM.  Metrics are still recorded when publishing fails.
+	 */
+	private <T> void register(ObjectName name, T bean, Class<T> type) {
+		try {
+			MBeanServer server = ManagementFactory.getPlatformMBeanServer();
+			StandardMBean mbean = new StandardMBean(bean, type, true);
+			try {
+				server.registerMBean(mbean, name);
+			} catch (InstanceAlreadyExistsException e) {
+				server.unregisterMBean(name);
+				server.registerMBean(mbean, name);
+			}
+			this._registered.add(name);
+		} catch (JMException e) {
+			System.err.println("Could not publish " + name + ": " + e.getMessage());
+		} catch (SecurityException e) {
+			System.err.println("Could not publish " + name + ": " + e.getMessage());
+		}
+	}
+
+	/**
+	 * Method to withdraw every bean published by this session.
+	 */
+	public void unregister() {
+		MBeanServer server = ManagementFactory.getPlatformMBeanServer();
+		synchronized (this._registered) {
+			for (ObjectName name : this._registered) {
+				try {
+					server.unregisterMBean(name);
+				} catch (JMException e) {
+					// already withdrawn.
+				}
+			}
+			this._registered.clear();
+		}
+	}
+}//end QueryMetrics
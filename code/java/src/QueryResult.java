@@ -0,0 +1,422 @@
+import java.sql.ResultSet;
+import java.sql.ResultSetMetaData;
+import java.sql.SQLException;
+import java.sql.Types;
+import java.util.Arrays;
+import java.util.BitSet;
+import java.util.HashMap;
+import java.util.Map;
+
+/**
+ * This class holds a query result column by column.  Integer columns are
+ * kept in int[] or long[] arrays and numeric columns in double[] arrays, so
+ * callers read seats, duration, score or avg without parsing strings.
+ * Text columns lose the trailing blanks of CHAR(n) padding and are
+ * dictionary encoded while they have few distinct values (origin,
+ * destination, country, airline name, ...), which stores each distinct
+ * string once and one int per row.
+ *
+ * Rows and columns are numbered from 0.
+ */
+public class QueryResult {
+	/**
+	 * Physical representation of a column.
+	 */
+	public enum Type { INT, LONG, DOUBLE, STRING }
+
+	//text columns with more distinct values than this are stored as plain strings
+	static final int DICTIONARY_LIMIT = 1024;
+
+	private final String[] _names;
+	private final Type[] _types;
+	//int[], long[], double[] or, for STRING columns, int[] dictionary codes or String[]
+	private final Object[] _data;
+	//dictionary of each encoded STRING column, null for other columns
+	private final String[][] _dictionaries;
+	private final BitSet[] _nulls;
+	private final int _rows;
+
+	private QueryResult(String[] names, Type[] types, Object[] data, String[][] dictionaries, BitSet[] nulls, int rows) {
+		this._names = names;
+		this._types = types;
+		this._data = data;
+		this._dictionaries = dictionaries;
+		this._nulls = nulls;
+		this._rows = rows;
+	}
+
+	/**
+	 * Method to read every remaining row of a result set into a new
+	 * QueryResult.
+	 *
+	 * @param rs the result set to read
+	 * @return the rows of rs, column by column
+	 * @throws java.sql.SQLException when reading the result set failed
+	 */
+	public static QueryResult read(ResultSet rs) throws SQLException {
+		ResultSetMetaData rsmd = rs.getMetaData();
+		int numCol = rsmd.getColumnCount();
+		String[] names = new String[numCol];
+		Type[] types = new Type[numCol];
+		boolean[] padded = new boolean[numCol];
+		ColumnBuilder[] columns = new ColumnBuilder[numCol];
+		for (int c = 0; c < numCol; ++c) {
+			names[c] = rsmd.getColumnLabel(c + 1);
+			types[c] = typeOf(rsmd.getColumnType(c + 1));
+			padded[c] = rsmd.getColumnType(c + 1) == Types.CHAR;
+			columns[c] = new ColumnBuilder(types[c]);
+		}
+
+		int rows = 0;
+		while (rs.next()) {
+			for (int c = 0; c < numCol; ++c) {
+				ColumnBuilder column = columns[c];
+				switch (types[c]) {
+					case INT: column.addInt(rs.getInt(c + 1), rs.wasNull(), rows); break;
+					case LONG: column.addLong(rs.getLong(c + 1), rs.wasNull(), rows); break;
+					case DOUBLE: column.addDouble(rs.getDouble(c + 1), rs.wasNull(), rows); break;
+					default:
+						String value = rs.getString(c + 1);
+						column.addString(padded[c] && value != null ? trimTrailing(value) : value, rows);
+				}
+			}
+			++rows;
+		}
+
+		Object[] data = new Object[numCol];
+		String[][] dictionaries = new String[numCol][];
+		BitSet[] nulls = new BitSet[numCol];
+		for (int c = 0; c < numCol; ++c) {
+			data[c] = columns[c].finish(rows);
+			dictionaries[c] = columns[c].dictionary();
+			nulls[c] = columns[c].nulls;
+		}
+		return new QueryResult(names, types, data, dictionaries, nulls, rows);
+	}//end read
+
+	/**
+	 * This class assembles a QueryResult row by row, for results computed
+	 * in memory instead of read from a result set.
+	 */
+	public static class Builder {
+		private final String[] _names;
+		private final Type[] _types;
+		private final ColumnBuilder[] _columns;
+		private int _rows = 0;
+
+		/**
+		 * @param names the column names
+		 * @param types the type of each column
+		 */
+		public Builder(String[] names, Type[] types) {
+			if (names.length != types.length) {
+				throw new IllegalArgumentException(names.length + " names for " + types.length + " types");
+			}
+			this._names = names.clone();
+			this._types = types.clone();
+			this._columns = new ColumnBuilder[types.length];
+			for (int c = 0; c < types.length; ++c) {
+				this._columns[c] = new ColumnBuilder(types[c]);
+			}
+		}
+
+		/**
+		 * Method to append a row.
+		 *
+		 * @param values one value per column: a Number for INT, LONG and DOUBLE columns, any object for STRING columns, or null
+		 * @return this builder
+		 */
+		public Builder add(Object... values) {
+			if (values.length != this._columns.length) {
+				throw new IllegalArgumentException(values.length + " values for " + this._columns.length + " columns");
+			}
+			for (int c = 0; c < values.length; ++c) {
+				Object value = values[c];
+				ColumnBuilder column = this._columns[c];
+				switch (this._types[c]) {
+					case INT: column.addInt(value == null ? 0 : ((Number) value).intValue(), value == null, this._rows); break;
+					case LONG: column.addLong(value == null ? 0 : ((Number) value).longValue(), value == null, this._rows); break;
+					case DOUBLE: column.addDouble(value == null ? 0 : ((Number) value).doubleValue(), value == null, this._rows); break;
+					default: column.addString(value == null ? null : value.toString(), this._rows);
+				}
+			}
+			++this._rows;
+			return this;
+		}
+
+		/**
+		 * @return the rows added; the builder must not be used afterwards
+		 */
+		public QueryResult build() {
+			int numCol = this._columns.length;
+			Object[] data = new Object[numCol];
+			String[][] dictionaries = new String[numCol][];
+			BitSet[] nulls = new BitSet[numCol];
+			for (int c = 0; c < numCol; ++c) {
+				data[c] = this._columns[c].finish(this._rows);
+				dictionaries[c] = this._columns[c].dictionary();
+				nulls[c] = this._columns[c].nulls;
+			}
+			return new QueryResult(this._names, this._types, data, dictionaries, nulls, this._rows);
+		}
+	}//end Builder
+
+	private static Type typeOf(int sqlType) {
+		switch (sqlType) {
+			case Types.INTEGER:
+			case Types.SMALLINT:
+			case Types.TINYINT:
+				return Type.INT;
+			case Types.BIGINT:
+				return Type.LONG;
+			case Types.NUMERIC:
+			case Types.DECIMAL:
+			case Types.DOUBLE:
+			case Types.FLOAT:
+			case Types.REAL:
+				return Type.DOUBLE;
+			default:
+				return Type.STRING;
+		}
+	}
+
+	static String trimTrailing(String value) {
+		int end = value.length();
+		while (end > 0 && value.charAt(end - 1) == ' ') {
+			--end;
+		}
+		return end == value.length() ? value : value.substring(0, end);
+	}
+
+	/**
+	 * @return the number of rows
+	 */
+	public int size() {
+		return this._rows;
+	}
+
+	/**
+	 * @return the number of columns
+	 */
+	public int columnCount() {
+		return this._names.length;
+	}
+
+	/**
+	 * @param col the column number
+	 * @return the label of the column
+	 */
+	public String getColumnName(int col) {
+		return this._names[col];
+	}
+
+	/**
+	 * @param col the column number
+	 * @return how the column is stored, which decides the natural accessor
+	 */
+	public Type getType(int col) {
+		return this._types[col];
+	}
+
+	/**
+	 * @param row the row number
+	 * @param col the column number
+	 * @return true when the value is SQL NULL
+	 */
+	public boolean isNull(int row, int col) {
+		return this._nulls[col].get(row);
+	}
+
+	/**
+	 * @param row the row number
+	 * @param col the column number
+	 * @return the value of an INT column, 0 for NULL
+	 */
+	public int getInt(int row, int col) {
+		checkRow(row);
+		switch (this._types[col]) {
+			case INT: return ((int[]) this._data[col])[row];
+			case LONG: return (int) ((long[]) this._data[col])[row];
+			case DOUBLE: return (int) ((double[]) this._data[col])[row];
+			default:
+				String value = getString(row, col);
+				return value == null ? 0 : Integer.parseInt(value.trim());
+		}
+	}
+
+	/**
+	 * @param row the row number
+	 * @param col the column number
+	 * @return the value of an INT or LONG column, 0 for NULL
+	 */
+	public long getLong(int row, int col) {
+		checkRow(row);
+		switch (this._types[col]) {
+			case INT: return ((int[]) this._data[col])[row];
+			case LONG: return ((long[]) this._data[col])[row];
+			case DOUBLE: return (long) ((double[]) this._data[col])[row];
+			default:
+				String value = getString(row, col);
+				return value == null ? 0 : Long.parseLong(value.trim());
+		}
+	}
+
+	/**
+	 * @param row the row number
+	 * @param col the column number
+	 * @return the value of a numeric column, 0 for NULL
+	 */
+	public double getDouble(int row, int col) {
+		checkRow(row);
+		switch (this._types[col]) {
+			case INT: return ((int[]) this._data[col])[row];
+			case LONG: return ((long[]) this._data[col])[row];
+			case DOUBLE: return ((double[]) this._data[col])[row];
+			default:
+				String value = getString(row, col);
+				return value == null ? 0 : Double.parseDouble(value.trim());
+		}
+	}
+
+	/**
+	 * @param row the row number
+	 * @param col the column number
+	 * @return the value as text, without CHAR padding; null for NULL
+	 */
+	public String getString(int row, int col) {
+		checkRow(row);
+		if (this._nulls[col].get(row)) {
+			return null;
+		}
+		switch (this._types[col]) {
+			case INT: return Integer.toString(((int[]) this._data[col])[row]);
+			case LONG: return Long.toString(((long[]) this._data[col])[row]);
+			case DOUBLE: return Double.toString(((double[]) this._data[col])[row]);
+			default:
+				String[] dictionary = this._dictionaries[col];
+				if (dictionary != null) {
+					return dictionary[((int[]) this._data[col])[row]];
+				}
+				return ((String[]) this._data[col])[row];
+		}
+	}
+
+	/**
+	 * @param col the column number
+	 * @return true when the column is stored as dictionary codes
+	 */
+	public boolean isDictionaryEncoded(int col) {
+		return this._dictionaries[col] != null;
+	}
+
+	private void checkRow(int row) {
+		if (row < 0 || row >= this._rows) {
+			throw new IndexOutOfBoundsException("row " + row + " of " + this._rows);
+		}
+	}
+
+	/**
+	 * Accumulates the values of one column while the result set is read.
+	 */
+	private static class ColumnBuilder {
+		final Type type;
+		final BitSet nulls = new BitSet();
+		int[] ints;
+		long[] longs;
+		double[] doubles;
+		String[] strings;
+		//dictionary encoding state, dropped once the column has too many distinct values
+		Map<String, Integer> codes;
+		String[] dictionary;
+
+		ColumnBuilder(Type type) {
+			this.type = type;
+			switch (type) {
+				case INT: this.ints = new int[16]; break;
+				case LONG: this.longs = new long[16]; break;
+				case DOUBLE: this.doubles = new double[16]; break;
+				default:
+					this.ints = new int[16];
+					this.codes = new HashMap<String, Integer>();
+					this.dictionary = new String[16];
+			}
+		}
+
+		void addInt(int value, boolean isNull, int row) {
+			if (row == this.ints.length) this.ints = Arrays.copyOf(this.ints, row * 2);
+			this.ints[row] = value;
+			if (isNull) this.nulls.set(row);
+		}
+
+		void addLong(long value, boolean isNull, int row) {
+			if (row == this.longs.length) this.longs = Arrays.copyOf(this.longs, row * 2);
+			this.longs[row] = value;
+			if (isNull) this.nulls.set(row);
+		}
+
+		void addDouble(double value, boolean isNull, int row) {
+			if (row == this.doubles.length) this.doubles = Arrays.copyOf(this.doubles, row * 2);
+			this.doubles[row] = value;
+			if (isNull) this.nulls.set(row);
+		}
+
+		void addString(String value, int row) {
+			if (value == null) {
+				this.nulls.set(row);
+			}
+			if (this.codes != null) {
+				Integer code = value == null ? Integer.valueOf(0) : this.codes.get(value);
+				if (code == null) {
+					if (this.codes.size() == DICTIONARY_LIMIT) {
+						decode(row);
+						addString(value, row);
+						return;
+					}
+					code = this.codes.size();
+					this.codes.put(value, code);
+					if (code == this.dictionary.length) this.dictionary = Arrays.copyOf(this.dictionary, code * 2);
+					this.dictionary[code] = value;
+				}
+				if (row == this.ints.length) this.ints = Arrays.copyOf(this.ints, row * 2);
+				this.ints[row] = code;
+				return;
+			}
+			if (row == this.strings.length) this.strings = Arrays.copyOf(this.strings, row * 2);
+			this.strings[row] = value;
+		}
+
+		/**
+		 * Switches the first rows already read from codes to plain strings.
+		 */
+		void decode(int rows) {
+			this.strings = new String[Math.max(16, this.ints.length)];
+			for (int r = 0; r < rows; ++r) {
+				if (!this.nulls.get(r)) {
+					this.strings[r] = this.dictionary[this.ints[r]];
+				}
+			}
+			this.ints = null;
+			this.codes = null;
+			this.dictionary = null;
+		}
+
+		Object finish(int rows) {
+			switch (this.type) {
+				case INT: return Arrays.copyOf(this.ints, rows);
+				case LONG: return Arrays.copyOf(this.longs, rows);
+				case DOUBLE: return Arrays.copyOf(this.doubles, rows);
+				default:
+					if (this.codes != null) {
+						this.dictionary = Arrays.copyOf(this.dictionary, this.codes.size());
+						this.codes = null;
+						return Arrays.copyOf(this.ints, rows);
+					}
+					return Arrays.copyOf(this.strings, rows);
+			}
+		}
+
+		String[] dictionary() {
+			return this.dictionary;
+		}
+	}//end ColumnBuilder
+}//end QueryResult
@@ -0,0 +1,232 @@
+import java.sql.SQLException;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * This class caches the Airline and Flight lookups that the menu and the
+ * service repeat for every prompt and request: whether an airline or a
+ * flight exists, the airline list and the flights of a route.  Origins and
+ * destinations are checked against the CityIndex instead.  Lookups read
+ * through to the database on a miss; answers that nothing exists are
+ * cached too, so mistyped input is not looked up again at every retry.
+ *
+ * The cache holds at most maxEntries answers and evicts the least recently
+ * used one beyond that.  Every answer also expires after the time to live,
+ * which bounds how stale it can get when the tables are changed by another
+ * client.  upsertFlight() invalidates the answers a flight change affects
+ * once it commits, and reloadIndexes() clears the cache.
+ *
+ * Misses are always loaded from the primary, even inside a
+ * beginReplicaReads() scope.  The cache is shared by every thread, while
+ * the read-your-writes pin after a write only holds for the thread that
+ * wrote, so an answer loaded from a lagging replica just after an
+ * invalidation would be served as current, to every thread, until it
+ * expires.
+ *
+ * City names are compared without trailing blanks, as CHAR columns are.
+ */
+public class ReferenceCache {
+	//cached answer of a lookup that found nothing
+	private static final Object ABSENT = new Object();
+
+	static final String AIRLINE = "SELECT name FROM Airline WHERE airId = ?";
+	static final String AIRLINES = "SELECT airId, name FROM Airline ORDER BY airId";
+	static final String FLIGHT = "SELECT * FROM Flight WHERE flightNum = ?";
+
+	private final AirBooking _esql;
+	private final long _ttlNanos;
+	//access ordered, so the eldest entry is the least recently used one
+	private final LinkedHashMap<String, Answer> _entries;
+	//advanced by every invalidation, so that answers loaded before it are not cached
+	private long _generation = 0;
+	private final LongAdder _hits = new LongAdder();
+	private final LongAdder _misses = new LongAdder();
+	private final LongAdder _evictions = new LongAdder();
+
+	/**
+	 * @param esql the database session lookups read through to
+	 * @param maxEntries the most answers kept
+	 * @param ttlMillis how long an answer is kept
+	 */
+	public ReferenceCache(AirBooking esql, final int maxEntries, long ttlMillis) {
+		this._esql = esql;
+		this._ttlNanos = TimeUnit.MILLISECONDS.toNanos(ttlMillis);
+		this._entries = new LinkedHashMap<String, Answer>(16, 0.75f, true) {
+			private static final long serialVersionUID = 1L;
+
+			protected boolean removeEldestEntry(Map.Entry<String, Answer> eldest) {
+				if (size() > maxEntries) {
+					ReferenceCache.this._evictions.increment();
+					return true;
+				}
+				return false;
+			}
+		};
+	}
+
+	private static class Answer {
+		final Object value;
+		final long expires;
+
+		Answer(Object value, long expires) {
+			this.value = value;
+			this.expires = expires;
+		}
+	}
+
+	/**
+	 * Loads the answer of a lookup from the database.
+	 */
+	private interface Loader {
+		Object load() throws SQLException;
+	}
+
+	/**
+	 * Returns the cached answer for key, or loads it from the primary,
+	 * caches and returns it.  The database is read outside the lock.
+	 */
+	private Object get(String key, Loader loader) throws SQLException {
+		long generation;
+		synchronized (this) {
+			Answer answer = this._entries.get(key);
+			if (answer != null && System.nanoTime() - answer.expires < 0) {
+				this._hits.increment();
+				return answer.value == ABSENT ? null : answer.value;
+			}
+			generation = this._generation;
+		}
+		this._misses.increment();
+		Object value;
+		this._esql.pinToPrimary();
+		try {
+			value = loader.load();
+		} finally {
+			this._esql.unpinFromPrimary();
+		}
+		synchronized (this) {
+			if (generation == this._generation) {
+				this._entries.put(key, new Answer(value == null ? ABSENT : value, System.nanoTime() + this._ttlNanos));
+			}
+		}
+		return value;
+	}//end get
+
+	//CHAR columns ignore trailing blanks, and so do the keys
+	private static String city(String name) {
+		int end = name.length();
+		while (end > 0 && name.charAt(end - 1) == ' ') {
+			--end;
+		}
+		return name.substring(0, end);
+	}
+
+	/**
+	 * Method to look up an airline.
+	 *
+	 * @param airId the airline id
+	 * @return the name of the airline, null when there is no such airline
+	 * @throws java.sql.SQLException when the lookup failed
+	 */
+	public String airline(final int airId) throws SQLException {
+		return (String) get("airline:" + airId, () -> {
+			QueryResult rows = this._esql.executePreparedQueryAndReturnColumns(AIRLINE, airId);
+			return rows.size() == 0 ? null : rows.getString(0, 0);
+		});
+	}
+
+	/**
+	 * @return the id and name of every airline
+	 * @throws java.sql.SQLException when the lookup failed
+	 */
+	public QueryResult airlines() throws SQLException {
+		return (QueryResult) get("airlines", () -> this._esql.executePreparedQueryAndReturnColumns(AIRLINES));
+	}
+
+	/**
+	 * Method to look up a flight.
+	 *
+	 * @param flightNum the flight number
+	 * @return every column of the flight as one row, null when there is no such flight
+	 * @throws java.sql.SQLException when the lookup failed
+	 */
+	public QueryResult flight(final String flightNum) throws SQLException {
+		return (QueryResult) get("flight:" + city(flightNum), () -> {
+			QueryResult rows = this._esql.executePreparedQueryAndReturnColumns(FLIGHT, flightNum);
+			return rows.size() == 0 ? null : rows;
+		});
+	}
+
+	/**
+	 * Method to list the flights of a route, as AirBooking.LIST_FLIGHTS does.
+	 *
+	 * @param origin the departure city
+	 * @param destination the arrival city
+	 * @return every column of the flights from origin to destination
+	 * @throws java.sql.SQLException when the lookup failed
+	 */
+	public QueryResult flightsBetween(final String origin, final String destination) throws SQLException {
+		return (QueryResult) get("route:" + city(origin) + "\n" + city(destination),
+				() -> this._esql.executePreparedQueryAndReturnColumns(AirBooking.LIST_FLIGHTS, origin, destination));
+	}
+
+	/**
+	 * Method to drop the answers that a change to one flight can affect:
+	 * the flight itself and the routes it was and is on.
+	 *
+	 * @param flightNum the flight that changed
+	 * @param origins the previous and new origin; null entries are skipped
+	 * @param destinations the previous and new destination; null entries are skipped
+	 */
+	public synchronized void invalidateFlight(String flightNum, String[] origins, String[] destinations) {
+		++this._generation;
+		this._entries.remove("flight:" + city(flightNum));
+		for (String origin : origins) {
+			if (origin == null) {
+				continue;
+			}
+			for (String destination : destinations) {
+				if (destination != null) {
+					this._entries.remove("route:" + city(origin) + "\n" + city(destination));
+				}
+			}
+		}
+	}//end invalidateFlight
+
+	/**
+	 * Method to drop every answer, e.g. after the tables were reloaded.
+	 */
+	public synchronized void invalidateAll() {
+		++this._generation;
+		this._entries.clear();
+	}
+
+	/**
+	 * @return number of answers held
+	 */
+	public synchronized int size() {
+		return this._entries.size();
+	}
+
+	/**
+	 * @return lookups answered from the cache
+	 */
+	public long hits() {
+		return this._hits.sum();
+	}
+
+	/**
+	 * @return lookups that read the database
+	 */
+	public long misses() {
+		return this._misses.sum();
+	}
+
+	/**
+	 * @return answers evicted to stay within the size bound
+	 */
+	public long evictions() {
+		return this._evictions.sum();
+	}
+}//end ReferenceCache
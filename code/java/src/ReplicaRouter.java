@@ -0,0 +1,222 @@
+import java.sql.Connection;
+import java.sql.ResultSet;
+import java.sql.SQLException;
+import java.sql.Statement;
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * This class spreads read-only statements over a set of read replicas,
+ * e.g. PostgreSQL hot standbys fed by streaming replication.  Every replica
+ * has its own ConnectionPool, and borrow() takes the healthy replicas in
+ * round-robin order.
+ *
+ * A background check runs every interval on each replica.  A replica is
+ * healthy when the check query succeeds and, if a bound is set, it replays
+ * the primary's changes no later than maxLagMillis behind.  A replica that
+ * cannot hand out a connection is marked down until the next check passes.
+ * When no replica is healthy and free, borrow() returns null and the
+ * caller reads from the primary.
+ */
+public class ReplicaRouter {
+	//replay lag in milliseconds; 0 when everything received was replayed, so an idle primary shows no lag
+	private static final String CHECK = "SELECT CASE WHEN pg_last_wal_receive_lsn() IS NULL"
+			+ " OR pg_last_wal_receive_lsn() = pg_last_wal_replay_lsn() THEN 0"
+			+ " ELSE COALESCE(EXTRACT(EPOCH FROM now() - pg_last_xact_replay_timestamp()) * 1000, 0) END";
+
+	/**
+	 * One replica and the state of its last check.
+	 */
+	private static class Replica {
+		final String url;
+		final ConnectionPool pool;
+		volatile boolean healthy = true;
+		volatile long lagMillis = 0;
+		volatile String lastError = null;
+		final LongAdder borrows = new LongAdder();
+
+		Replica(String url, ConnectionPool pool) {
+			this.url = url;
+			this.pool = pool;
+		}
+	}
+
+	private final List<Replica> _replicas = new ArrayList<Replica>();
+	private final long _maxLagMillis;
+	private final AtomicInteger _next = new AtomicInteger();
+	private final ScheduledExecutorService _checker;
+
+	/**
+	 * Creates a pool per replica.  Connections are opened on demand, so a
+	 * replica that is down at startup is only marked down by its first
+	 * check instead of failing the startup.
+	 *
+	 * @param urls the JDBC connection URLs of the replicas
+	 * @param user the database user
+	 * @param passwd the password of the database user
+	 * @param maxSize upper bound on open connections per replica
+	 * @param idleTimeoutMillis idle time after which a connection is closed
+	 * @param borrowTimeoutMillis how long borrowing from one replica waits for a free connection
+	 * @param validationIntervalMillis connections idle for longer than this are validated on borrow
+	 * @param statementCacheSize number of prepared statements cached per connection
+	 * @param checkIntervalMillis time between two health checks of a replica
+	 * @param maxLagMillis largest replay lag of a healthy replica, 0 for no bound
+	 * @throws java.sql.SQLException when a replica pool could not be created
+	 */
+	public ReplicaRouter(List<String> urls, String user, String passwd, int maxSize, long idleTimeoutMillis,
+			long borrowTimeoutMillis, long validationIntervalMillis, int statementCacheSize,
+			long checkIntervalMillis, long maxLagMillis) throws SQLException {
+		this._maxLagMillis = maxLagMillis;
+		for (String url : urls) {
+			this._replicas.add(new Replica(url, new ConnectionPool(url, user, passwd, 0, maxSize,
+					idleTimeoutMillis, borrowTimeoutMillis, validationIntervalMillis, 0, false, statementCacheSize)));
+		}
+		this._checker = Executors.newSingleThreadScheduledExecutor(new ThreadFactory() {
+			public Thread newThread(Runnable r) {
+				Thread t = new Thread(r, "replica-health-check");
+				t.setDaemon(true);
+				return t;
+			}
+		});
+		this._checker.scheduleWithFixedDelay(new Runnable() {
+			public void run() {
+				checkAll();
+			}
+		}, 0, checkIntervalMillis, TimeUnit.MILLISECONDS);
+	}
+
+	/**
+	 * Method to borrow a connection from the next healthy replica.
+	 *
+	 * @return a connection in autocommit mode, or null when no replica is healthy and has a free connection
+	 */
+	public Connection borrow() {
+		int n = this._replicas.size();
+		int first = this._next.getAndIncrement() & Integer.MAX_VALUE;
+		for (int i = 0; i < n; ++i) {
+			Replica replica = this._replicas.get((first + i) % n);
+			if (!replica.healthy || replica.pool.getActiveCount() >= replica.pool.getMaxSize()) {
+				//a busy replica is skipped rather than waited for
+				continue;
+			}
+			try {
+				Connection conn = replica.pool.borrow();
+				replica.borrows.increment();
+				return conn;
+			} catch (SQLException e) {
+				markDown(replica, e);
+			}
+		}
+		return null;
+	}//end borrow
+
+	/**
+	 * Method to hand a connection back to the replica it came from.
+	 *
+	 * @param conn a connection
+	 * @return false when conn was not borrowed from a replica
+	 */
+	public boolean release(Connection conn) {
+		ConnectionPool pool = poolOf(conn);
+		if (pool == null) {
+			return false;
+		}
+		pool.release(conn);
+		return true;
+	}
+
+	/**
+	 * @param conn a connection
+	 * @return the replica pool conn was borrowed from, null when it was not borrowed from a replica
+	 */
+	public ConnectionPool poolOf(Connection conn) {
+		for (Replica replica : this._replicas) {
+			if (replica.pool.owns(conn)) {
+				return replica.pool;
+			}
+		}
+		return null;
+	}
+
+	private void markDown(Replica replica, Exception e) {
+		if (replica.healthy) {
+			System.err.println("Warning - replica " + replica.url + " is down: " + e.getMessage());
+		}
+		replica.lastError = e.getMessage();
+		replica.healthy = false;
+	}
+
+	private void checkAll() {
+		for (Replica replica : this._replicas) {
+			check(replica);
+		}
+	}
+
+	/**
+	 * Runs the check query on one replica and updates its state.
+	 */
+	private void check(Replica replica) {
+		Connection conn = null;
+		try {
+			conn = replica.pool.borrow();
+			Statement stmt = conn.createStatement();
+			try {
+				ResultSet rs = stmt.executeQuery(CHECK);
+				rs.next();
+				replica.lagMillis = rs.getLong(1);
+			} finally {
+				stmt.close();
+			}
+		} catch (SQLException e) {
+			markDown(replica, e);
+			return;
+		} finally {
+			replica.pool.release(conn);
+		}
+		if (this._maxLagMillis > 0 && replica.lagMillis > this._maxLagMillis) {
+			markDown(replica, new SQLException("replay lag of " + replica.lagMillis + " ms"));
+		}
+		else {
+			if (!replica.healthy) {
+				System.err.println("Replica " + replica.url + " is back");
+			}
+			replica.lastError = null;
+			replica.healthy = true;
+		}
+	}//end check
+
+	/**
+	 * @return the state of every replica: url, healthy, lagMillis, borrows and lastError
+	 */
+	public List<Map<String, Object>> status() {
+		List<Map<String, Object>> status = new ArrayList<Map<String, Object>>();
+		for (Replica replica : this._replicas) {
+			Map<String, Object> row = new LinkedHashMap<String, Object>();
+			row.put("url", replica.url);
+			row.put("healthy", replica.healthy);
+			row.put("lagMillis", replica.lagMillis);
+			row.put("borrows", replica.borrows.sum());
+			row.put("lastError", replica.lastError);
+			status.add(row);
+		}
+		return status;
+	}
+
+	/**
+	 * Method to stop the health checks and close the replica pools.
+	 */
+	public void close() {
+		this._checker.shutdownNow();
+		for (Replica replica : this._replicas) {
+			replica.pool.close();
+		}
+	}
+}//end ReplicaRouter
@@ -0,0 +1,338 @@
+import java.io.File;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.sql.SQLException;
+import java.util.ArrayList;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+
+/**
+ * This class is the behavioural suite every BookingRepository has to pass:
+ * it runs the nine operations on a small set of rows of its own, including
+ * every failure of the interface contract, and reports each difference from
+ * the expected behaviour.  The rows use keys that real data does not
+ * (airline 900001, flights and passports starting with ZZ, the cities
+ * Conformton, Conformville and Conformburg).
+ *
+ * checkPostgres() runs the suite in a transaction that is rolled back, each
+ * expected failure in a savepoint of its own.  checkEmbedded() runs it in an
+ * empty temporary directory, then reopens the directory from the log alone
+ * and from the snapshot and checks that nothing was lost.
+ */
+public class RepositoryConformance {
+	private static final String DEPARTURE = "05/31/2030";
+	private static final String DAY = "2030-05-31";
+
+	/**
+	 * One operation expected to fail.
+	 */
+	private interface Call {
+		void run() throws SQLException;
+	}
+
+	private final BookingRepository _repository;
+	//runs the expected failures in savepoints, null for the embedded store
+	private final AirBooking _esql;
+	private final List<String> _failures = new ArrayList<String>();
+	private int _checks = 0;
+
+	private int _first;
+	private int _second;
+
+	private RepositoryConformance(BookingRepository repository, AirBooking esql) {
+		this._repository = repository;
+		this._esql = esql;
+	}
+
+	/**
+	 * Method to run the suite against PostgreSQL and roll every change back.
+	 *
+	 * @param esql the database session
+	 * @return a line per check that failed, empty when the backend conforms
+	 * @throws java.sql.SQLException when the transaction could not be started or rolled back
+	 */
+	public static List<String> checkPostgres(AirBooking esql) throws SQLException {
+		RepositoryConformance suite = new RepositoryConformance(new JdbcBookingRepository(esql), esql);
+		esql.beginTransaction();
+		try {
+			suite.runAll();
+		} finally {
+			esql.rollbackTransaction();
+		}
+		return suite.report();
+	}
+
+	/**
+	 * Method to run the suite against an EmbeddedBookingRepository in a
+	 * temporary directory, which is deleted afterwards.
+	 *
+	 * @return a line per check that failed, empty when the backend conforms
+	 * @throws java.io.IOException when the store could not be opened
+	 */
+	public static List<String> checkEmbedded() throws IOException {
+		File directory = Files.createTempDirectory("airbooking-conformance").toFile();
+		try {
+			//a snapshot after every 4 changes, so the log replays over a snapshot too
+			EmbeddedBookingRepository store = new EmbeddedBookingRepository(directory, false, 4);
+			RepositoryConformance suite = new RepositoryConformance(store, null);
+			suite.runAll();
+			//as after a crash: the last changes are only in the log
+			store.closeWithoutSnapshot();
+
+			store = new EmbeddedBookingRepository(directory, false, 1000);
+			RepositoryConformance recovered = new RepositoryConformance(store, null);
+			recovered._first = suite._first;
+			recovered._second = suite._second;
+			recovered.checkState("after replaying the log");
+			store.close();
+			suite.add(recovered);
+
+			store = new EmbeddedBookingRepository(directory, false, 1000);
+			recovered = new RepositoryConformance(store, null);
+			recovered._first = suite._first;
+			recovered._second = suite._second;
+			recovered.checkState("after loading the snapshot");
+			store.close();
+			suite.add(recovered);
+			return suite.report();
+		} finally {
+			for (File file : directory.listFiles()) {
+				file.delete();
+			}
+			directory.delete();
+		}
+	}//end checkEmbedded
+
+	private void add(RepositoryConformance other) {
+		this._checks += other._checks;
+		this._failures.addAll(other._failures);
+	}
+
+	private List<String> report() {
+		System.out.println(this._checks + " check(s), " + this._failures.size() + " failure(s)");
+		return this._failures;
+	}
+
+	private void runAll() {
+		try {
+			airlines();
+			flights();
+			passengers();
+			bookings();
+			reviews();
+			listings();
+			checkState("after the changes");
+		} catch (SQLException | RuntimeException e) {
+			this._failures.add("stopped by an unexpected failure: " + e);
+		}
+	}
+
+	private void expect(boolean ok, String check) {
+		++this._checks;
+		if (!ok) {
+			this._failures.add(check);
+		}
+	}
+
+	/**
+	 * Checks that call fails with sqlState, or with an
+	 * IllegalArgumentException when sqlState is null.
+	 */
+	private void expectFailure(String check, String sqlState, Call call) throws SQLException {
+		++this._checks;
+		String failure;
+		if (this._esql != null) {
+			this._esql.beginTransaction();
+		}
+		try {
+			call.run();
+			failure = "succeeded";
+		} catch (IllegalArgumentException e) {
+			failure = sqlState == null ? null : "IllegalArgumentException " + e.getMessage();
+		} catch (SQLException e) {
+			failure = sqlState != null && sqlState.equals(e.getSQLState()) ? null
+					: "SQLSTATE " + e.getSQLState() + " " + e.getMessage();
+		} finally {
+			if (this._esql != null) {
+				this._esql.rollbackTransaction();
+			}
+		}
+		if (failure != null) {
+			this._failures.add(check + ": expected " + (sqlState == null ? "IllegalArgumentException" : "SQLSTATE " + sqlState)
+					+ ", " + failure);
+		}
+	}//end expectFailure
+
+	private void airlines() throws SQLException {
+		this._repository.addAirline(900001, "Conformance Air", 1990, "Nowhere", "Conformton");
+		expectFailure("duplicate airline", "23505",
+				() -> this._repository.addAirline(900001, "Conformance Air", 1990, "Nowhere", "Conformton"));
+		expectFailure("airline founded before 1900", "23514",
+				() -> this._repository.addAirline(900002, "Old Air", 1800, "Nowhere", "Conformton"));
+	}
+
+	private void flights() throws SQLException {
+		RouteGraph.Leg leg = this._repository.upsertFlight(900001, "ZZ0001", "Conformton", "Conformville", "Conf-1", 1, 5);
+		expect(leg.flightNum.equals("ZZ0001") && leg.airline.equals("Conformance Air") && leg.duration == 5,
+				"upsertFlight returns the stored flight: " + leg);
+		this._repository.upsertFlight(900001, "ZZ0002", "Conformton", "Conformville", "Conf-2", 100, 2);
+		expectFailure("flight without seats", "23514",
+				() -> this._repository.upsertFlight(900001, "ZZ0003", "Conformton", "Conformville", "Conf-3", 0, 5));
+		expectFailure("flight of 24 hours", "23514",
+				() -> this._repository.upsertFlight(900001, "ZZ0003", "Conformton", "Conformville", "Conf-3", 10, 24));
+		expectFailure("flight of a missing airline", "23503",
+				() -> this._repository.upsertFlight(999999, "ZZ0003", "Conformton", "Conformville", "Conf-3", 10, 5));
+		expectFailure("origin longer than 16 characters", "22001",
+				() -> this._repository.upsertFlight(900001, "ZZ0003", "Conformtonshire East", "Conformville", "Conf-3", 10, 5));
+	}
+
+	private void passengers() throws SQLException {
+		this._first = this._repository.addPassenger("ZZ00000001", "Ada Conform", "01/15/1980", "Nowhere");
+		this._second = this._repository.addPassenger("ZZ00000002", "Bo Conform", "1985-02-28", "Nowhere");
+		expect(this._first != this._second, "addPassenger returns a new pID per passenger");
+		expectFailure("duplicate passport", "23505",
+				() -> this._repository.addPassenger("ZZ00000001", "Cy Conform", "01/15/1980", "Nowhere"));
+		expectFailure("short passport", null,
+				() -> this._repository.addPassenger("ZZ1", "Cy Conform", "01/15/1980", "Nowhere"));
+		expectFailure("date out of range", "22008",
+				() -> this._repository.addPassenger("ZZ00000003", "Cy Conform", "13/45/1980", "Nowhere"));
+		expectFailure("not a date", "22007",
+				() -> this._repository.addPassenger("ZZ00000003", "Cy Conform", "yesterday", "Nowhere"));
+	}
+
+	private void bookings() throws SQLException {
+		BookingEngine.Outcome booked = this._repository.bookFlight("ZZ00000001", "ZZ0001", DEPARTURE);
+		expect(booked.bookRef != null && booked.failure == null, "first booking succeeds: " + booked.failure);
+		expectOutcome("ZZ00000001", "ZZ0001", BookingEngine.Outcome.ALREADY_BOOKED);
+		expectOutcome("ZZ00000002", "ZZ0001", BookingEngine.Outcome.FULL);
+		expectOutcome("ZZ99999999", "ZZ0001", BookingEngine.Outcome.UNKNOWN_PASSPORT);
+		expectOutcome("ZZ00000002", "ZZ9999", BookingEngine.Outcome.UNKNOWN_FLIGHT);
+		BookingEngine.Outcome other = this._repository.bookFlight("ZZ00000002", "ZZ0002", DEPARTURE);
+		expect(other.bookRef != null && !other.bookRef.equals(booked.bookRef),
+				"a second booking gets a reference of its own: " + other.bookRef);
+		expectFailure("booking on an invalid date", "22008",
+				() -> this._repository.bookFlight("ZZ00000002", "ZZ0001", "02/30/2030"));
+	}
+
+	private void expectOutcome(String passNum, String flightNum, String failure) throws SQLException {
+		BookingEngine.Outcome outcome = this._repository.bookFlight(passNum, flightNum, DEPARTURE);
+		expect(outcome.bookRef == null && failure.equals(outcome.failure),
+				"booking " + passNum + " on " + flightNum + " fails with " + failure + ": " + outcome.failure);
+	}
+
+	private void reviews() throws SQLException {
+		expectFailure("score above 5", null, () -> this._repository.reviewFlight(this._first, "ZZ0001", 6, null));
+		expectFailure("review of a flight not taken", null,
+				() -> this._repository.reviewFlight(this._first, "ZZ0002", 4, null));
+		int rid = this._repository.reviewFlight(this._first, "ZZ0001", 5, "fine");
+		this._repository.reviewFlight(this._second, "ZZ0002", 2, null);
+		expect(rid >= 0, "reviewFlight returns the rID");
+		expectFailure("second review of a flight", null,
+				() -> this._repository.reviewFlight(this._first, "ZZ0001", 3, null));
+	}
+
+	private void listings() throws SQLException {
+		expect(column(this._repository.listFlights("Conformton", "Conformville"), "flightnum")
+				.equals(set("ZZ0001", "ZZ0002")), "listFlights returns both flights of the route");
+		QueryResult fastest = this._repository.flightsByDuration("Conformton", "Conformville", 1);
+		expect(fastest.size() == 1 && fastest.getString(0, 1).equals("ZZ0002") && fastest.getString(0, 0).equals("Conformance Air"),
+				"flightsByDuration returns the shortest flight first");
+		expect(flightsTo("Conformville") == 2, "popularDestinations counts both flights");
+		//moving a flight to another destination moves it in every index
+		this._repository.upsertFlight(900001, "ZZ0002", "Conformton", "Conformburg", "Conf-2", 100, 2);
+	}
+
+	/**
+	 * Checks the state the changes leave, which has to survive a restart.
+	 */
+	private void checkState(String when) {
+		try {
+			expect(column(this._repository.listFlights("Conformton", "Conformville"), "flightnum").equals(set("ZZ0001")),
+					"listFlights follows the moved flight " + when);
+			expect(column(this._repository.listFlights("Conformton", "Conformburg"), "flightnum").equals(set("ZZ0002")),
+					"listFlights finds the moved flight on its new route " + when);
+			expect(flightsTo("Conformville") == 1 && flightsTo("Conformburg") == 1,
+					"popularDestinations follows the moved flight " + when);
+			expect(this._repository.passengerId("ZZ00000001") == this._first
+					&& this._repository.passengerId("ZZ99999999") < 0, "passengerId finds the passport " + when);
+			expect(this._repository.passengerExists(this._first) && !this._repository.passengerExists(-1),
+					"passengerExists finds the passenger " + when);
+			expect(this._repository.flightExists("ZZ0002") && !this._repository.flightExists("ZZ9999"),
+					"flightExists finds the flight " + when);
+			QueryResult rated = this._repository.highestRated(1000000);
+			int r = row(rated, "flightnum", "ZZ0001");
+			expect(r >= 0 && Double.parseDouble(rated.getString(r, index(rated, "avg"))) == 5.0
+					&& rated.getString(r, index(rated, "name")).equals("Conformance Air"),
+					"highestRated returns the average score " + when);
+			expect(this._repository.availableFlights("Conformton", "Conformville", DEPARTURE).size() == 0,
+					"availableFlights leaves out the full flight " + when);
+			QueryResult open = this._repository.availableFlights("Conformton", "Conformburg", DEPARTURE);
+			expect(open.size() == 1 && open.getString(0, index(open, "flightnum")).equals("ZZ0002")
+					&& open.getInt(0, index(open, "availableseats")) == 99 && open.getString(0, index(open, "departure")).equals(DAY),
+					"availableFlights counts the booking " + when);
+			QueryResult seats = this._repository.availableSeats(DEPARTURE);
+			expect(row(seats, "flightnum", "ZZ0001") < 0, "availableSeats leaves out the full flight " + when);
+			r = row(seats, "flightnum", "ZZ0002");
+			expect(r >= 0 && seats.getInt(r, index(seats, "booked")) == 1 && seats.getInt(r, index(seats, "available")) == 99
+					&& seats.getString(r, index(seats, "departure")).equals(DAY),
+					"availableSeats counts the booking " + when);
+			final Set<String> streamed = new HashSet<String>();
+			int n = this._repository.availableSeats(DEPARTURE, (columns, values) -> streamed.add(values[0]));
+			expect(n == seats.size() && streamed.equals(column(seats, "flightnum")),
+					"availableSeats streams the rows it returns " + when);
+			final List<String> best = new ArrayList<String>();
+			n = this._repository.highestRated(1000000, (columns, values) -> best.add(values[1]));
+			expect(n == rated.size() && best.contains("ZZ0001"), "highestRated streams the rows it returns " + when);
+			expectOutcome("ZZ00000001", "ZZ0001", BookingEngine.Outcome.ALREADY_BOOKED);
+			expectFailure("second review of a flight " + when, null,
+					() -> this._repository.reviewFlight(this._first, "ZZ0001", 3, null));
+			expectFailure("duplicate passport " + when, "23505",
+					() -> this._repository.addPassenger("ZZ00000002", "Bo Conform", "02/28/1985", "Nowhere"));
+		} catch (SQLException | RuntimeException e) {
+			this._failures.add("stopped " + when + " by an unexpected failure: " + e);
+		}
+	}//end checkState
+
+	private int flightsTo(String destination) throws SQLException {
+		QueryResult rows = this._repository.popularDestinations(1000000);
+		int r = row(rows, "destination", destination);
+		return r < 0 ? 0 : rows.getInt(r, index(rows, "flights"));
+	}
+
+	private static int index(QueryResult rows, String name) {
+		for (int c = 0; c < rows.columnCount(); ++c) {
+			if (rows.getColumnName(c).equalsIgnoreCase(name)) {
+				return c;
+			}
+		}
+		return -1;
+	}
+
+	private static int row(QueryResult rows, String name, String value) {
+		int c = index(rows, name);
+		for (int r = 0; r < rows.size(); ++r) {
+			if (rows.getString(r, c).equals(value)) {
+				return r;
+			}
+		}
+		return -1;
+	}
+
+	private static Set<String> column(QueryResult rows, String name) {
+		Set<String> values = new HashSet<String>();
+		int c = index(rows, name);
+		for (int r = 0; r < rows.size(); ++r) {
+			values.add(rows.getString(r, c));
+		}
+		return values;
+	}
+
+	private static Set<String> set(String... values) {
+		Set<String> set = new HashSet<String>();
+		for (String value : values) {
+			set.add(value);
+		}
+		return set;
+	}
+}//end RepositoryConformance
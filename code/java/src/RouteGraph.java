@@ -0,0 +1,344 @@
+import java.sql.SQLException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.PriorityQueue;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * This class keeps the Flight table in memory as a graph: every city maps
+ * to the flights leaving it, with their duration and airline.  It answers
+ * connection searches without a database round trip per hop.
+ *
+ * The graph is loaded once at startup and kept current by upsertFlight().
+ * Readers never lock: the outgoing and incoming flights of a city are
+ * immutable arrays that writers replace as a whole.
+ */
+public class RouteGraph {
+	static final String LOAD_FLIGHTS =
+			"SELECT F.flightNum, F.origin, F.destination, F.duration, F.airId, A.name"
+			+ " FROM Flight F JOIN Airline A ON A.airId = F.airId";
+
+	private static final Leg[] NO_LEGS = new Leg[0];
+
+	//most intermediate stops a search may ask for; the simple paths grow exponentially with them
+	public static final int MAX_STOPS = 4;
+
+	/**
+	 * One flight, as an edge from its origin to its destination.
+	 */
+	public static class Leg {
+		public final String flightNum;
+		public final String origin;
+		public final String destination;
+		public final int duration;
+		public final int airId;
+		public final String airline;
+
+		public Leg(String flightNum, String origin, String destination, int duration, int airId, String airline) {
+			this.flightNum = flightNum;
+			this.origin = origin;
+			this.destination = destination;
+			this.duration = duration;
+			this.airId = airId;
+			this.airline = airline;
+		}
+
+		public String toString() {
+			return flightNum + " " + origin + " -> " + destination + " (" + duration + "h, " + airline + ")";
+		}
+	}
+
+	/**
+	 * A sequence of connecting flights and their total duration.
+	 */
+	public static class Itinerary {
+		public final List<Leg> legs;
+		public final int duration;
+
+		Itinerary(List<Leg> legs, int duration) {
+			this.legs = legs;
+			this.duration = duration;
+		}
+
+		/**
+		 * @return number of intermediate stops
+		 */
+		public int stops() {
+			return this.legs.size() - 1;
+		}
+	}
+
+	//outgoing flights per origin city
+	private final ConcurrentHashMap<String, Leg[]> _outgoing = new ConcurrentHashMap<String, Leg[]>();
+	//arriving flights per destination city, to search backwards from a destination
+	private final ConcurrentHashMap<String, Leg[]> _incoming = new ConcurrentHashMap<String, Leg[]>();
+	//every flight by flight number, to find the edge an update replaces
+	private final ConcurrentHashMap<String, Leg> _flights = new ConcurrentHashMap<String, Leg>();
+
+	/**
+	 * Method to build the graph from the Flight and Airline tables.
+	 *
+	 * @param esql the database session to read from
+	 * @return the loaded graph
+	 * @throws java.sql.SQLException when the flights could not be read
+	 */
+	public static RouteGraph load(AirBooking esql) throws SQLException {
+		RouteGraph graph = new RouteGraph();
+		QueryResult flights = esql.executePreparedQueryAndReturnColumns(LOAD_FLIGHTS);
+		Map<String, List<Leg>> outgoing = new HashMap<String, List<Leg>>();
+		Map<String, List<Leg>> incoming = new HashMap<String, List<Leg>>();
+		for (int i = 0; i < flights.size(); ++i) {
+			Leg leg = legOf(flights, i);
+			graph._flights.put(leg.flightNum, leg);
+			group(outgoing, leg.origin, leg);
+			group(incoming, leg.destination, leg);
+		}
+		for (Map.Entry<String, List<Leg>> entry : outgoing.entrySet()) {
+			graph._outgoing.put(entry.getKey(), entry.getValue().toArray(NO_LEGS));
+		}
+		for (Map.Entry<String, List<Leg>> entry : incoming.entrySet()) {
+			graph._incoming.put(entry.getKey(), entry.getValue().toArray(NO_LEGS));
+		}
+		return graph;
+	}//end load
+
+	private static void group(Map<String, List<Leg>> byCity, String city, Leg leg) {
+		List<Leg> legs = byCity.get(city);
+		if (legs == null) {
+			legs = new ArrayList<Leg>();
+			byCity.put(city, legs);
+		}
+		legs.add(leg);
+	}
+
+	/**
+	 * Method to build a leg from a row with the columns of LOAD_FLIGHTS.
+	 *
+	 * @param rows the query result
+	 * @param row the row number
+	 * @return the flight of that row
+	 */
+	static Leg legOf(QueryResult rows, int row) {
+		return new Leg(rows.getString(row, 0), rows.getString(row, 1), rows.getString(row, 2),
+				rows.getInt(row, 3), rows.getInt(row, 4), rows.getString(row, 5));
+	}
+
+	/**
+	 * Method to add a flight or replace the flight with the same number.
+	 *
+	 * @param leg the new state of the flight
+	 * @return the flight it replaced, or null when it is new
+	 */
+	public synchronized Leg put(Leg leg) {
+		Leg previous = this._flights.put(leg.flightNum, leg);
+		if (previous != null) {
+			remove(this._outgoing, previous.origin, previous);
+			remove(this._incoming, previous.destination, previous);
+		}
+		add(this._outgoing, leg.origin, leg);
+		add(this._incoming, leg.destination, leg);
+		return previous;
+	}
+
+	private static void add(ConcurrentHashMap<String, Leg[]> byCity, String city, Leg leg) {
+		Leg[] legs = byCity.get(city);
+		if (legs == null) {
+			legs = NO_LEGS;
+		}
+		Leg[] grown = Arrays.copyOf(legs, legs.length + 1);
+		grown[legs.length] = leg;
+		byCity.put(city, grown);
+	}
+
+	private static void remove(ConcurrentHashMap<String, Leg[]> byCity, String city, Leg leg) {
+		Leg[] legs = byCity.get(city);
+		if (legs == null) {
+			return;
+		}
+		List<Leg> kept = new ArrayList<Leg>(legs.length);
+		for (Leg l : legs) {
+			if (!l.flightNum.equals(leg.flightNum)) {
+				kept.add(l);
+			}
+		}
+		if (kept.isEmpty()) {
+			byCity.remove(city);
+		}
+		else {
+			byCity.put(city, kept.toArray(NO_LEGS));
+		}
+	}
+
+	/**
+	 * @param flightNum a flight number
+	 * @return the flight, or null when there is no such flight
+	 */
+	public Leg getFlight(String flightNum) {
+		return this._flights.get(flightNum.trim());
+	}
+
+	/**
+	 * @param origin a city
+	 * @return the flights leaving origin
+	 */
+	public List<Leg> outgoing(String origin) {
+		Leg[] legs = this._outgoing.get(origin.trim());
+		return legs == null ? Collections.<Leg>emptyList() : Collections.unmodifiableList(Arrays.asList(legs));
+	}
+
+	/**
+	 * @return number of flights in the graph
+	 */
+	public int size() {
+		return this._flights.size();
+	}
+
+	/**
+	 * A partial itinerary on the search frontier, linked to its prefix.
+	 */
+	private static class Path implements Comparable<Path> {
+		final Path prefix;
+		final Leg leg;
+		final String city;
+		final int duration;
+		final int legs;
+		//duration plus a lower bound of the rest of the way to the destination
+		final int estimate;
+
+		Path(Path prefix, Leg leg, String city, int duration, int legs, int estimate) {
+			this.prefix = prefix;
+			this.leg = leg;
+			this.city = city;
+			this.duration = duration;
+			this.legs = legs;
+			this.estimate = estimate;
+		}
+
+		boolean visits(String c) {
+			for (Path p = this; p != null; p = p.prefix) {
+				if (p.city.equals(c)) {
+					return true;
+				}
+			}
+			return false;
+		}
+
+		public int compareTo(Path other) {
+			return this.estimate != other.estimate ? Integer.compare(this.estimate, other.estimate)
+					: Integer.compare(this.legs, other.legs);
+		}
+	}
+
+	/**
+	 * Method to find the k itineraries from origin to destination with the
+	 * shortest total flight duration, using at most maxStops intermediate
+	 * stops and never passing through the same city twice.  Paths are
+	 * expanded best first by their duration plus the shortest duration left
+	 * to the destination (A*), so itineraries reach the destination fastest
+	 * first.  Every simple path is a candidate; only paths that cannot reach
+	 * the destination within the stops left are cut off.
+	 *
+	 * @param origin the departure city
+	 * @param destination the arrival city
+	 * @param k the number of itineraries wanted
+	 * @param maxStops the maximum number of intermediate stops, at most MAX_STOPS
+	 * @return up to k itineraries, fastest first (fewer stops first on ties)
+	 * @throws java.lang.IllegalArgumentException when maxStops is above MAX_STOPS
+	 */
+	public List<Itinerary> fastest(String origin, String destination, int k, int maxStops) {
+		if (maxStops > MAX_STOPS) {
+			throw new IllegalArgumentException("maxStops must be at most " + MAX_STOPS + ", got " + maxStops);
+		}
+		origin = origin.trim();
+		destination = destination.trim();
+		List<Itinerary> found = new ArrayList<Itinerary>();
+		if (k <= 0 || maxStops < 0 || origin.equals(destination)) {
+			return found;
+		}
+		int maxLegs = maxStops + 1;
+		Map<String, int[]> remaining = remaining(destination, maxLegs);
+		int[] start = remaining.get(origin);
+		if (start == null) {
+			return found;
+		}
+		PriorityQueue<Path> frontier = new PriorityQueue<Path>();
+		frontier.add(new Path(null, null, origin, 0, 0, start[1]));
+		while (!frontier.isEmpty() && found.size() < k) {
+			Path path = frontier.poll();
+			if (path.city.equals(destination)) {
+				found.add(toItinerary(path));
+				continue;
+			}
+			Leg[] legs = this._outgoing.get(path.city);
+			if (legs == null) {
+				continue;
+			}
+			for (Leg leg : legs) {
+				int[] rest = remaining.get(leg.destination);
+				if (rest != null && path.legs + 1 + rest[0] <= maxLegs && !path.visits(leg.destination)) {
+					int duration = path.duration + leg.duration;
+					frontier.add(new Path(path, leg, leg.destination, duration, path.legs + 1, duration + rest[1]));
+				}
+			}
+		}
+		return found;
+	}//end fastest
+
+	/**
+	 * Computes, for every city that reaches destination within maxLegs
+	 * flights, the fewest flights and the shortest duration left to it,
+	 * ignoring whether cities repeat, so both are lower bounds.
+	 */
+	private Map<String, int[]> remaining(String destination, int maxLegs) {
+		//fewest legs, breadth first from the destination
+		Map<String, int[]> remaining = new HashMap<String, int[]>();
+		remaining.put(destination, new int[] { 0, Integer.MAX_VALUE });
+		List<String> level = Collections.singletonList(destination);
+		for (int legs = 1; legs <= maxLegs && !level.isEmpty(); ++legs) {
+			List<String> next = new ArrayList<String>();
+			for (String city : level) {
+				Leg[] in = this._incoming.get(city);
+				for (Leg leg : in == null ? NO_LEGS : in) {
+					if (!remaining.containsKey(leg.origin)) {
+						remaining.put(leg.origin, new int[] { legs, Integer.MAX_VALUE });
+						next.add(leg.origin);
+					}
+				}
+			}
+			level = next;
+		}
+		//shortest duration, Dijkstra from the destination over the cities found
+		remaining.get(destination)[1] = 0;
+		PriorityQueue<Object[]> queue = new PriorityQueue<Object[]>((a, b) -> Integer.compare((Integer) a[1], (Integer) b[1]));
+		queue.add(new Object[] { destination, 0 });
+		while (!queue.isEmpty()) {
+			Object[] head = queue.poll();
+			String city = (String) head[0];
+			int duration = (Integer) head[1];
+			if (duration > remaining.get(city)[1]) {
+				continue;
+			}
+			Leg[] in = this._incoming.get(city);
+			for (Leg leg : in == null ? NO_LEGS : in) {
+				int[] bound = remaining.get(leg.origin);
+				if (bound != null && duration + leg.duration < bound[1]) {
+					bound[1] = duration + leg.duration;
+					queue.add(new Object[] { leg.origin, bound[1] });
+				}
+			}
+		}
+		return remaining;
+	}//end remaining
+
+	private static Itinerary toItinerary(Path path) {
+		Leg[] legs = new Leg[path.legs];
+		for (Path p = path; p.leg != null; p = p.prefix) {
+			legs[p.legs - 1] = p.leg;
+		}
+		return new Itinerary(Collections.unmodifiableList(Arrays.asList(legs)), path.duration);
+	}
+}//end RouteGraph
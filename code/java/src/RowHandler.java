@@ -0,0 +1,15 @@
+import java.sql.ResultSet;
+import java.sql.SQLException;
+
+/**
+ * Callback that receives the rows of a streamed query one at a time, see
+ * AirBooking.streamQuery().  The result set is positioned on the current
+ * row; it must not be advanced or kept after the call returns.
+ */
+public interface RowHandler {
+	/**
+	 * @param rs the result set positioned on the current row
+	 * @throws java.sql.SQLException when reading the row failed; the query is aborted
+	 */
+	void row(ResultSet rs) throws SQLException;
+}
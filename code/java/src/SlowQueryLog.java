@@ -0,0 +1,219 @@
+import java.io.IOException;
+import java.sql.SQLException;
+import java.text.SimpleDateFormat;
+import java.util.Arrays;
+import java.util.Date;
+import java.util.List;
+import java.util.Locale;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.logging.FileHandler;
+import java.util.logging.Formatter;
+import java.util.logging.Level;
+import java.util.logging.LogRecord;
+import java.util.regex.Pattern;
+
+/**
+ * This class writes the statements that ran longer than a threshold to a
+ * log file that rotates by size, with their bind values, duration and row
+ * count.  A sample of the slow reads is run again under
+ * EXPLAIN (ANALYZE, BUFFERS) and the plan is logged with the statement.
+ *
+ * Entries are written, and plans captured, by one background thread, so a
+ * slow statement costs its caller no more than a queue insert; entries
+ * that find the queue full are dropped and counted.  A plan is captured
+ * only for a statement that reads (SELECT, WITH, VALUES or TABLE without
+ * any data-modifying or locking clause), and then inside a read-only
+ * transaction that is rolled back, so a capture can never write.
+ */
+public class SlowQueryLog {
+	//clauses that make a statement more than a read
+	private static final Pattern WRITES = Pattern.compile(
+			"\\b(INSERT|UPDATE|DELETE|MERGE|TRUNCATE|COPY|INTO|LOCK|SHARE|NEXTVAL|SETVAL|PG_ADVISORY\\w*)\\b");
+	//entries waiting to be written
+	private static final int QUEUE = 256;
+
+	private final AirBooking _esql;
+	private final long _thresholdNanos;
+	private final double _explainSampleRate;
+	private final long _explainIntervalNanos;
+	//System.nanoTime() before which no plan is captured
+	private final AtomicLong _nextExplain = new AtomicLong(System.nanoTime());
+	private final AtomicLong _dropped = new AtomicLong();
+	private final FileHandler _file;
+	private final ThreadPoolExecutor _writer;
+	//the thread of _writer, whose own statements are not logged
+	private volatile Thread _writerThread = null;
+
+	/**
+	 * @param esql the session whose statements are logged and re-run
+	 * @param thresholdMillis statements taking at least this long are logged
+	 * @param file path of the log file; with more than one file, .0 (the newest), .1, ... are appended
+	 * @param maxBytes size at which the log file is rotated
+	 * @param files number of log files kept
+	 * @param explainSampleRate fraction of the slow reads whose plan is captured, 0 to 1
+	 * @param explainPerMinute most plans captured per minute, 0 to disable capture
+	 * @throws java.io.IOException when the log file could not be opened
+	 */
+	public SlowQueryLog(AirBooking esql, long thresholdMillis, String file, int maxBytes, int files,
+			double explainSampleRate, int explainPerMinute) throws IOException {
+		this._esql = esql;
+		this._thresholdNanos = TimeUnit.MILLISECONDS.toNanos(thresholdMillis);
+		this._explainSampleRate = explainPerMinute > 0 ? explainSampleRate : 0;
+		this._explainIntervalNanos = explainPerMinute > 0 ? TimeUnit.MINUTES.toNanos(1) / explainPerMinute : Long.MAX_VALUE;
+		this._file = new FileHandler(file.replace("%", "%%") + (files > 1 ? ".%g" : ""), maxBytes, Math.max(1, files), true);
+		this._file.setEncoding("UTF-8");
+		this._file.setFormatter(new Formatter() {
+			public String format(LogRecord record) {
+				return record.getMessage();
+			}
+		});
+		this._writer = new ThreadPoolExecutor(1, 1, 0, TimeUnit.MILLISECONDS, new ArrayBlockingQueue<Runnable>(QUEUE),
+				new ThreadFactory() {
+					public Thread newThread(Runnable r) {
+						Thread t = new Thread(r, "slow-query-log");
+						t.setDaemon(true);
+						SlowQueryLog.this._writerThread = t;
+						return t;
+					}
+				});
+	}
+
+	/**
+	 * Method to log a statement when it took at least the threshold.
+	 *
+	 * @param sql the statement text
+	 * @param params the bind values, or null for a statement without placeholders
+	 * @param nanos how long the statement took
+	 * @param rows rows returned or affected, or -1 when the statement failed
+	 */
+	public void record(String sql, Object[] params, long nanos, long rows) {
+		if (nanos < this._thresholdNanos || Thread.currentThread() == this._writerThread) {
+			return;
+		}
+		final boolean explain = rows >= 0 && isRead(sql) && sampled();
+		final Entry entry = new Entry(new Date(), sql, params == null ? null : params.clone(), nanos, rows);
+		try {
+			this._writer.execute(new Runnable() {
+				public void run() {
+					write(entry, explain);
+				}
+			});
+		} catch (RejectedExecutionException e) {
+			this._dropped.incrementAndGet();
+		}
+	}//end record
+
+	/**
+	 * One slow statement, as seen by the thread that ran it.
+	 */
+	private static class Entry {
+		final Date time;
+		final String sql;
+		final Object[] params;
+		final long nanos;
+		final long rows;
+
+		Entry(Date time, String sql, Object[] params, long nanos, long rows) {
+			this.time = time;
+			this.sql = sql;
+			this.params = params;
+			this.nanos = nanos;
+			this.rows = rows;
+		}
+	}
+
+	/**
+	 * Decides whether this slow read gets its plan captured: it must be
+	 * picked by the sample and find the rate limit open.
+	 */
+	private boolean sampled() {
+		if (this._explainSampleRate <= 0 || ThreadLocalRandom.current().nextDouble() >= this._explainSampleRate) {
+			return false;
+		}
+		long now = System.nanoTime();
+		long next = this._nextExplain.get();
+		return now - next >= 0 && this._nextExplain.compareAndSet(next, now + this._explainIntervalNanos);
+	}
+
+	/**
+	 * Method to tell whether a statement only reads.  String literals are
+	 * ignored, so a value such as 'Update' does not make a read a write.
+	 *
+	 * @param sql the statement text
+	 * @return true when sql is a query without data-modifying or locking clauses
+	 */
+	public static boolean isRead(String sql) {
+		String shape = QueryMetrics.shape(sql).toUpperCase(Locale.ROOT);
+		if (!(shape.startsWith("SELECT") || shape.startsWith("WITH") || shape.startsWith("VALUES") || shape.startsWith("TABLE"))) {
+			return false;
+		}
+		return !WRITES.matcher(shape).find();
+	}
+
+	private void write(Entry entry, boolean explain) {
+		StringBuilder sb = new StringBuilder();
+		sb.append(new SimpleDateFormat("yyyy-MM-dd'T'HH:mm:ss.SSS").format(entry.time));
+		sb.append(String.format(" %.1f ms, ", entry.nanos / 1e6));
+		sb.append(entry.rows < 0 ? "failed" : entry.rows + " rows");
+		long dropped = this._dropped.getAndSet(0);
+		if (dropped > 0) {
+			sb.append(" (").append(dropped).append(" earlier entries dropped)");
+		}
+		sb.append(System.lineSeparator());
+		sb.append("  sql: ").append(entry.sql.replaceAll("\\s+", " ").trim()).append(System.lineSeparator());
+		if (entry.params != null) {
+			sb.append("  binds: ").append(Arrays.deepToString(entry.params)).append(System.lineSeparator());
+		}
+		if (explain) {
+			sb.append("  plan:").append(System.lineSeparator());
+			try {
+				for (List<String> line : plan(entry)) {
+					sb.append("    ").append(line.get(0)).append(System.lineSeparator());
+				}
+			} catch (SQLException e) {
+				sb.append("    not captured: ").append(e.getMessage()).append(System.lineSeparator());
+			}
+		}
+		sb.append(System.lineSeparator());
+		this._file.publish(new LogRecord(Level.INFO, sb.toString()));
+	}//end write
+
+	/**
+	 * Runs the statement again under EXPLAIN (ANALYZE, BUFFERS), which
+	 * executes it, inside a read-only transaction that is rolled back.
+	 */
+	private List<List<String>> plan(Entry entry) throws SQLException {
+		String explain = "EXPLAIN (ANALYZE, BUFFERS) " + entry.sql;
+		this._esql.beginTransaction();
+		try {
+			this._esql.executeUpdate("SET TRANSACTION READ ONLY");
+			return entry.params == null
+					? this._esql.executeQueryAndReturnResult(explain)
+					: this._esql.executePreparedQueryAndReturnResult(explain, entry.params);
+		} finally {
+			this._esql.rollbackTransaction();
+		}
+	}
+
+	/**
+	 * Method to write the pending entries, waiting up to timeoutMillis for
+	 * plans being captured, and close the log file.
+	 *
+	 * @param timeoutMillis how long to wait for the pending entries
+	 */
+	public void close(long timeoutMillis) {
+		this._writer.shutdown();
+		try {
+			this._writer.awaitTermination(timeoutMillis, TimeUnit.MILLISECONDS);
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+		}
+		this._file.close();
+	}
+}//end SlowQueryLog
@@ -0,0 +1,97 @@
+import java.sql.Connection;
+import java.sql.PreparedStatement;
+import java.sql.SQLException;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+/**
+ * This class keeps the most recently used PreparedStatements of one physical
+ * connection, keyed by their SQL text.  Reusing the same statement object
+ * lets the PostgreSQL driver switch to a named server-side prepared statement,
+ * so repeated lookups skip parsing and planning.
+ *
+ * A cache belongs to exactly one connection and, like the connection, is
+ * used by one thread at a time.
+ */
+public class StatementCache {
+	private final Connection _connection;
+	private final LinkedHashMap<String, PreparedStatement> _statements;
+
+	/**
+	 * @param connection the connection the statements are prepared on
+	 * @param capacity maximum number of statements kept open
+	 */
+	public StatementCache(Connection connection, final int capacity) {
+		this._connection = connection;
+		//access ordered, so the eldest entry is the least recently used one
+		this._statements = new LinkedHashMap<String, PreparedStatement>(16, 0.75f, true) {
+			private static final long serialVersionUID = 1L;
+
+			protected boolean removeEldestEntry(Map.Entry<String, PreparedStatement> eldest) {
+				if (size() > capacity) {
+					closeQuietly(eldest.getValue());
+					return true;
+				}
+				return false;
+			}
+		};
+	}
+
+	/**
+	 * Method to get a prepared statement for the given SQL, preparing it on
+	 * the first use.  The returned statement is owned by the cache and must
+	 * not be closed by the caller; its parameters are already cleared.
+	 *
+	 * @param sql the SQL string with ? placeholders
+	 * @return a prepared statement for sql
+	 * @throws java.sql.SQLException when preparing the statement failed
+	 */
+	public PreparedStatement prepare(String sql) throws SQLException {
+		PreparedStatement stmt = this._statements.get(sql);
+		if (stmt != null && !stmt.isClosed()) {
+			stmt.clearParameters();
+			return stmt;
+		}
+		stmt = this._connection.prepareStatement(sql);
+		this._statements.put(sql, stmt);
+		return stmt;
+	}
+
+	/**
+	 * Method to drop a statement from the cache, e.g. after it failed in a
+	 * way that may have left it unusable.
+	 *
+	 * @param sql the SQL string the statement was prepared for
+	 */
+	public void evict(String sql) {
+		closeQuietly(this._statements.remove(sql));
+	}
+
+	/**
+	 * @return number of statements currently cached
+	 */
+	public int size() {
+		return this._statements.size();
+	}
+
+	/**
+	 * Method to close every cached statement.
+	 */
+	public void close() {
+		for (PreparedStatement stmt : this._statements.values()) {
+			closeQuietly(stmt);
+		}
+		this._statements.clear();
+	}
+
+	private static void closeQuietly(PreparedStatement stmt) {
+		if (stmt == null) {
+			return;
+		}
+		try {
+			stmt.close();
+		} catch (SQLException e) {
+			// ignored.
+		}
+	}
+}//end StatementCache
@@ -4,28 +4,20 @@ DROP TABLE IF EXISTS Passenger CASCADE;
 DROP TABLE IF EXISTS Flight CASCADE;
 DROP TABLE IF EXISTS Ratings CASCADE;
 DROP TABLE IF EXISTS Booking CASCADE;
+DROP TABLE IF EXISTS SeatInventory CASCADE;
+DROP TABLE IF EXISTS SeatHold CASCADE;
+DROP TABLE IF EXISTS RatingSummary CASCADE;
+DROP TABLE IF EXISTS SchemaMigration CASCADE;
+DROP FUNCTION IF EXISTS create_monthly_partitions(TEXT, DATE, DATE);
+DROP SEQUENCE IF EXISTS Passenger_pID_seq;
+DROP SEQUENCE IF EXISTS Ratings_rID_seq;
+DROP SEQUENCE IF EXISTS Booking_ref_seq;
 
 DROP DOMAIN IF EXISTS _YEAR CASCADE;
 DROP DOMAIN IF EXISTS _HOURS CASCADE;
 DROP DOMAIN IF EXISTS _SEATS CASCADE;
 DROP DOMAIN IF EXISTS _SCORE CASCADE;
 
-CREATE INDEX passenger
-ON Passenger
-USING BTREE (pID);
-
-CREATE INDEX airline
-ON Airline
-USING BTREE (airId);
-
-CREATE INDEX flight
-ON Flight
-USING BTREE (airId);
-
-CREATE INDEX ratings
-ON Ratings
-USING BTREE (rID);
-
 -- CREATE DOMAINS
 CREATE DOMAIN _YEAR AS int4 CHECK(VALUE >= 1900);--YEAR ONLY GREATER THAN 1900
 CREATE DOMAIN _HOURS AS int4 CHECK(VALUE > 0 AND VALUE < 24);--At most 24 hours duration
@@ -64,6 +56,11 @@ CREATE TABLE Flight(
 	FOREIGN KEY (airId) REFERENCES Airline(airId)
 );
 
+-- pID, airId and rID are indexed by their primary keys
+CREATE INDEX flight
+ON Flight
+USING BTREE (airId);
+
 CREATE TABLE Ratings(
 	rID INTEGER NOT NULL,
 	pID INTEGER NOT NULL,
@@ -86,6 +83,54 @@ CREATE TABLE Booking(
 	UNIQUE(departure,flightNum,pID)
 );
 
+-- Booked and held seats per flight and departure date, maintained with every Booking insert
+CREATE TABLE SeatInventory(
+	flightNum CHAR(8) NOT NULL,
+	departure DATE NOT NULL,
+	booked INTEGER NOT NULL DEFAULT 0,
+	held INTEGER NOT NULL DEFAULT 0,
+	PRIMARY KEY(flightNum, departure),
+	FOREIGN KEY (flightNum) REFERENCES Flight(flightNum)
+);
+
+CREATE INDEX SeatInventory_departure
+ON SeatInventory
+USING BTREE (departure);
+
+-- Seats reserved by the booking engine until confirmed, released or expired
+CREATE TABLE SeatHold(
+	holdId SERIAL,
+	flightNum CHAR(8) NOT NULL,
+	departure DATE NOT NULL,
+	pID INTEGER NOT NULL,
+	expires TIMESTAMP WITH TIME ZONE NOT NULL,
+	PRIMARY KEY(holdId),
+	FOREIGN KEY (flightNum) REFERENCES Flight(flightNum),
+	FOREIGN KEY (pID) REFERENCES Passenger(pID)
+);
+
+CREATE INDEX SeatHold_flight
+ON SeatHold
+USING BTREE (flightNum, departure, expires);
+
+-- Number and sum of the scores of every rated flight, maintained with every Ratings insert
+CREATE TABLE RatingSummary(
+	flightNum CHAR(8) NOT NULL,
+	total INTEGER NOT NULL CHECK (total > 0),
+	scoreSum INTEGER NOT NULL,
+	PRIMARY KEY(flightNum),
+	FOREIGN KEY (flightNum) REFERENCES Flight(flightNum)
+);
+
+CREATE INDEX RatingSummary_rank
+ON RatingSummary
+USING BTREE ((CAST(scoreSum AS NUMERIC) / total) DESC, total DESC);
+
+-- Key sequences; the client reserves blocks of 50 ids per nextval (-Dairbooking.idBlockSize)
+CREATE SEQUENCE Passenger_pID_seq INCREMENT BY 50 MINVALUE 0 START WITH 0;
+CREATE SEQUENCE Ratings_rID_seq INCREMENT BY 50 MINVALUE 0 START WITH 0;
+CREATE SEQUENCE Booking_ref_seq INCREMENT BY 50;
+
 --CREATE USER WITH PASSWORD TO CONNECT TO DATABASE--CHANGE username accordingly
 DROP USER IF EXISTS username;
 CREATE USER username WITH PASSWORD '';
@@ -95,6 +140,13 @@ GRANT ALL PRIVILEGES ON TABLE Passenger TO username;
 GRANT ALL PRIVILEGES ON TABLE Flight TO username;
 GRANT ALL PRIVILEGES ON TABLE Ratings TO username;
 GRANT ALL PRIVILEGES ON TABLE Booking TO username;
+GRANT ALL PRIVILEGES ON TABLE SeatInventory TO username;
+GRANT ALL PRIVILEGES ON TABLE SeatHold TO username;
+GRANT ALL PRIVILEGES ON TABLE RatingSummary TO username;
+GRANT ALL PRIVILEGES ON SEQUENCE SeatHold_holdId_seq TO username;
+GRANT ALL PRIVILEGES ON SEQUENCE Passenger_pID_seq TO username;
+GRANT ALL PRIVILEGES ON SEQUENCE Ratings_rID_seq TO username;
+GRANT ALL PRIVILEGES ON SEQUENCE Booking_ref_seq TO username;
 ------------------------------------------------------------------------------------
 
 COPY Airline (
@@ -147,3 +199,20 @@ COPY Booking (
 FROM 'bookings.csv'
 WITH DELIMITER ',';
 --SELECT * FROM Booking;
+
+INSERT INTO SeatInventory (flightNum, departure, booked)
+SELECT flightNum, departure, COUNT(*)
+FROM Booking
+GROUP BY flightNum, departure;
+
+INSERT INTO RatingSummary (flightNum, total, scoreSum)
+SELECT flightNum, COUNT(*), SUM(score)
+FROM Ratings
+GROUP BY flightNum;
+
+-- Start the key sequences past the loaded keys
+SELECT setval('Passenger_pID_seq', (SELECT COALESCE(MAX(pID), -1) + 1 FROM Passenger), false);
+SELECT setval('Ratings_rID_seq', (SELECT COALESCE(MAX(rID), -1) + 1 FROM Ratings), false);
+
+-- Later schema changes are applied to the loaded tables by the client:
+--	run.sh <dbname> <port> <user> migrate
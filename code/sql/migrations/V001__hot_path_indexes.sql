@@ -0,0 +1,14 @@
+-- Indexes on the predicates of the hot queries: the route listings and searches
+-- (origin, destination), the booking lookups by flight and date, and the review
+-- checks and rating totals by flight
+CREATE INDEX IF NOT EXISTS Flight_route
+ON Flight
+USING BTREE (origin, destination);
+
+CREATE INDEX IF NOT EXISTS Booking_flight
+ON Booking
+USING BTREE (flightNum, departure);
+
+CREATE INDEX IF NOT EXISTS Ratings_flight
+ON Ratings
+USING BTREE (flightNum);
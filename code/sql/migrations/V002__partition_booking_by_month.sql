@@ -0,0 +1,77 @@
+-- Booking, range partitioned by departure month, so queries on one departure
+-- date only read that month.  Needs PostgreSQL 11 or later.
+--
+-- A primary key of a partitioned table must contain the partition key, so the
+-- key becomes (bookRef, departure); booking references come from
+-- Booking_ref_seq and stay unique.  Departures without a monthly partition go
+-- to Booking_default until create_monthly_partitions() gives them one.
+
+-- Creates the missing monthly partitions of parent (Booking or SeatInventory,
+-- both partitioned by departure) for every month from first to last, moving the
+-- rows of those months out of the default partition.  Returns the number of
+-- partitions created.
+CREATE OR REPLACE FUNCTION create_monthly_partitions(parent_table TEXT, first_day DATE, last_day DATE) RETURNS INTEGER AS $$
+DECLARE
+	parent_name TEXT := lower(parent_table);
+	month_start DATE := date_trunc('month', first_day)::DATE;
+	month_end DATE;
+	partition_name TEXT;
+	created INTEGER := 0;
+BEGIN
+	WHILE month_start <= last_day LOOP
+		month_end := (month_start + INTERVAL '1 month')::DATE;
+		partition_name := parent_name || '_' || to_char(month_start, 'YYYY_MM');
+		IF to_regclass(partition_name) IS NULL THEN
+			EXECUTE format('CREATE TABLE %I (LIKE %I INCLUDING DEFAULTS INCLUDING CONSTRAINTS)', partition_name, parent_name);
+			EXECUTE format('WITH moved AS (DELETE FROM %I WHERE departure >= %L AND departure < %L RETURNING *)'
+					' INSERT INTO %I SELECT * FROM moved', parent_name || '_default', month_start, month_end, partition_name);
+			EXECUTE format('ALTER TABLE %I ATTACH PARTITION %I FOR VALUES FROM (%L) TO (%L)',
+					parent_name, partition_name, month_start, month_end);
+			created := created + 1;
+		END IF;
+		month_start := month_end;
+	END LOOP;
+	RETURN created;
+END;
+$$ LANGUAGE plpgsql;
+
+ALTER TABLE Booking RENAME TO Booking_old;
+ALTER INDEX IF EXISTS booking_pkey RENAME TO booking_old_pkey;
+ALTER INDEX IF EXISTS booking_departure_flightnum_pid_key RENAME TO booking_old_departure_flightnum_pid_key;
+ALTER INDEX IF EXISTS booking_flight RENAME TO booking_old_flight;
+
+CREATE TABLE Booking(
+	bookRef CHAR(10) NOT NULL,
+	departure DATE NOT NULL,
+	flightNum CHAR(8) NOT NULL,
+	pID INTEGER NOT NULL,
+	PRIMARY KEY(bookRef, departure),
+	FOREIGN KEY (flightNum) REFERENCES Flight(flightNum),
+	FOREIGN KEY (pID) REFERENCES Passenger(pID),
+	UNIQUE(departure,flightNum,pID)
+) PARTITION BY RANGE (departure);
+
+CREATE TABLE Booking_default PARTITION OF Booking DEFAULT;
+
+CREATE INDEX Booking_flight
+ON Booking
+USING BTREE (flightNum, departure);
+
+-- a partition for every month with bookings, and for the coming year
+SELECT create_monthly_partitions('Booking', MIN(departure), MAX(departure)) FROM Booking_old HAVING COUNT(*) > 0;
+SELECT create_monthly_partitions('Booking', CURRENT_DATE, CURRENT_DATE + 365);
+
+INSERT INTO Booking (bookRef, departure, flightNum, pID)
+SELECT bookRef, departure, flightNum, pID
+FROM Booking_old;
+
+DROP TABLE Booking_old;
+
+-- the application user of create.sql, when it exists
+DO $$
+BEGIN
+	IF EXISTS (SELECT 1 FROM pg_roles WHERE rolname = 'username') THEN
+		GRANT ALL PRIVILEGES ON TABLE Booking TO username;
+	END IF;
+END
+$$;
@@ -0,0 +1,40 @@
+-- SeatInventory, range partitioned by departure month like Booking.  The
+-- availability queries (BookFlight and option 9) read these counters for one
+-- departure date, so they only touch that month's partition.  Needs
+-- PostgreSQL 11 or later.
+
+ALTER TABLE SeatInventory RENAME TO SeatInventory_old;
+ALTER INDEX IF EXISTS seatinventory_pkey RENAME TO seatinventory_old_pkey;
+ALTER INDEX IF EXISTS seatinventory_departure RENAME TO seatinventory_old_departure;
+
+CREATE TABLE SeatInventory(
+	flightNum CHAR(8) NOT NULL,
+	departure DATE NOT NULL,
+	booked INTEGER NOT NULL DEFAULT 0,
+	held INTEGER NOT NULL DEFAULT 0,
+	PRIMARY KEY(flightNum, departure),
+	FOREIGN KEY (flightNum) REFERENCES Flight(flightNum)
+) PARTITION BY RANGE (departure);
+
+CREATE TABLE SeatInventory_default PARTITION OF SeatInventory DEFAULT;
+
+CREATE INDEX SeatInventory_departure
+ON SeatInventory
+USING BTREE (departure);
+
+SELECT create_monthly_partitions('SeatInventory', MIN(departure), MAX(departure)) FROM SeatInventory_old HAVING COUNT(*) > 0;
+SELECT create_monthly_partitions('SeatInventory', CURRENT_DATE, CURRENT_DATE + 365);
+
+INSERT INTO SeatInventory (flightNum, departure, booked, held)
+SELECT flightNum, departure, booked, held
+FROM SeatInventory_old;
+
+DROP TABLE SeatInventory_old;
+
+DO $$
+BEGIN
+	IF EXISTS (SELECT 1 FROM pg_roles WHERE rolname = 'username') THEN
+		GRANT ALL PRIVILEGES ON TABLE SeatInventory TO username;
+	END IF;
+END
+$$;